@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.LinkedHierarchicalTree;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares resolving a batch of keys one {@code getNearest} at a time with
+ * resolving them in one shared descent, on one thread and across the common
+ * fork-join pool. Each query is a new child of a random key in the tree.
+ * <p>
+ * The keys are either linked to their parents, whose ancestor check walks the
+ * query's own ancestors, or '/' separated paths, whose check reads the node's
+ * key. The shared descent visits each node once per batch, which pays off
+ * when the check reads the node; when it reads the query, interleaving the
+ * queries costs more than the shared visits save.
+ *
+ * @author Doug Valenta
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchLookupBenchmark {
+	
+	public enum KeyType {
+		LINKED, PATH
+	}
+	
+	@Param({"BALANCED", "RANDOM"})
+	public TreeShape shape;
+	
+	@Param({"LINKED", "PATH"})
+	public KeyType keyType;
+	
+	@Param({"1000000"})
+	public int size;
+	
+	@Param({"100000"})
+	public int batch;
+	
+	private LinkedHierarchicalTree<Object, Object> tree;
+	private Object[] queries;
+	private Object[] out;
+	
+	@Setup
+	public void setUp() {
+		final Random random = new Random(42);
+		final List<BenchmarkKey> keys = shape.keys(size, random);
+		final List<Object> treeKeys = new ArrayList<>(size);
+		if (keyType == KeyType.PATH) {
+			final Map<BenchmarkKey, String> paths = new HashMap<>();
+			for (final BenchmarkKey key : keys) {
+				final String parent = (key.getParent() == null) ? "" : paths.get(key.getParent());
+				final String path = parent + "/" + Integer.toString(random.nextInt(), 36);
+				paths.put(key, path);
+				treeKeys.add(path);
+			}
+			tree = new LinkedHierarchicalTree<>((first, second) -> isPathPrefix((String) first, (String) second));
+		} else {
+			treeKeys.addAll(keys);
+			tree = new LinkedHierarchicalTree<>((first, second) -> ((BenchmarkKey) first).isParentOf((BenchmarkKey) second));
+		}
+		for (final Object key : treeKeys) {
+			tree.put(key, new Object());
+		}
+		queries = new Object[batch];
+		for (int i = 0; i < batch; i++) {
+			final Object parent = treeKeys.get(random.nextInt(size));
+			queries[i] = (keyType == KeyType.PATH) ? parent + "/query" : new BenchmarkKey((BenchmarkKey) parent);
+		}
+		out = new Object[batch];
+	}
+	
+	private static boolean isPathPrefix(final String ancestor, final String key) {
+		return key.length() > ancestor.length() && key.charAt(ancestor.length()) == '/' && key.startsWith(ancestor);
+	}
+	
+	@Benchmark
+	public Object[] loop() {
+		for (int i = 0; i < queries.length; i++) {
+			out[i] = tree.getNearestValue(queries[i], null);
+		}
+		return out;
+	}
+	
+	@Benchmark
+	public Object[] batch() {
+		tree.resolveBatch(queries, out);
+		return out;
+	}
+	
+	@Benchmark
+	public Object[] parallelBatch() {
+		tree.resolveBatch(queries, out, ForkJoinPool.commonPool());
+		return out;
+	}
+	
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+/**
+ * A key which knows only its parent, like the test suite's mock key, but
+ * which checks ancestry without recursion.
+ *
+ * @author Doug Valenta
+ */
+public class BenchmarkKey {
+	
+	private final BenchmarkKey parent;
+	
+	public BenchmarkKey() {
+		this(null);
+	}
+	
+	public BenchmarkKey(final BenchmarkKey parent) {
+		this.parent = parent;
+	}
+	
+	public BenchmarkKey getParent() {
+		return parent;
+	}
+	
+	public boolean isParentOf(final BenchmarkKey other) {
+		for (BenchmarkKey ancestor = other.parent; ancestor != null; ancestor = ancestor.parent) {
+			if (ancestor == this) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+}
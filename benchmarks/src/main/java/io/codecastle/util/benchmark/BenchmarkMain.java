@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Runs benchmarks with the JMH command line, always adding the GC profiler so
+ * that every result reports allocation alongside time. Build the library,
+ * then run from this module:
+ *
+ * <pre>
+ * mvn install -DskipTests &amp;&amp; (cd benchmarks &amp;&amp; mvn package)
+ * java -jar benchmarks/target/benchmarks.jar TreeBenchmark -p shape=WIDE
+ * </pre>
+ *
+ * @author Doug Valenta
+ */
+public class BenchmarkMain {
+	
+	public static void main(final String[] args) throws Exception {
+		final CommandLineOptions options = new CommandLineOptions(args);
+		if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams() || options.shouldListProfilers() || options.shouldListResultFormats()) {
+			Main.main(args);
+			return;
+		}
+		for (final ProfilerConfig profiler : options.getProfilers()) {
+			if (profiler.getKlass().equals("gc") || profiler.getKlass().equals(GCProfiler.class.getName())) {
+				new Runner(options).run();
+				return;
+			}
+		}
+		new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+	}
+	
+}
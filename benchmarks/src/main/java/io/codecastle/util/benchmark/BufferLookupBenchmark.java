@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.ByteRadixHierarchicalTree;
+import io.codecastle.util.PathHierarchicalTree;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares resolving paths held in a direct buffer by decoding each one to a
+ * {@code String} for a path tree with reading them in place with the byte
+ * radix tree. Run with {@code -prof gc}; the radix lookup should report a
+ * {@code gc.alloc.rate.norm} of zero bytes per operation.
+ *
+ * @author Doug Valenta
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferLookupBenchmark {
+	
+	private static final int QUERIES = 4096;
+	
+	@Param({"10000"})
+	public int size;
+	
+	private PathHierarchicalTree<Object> pathTree;
+	private ByteRadixHierarchicalTree<Object> radixTree;
+	private ByteBuffer buffer;
+	private int[] offsets;
+	private int[] lengths;
+	private int index;
+	
+	@Setup
+	public void setUp() {
+		final Random random = new Random(42);
+		pathTree = new PathHierarchicalTree<>();
+		radixTree = new ByteRadixHierarchicalTree<>();
+		final String[] paths = new String[size];
+		for (int i = 0; i < size; i++) {
+			final String path = "/tenant" + random.nextInt(64) + "/service" + random.nextInt(32) + "/route" + i;
+			final Object value = new Object();
+			pathTree.put(path, value);
+			radixTree.put(ByteBuffer.wrap((path + "/").getBytes(StandardCharsets.US_ASCII)), value);
+			paths[i] = path;
+		}
+		final byte[][] queries = new byte[QUERIES][];
+		int capacity = 0;
+		for (int i = 0; i < QUERIES; i++) {
+			queries[i] = (paths[random.nextInt(size)] + "/resource" + i).getBytes(StandardCharsets.US_ASCII);
+			capacity += queries[i].length;
+		}
+		buffer = ByteBuffer.allocateDirect(capacity);
+		offsets = new int[QUERIES];
+		lengths = new int[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			offsets[i] = buffer.position();
+			lengths[i] = queries[i].length;
+			buffer.put(queries[i]);
+		}
+		buffer.flip();
+	}
+	
+	private int next() {
+		index = (index + 1) & (QUERIES - 1);
+		return index;
+	}
+	
+	@Benchmark
+	public Object decoded() {
+		final int query = next();
+		final byte[] bytes = new byte[lengths[query]];
+		final ByteBuffer slice = buffer.duplicate();
+		slice.position(offsets[query]);
+		slice.get(bytes);
+		return pathTree.getNearestValue(new String(bytes, StandardCharsets.US_ASCII), null);
+	}
+	
+	@Benchmark
+	public Object radix() {
+		final int query = next();
+		return radixTree.getNearestValue(buffer, offsets[query], lengths[query], null);
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares loading a whole tree entry by entry with {@code put}, with
+ * {@code putAll}, and with {@code build}. The wide shape puts every key
+ * under a single parent; the balanced shape is five levels of fan-out
+ * eight, cut off at the given size.
+ *
+ * @author Doug Valenta
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuildBenchmark {
+	
+	@Param({"wide", "balanced"})
+	public String shape;
+	
+	@Param({"20000"})
+	public int size;
+	
+	private static final int FAN_OUT = 8;
+	private static final int DEPTH = 5;
+	
+	private List<Map.Entry<BenchmarkKey, Object>> preorder;
+	private List<Map.Entry<BenchmarkKey, Object>> shuffled;
+	private Map<BenchmarkKey, Object> preorderMap;
+	
+	@Setup
+	public void setUp() {
+		preorder = new ArrayList<>();
+		if (shape.equals("wide")) {
+			final BenchmarkKey parent = new BenchmarkKey();
+			add(parent);
+			while (preorder.size() < size) {
+				add(new BenchmarkKey(parent));
+			}
+		} else {
+			addChildren(null, DEPTH);
+		}
+		shuffled = new ArrayList<>(preorder);
+		Collections.shuffle(shuffled, new Random(42));
+		preorderMap = new LinkedHashMap<>();
+		for (final Map.Entry<BenchmarkKey, Object> entry : preorder) {
+			preorderMap.put(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	private void add(final BenchmarkKey key) {
+		preorder.add(new AbstractMap.SimpleEntry<>(key, new Object()));
+	}
+	
+	private void addChildren(final BenchmarkKey parent, final int depth) {
+		for (int i = 0; i < FAN_OUT && preorder.size() < size; i++) {
+			final BenchmarkKey key = new BenchmarkKey(parent);
+			add(key);
+			if (depth > 1) {
+				addChildren(key, depth - 1);
+			}
+		}
+	}
+	
+	@Benchmark
+	public HierarchicalTree<BenchmarkKey, Object> putShuffled() {
+		final HierarchicalTree<BenchmarkKey, Object> tree = new LinkedHierarchicalTree<>(BenchmarkKey::isParentOf);
+		for (final Map.Entry<BenchmarkKey, Object> entry : shuffled) {
+			tree.put(entry.getKey(), entry.getValue());
+		}
+		return tree;
+	}
+	
+	@Benchmark
+	public HierarchicalTree<BenchmarkKey, Object> putPreorder() {
+		final HierarchicalTree<BenchmarkKey, Object> tree = new LinkedHierarchicalTree<>(BenchmarkKey::isParentOf);
+		for (final Map.Entry<BenchmarkKey, Object> entry : preorder) {
+			tree.put(entry.getKey(), entry.getValue());
+		}
+		return tree;
+	}
+	
+	@Benchmark
+	public HierarchicalTree<BenchmarkKey, Object> putAllPreorder() {
+		final HierarchicalTree<BenchmarkKey, Object> tree = new LinkedHierarchicalTree<>(BenchmarkKey::isParentOf);
+		tree.putAll(preorderMap);
+		return tree;
+	}
+	
+	@Benchmark
+	public HierarchicalTree<BenchmarkKey, Object> buildPreorder() {
+		return LinkedHierarchicalTree.build(preorder, BenchmarkKey::isParentOf);
+	}
+	
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.ConcurrentHierarchicalTree;
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures getNearest throughput while a single writer mutates the tree at
+ * roughly 1k operations per second, comparing the concurrent tree with a
+ * linked tree behind a global lock. Scale the readers with
+ * {@code -tg <readers>,1}.
+ *
+ * @author Doug Valenta
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentReadBenchmark {
+	
+	private static final int FAN_OUT = 16;
+	private static final int DEPTH = 3;
+	
+	private final Object lock = new Object();
+	private HierarchicalTree<BenchmarkKey, Object> concurrentTree;
+	private HierarchicalTree<BenchmarkKey, Object> lockedTree;
+	private BenchmarkKey[] queries;
+	private BenchmarkKey[] churn;
+	
+	@Setup
+	public void setUp() {
+		concurrentTree = new ConcurrentHierarchicalTree<>(BenchmarkKey::isParentOf);
+		lockedTree = new LinkedHierarchicalTree<>(BenchmarkKey::isParentOf);
+		final List<BenchmarkKey> scopes = new ArrayList<>();
+		final List<BenchmarkKey> leaves = new ArrayList<>();
+		addChildren(null, DEPTH, scopes, leaves);
+		queries = new BenchmarkKey[leaves.size()];
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = new BenchmarkKey(leaves.get(i));
+		}
+		churn = new BenchmarkKey[scopes.size()];
+		for (int i = 0; i < churn.length; i++) {
+			churn[i] = new BenchmarkKey(scopes.get(i));
+		}
+	}
+	
+	private void addChildren(final BenchmarkKey parent, final int depth, final List<BenchmarkKey> scopes, final List<BenchmarkKey> leaves) {
+		for (int i = 0; i < FAN_OUT; i++) {
+			final BenchmarkKey key = new BenchmarkKey(parent);
+			concurrentTree.put(key, new Object());
+			lockedTree.put(key, new Object());
+			if (depth > 1) {
+				scopes.add(key);
+				addChildren(key, depth - 1, scopes, leaves);
+			} else {
+				leaves.add(key);
+			}
+		}
+	}
+	
+	private static int random(final int bound) {
+		return ThreadLocalRandom.current().nextInt(bound);
+	}
+	
+	private static void pause() throws InterruptedException {
+		TimeUnit.MILLISECONDS.sleep(1);
+	}
+	
+	@Benchmark
+	@Group("concurrent")
+	@GroupThreads(3)
+	public HierarchicalTree.Node<BenchmarkKey, Object> concurrentRead() {
+		return concurrentTree.getNearestNode(queries[random(queries.length)]);
+	}
+	
+	@Benchmark
+	@Group("concurrent")
+	@GroupThreads(1)
+	public void concurrentWrite() throws InterruptedException {
+		final BenchmarkKey key = churn[random(churn.length)];
+		if (!concurrentTree.putIfNotPresent(key, key)) {
+			concurrentTree.remove(key);
+		}
+		pause();
+	}
+	
+	@Benchmark
+	@Group("locked")
+	@GroupThreads(3)
+	public HierarchicalTree.Node<BenchmarkKey, Object> lockedRead() {
+		synchronized (lock) {
+			return lockedTree.getNearestNode(queries[random(queries.length)]);
+		}
+	}
+	
+	@Benchmark
+	@Group("locked")
+	@GroupThreads(1)
+	public void lockedWrite() throws InterruptedException {
+		final BenchmarkKey key = churn[random(churn.length)];
+		synchronized (lock) {
+			if (!lockedTree.putIfNotPresent(key, key)) {
+				lockedTree.remove(key);
+			}
+		}
+		pause();
+	}
+	
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.ImmutableHierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares lookups and iteration in a linked tree with the same operations in
+ * its frozen, array-packed copy. Keys are inserted in random order so that
+ * the linked tree's nodes are not allocated in the order they are walked.
+ *
+ * @author Doug Valenta
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrozenLookupBenchmark {
+	
+	@Param({"4", "6"})
+	public int depth;
+	
+	private static final int FAN_OUT = 8;
+	
+	private final Object defaultValue = new Object();
+	private LinkedHierarchicalTree<BenchmarkKey, Object> linked;
+	private ImmutableHierarchicalTree<BenchmarkKey, Object> frozen;
+	private BenchmarkKey[] queries;
+	private int index;
+	
+	@Setup
+	public void setUp() {
+		final List<BenchmarkKey> keys = new ArrayList<>();
+		final List<BenchmarkKey> leaves = new ArrayList<>();
+		addChildren(null, depth, keys, leaves);
+		final Random random = new Random(42);
+		Collections.shuffle(keys, random);
+		linked = new LinkedHierarchicalTree<>(BenchmarkKey::isParentOf);
+		for (final BenchmarkKey key : keys) {
+			linked.put(key, new Object());
+		}
+		frozen = linked.freeze();
+		Collections.shuffle(leaves, random);
+		queries = new BenchmarkKey[leaves.size()];
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = new BenchmarkKey(leaves.get(i));
+		}
+	}
+	
+	private static void addChildren(final BenchmarkKey parent, final int depth, final List<BenchmarkKey> keys, final List<BenchmarkKey> leaves) {
+		for (int i = 0; i < FAN_OUT; i++) {
+			final BenchmarkKey key = new BenchmarkKey(parent);
+			keys.add(key);
+			if (depth > 1) {
+				addChildren(key, depth - 1, keys, leaves);
+			} else {
+				leaves.add(key);
+			}
+		}
+	}
+	
+	private BenchmarkKey next() {
+		index = (index + 1) % queries.length;
+		return queries[index];
+	}
+	
+	@Benchmark
+	public Object linkedGetNearestValue() {
+		return linked.getNearestValue(next(), defaultValue);
+	}
+	
+	@Benchmark
+	public Object frozenGetNearestValue() {
+		return frozen.getNearestValue(next(), defaultValue);
+	}
+	
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int linkedIterate() {
+		int count = 0;
+		for (final HierarchicalTree.Node<BenchmarkKey, Object> node : linked) {
+			count += node.getValue().hashCode();
+		}
+		return count;
+	}
+	
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int frozenIterate() {
+		int count = 0;
+		for (final HierarchicalTree.Node<BenchmarkKey, Object> node : frozen) {
+			count += node.getValue().hashCode();
+		}
+		return count;
+	}
+	
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.IpPrefix;
+import io.codecastle.util.IpPrefixHierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares longest-prefix matching of IPv4 addresses in a linked tree of
+ * prefix keys, whose ancestor function compares masks, with the primitive
+ * lookup of the binary trie. Run with {@code -prof gc}; the trie lookup
+ * should report a {@code gc.alloc.rate.norm} of zero bytes per operation.
+ *
+ * @author Doug Valenta
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpLookupBenchmark {
+	
+	private static final int QUERIES = 4096;
+	
+	@Param({"10000"})
+	public int size;
+	
+	private HierarchicalTree<IpPrefix, Object> linkedTree;
+	private IpPrefixHierarchicalTree<Object> trie;
+	private int[] addresses;
+	private int index;
+	
+	@Setup
+	public void setUp() {
+		final Random random = new Random(42);
+		linkedTree = new LinkedHierarchicalTree<>(IpPrefix::isAncestorOf);
+		trie = new IpPrefixHierarchicalTree<>();
+		for (int i = 0; i < size; i++) {
+			final IpPrefix prefix = IpPrefix.ipv4(random.nextInt(), 8 + random.nextInt(17));
+			final Object value = new Object();
+			linkedTree.put(prefix, value);
+			trie.put(prefix, value);
+		}
+		addresses = new int[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			addresses[i] = random.nextInt();
+		}
+	}
+	
+	private int next() {
+		index = (index + 1) & (QUERIES - 1);
+		return addresses[index];
+	}
+	
+	@Benchmark
+	public Object linked() {
+		return linkedTree.getNearestValue(IpPrefix.ipv4(next(), 32), null);
+	}
+	
+	@Benchmark
+	public Object trie() {
+		return trie.getNearestIpv4(next(), null);
+	}
+	
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.FixedWidthCodec;
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import io.codecastle.util.LoggedHierarchicalTree;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares the sustained put throughput of a linked tree with that of a
+ * logged tree syncing its log with the default group size and interval.
+ * Keys number the nodes of a balanced tree breadth-first, so that the parent
+ * of key k is (k - 1) / 8, and are put in order, then each is put again with
+ * a new value. Each tree is filled several times and the last round is
+ * reported. For example:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar io.codecastle.util.benchmark.LogThroughputComparison 1000000
+ * </pre>
+ *
+ * @author Doug Valenta
+ */
+public class LogThroughputComparison {
+	
+	private static final long FAN_OUT = 8;
+	private static final int ROUNDS = 4;
+	
+	public static void main(final String[] args) throws IOException {
+		final int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		long linkedNanos = 0;
+		long loggedNanos = 0;
+		long syncs = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			fill(new LinkedHierarchicalTree<>(LogThroughputComparison::isAncestor), size);
+			linkedNanos = System.nanoTime() - start;
+			final Path directory = Files.createTempDirectory("tree");
+			try {
+				start = System.nanoTime();
+				try (LoggedHierarchicalTree<Long, Long> logged = LoggedHierarchicalTree.open(directory, LogThroughputComparison::isAncestor, FixedWidthCodec.longs(), FixedWidthCodec.longs())) {
+					fill(logged, size);
+					logged.sync();
+					syncs = logged.syncCount();
+				}
+				loggedNanos = System.nanoTime() - start;
+			} finally {
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+					for (final Path file : files) {
+						Files.delete(file);
+					}
+				}
+				Files.delete(directory);
+			}
+		}
+		System.out.printf("linked: %,d puts/s%n", 2L * size * 1000000000 / linkedNanos);
+		System.out.printf("logged: %,d puts/s (%,d syncs)%n", 2L * size * 1000000000 / loggedNanos, syncs);
+		System.out.printf("ratio: %.2f%n", (double) loggedNanos / linkedNanos);
+	}
+	
+	private static void fill(final HierarchicalTree<Long, Long> tree, final int size) {
+		for (long key = 0; key < size; key++) {
+			tree.put(key, key);
+		}
+		for (long key = 0; key < size; key++) {
+			tree.put(key, -key);
+		}
+	}
+	
+	private static boolean isAncestor(final Long ancestor, final Long key) {
+		final long top = ancestor;
+		long node = key;
+		while (node > top) {
+			node = (node - 1) / FAN_OUT;
+			if (node == top) return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the Optional-returning lookups with their allocation-free
+ * counterparts. Run with {@code -prof gc}; the allocation-free variants should
+ * report a {@code gc.alloc.rate.norm} of zero bytes per operation.
+ *
+ * @author Doug Valenta
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+	
+	private static final int FAN_OUT = 8;
+	private static final int DEPTH = 4;
+	
+	private final Object defaultValue = new Object();
+	private HierarchicalTree<BenchmarkKey, Object> tree;
+	private BenchmarkKey[] keys;
+	private BenchmarkKey[] queries;
+	private int index;
+	
+	@Setup
+	public void setUp() {
+		tree = new LinkedHierarchicalTree<>(BenchmarkKey::isParentOf);
+		final List<BenchmarkKey> leaves = new ArrayList<>();
+		addChildren(null, DEPTH, leaves);
+		keys = leaves.toArray(new BenchmarkKey[leaves.size()]);
+		queries = new BenchmarkKey[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			queries[i] = new BenchmarkKey(keys[i]);
+		}
+	}
+	
+	private void addChildren(final BenchmarkKey parent, final int depth, final List<BenchmarkKey> leaves) {
+		for (int i = 0; i < FAN_OUT; i++) {
+			final BenchmarkKey key = new BenchmarkKey(parent);
+			tree.put(key, new Object());
+			if (depth > 1) {
+				addChildren(key, depth - 1, leaves);
+			} else {
+				leaves.add(key);
+			}
+		}
+	}
+	
+	private int next() {
+		index = (index + 1) % keys.length;
+		return index;
+	}
+	
+	@Benchmark
+	public Optional<HierarchicalTree.Node<BenchmarkKey, Object>> get() {
+		return tree.get(keys[next()]);
+	}
+	
+	@Benchmark
+	public Object getValue() {
+		return tree.getValue(keys[next()]);
+	}
+	
+	@Benchmark
+	public Optional<HierarchicalTree.Node<BenchmarkKey, Object>> getNearest() {
+		return tree.getNearest(queries[next()]);
+	}
+	
+	@Benchmark
+	public HierarchicalTree.Node<BenchmarkKey, Object> getNearestNode() {
+		return tree.getNearestNode(queries[next()]);
+	}
+	
+	@Benchmark
+	public Object getNearestValue() {
+		return tree.getNearestValue(queries[next()], defaultValue);
+	}
+	
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.FixedWidthCodec;
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import io.codecastle.util.OffHeapHierarchicalTree;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.function.Supplier;
+
+/**
+ * Compares the heap retained by a linked tree with that of an off-heap tree
+ * holding the same entries, for a growing number of entries. Keys number the
+ * nodes of a balanced tree breadth-first, so that the parent of key k is
+ * (k - 1) / 8. Run with a fixed heap, for example:
+ *
+ * <pre>
+ * java -Xms2g -Xmx2g -XX:MaxDirectMemorySize=2g -cp benchmarks/target/benchmarks.jar io.codecastle.util.benchmark.OffHeapMemoryComparison 1000000 4000000
+ * </pre>
+ *
+ * @author Doug Valenta
+ */
+public class OffHeapMemoryComparison {
+	
+	private static final long FAN_OUT = 8;
+	
+	private static Object retained;
+	
+	public static void main(final String[] args) {
+		final String[] sizes = (args.length > 0) ? args : new String[] {"1000000", "4000000"};
+		for (final String argument : sizes) {
+			final int size = Integer.parseInt(argument);
+			final long linkedBytes = retained(() -> fill(new LinkedHierarchicalTree<>(OffHeapMemoryComparison::isAncestor), size));
+			System.out.printf("%,d entries, LinkedHierarchicalTree: %,d bytes%n", size, linkedBytes);
+			final long offHeapBytes = retained(() -> fill(new OffHeapHierarchicalTree<>(OffHeapMemoryComparison::isAncestor, FixedWidthCodec.longs(), FixedWidthCodec.longs()), size));
+			System.out.printf("%,d entries, OffHeapHierarchicalTree: %,d bytes%n", size, offHeapBytes);
+		}
+	}
+	
+	private static HierarchicalTree<Long, Long> fill(final HierarchicalTree<Long, Long> tree, final int size) {
+		for (long key = 0; key < size; key++) {
+			tree.put(key, key);
+		}
+		return tree;
+	}
+	
+	private static boolean isAncestor(final Long ancestor, final Long key) {
+		final long top = ancestor;
+		long node = key;
+		while (node > top) {
+			node = (node - 1) / FAN_OUT;
+			if (node == top) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the growth of the heap after collection while the object built
+	 * by the given supplier is still reachable.
+	 */
+	private static long retained(final Supplier<Object> supplier) {
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		final long before = used(memory);
+		retained = supplier.get();
+		final long after = used(memory);
+		retained = null;
+		return after - before;
+	}
+	
+	private static long used(final MemoryMXBean memory) {
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import io.codecastle.util.PathHierarchicalTree;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Compares the heap retained by a linked tree of path strings with that of a
+ * path tree holding the same corpus. The corpus is a balanced tree of paths
+ * whose segments are drawn from a fixed vocabulary, as names in real
+ * hierarchies tend to be. Run with a fixed heap, for example:
+ *
+ * <pre>
+ * java -Xms2g -Xmx2g -cp benchmarks/target/benchmarks.jar io.codecastle.util.benchmark.PathMemoryComparison 1000000
+ * </pre>
+ *
+ * @author Doug Valenta
+ */
+public class PathMemoryComparison {
+	
+	private static final int FAN_OUT = 8;
+	private static final int VOCABULARY = 5000;
+	
+	private static Object retained;
+	
+	public static void main(final String[] args) {
+		final int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		final long corpusBytes = retained(() -> corpus(size));
+		System.out.printf("corpus of %d paths: %,d bytes%n", size, corpusBytes);
+		final long linkedBytes = retained(() -> {
+			final HierarchicalTree<String, Object> tree = new LinkedHierarchicalTree<>(PathMemoryComparison::isPathAncestor);
+			fill(tree, corpus(size));
+			return tree;
+		});
+		System.out.printf("LinkedHierarchicalTree: %,d bytes%n", linkedBytes);
+		final long pathBytes = retained(() -> {
+			final HierarchicalTree<String, Object> tree = new PathHierarchicalTree<>();
+			fill(tree, corpus(size));
+			return tree;
+		});
+		System.out.printf("PathHierarchicalTree: %,d bytes%n", pathBytes);
+	}
+	
+	private static List<String> corpus(final int size) {
+		final Random random = new Random(42);
+		final String[] vocabulary = new String[VOCABULARY];
+		for (int i = 0; i < VOCABULARY; i++) {
+			vocabulary[i] = "segment-" + Integer.toString(random.nextInt(), 36);
+		}
+		final List<String> paths = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			final String parent = (i == 0) ? "" : paths.get((i - 1) / FAN_OUT);
+			paths.add(parent + "/" + vocabulary[random.nextInt(VOCABULARY)]);
+		}
+		return paths;
+	}
+	
+	private static void fill(final HierarchicalTree<String, Object> tree, final List<String> corpus) {
+		final Object value = new Object();
+		for (final String path : corpus) {
+			tree.put(path, value);
+		}
+	}
+	
+	private static boolean isPathAncestor(final String ancestor, final String path) {
+		return path.length() > ancestor.length() && path.charAt(ancestor.length()) == '/' && path.startsWith(ancestor);
+	}
+	
+	/**
+	 * Returns the growth of the heap after collection while the object built
+	 * by the given supplier is still reachable.
+	 */
+	private static long retained(final Supplier<Object> supplier) {
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		final long before = used(memory);
+		retained = supplier.get();
+		final long after = used(memory);
+		retained = null;
+		return after - before;
+	}
+	
+	private static long used(final MemoryMXBean memory) {
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Removes a mid-level scope with children from the head of a wide sibling
+ * list. The cost of splicing its children into its place should not grow
+ * with the number of siblings.
+ *
+ * @author Doug Valenta
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RemoveBenchmark {
+	
+	@Param({"10", "1000", "100000"})
+	private int fanOut;
+	
+	private HierarchicalTree<BenchmarkKey, Object> tree;
+	private BenchmarkKey scope;
+	private BenchmarkKey[] scopeChildren;
+	
+	@Setup(Level.Trial)
+	public void setUpTree() {
+		tree = new LinkedHierarchicalTree<>(BenchmarkKey::isParentOf);
+		final BenchmarkKey parent = new BenchmarkKey();
+		tree.put(parent, new Object());
+		scope = new BenchmarkKey(parent);
+		scopeChildren = new BenchmarkKey[] {
+			new BenchmarkKey(scope),
+			new BenchmarkKey(scope)
+		};
+		tree.put(scope, new Object());
+		for (final BenchmarkKey child : scopeChildren) {
+			tree.put(child, new Object());
+		}
+		for (int i = 0; i < fanOut; i++) {
+			tree.put(new BenchmarkKey(parent), new Object());
+		}
+	}
+	
+	@Setup(Level.Invocation)
+	public void restoreScope() {
+		tree.putIfNotPresent(scope, new Object());
+	}
+	
+	@Benchmark
+	public Optional<Object> removeScopeWithChildren() {
+		return tree.remove(scope);
+	}
+	
+}
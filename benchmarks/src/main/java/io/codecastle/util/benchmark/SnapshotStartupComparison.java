@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.FixedWidthCodec;
+import io.codecastle.util.LinkedHierarchicalTree;
+import io.codecastle.util.MappedHierarchicalTree;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Compares the time taken to restore a tree by replaying puts with the time
+ * taken to open a snapshot of it for reading and to link a snapshot back
+ * into a linked tree. Keys number the nodes of a balanced tree breadth-first,
+ * so that the parent of key k is (k - 1) / 8, and are put in random order.
+ * For example:
+ *
+ * <pre>
+ * java -Xmx2g -cp benchmarks/target/benchmarks.jar io.codecastle.util.benchmark.SnapshotStartupComparison 1500000
+ * </pre>
+ *
+ * @author Doug Valenta
+ */
+public class SnapshotStartupComparison {
+	
+	private static final long FAN_OUT = 8;
+	
+	public static void main(final String[] args) throws IOException {
+		final int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1500000;
+		final long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = i;
+		}
+		final Random random = new Random(42);
+		for (int i = size - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final long swapped = keys[i];
+			keys[i] = keys[j];
+			keys[j] = swapped;
+		}
+		final Path file = Files.createTempFile("tree", ".snapshot");
+		try {
+			long start = System.nanoTime();
+			final LinkedHierarchicalTree<Long, Long> replayed = new LinkedHierarchicalTree<>(SnapshotStartupComparison::isAncestor);
+			for (final long key : keys) {
+				replayed.put(key, key);
+			}
+			System.out.printf("replay %,d puts: %,d ms%n", size, (System.nanoTime() - start) / 1000000);
+			start = System.nanoTime();
+			MappedHierarchicalTree.write(replayed, file, FixedWidthCodec.longs(), FixedWidthCodec.longs());
+			System.out.printf("write snapshot of %,d bytes: %,d ms%n", Files.size(file), (System.nanoTime() - start) / 1000000);
+			start = System.nanoTime();
+			final MappedHierarchicalTree<Long, Long> mapped = MappedHierarchicalTree.open(file, SnapshotStartupComparison::isAncestor, FixedWidthCodec.longs(), FixedWidthCodec.longs());
+			final Long nearest = mapped.getNearestValue((long) size * FAN_OUT, null);
+			System.out.printf("open snapshot and resolve one key: %,d ms (%d)%n", (System.nanoTime() - start) / 1000000, nearest);
+			start = System.nanoTime();
+			final LinkedHierarchicalTree<Long, Long> loaded = mapped.toLinkedTree();
+			System.out.printf("link snapshot into a linked tree: %,d ms (%,d entries)%n", (System.nanoTime() - start) / 1000000, loaded.size());
+		} finally {
+			Files.delete(file);
+		}
+	}
+	
+	private static boolean isAncestor(final Long ancestor, final Long key) {
+		final long top = ancestor;
+		long node = key;
+		while (node > top) {
+			node = (node - 1) / FAN_OUT;
+			if (node == top) return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares an audit of every node through a sequential stream, a parallel
+ * stream over the tree's own spliterator, and a parallel stream over the
+ * iterator, which can only be split by copying batches of nodes into arrays.
+ * Each node costs a fixed amount of work. Parallel speedup is bounded by the
+ * number of available processors.
+ *
+ * @author Doug Valenta
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+	
+	@Param({"WIDE", "BALANCED", "RANDOM"})
+	public TreeShape shape;
+	
+	@Param({"1000000"})
+	public int size;
+	
+	@Param({"32"})
+	public int work;
+	
+	private LinkedHierarchicalTree<BenchmarkKey, Object> tree;
+	
+	@Setup
+	public void setUp() {
+		final List<BenchmarkKey> keys = shape.keys(size, new Random(42));
+		final Map<BenchmarkKey, List<BenchmarkKey>> children = new HashMap<>();
+		final List<BenchmarkKey> roots = new ArrayList<>();
+		for (final BenchmarkKey key : keys) {
+			if (key.getParent() == null) {
+				roots.add(key);
+			} else {
+				children.computeIfAbsent(key.getParent(), parent -> new ArrayList<>()).add(key);
+			}
+		}
+		final List<Map.Entry<BenchmarkKey, Object>> preorder = new ArrayList<>(size);
+		final Deque<BenchmarkKey> pending = new ArrayDeque<>();
+		for (int i = roots.size() - 1; i >= 0; i--) {
+			pending.push(roots.get(i));
+		}
+		while (!pending.isEmpty()) {
+			final BenchmarkKey key = pending.pop();
+			preorder.add(new AbstractMap.SimpleEntry<>(key, new Object()));
+			final List<BenchmarkKey> keyChildren = children.get(key);
+			if (keyChildren != null) {
+				for (int i = keyChildren.size() - 1; i >= 0; i--) {
+					pending.push(keyChildren.get(i));
+				}
+			}
+		}
+		tree = LinkedHierarchicalTree.build(preorder, BenchmarkKey::isParentOf);
+	}
+	
+	private long audit(final HierarchicalTree.Node<BenchmarkKey, Object> node) {
+		Blackhole.consumeCPU(work);
+		return System.identityHashCode(node.getValue());
+	}
+	
+	@Benchmark
+	public long sequential() {
+		return tree.stream().mapToLong(this::audit).sum();
+	}
+	
+	@Benchmark
+	public long parallel() {
+		return tree.parallelStream().mapToLong(this::audit).sum();
+	}
+	
+	@Benchmark
+	public long parallelFromIterator() {
+		final Spliterator<HierarchicalTree.Node<BenchmarkKey, Object>> spliterator = Spliterators.spliterator(tree.iterator(), tree.size(), Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, true).mapToLong(this::audit).sum();
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import io.codecastle.util.ConcurrentHierarchicalTree;
+import io.codecastle.util.HierarchicalTree;
+import io.codecastle.util.LinkedHierarchicalTree;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the throughput of each tree operation over every {@link TreeShape}.
+ * Keys are visited in a fixed random order. Operations which change the tree
+ * undo their change within the same operation, so the tree keeps its shape.
+ * Run through {@link BenchmarkMain} to report allocation rates as well.
+ *
+ * @author Doug Valenta
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeBenchmark {
+	
+	/**
+	 * A copy of the tree for each invocation of a benchmark which empties it.
+	 */
+	@State(Scope.Thread)
+	public static class Copy {
+		
+		private HierarchicalTree<BenchmarkKey, Object> tree;
+		
+		@Setup(Level.Invocation)
+		public void setUp(final TreeBenchmark benchmark) {
+			tree = benchmark.copy();
+		}
+	
+	}
+	
+	@Param({"DEEP", "WIDE", "BALANCED", "RANDOM"})
+	public TreeShape shape;
+	
+	@Param({"1000"})
+	public int size;
+	
+	@Param({"linked", "concurrent"})
+	public String implementation;
+	
+	private HierarchicalTree<BenchmarkKey, Object> tree;
+	private BenchmarkKey[] keys;
+	private BenchmarkKey[] children;
+	private Object[] values;
+	private int index;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		final Random random = new Random(42);
+		final List<BenchmarkKey> generated = shape.keys(size, random);
+		tree = newTree();
+		values = new Object[size];
+		for (int i = 0; i < size; i++) {
+			values[i] = new Object();
+			tree.put(generated.get(i), values[i]);
+		}
+		Collections.shuffle(generated, random);
+		keys = generated.toArray(new BenchmarkKey[size]);
+		children = new BenchmarkKey[size];
+		for (int i = 0; i < size; i++) {
+			children[i] = new BenchmarkKey(keys[i]);
+			values[i] = tree.getValue(keys[i]);
+		}
+	}
+	
+	private HierarchicalTree<BenchmarkKey, Object> newTree() {
+		switch (implementation) {
+			case "linked":
+				return new LinkedHierarchicalTree<>(BenchmarkKey::isParentOf);
+			case "concurrent":
+				return new ConcurrentHierarchicalTree<>(BenchmarkKey::isParentOf);
+			default:
+				throw new IllegalArgumentException("Unknown implementation " + implementation);
+		}
+	}
+	
+	HierarchicalTree<BenchmarkKey, Object> copy() {
+		if (tree instanceof ConcurrentHierarchicalTree) {
+			return new ConcurrentHierarchicalTree<>(((ConcurrentHierarchicalTree<BenchmarkKey, Object>) tree).snapshot());
+		}
+		return LinkedHierarchicalTree.build(tree, BenchmarkKey::isParentOf);
+	}
+	
+	private int next() {
+		index = (index + 1) % size;
+		return index;
+	}
+	
+	/**
+	 * Replaces the value of a present key.
+	 */
+	@Benchmark
+	public Optional<Object> put() {
+		final int i = next();
+		return tree.put(keys[i], values[i]);
+	}
+	
+	/**
+	 * Inserts a new leaf beneath a present key, then removes it.
+	 */
+	@Benchmark
+	public boolean putIfNotPresent() {
+		final int i = next();
+		final boolean inserted = tree.putIfNotPresent(children[i], values[i]);
+		tree.remove(children[i]);
+		return inserted;
+	}
+	
+	@Benchmark
+	public Optional<HierarchicalTree.Node<BenchmarkKey, Object>> get() {
+		return tree.get(keys[next()]);
+	}
+	
+	/**
+	 * Looks up an absent key whose parent is present.
+	 */
+	@Benchmark
+	public Optional<HierarchicalTree.Node<BenchmarkKey, Object>> getNearest() {
+		return tree.getNearest(children[next()]);
+	}
+	
+	/**
+	 * Removes a present key, splicing in its children, then puts it back,
+	 * adopting them again.
+	 */
+	@Benchmark
+	public Optional<Object> remove() {
+		final int i = next();
+		final Optional<Object> removed = tree.remove(keys[i]);
+		tree.putIfNotPresent(keys[i], values[i]);
+		return removed;
+	}
+	
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void iterate(final Blackhole blackhole) {
+		for (final HierarchicalTree.Node<BenchmarkKey, Object> node : tree) {
+			blackhole.consume(node);
+		}
+	}
+	
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public int iteratorRemove(final Copy copy) {
+		int removed = 0;
+		final Iterator<HierarchicalTree.Node<BenchmarkKey, Object>> iterator = copy.tree.iterator();
+		while (iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			removed++;
+		}
+		return removed;
+	}
+	
+}
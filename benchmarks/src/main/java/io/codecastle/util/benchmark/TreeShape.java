@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The shapes of tree the benchmarks run over. Each shape generates keys
+ * linked to their parents, listed so that every key follows its parent.
+ *
+ * @author Doug Valenta
+ */
+public enum TreeShape {
+	
+	/**
+	 * A single chain in which each key is the parent of the next.
+	 */
+	DEEP {
+		@Override
+		public List<BenchmarkKey> keys(final int size, final Random random) {
+			final List<BenchmarkKey> keys = new ArrayList<>(size);
+			BenchmarkKey parent = null;
+			for (int i = 0; i < size; i++) {
+				parent = new BenchmarkKey(parent);
+				keys.add(parent);
+			}
+			return keys;
+		}
+	},
+	
+	/**
+	 * A flat forest of unrelated keys.
+	 */
+	WIDE {
+		@Override
+		public List<BenchmarkKey> keys(final int size, final Random random) {
+			final List<BenchmarkKey> keys = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				keys.add(new BenchmarkKey());
+			}
+			return keys;
+		}
+	},
+	
+	/**
+	 * A single root whose descendants each have eight children, filled level
+	 * by level.
+	 */
+	BALANCED {
+		@Override
+		public List<BenchmarkKey> keys(final int size, final Random random) {
+			final List<BenchmarkKey> keys = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				keys.add(new BenchmarkKey((i == 0) ? null : keys.get((i - 1) / FAN_OUT)));
+			}
+			return keys;
+		}
+	},
+	
+	/**
+	 * A random recursive forest, in which each key is either a root or the
+	 * child of a uniformly chosen earlier key.
+	 */
+	RANDOM {
+		@Override
+		public List<BenchmarkKey> keys(final int size, final Random random) {
+			final List<BenchmarkKey> keys = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				final int parent = random.nextInt(i + 1);
+				keys.add(new BenchmarkKey((parent == i) ? null : keys.get(parent)));
+			}
+			return keys;
+		}
+	};
+	
+	private static final int FAN_OUT = 8;
+	
+	/**
+	 * Returns the given number of keys in this shape.
+	 */
+	public abstract List<BenchmarkKey> keys(int size, Random random);
+	
+}
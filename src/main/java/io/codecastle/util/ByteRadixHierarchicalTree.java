@@ -0,0 +1,627 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * A hierarchical tree of byte string keys, in which a key is an ancestor of
+ * the keys it is a proper prefix of, backed by a radix tree. Each edge holds
+ * a run of bytes, so a chain of nodes with a single child and no value is
+ * compressed into one edge, and a node's children are kept sorted by their
+ * first byte.
+ * <p>
+ * Keys are given as the remaining bytes of a {@link ByteBuffer}, or as a
+ * region of a buffer or an array. Lookups on a region read the bytes in
+ * place with absolute reads, without decoding or copying them and without
+ * allocating, and cost O(length of the key). Neither the position nor the
+ * limit of a buffer is changed. A key which should only match whole
+ * segments of its descendants, such as a path, should end with its
+ * separator.
+ *
+ * @author Doug Valenta
+ */
+public class ByteRadixHierarchicalTree<V> implements HierarchicalTree<ByteBuffer, V> {
+	
+	private static final byte[] EMPTY = new byte[0];
+	private static final int INITIAL_CHILD_CAPACITY = 2;
+	
+	private class Node implements HierarchicalTree.Node<ByteBuffer, V> {
+		
+		private byte[] label;
+		private Node parent;
+		
+		private V value;
+		
+		private byte[] firsts;
+		private Node[] children;
+		private int childCount;
+		
+		Node(final Node parent, final byte[] label, final V value) {
+			this.parent = parent;
+			this.label = label;
+			this.value = value;
+		}
+		
+		/**
+		 * Returns the index of the child whose edge starts with the given
+		 * byte, or the complement of the index at which it would be added.
+		 */
+		int indexOf(final byte first) {
+			int low = 0;
+			int high = childCount - 1;
+			while (low <= high) {
+				final int middle = (low + high) >>> 1;
+				final int compared = Byte.toUnsignedInt(firsts[middle]) - Byte.toUnsignedInt(first);
+				if (compared < 0) {
+					low = middle + 1;
+				} else if (compared > 0) {
+					high = middle - 1;
+				} else {
+					return middle;
+				}
+			}
+			return ~low;
+		}
+		
+		void addChild(final int insertion, final Node child) {
+			if (children == null) {
+				firsts = new byte[INITIAL_CHILD_CAPACITY];
+				children = newNodeArray(INITIAL_CHILD_CAPACITY);
+			} else if (childCount == children.length) {
+				firsts = Arrays.copyOf(firsts, childCount * 2);
+				children = Arrays.copyOf(children, childCount * 2);
+			}
+			System.arraycopy(firsts, insertion, firsts, insertion + 1, childCount - insertion);
+			System.arraycopy(children, insertion, children, insertion + 1, childCount - insertion);
+			firsts[insertion] = child.label[0];
+			children[insertion] = child;
+			child.parent = this;
+			childCount++;
+		}
+		
+		void removeChild(final int index) {
+			System.arraycopy(firsts, index + 1, firsts, index, childCount - index - 1);
+			System.arraycopy(children, index + 1, children, index, childCount - index - 1);
+			children[--childCount] = null;
+			if (childCount == 0) {
+				firsts = null;
+				children = null;
+			}
+		}
+		
+		/**
+		 * Returns the number of bytes in the key of this node.
+		 */
+		int depth() {
+			int depth = 0;
+			for (Node node = this; node != null; node = node.parent) {
+				depth += node.label.length;
+			}
+			return depth;
+		}
+		
+		byte[] keyBytes() {
+			int depth = depth();
+			final byte[] key = new byte[depth];
+			for (Node node = this; node != null; node = node.parent) {
+				depth -= node.label.length;
+				System.arraycopy(node.label, 0, key, depth, node.label.length);
+			}
+			return key;
+		}
+		
+		/**
+		 * Returns a new buffer holding a copy of the key of this node.
+		 */
+		@Override
+		public ByteBuffer getKey() {
+			return ByteBuffer.wrap(keyBytes());
+		}
+		
+		@Override
+		public V getValue() {
+			return value;
+		}
+		
+		@Override
+		public V setValue(final V value) {
+			if (value == null) throw new IllegalArgumentException("Null value");
+			final V replaced = this.value;
+			this.value = value;
+			return replaced;
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			if (other == null) return false;
+			if (!(other instanceof Map.Entry)) {
+				return false;
+			}
+			final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return (getKey().equals(entry.getKey()) && value.equals(entry.getValue()));
+		}
+		
+		@Override
+		public int hashCode() {
+			return getKey().hashCode() ^ value.hashCode();
+		}
+	
+	}
+	
+	/**
+	 * Iterates over the entries in key order. Removing an entry may merge
+	 * nodes, but the nodes already queued remain in the tree.
+	 */
+	private class NodeIterator implements Iterator<HierarchicalTree.Node<ByteBuffer, V>> {
+		
+		private final Deque<Node> pending = new ArrayDeque<>();
+		private Node current;
+		private Node next;
+		
+		NodeIterator() {
+			pending.push(root);
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (next == null && !pending.isEmpty()) {
+				final Node node = pending.pop();
+				for (int i = node.childCount - 1; i >= 0; i--) {
+					pending.push(node.children[i]);
+				}
+				if (node.value != null) {
+					next = node;
+				}
+			}
+			return next != null;
+		}
+		
+		@Override
+		public Node next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException("Iterator exhausted");
+			}
+			current = next;
+			next = null;
+			return current;
+		}
+		
+		@Override
+		public void remove() {
+			if (current == null) {
+				throw new IllegalStateException("No iteration");
+			}
+			removeNode(current);
+			current = null;
+		}
+	
+	}
+	
+	private Node root = new Node(null, EMPTY, null);
+	private int size;
+	
+	/**
+	 * Returns the byte at the given index of an array, or of a buffer if the
+	 * array is null.
+	 */
+	private static byte byteAt(final byte[] array, final ByteBuffer buffer, final int index) {
+		return (array != null) ? array[index] : buffer.get(index);
+	}
+	
+	private static void checkRegion(final int capacity, final int offset, final int length) {
+		if (offset < 0 || length < 0 || offset > capacity - length) throw new IndexOutOfBoundsException("Region out of bounds");
+	}
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Node[] newNodeArray(final int length) {
+		return (Node[]) new ByteRadixHierarchicalTree.Node[length];
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	@Override
+	public void clear() {
+		root = new Node(null, EMPTY, null);
+		size = 0;
+	}
+	
+	/**
+	 * Puts a value for the remaining bytes of the given buffer, which are
+	 * copied into the tree.
+	 */
+	@Override
+	public Optional<V> put(final ByteBuffer key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		return Optional.ofNullable(insert(null, key, key.position(), key.remaining(), value, true));
+	}
+	
+	@Override
+	public boolean putIfNotPresent(final ByteBuffer key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		return insert(null, key, key.position(), key.remaining(), value, false) == null;
+	}
+	
+	/**
+	 * Puts a value for the given region of an array, which is copied into
+	 * the tree.
+	 *
+	 * @return the value replaced, or null if there was none
+	 */
+	public V put(final byte[] key, final int offset, final int length, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		checkRegion(key.length, offset, length);
+		return insert(key, null, offset, length, value, true);
+	}
+	
+	/**
+	 * Inserts a key, splitting the edge it diverges from if necessary, and
+	 * returns the value already present, if any.
+	 */
+	private V insert(final byte[] array, final ByteBuffer buffer, final int offset, final int length, final V value, final boolean replace) {
+		Node node = root;
+		int position = 0;
+		while (position < length) {
+			final int index = node.indexOf(byteAt(array, buffer, offset + position));
+			if (index < 0) {
+				node.addChild(~index, new Node(node, copy(array, buffer, offset + position, length - position), value));
+				size++;
+				return null;
+			}
+			final Node child = node.children[index];
+			final byte[] label = child.label;
+			final int limit = Math.min(label.length, length - position);
+			int common = 1;
+			while (common < limit && label[common] == byteAt(array, buffer, offset + position + common)) {
+				common++;
+			}
+			if (common < label.length) {
+				final Node split = new Node(node, Arrays.copyOf(label, common), null);
+				child.label = Arrays.copyOfRange(label, common, label.length);
+				node.children[index] = split;
+				split.addChild(0, child);
+				if (position + common == length) {
+					split.value = value;
+				} else {
+					final Node inserted = new Node(split, copy(array, buffer, offset + position + common, length - position - common), value);
+					split.addChild(~split.indexOf(inserted.label[0]), inserted);
+				}
+				size++;
+				return null;
+			}
+			node = child;
+			position += common;
+		}
+		final V replaced = node.value;
+		if (replaced == null) {
+			size++;
+		}
+		if (replaced == null || replace) {
+			node.value = value;
+		}
+		return replaced;
+	}
+	
+	private static byte[] copy(final byte[] array, final ByteBuffer buffer, final int offset, final int length) {
+		if (array != null) return Arrays.copyOfRange(array, offset, offset + length);
+		final byte[] copy = new byte[length];
+		for (int i = 0; i < length; i++) {
+			copy[i] = buffer.get(offset + i);
+		}
+		return copy;
+	}
+	
+	@Override
+	public Optional<V> remove(final ByteBuffer key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Node node = findNode(null, key, key.position(), key.remaining());
+		if (node == null || node.value == null) return Optional.empty();
+		final V removed = node.value;
+		removeNode(node);
+		return Optional.of(removed);
+	}
+	
+	/**
+	 * Removes the value of a node, and then unlinks or merges the node and
+	 * its parent so that no node without a value has fewer than two
+	 * children.
+	 */
+	private void removeNode(final Node node) {
+		node.value = null;
+		size--;
+		if (node.parent == null) return;
+		if (node.childCount == 0) {
+			final Node parent = node.parent;
+			parent.removeChild(parent.indexOf(node.label[0]));
+			if (parent.value == null && parent.childCount == 1 && parent.parent != null) {
+				merge(parent);
+			}
+		} else if (node.childCount == 1) {
+			merge(node);
+		}
+	}
+	
+	/**
+	 * Replaces a node without a value by its only child, prefixing the
+	 * child's edge with the node's.
+	 */
+	private void merge(final Node node) {
+		final Node child = node.children[0];
+		final byte[] label = Arrays.copyOf(node.label, node.label.length + child.label.length);
+		System.arraycopy(child.label, 0, label, node.label.length, child.label.length);
+		child.label = label;
+		final Node parent = node.parent;
+		parent.children[parent.indexOf(label[0])] = child;
+		child.parent = parent;
+	}
+	
+	/**
+	 * Removes the given key and every key which it is a prefix of with a
+	 * single unlink, and returns them as a tree of their own. If the key is
+	 * not present, nothing is removed, even if it is a prefix of other keys.
+	 */
+	@Override
+	public ByteRadixHierarchicalTree<V> removeSubtree(final ByteBuffer key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final ByteRadixHierarchicalTree<V> detached = new ByteRadixHierarchicalTree<>();
+		final int offset = key.position();
+		final int length = key.remaining();
+		if (length == 0) {
+			if (root.value == null) return detached;
+			detached.root = root;
+			detached.size = size;
+			clear();
+			return detached;
+		}
+		Node node = root;
+		int position = 0;
+		while (true) {
+			final int index = node.indexOf(key.get(offset + position));
+			if (index < 0) return detached;
+			final Node child = node.children[index];
+			if (child.label.length > length - position) return detached;
+			for (int i = 1; i < child.label.length; i++) {
+				if (child.label[i] != key.get(offset + position + i)) return detached;
+			}
+			position += child.label.length;
+			if (position == length) {
+				if (child.value == null) return detached;
+				final int count = count(child);
+				child.label = child.keyBytes();
+				node.removeChild(index);
+				if (node.value == null && node.childCount == 1 && node.parent != null) {
+					merge(node);
+				}
+				detached.root.addChild(0, child);
+				detached.size = count;
+				size -= count;
+				return detached;
+			}
+			node = child;
+		}
+	}
+	
+	/**
+	 * Returns the number of entries in the subtree of the given node.
+	 */
+	private int count(final Node top) {
+		int count = 0;
+		final Deque<Node> pending = new ArrayDeque<>();
+		pending.push(top);
+		while (!pending.isEmpty()) {
+			final Node node = pending.pop();
+			if (node.value != null) {
+				count++;
+			}
+			for (int i = 0; i < node.childCount; i++) {
+				pending.push(node.children[i]);
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Moves every entry of the given tree into this one, putting them entry
+	 * by entry.
+	 */
+	@Override
+	public void graft(final HierarchicalTree<ByteBuffer, V> subtree) {
+		if (subtree == null) throw new IllegalArgumentException("Null tree");
+		if (subtree == this) throw new IllegalArgumentException("Graft onto itself");
+		for (final HierarchicalTree.Node<ByteBuffer, V> node : subtree) {
+			put(node.getKey(), node.getValue());
+		}
+		subtree.clear();
+	}
+	
+	/**
+	 * Returns the node whose key is exactly the given region, whether or not
+	 * it has a value, or null if there is none.
+	 */
+	private Node findNode(final byte[] array, final ByteBuffer buffer, final int offset, final int length) {
+		Node node = root;
+		int position = 0;
+		while (position < length) {
+			final int index = node.indexOf(byteAt(array, buffer, offset + position));
+			if (index < 0) return null;
+			final Node child = node.children[index];
+			final byte[] label = child.label;
+			if (label.length > length - position) return null;
+			for (int i = 1; i < label.length; i++) {
+				if (label[i] != byteAt(array, buffer, offset + position + i)) return null;
+			}
+			node = child;
+			position += label.length;
+		}
+		return node;
+	}
+	
+	/**
+	 * Returns the node with the longest key which is a prefix of the given
+	 * region, or null if there is none.
+	 */
+	private Node findNearestNode(final byte[] array, final ByteBuffer buffer, final int offset, final int length) {
+		Node node = root;
+		Node candidate = (root.value == null) ? null : root;
+		int position = 0;
+		while (position < length) {
+			final int index = node.indexOf(byteAt(array, buffer, offset + position));
+			if (index < 0) break;
+			final Node child = node.children[index];
+			final byte[] label = child.label;
+			if (label.length > length - position) break;
+			for (int i = 1; i < label.length; i++) {
+				if (label[i] != byteAt(array, buffer, offset + position + i)) return candidate;
+			}
+			node = child;
+			position += label.length;
+			if (node.value != null) {
+				candidate = node;
+			}
+		}
+		return candidate;
+	}
+	
+	/**
+	 * Finds the nearest node for a region of a buffer, reading a heap
+	 * buffer's array directly.
+	 */
+	private Node findNearestNode(final ByteBuffer buffer, final int offset, final int length) {
+		if (buffer == null) throw new IllegalArgumentException("Null key");
+		checkRegion(buffer.limit(), offset, length);
+		if (buffer.hasArray()) {
+			return findNearestNode(buffer.array(), null, buffer.arrayOffset() + offset, length);
+		}
+		return findNearestNode(null, buffer, offset, length);
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<ByteBuffer, V>> get(final ByteBuffer key) {
+		return Optional.ofNullable(getNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<ByteBuffer, V> getNode(final ByteBuffer key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Node node = findNode(null, key, key.position(), key.remaining());
+		return (node == null || node.value == null) ? null : node;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<ByteBuffer, V>> getNearest(final ByteBuffer key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<ByteBuffer, V> getNearestNode(final ByteBuffer key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		return findNearestNode(key, key.position(), key.remaining());
+	}
+	
+	/**
+	 * Returns the node whose key is the longest prefix of the given region
+	 * of a buffer, without changing the buffer. The region is given in
+	 * absolute indices of the buffer.
+	 */
+	public Optional<HierarchicalTree.Node<ByteBuffer, V>> getNearest(final ByteBuffer buffer, final int offset, final int length) {
+		return Optional.ofNullable(findNearestNode(buffer, offset, length));
+	}
+	
+	/**
+	 * Returns the node whose key is the longest prefix of the given region
+	 * of a buffer, or null if there is none, without allocating.
+	 */
+	public HierarchicalTree.Node<ByteBuffer, V> getNearestNode(final ByteBuffer buffer, final int offset, final int length) {
+		return findNearestNode(buffer, offset, length);
+	}
+	
+	/**
+	 * Returns the value for the longest prefix of the given region of a
+	 * buffer, or the given default value if there is none, without
+	 * allocating.
+	 */
+	public V getNearestValue(final ByteBuffer buffer, final int offset, final int length, final V defaultValue) {
+		final Node node = findNearestNode(buffer, offset, length);
+		return (node == null) ? defaultValue : node.value;
+	}
+	
+	/**
+	 * Returns the value for the longest prefix of the given region of an
+	 * array, or the given default value if there is none, without
+	 * allocating.
+	 */
+	public V getNearestValue(final byte[] key, final int offset, final int length, final V defaultValue) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		checkRegion(key.length, offset, length);
+		final Node node = findNearestNode(key, null, offset, length);
+		return (node == null) ? defaultValue : node.value;
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<ByteBuffer, V>> ancestors(final ByteBuffer key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Deque<HierarchicalTree.Node<ByteBuffer, V>> ancestors = new ArrayDeque<>();
+		final int offset = key.position();
+		final int length = key.remaining();
+		Node node = root;
+		if (root.value != null) ancestors.addLast(root);
+		int position = 0;
+		while (position < length) {
+			final int index = node.indexOf(key.get(offset + position));
+			if (index < 0) break;
+			final Node child = node.children[index];
+			final byte[] label = child.label;
+			if (label.length > length - position) break;
+			for (int i = 1; i < label.length; i++) {
+				if (label[i] != key.get(offset + position + i)) return ancestors;
+			}
+			node = child;
+			position += label.length;
+			if (node.value != null) ancestors.addLast(node);
+		}
+		return ancestors;
+	}
+	
+	/**
+	 * Calls the given action for each enclosing entry, with a new buffer
+	 * holding a copy of each key.
+	 */
+	@Override
+	public void forEachAncestor(final ByteBuffer key, final BiConsumer<? super ByteBuffer, ? super V> action) {
+		if (action == null) throw new IllegalArgumentException("Null action");
+		for (final HierarchicalTree.Node<ByteBuffer, V> node : ancestors(key)) {
+			action.accept(node.getKey(), node.getValue());
+		}
+	}
+	
+	/**
+	 * Returns an iterator over the entries in unsigned lexicographic order of
+	 * their keys.
+	 */
+	@Override
+	public Iterator<HierarchicalTree.Node<ByteBuffer, V>> iterator() {
+		return new NodeIterator();
+	}
+
+}
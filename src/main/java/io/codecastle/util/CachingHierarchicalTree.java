@@ -0,0 +1,339 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * A hierarchical tree which caches the results of {@code getNearest} in
+ * front of another tree, for workloads in which a few query keys account for
+ * most lookups. The least recently used results are evicted beyond a fixed
+ * number of entries.
+ * <p>
+ * Each cached result remembers the generation of the node it resolved to, or
+ * of the root if it resolved to nothing. Inserting a key can only change the
+ * results which resolved to the key's nearest existing ancestor, and removing
+ * or replacing a key can only change the results which resolved to the key
+ * itself, so each mutation advances just that one generation, and results
+ * from an older generation are discarded when they are next looked up.
+ * <p>
+ * Mutations must be made through this tree or its iterator for the cache to
+ * see them. Like the trees it wraps, this tree is not thread-safe.
+ *
+ * @author Doug Valenta
+ */
+public class CachingHierarchicalTree<K, V> implements HierarchicalTree<K, V> {
+	
+	/**
+	 * A generation shared by the cached results which resolved to the same
+	 * key, counting those results so that it can be dropped with the last.
+	 */
+	private static final class Generation {
+		
+		private long value;
+		private int references;
+	
+	}
+	
+	/**
+	 * A cached result, holding the key it resolved to as it was when the
+	 * result was cached, since some trees clear or reuse a node once it has
+	 * been removed.
+	 */
+	private static final class CachedResult<K, V> {
+		
+		private final HierarchicalTree.Node<K, V> node;
+		private final K key;
+		private final Generation generation;
+		private final long value;
+		
+		CachedResult(final HierarchicalTree.Node<K, V> node, final K key, final Generation generation) {
+			this.node = node;
+			this.key = key;
+			this.generation = generation;
+			this.value = generation.value;
+		}
+		
+		boolean isCurrent() {
+			return generation.value == value;
+		}
+	
+	}
+	
+	private class NodeIterator implements Iterator<HierarchicalTree.Node<K, V>> {
+		
+		private final Iterator<HierarchicalTree.Node<K, V>> iterator = tree.iterator();
+		private HierarchicalTree.Node<K, V> current;
+		
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+		
+		@Override
+		public HierarchicalTree.Node<K, V> next() {
+			current = iterator.next();
+			return current;
+		}
+		
+		@Override
+		public void remove() {
+			if (current == null) {
+				throw new IllegalStateException("No iteration");
+			}
+			final K key = current.getKey();
+			iterator.remove();
+			advance(key);
+			current = null;
+		}
+	
+	}
+	
+	private final HierarchicalTree<K, V> tree;
+	private final int maximumEntries;
+	private final Map<K, CachedResult<K, V>> cache;
+	private final Map<K, Generation> generations = new HashMap<>();
+	private final Generation rootGeneration = new Generation();
+	
+	private long hits;
+	private long misses;
+	private long invalidations;
+	private long evictions;
+	
+	/**
+	 * @param tree the tree to cache lookups in
+	 * @param maximumEntries the most results to cache
+	 */
+	public CachingHierarchicalTree(final HierarchicalTree<K, V> tree, final int maximumEntries) {
+		if (tree == null) throw new IllegalArgumentException("Null tree");
+		if (maximumEntries < 1) throw new IllegalArgumentException("Capacity must be positive");
+		this.tree = tree;
+		this.maximumEntries = maximumEntries;
+		this.cache = new LinkedHashMap<K, CachedResult<K, V>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<K, CachedResult<K, V>> eldest) {
+				if (size() <= CachingHierarchicalTree.this.maximumEntries) return false;
+				release(eldest.getValue());
+				evictions++;
+				return true;
+			}
+		};
+	}
+	
+	private Generation acquire(final K key) {
+		if (key == null) return rootGeneration;
+		Generation generation = generations.get(key);
+		if (generation == null) {
+			generation = new Generation();
+			generations.put(key, generation);
+		}
+		generation.references++;
+		return generation;
+	}
+	
+	private void release(final CachedResult<K, V> entry) {
+		if (entry.generation != rootGeneration && --entry.generation.references == 0) {
+			generations.remove(entry.key);
+		}
+	}
+	
+	/**
+	 * Invalidates the cached results which resolved to the given key.
+	 */
+	private void advance(final K key) {
+		final Generation generation = generations.get(key);
+		if (generation != null) {
+			generation.value++;
+		}
+	}
+	
+	/**
+	 * Invalidates the cached results which resolved to the given node, or to
+	 * nothing if it is null.
+	 */
+	private void advance(final HierarchicalTree.Node<K, V> node) {
+		if (node == null) {
+			rootGeneration.value++;
+		} else {
+			advance(node.getKey());
+		}
+	}
+	
+	@Override
+	public int size() {
+		return tree.size();
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return tree.isEmpty();
+	}
+	
+	@Override
+	public void clear() {
+		tree.clear();
+		cache.clear();
+		generations.clear();
+		rootGeneration.value++;
+	}
+	
+	@Override
+	public Optional<V> put(final K key, final V value) {
+		if (cache.isEmpty()) return tree.put(key, value);
+		final HierarchicalTree.Node<K, V> nearest = tree.getNearestNode(key);
+		final Optional<V> replaced = tree.put(key, value);
+		advance(nearest);
+		return replaced;
+	}
+	
+	@Override
+	public boolean putIfNotPresent(final K key, final V value) {
+		if (cache.isEmpty()) return tree.putIfNotPresent(key, value);
+		final HierarchicalTree.Node<K, V> nearest = tree.getNearestNode(key);
+		final boolean inserted = tree.putIfNotPresent(key, value);
+		if (inserted) {
+			advance(nearest);
+		}
+		return inserted;
+	}
+	
+	@Override
+	public Optional<V> remove(final K key) {
+		final Optional<V> removed = tree.remove(key);
+		if (removed.isPresent()) {
+			advance(key);
+		}
+		return removed;
+	}
+	
+	/**
+	 * Removes a subtree, invalidating the cached results which resolved to
+	 * any of its keys.
+	 */
+	@Override
+	public HierarchicalTree<K, V> removeSubtree(final K key) {
+		final HierarchicalTree<K, V> detached = tree.removeSubtree(key);
+		if (!cache.isEmpty()) {
+			for (final HierarchicalTree.Node<K, V> node : detached) {
+				advance(node.getKey());
+			}
+		}
+		return detached;
+	}
+	
+	/**
+	 * Grafts a tree, discarding every cached result, since a graft may change
+	 * the results beneath any of its entries.
+	 */
+	@Override
+	public void graft(final HierarchicalTree<K, V> subtree) {
+		if (subtree == null) throw new IllegalArgumentException("Null tree");
+		if (subtree == this) throw new IllegalArgumentException("Graft onto itself");
+		if (subtree.isEmpty()) return;
+		tree.graft(subtree);
+		invalidations += cache.size();
+		cache.clear();
+		generations.clear();
+		rootGeneration.value++;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> get(final K key) {
+		return tree.get(key);
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNode(final K key) {
+		return tree.getNode(key);
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> getNearest(final K key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNearestNode(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final CachedResult<K, V> entry = cache.get(key);
+		if (entry != null) {
+			if (entry.isCurrent()) {
+				hits++;
+				return entry.node;
+			}
+			cache.remove(key);
+			release(entry);
+			invalidations++;
+		}
+		misses++;
+		final HierarchicalTree.Node<K, V> node = tree.getNearestNode(key);
+		final K resolved = (node == null) ? null : node.getKey();
+		cache.put(key, new CachedResult<>(node, resolved, acquire(resolved)));
+		return node;
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<K, V>> ancestors(final K key) {
+		return tree.ancestors(key);
+	}
+	
+	@Override
+	public void forEachAncestor(final K key, final BiConsumer<? super K, ? super V> action) {
+		tree.forEachAncestor(key, action);
+	}
+	
+	@Override
+	public Iterator<HierarchicalTree.Node<K, V>> iterator() {
+		return new NodeIterator();
+	}
+	
+	/**
+	 * Returns the number of results currently cached, including any which
+	 * have been invalidated but not yet discarded.
+	 */
+	public int cachedCount() {
+		return cache.size();
+	}
+	
+	public long hitCount() {
+		return hits;
+	}
+	
+	public long missCount() {
+		return misses;
+	}
+	
+	/**
+	 * Returns the number of cached results discarded because a mutation may
+	 * have changed them.
+	 */
+	public long invalidationCount() {
+		return invalidations;
+	}
+	
+	/**
+	 * Returns the number of cached results discarded to stay within the
+	 * maximum number of entries.
+	 */
+	public long evictionCount() {
+		return evictions;
+	}
+	
+	/**
+	 * Returns the fraction of lookups answered from the cache, or zero if
+	 * there have been no lookups.
+	 */
+	public double hitRate() {
+		final long total = hits + misses;
+		return (total == 0) ? 0 : (double) hits / total;
+	}
+
+}
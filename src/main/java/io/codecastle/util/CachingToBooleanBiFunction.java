@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decorates an expensive function, such as an ancestor function which parses
+ * its keys, with a bounded cache of its results. The cache is a table with
+ * a fixed number of slots, each holding the most recent pair of arguments
+ * which hashed to it, so a new pair evicts the pair it collides with. The
+ * function must be pure, and its arguments must implement {@code equals} and
+ * {@code hashCode} consistently.
+ * <p>
+ * The function may be shared by any number of threads. Cached entries are
+ * immutable, so the table is read and written without locking; a racing
+ * thread at worst misses an entry which was just cached. The cache holds
+ * references to the arguments it has seen until they are evicted or it is
+ * cleared.
+ *
+ * @author Doug Valenta
+ */
+public final class CachingToBooleanBiFunction<T, U> implements ToBooleanBiFunction<T, U> {
+	
+	private static final class Entry<T, U> {
+		
+		private final T first;
+		private final U second;
+		private final boolean result;
+		
+		Entry(final T first, final U second, final boolean result) {
+			this.first = first;
+			this.second = second;
+			this.result = result;
+		}
+		
+		boolean matches(final T first, final U second) {
+			return (this.first == first || this.first.equals(first)) && (this.second == second || this.second.equals(second));
+		}
+	
+	}
+	
+	/**
+	 * The approximate number of bytes taken by each cached pair: its entry
+	 * object and its slot in the table, but not the arguments themselves.
+	 */
+	public static final int BYTES_PER_ENTRY = 32;
+	
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+	
+	private final ToBooleanBiFunction<T, U> function;
+	private final Entry<T, U>[] table;
+	private final int mask;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	
+	/**
+	 * Creates a cache of at most the given number of entries. The capacity is
+	 * rounded down to a power of two.
+	 * 
+	 * @param function the function whose results to cache
+	 * @param maximumEntries the most results to cache
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public CachingToBooleanBiFunction(final ToBooleanBiFunction<T, U> function, final int maximumEntries) {
+		if (function == null) throw new IllegalArgumentException("Null function");
+		if (maximumEntries < 1) throw new IllegalArgumentException("Capacity must be positive");
+		this.function = function;
+		this.table = (Entry<T, U>[]) new Entry[Integer.highestOneBit(Math.min(maximumEntries, MAXIMUM_CAPACITY))];
+		this.mask = table.length - 1;
+	}
+	
+	/**
+	 * Creates a cache which takes at most approximately the given number of
+	 * bytes, not counting the cached arguments themselves.
+	 * 
+	 * @param function the function whose results to cache
+	 * @param maximumBytes the most memory for the cache to take
+	 * @see #BYTES_PER_ENTRY
+	 */
+	public static <T, U> CachingToBooleanBiFunction<T, U> withMaximumBytes(final ToBooleanBiFunction<T, U> function, final long maximumBytes) {
+		if (maximumBytes < BYTES_PER_ENTRY) throw new IllegalArgumentException("Capacity must be positive");
+		return new CachingToBooleanBiFunction<>(function, (int) Math.min(maximumBytes / BYTES_PER_ENTRY, MAXIMUM_CAPACITY));
+	}
+	
+	@Override
+	public boolean apply(final T first, final U second) {
+		int hash = 31 * first.hashCode() + second.hashCode();
+		hash ^= (hash >>> 16);
+		final int slot = hash & mask;
+		final Entry<T, U> entry = table[slot];
+		if (entry != null && entry.matches(first, second)) {
+			hits.increment();
+			return entry.result;
+		}
+		misses.increment();
+		final boolean result = function.apply(first, second);
+		table[slot] = new Entry<>(first, second, result);
+		return result;
+	}
+	
+	/**
+	 * Returns the number of entries the cache can hold.
+	 */
+	public int capacity() {
+		return table.length;
+	}
+	
+	public long hitCount() {
+		return hits.sum();
+	}
+	
+	public long missCount() {
+		return misses.sum();
+	}
+	
+	/**
+	 * Returns the fraction of calls answered from the cache, or zero if there
+	 * have been no calls.
+	 */
+	public double hitRate() {
+		final long hits = hitCount();
+		final long total = hits + missCount();
+		return (total == 0) ? 0 : (double) hits / total;
+	}
+	
+	/**
+	 * Evicts every entry, releasing the cached arguments. Statistics are kept.
+	 */
+	public void clear() {
+		for (int slot = 0; slot < table.length; slot++) {
+			table[slot] = null;
+		}
+	}
+	
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * A thread-safe hierarchical tree. It holds a {@link PersistentHierarchicalTree}
+ * which every mutation replaces with a new version, so readers never block and
+ * always see a consistent tree. Writers are serialized. Nodes returned by this
+ * tree do not support {@code setValue}.
+ *
+ * @author Doug Valenta
+ */
+public class ConcurrentHierarchicalTree<K, V> implements HierarchicalTree<K, V> {
+	
+	private class NodeIterator implements Iterator<HierarchicalTree.Node<K, V>> {
+		
+		private final Iterator<HierarchicalTree.Node<K, V>> iterator;
+		private HierarchicalTree.Node<K, V> current;
+		
+		NodeIterator(final PersistentHierarchicalTree<K, V> snapshot) {
+			this.iterator = snapshot.iterator();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+		
+		@Override
+		public HierarchicalTree.Node<K, V> next() {
+			current = iterator.next();
+			return current;
+		}
+		
+		@Override
+		public void remove() {
+			if (current == null) {
+				throw new IllegalStateException("No iteration");
+			}
+			ConcurrentHierarchicalTree.this.remove(current.getKey());
+			current = null;
+		}
+	
+	}
+	
+	private final ReentrantLock writeLock = new ReentrantLock();
+	
+	private volatile PersistentHierarchicalTree<K, V> tree;
+	
+	public ConcurrentHierarchicalTree(final ToBooleanBiFunction<K, K> isAncestorFunction) {
+		this(PersistentHierarchicalTree.empty(isAncestorFunction));
+	}
+	
+	public ConcurrentHierarchicalTree(final PersistentHierarchicalTree<K, V> tree) {
+		this.tree = tree;
+	}
+	
+	/**
+	 * Returns the current version of the tree, which later mutations will not
+	 * affect.
+	 */
+	public PersistentHierarchicalTree<K, V> snapshot() {
+		return tree;
+	}
+	
+	/**
+	 * Atomically replaces the tree with the result of applying the given
+	 * function to the current version, serialized with other writers.
+	 *
+	 * @return the new version of the tree
+	 */
+	public PersistentHierarchicalTree<K, V> update(final UnaryOperator<PersistentHierarchicalTree<K, V>> function) {
+		writeLock.lock();
+		try {
+			tree = function.apply(tree);
+			return tree;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	@Override
+	public int size() {
+		return tree.size();
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return tree.isEmpty();
+	}
+	
+	@Override
+	public void clear() {
+		writeLock.lock();
+		try {
+			tree = tree.clear();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	@Override
+	public Optional<V> put(final K key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		writeLock.lock();
+		try {
+			final V replaced = tree.getValue(key);
+			tree = tree.put(key, value);
+			return Optional.ofNullable(replaced);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	@Override
+	public boolean putIfNotPresent(final K key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		writeLock.lock();
+		try {
+			final PersistentHierarchicalTree<K, V> current = tree;
+			tree = current.putIfNotPresent(key, value);
+			return tree != current;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Puts every entry of the given map atomically; readers see either none
+	 * of the entries or all of them.
+	 */
+	@Override
+	public void putAll(final Map<? extends K, ? extends V> map) {
+		writeLock.lock();
+		try {
+			PersistentHierarchicalTree<K, V> updated = tree;
+			for (final Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+				updated = updated.put(entry.getKey(), entry.getValue());
+			}
+			tree = updated;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	@Override
+	public Optional<V> remove(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		writeLock.lock();
+		try {
+			final V removed = tree.getValue(key);
+			if (removed != null) {
+				tree = tree.remove(key);
+			}
+			return Optional.ofNullable(removed);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes the node for the given key and its descendants atomically. The
+	 * returned tree shares its nodes with earlier snapshots of this one.
+	 */
+	@Override
+	public ConcurrentHierarchicalTree<K, V> removeSubtree(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		writeLock.lock();
+		try {
+			final PersistentHierarchicalTree<K, V> detached = tree.subtree(key);
+			if (!detached.isEmpty()) {
+				tree = tree.removeSubtree(key);
+			}
+			return new ConcurrentHierarchicalTree<>(detached);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Moves every entry of the given tree into this one; readers of this tree
+	 * see either none of the moved entries or all of them. Another concurrent
+	 * tree is first emptied atomically, and the version taken from
+	 * it is grafted here sharing its nodes, so an entry put into it
+	 * concurrently ends up in one tree or the other. Any other tree is copied
+	 * and cleared while other writers to this tree wait.
+	 */
+	@Override
+	public void graft(final HierarchicalTree<K, V> subtree) {
+		if (subtree == null) throw new IllegalArgumentException("Null tree");
+		if (subtree == this) throw new IllegalArgumentException("Graft onto itself");
+		if (subtree instanceof ConcurrentHierarchicalTree) {
+			final PersistentHierarchicalTree<K, V> moved = ((ConcurrentHierarchicalTree<K, V>) subtree).drain();
+			writeLock.lock();
+			try {
+				tree = tree.graft(moved);
+			} finally {
+				writeLock.unlock();
+			}
+			return;
+		}
+		writeLock.lock();
+		try {
+			PersistentHierarchicalTree<K, V> updated = tree;
+			for (final HierarchicalTree.Node<K, V> node : subtree) {
+				updated = updated.put(node.getKey(), node.getValue());
+			}
+			tree = updated;
+			subtree.clear();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Atomically empties this tree, taking only its own lock so that two
+	 * trees grafted into each other cannot deadlock.
+	 *
+	 * @return the version of the tree before it was emptied
+	 */
+	private PersistentHierarchicalTree<K, V> drain() {
+		writeLock.lock();
+		try {
+			final PersistentHierarchicalTree<K, V> drained = tree;
+			tree = tree.clear();
+			return drained;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> get(final K key) {
+		return tree.get(key);
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNode(final K key) {
+		return tree.getNode(key);
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> getNearest(final K key) {
+		return tree.getNearest(key);
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNearestNode(final K key) {
+		return tree.getNearestNode(key);
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<K, V>> ancestors(final K key) {
+		return tree.ancestors(key);
+	}
+	
+	@Override
+	public void forEachAncestor(final K key, final BiConsumer<? super K, ? super V> action) {
+		tree.forEachAncestor(key, action);
+	}
+	
+	/**
+	 * Returns an iterator over a snapshot of the tree. Removing through the
+	 * iterator removes the key from the live tree.
+	 */
+	@Override
+	public Iterator<HierarchicalTree.Node<K, V>> iterator() {
+		return new NodeIterator(tree);
+	}
+
+}
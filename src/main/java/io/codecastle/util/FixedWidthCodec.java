@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes values into a fixed number of bytes of a buffer, and decodes them
+ * again. Reads and writes use absolute positions and must not change the
+ * buffer's position or limit, so that a buffer may be shared between
+ * concurrent readers.
+ *
+ * @author Doug Valenta
+ */
+public interface FixedWidthCodec<T> {
+	
+	/**
+	 * Returns the number of bytes every encoded value occupies.
+	 */
+	int width();
+	
+	/**
+	 * Encodes a value into the bytes of the buffer starting at the given
+	 * offset.
+	 *
+	 * @throws IllegalArgumentException if the value cannot be encoded in the width
+	 */
+	void write(ByteBuffer buffer, int offset, T value);
+	
+	T read(ByteBuffer buffer, int offset);
+	
+	/**
+	 * Returns a codec for longs, in eight bytes.
+	 */
+	static FixedWidthCodec<Long> longs() {
+		return new FixedWidthCodec<Long>() {
+			
+			@Override
+			public int width() {
+				return Long.BYTES;
+			}
+			
+			@Override
+			public void write(final ByteBuffer buffer, final int offset, final Long value) {
+				buffer.putLong(offset, value);
+			}
+			
+			@Override
+			public Long read(final ByteBuffer buffer, final int offset) {
+				return buffer.getLong(offset);
+			}
+		
+		};
+	}
+	
+	/**
+	 * Returns a codec for integers, in four bytes.
+	 */
+	static FixedWidthCodec<Integer> integers() {
+		return new FixedWidthCodec<Integer>() {
+			
+			@Override
+			public int width() {
+				return Integer.BYTES;
+			}
+			
+			@Override
+			public void write(final ByteBuffer buffer, final int offset, final Integer value) {
+				buffer.putInt(offset, value);
+			}
+			
+			@Override
+			public Integer read(final ByteBuffer buffer, final int offset) {
+				return buffer.getInt(offset);
+			}
+		
+		};
+	}
+	
+	/**
+	 * Returns a codec for strings of at most the given number of bytes in
+	 * UTF-8, held as a two byte length followed by the encoded bytes.
+	 */
+	static FixedWidthCodec<String> utf8(final int maximumBytes) {
+		if (maximumBytes < 0 || maximumBytes > 0xffff) throw new IllegalArgumentException("Invalid width");
+		return new FixedWidthCodec<String>() {
+			
+			@Override
+			public int width() {
+				return Short.BYTES + maximumBytes;
+			}
+			
+			@Override
+			public void write(final ByteBuffer buffer, final int offset, final String value) {
+				final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				if (bytes.length > maximumBytes) throw new IllegalArgumentException("String too long");
+				buffer.putShort(offset, (short) bytes.length);
+				for (int i = 0; i < bytes.length; i++) {
+					buffer.put(offset + Short.BYTES + i, bytes[i]);
+				}
+			}
+			
+			@Override
+			public String read(final ByteBuffer buffer, final int offset) {
+				final byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort(offset))];
+				for (int i = 0; i < bytes.length; i++) {
+					bytes[i] = buffer.get(offset + Short.BYTES + i);
+				}
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+		
+		};
+	}
+
+}
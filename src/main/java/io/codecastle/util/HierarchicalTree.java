@@ -11,14 +11,10 @@ import java.util.Optional;
  *
  * @author Doug Valenta
  */
-public interface HierarchicalTree<K, V> extends Iterable<HierarchicalTree.Node<K, V>> {
+public interface HierarchicalTree<K, V> extends ReadableHierarchicalTree<K, V> {
 	
 	interface Node<K, V> extends Map.Entry<K, V> {}
 	
-	int size();
-	
-	boolean isEmpty();
-	
 	void clear();
 	
 	Optional<V> put(K key, V value);
@@ -27,8 +23,27 @@ public interface HierarchicalTree<K, V> extends Iterable<HierarchicalTree.Node<K
 	
 	Optional<V> remove(K key);
 	
-	Optional<Node<K, V>> getNearest(K key);
-	
-	Optional<Node<K, V>> get(K key);
+	/**
+	 * Removes the node for the given key together with all of its
+	 * descendants, and returns them as a tree of their own. If there is no
+	 * such key, nothing is removed and the returned tree is empty.
+	 */
+	HierarchicalTree<K, V> removeSubtree(K key);
+	
+	/**
+	 * Moves every entry of the given tree into this one beneath its nearest
+	 * ancestors, replacing the values of keys already present, and leaves the
+	 * given tree empty.
+	 */
+	void graft(HierarchicalTree<K, V> subtree);
+	
+	/**
+	 * Puts every entry of the given map.
+	 */
+	default void putAll(final Map<? extends K, ? extends V> map) {
+		for (final Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
 	
 }
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * A read-only hierarchical tree laid out in preorder across parallel arrays.
+ * Every subtree occupies a contiguous range of indices beginning with its
+ * root, so a node's first child, when it has one, is the next index, and its
+ * next sibling is the end of its subtree. Lookups and iteration walk arrays
+ * instead of chasing pointers between nodes scattered across the heap.
+ * Nodes returned by this tree do not support {@code setValue}.
+ *
+ * @author Doug Valenta
+ */
+public final class ImmutableHierarchicalTree<K, V> implements ReadableHierarchicalTree<K, V> {
+	
+	private final class Node implements HierarchicalTree.Node<K, V> {
+		
+		private final int index;
+		
+		Node(final int index) {
+			this.index = index;
+		}
+		
+		@Override
+		public K getKey() {
+			return keys[index];
+		}
+		
+		@Override
+		public V getValue() {
+			return values[index];
+		}
+		
+		@Override
+		public V setValue(final V value) {
+			throw new UnsupportedOperationException("Immutable node");
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			if (other == null) return false;
+			if (!(other instanceof Map.Entry)) {
+				return false;
+			}
+			final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return (getKey().equals(entry.getKey()) && getValue().equals(entry.getValue()));
+		}
+		
+		@Override
+		public int hashCode() {
+			return getKey().hashCode() ^ getValue().hashCode();
+		}
+	
+	}
+	
+	private class NodeIterator implements Iterator<HierarchicalTree.Node<K, V>> {
+		
+		private final int end;
+		private int index;
+		
+		NodeIterator(final int start, final int end) {
+			this.index = start;
+			this.end = end;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return index < end;
+		}
+		
+		@Override
+		public HierarchicalTree.Node<K, V> next() {
+			if (index >= end) {
+				throw new NoSuchElementException("Iterator exhausted");
+			}
+			return node(index++);
+		}
+	
+	}
+	
+	private final ToBooleanBiFunction<K, K> isAncestorFunction;
+	
+	private final K[] keys;
+	private final V[] values;
+	private final int[] next;
+	private final int[] end;
+	
+	private final Node[] nodes;
+	
+	/**
+	 * Creates a tree over the given preorder arrays, which it takes ownership
+	 * of. The next array holds the index of each node's next sibling, or -1,
+	 * and the end array holds the index following each node's subtree.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	ImmutableHierarchicalTree(final ToBooleanBiFunction<K, K> isAncestorFunction, final K[] keys, final V[] values, final int[] next, final int[] end) {
+		this.isAncestorFunction = isAncestorFunction;
+		this.keys = keys;
+		this.values = values;
+		this.next = next;
+		this.end = end;
+		this.nodes = (Node[]) new ImmutableHierarchicalTree.Node[keys.length];
+	}
+	
+	/**
+	 * Returns an immutable copy of the given tree, arranged by the given
+	 * ancestor function. A linked tree is frozen directly, and the layout of
+	 * an immutable tree is shared; either must have been arranged by the same
+	 * ancestor function. Any other tree is built in a single pass over its
+	 * iterator, which must return each key after its ancestors and the keys
+	 * of each subtree together, as the trees in this package do.
+	 *
+	 * @param tree the tree to copy
+	 * @param isAncestorFunction returns true if the first key is an ancestor of the second
+	 */
+	public static <K, V> ImmutableHierarchicalTree<K, V> copyOf(final ReadableHierarchicalTree<K, V> tree, final ToBooleanBiFunction<K, K> isAncestorFunction) {
+		final ImmutableHierarchicalTree<K, V> frozen;
+		if (tree instanceof LinkedHierarchicalTree) {
+			frozen = ((LinkedHierarchicalTree<K, V>) tree).freeze();
+		} else if (tree instanceof ImmutableHierarchicalTree) {
+			frozen = (ImmutableHierarchicalTree<K, V>) tree;
+		} else {
+			return LinkedHierarchicalTree.build(tree, isAncestorFunction).freeze();
+		}
+		return new ImmutableHierarchicalTree<>(isAncestorFunction, frozen.keys, frozen.values, frozen.next, frozen.end);
+	}
+	
+	K keyAt(final int index) {
+		return keys[index];
+	}
+	
+	V valueAt(final int index) {
+		return values[index];
+	}
+	
+	int nextAt(final int index) {
+		return next[index];
+	}
+	
+	int endAt(final int index) {
+		return end[index];
+	}
+	
+	/**
+	 * Returns a linked copy of this tree, linked from its preorder layout
+	 * without calling the ancestor function.
+	 */
+	public LinkedHierarchicalTree<K, V> thaw() {
+		return LinkedHierarchicalTree.fromPreorder(isAncestorFunction, keys.length, this::keyAt, this::valueAt, this::endAt);
+	}
+	
+	private Node node(final int index) {
+		Node node = nodes[index];
+		if (node == null) {
+			node = new Node(index);
+			nodes[index] = node;
+		}
+		return node;
+	}
+	
+	@Override
+	public int size() {
+		return keys.length;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return keys.length == 0;
+	}
+	
+	private int find(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		int index = (keys.length == 0) ? -1 : 0;
+		while (index >= 0) {
+			final K nodeKey = keys[index];
+			if (nodeKey.equals(key)) return index;
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				index = (end[index] > index + 1) ? index + 1 : -1;
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				return -1;
+			} else {
+				index = next[index];
+			}
+		}
+		return -1;
+	}
+	
+	private int findNearest(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		int candidate = -1;
+		int index = (keys.length == 0) ? -1 : 0;
+		while (index >= 0) {
+			final K nodeKey = keys[index];
+			if (nodeKey.equals(key)) return index;
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				candidate = index;
+				index = (end[index] > index + 1) ? index + 1 : -1;
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				break;
+			} else {
+				index = next[index];
+			}
+		}
+		return candidate;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> get(final K key) {
+		return Optional.ofNullable(getNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNode(final K key) {
+		final int index = find(key);
+		return (index < 0) ? null : node(index);
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> getNearest(final K key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNearestNode(final K key) {
+		final int index = findNearest(key);
+		return (index < 0) ? null : node(index);
+	}
+	
+	@Override
+	public V getValue(final K key) {
+		final int index = find(key);
+		return (index < 0) ? null : values[index];
+	}
+	
+	@Override
+	public V getNearestValue(final K key, final V defaultValue) {
+		final int index = findNearest(key);
+		return (index < 0) ? defaultValue : values[index];
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<K, V>> ancestors(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Deque<HierarchicalTree.Node<K, V>> ancestors = new ArrayDeque<>();
+		int index = (keys.length == 0) ? -1 : 0;
+		while (index >= 0) {
+			final K nodeKey = keys[index];
+			if (nodeKey.equals(key)) {
+				ancestors.addLast(node(index));
+				break;
+			}
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				ancestors.addLast(node(index));
+				index = (end[index] > index + 1) ? index + 1 : -1;
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				break;
+			} else {
+				index = next[index];
+			}
+		}
+		return ancestors;
+	}
+	
+	@Override
+	public void forEachAncestor(final K key, final BiConsumer<? super K, ? super V> action) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (action == null) throw new IllegalArgumentException("Null action");
+		int index = (keys.length == 0) ? -1 : 0;
+		while (index >= 0) {
+			final K nodeKey = keys[index];
+			if (nodeKey.equals(key)) {
+				action.accept(nodeKey, values[index]);
+				return;
+			}
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				action.accept(nodeKey, values[index]);
+				index = (end[index] > index + 1) ? index + 1 : -1;
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				return;
+			} else {
+				index = next[index];
+			}
+		}
+	}
+	
+	/**
+	 * Returns the node for the given key followed by all of its descendants,
+	 * in preorder, or nothing if there is no such key.
+	 */
+	public Iterable<HierarchicalTree.Node<K, V>> subtree(final K key) {
+		final int index = find(key);
+		if (index < 0) return Collections.emptyList();
+		return () -> new NodeIterator(index, end[index]);
+	}
+	
+	/**
+	 * Returns an iterator over the nodes in preorder.
+	 */
+	@Override
+	public Iterator<HierarchicalTree.Node<K, V>> iterator() {
+		return new NodeIterator(0, keys.length);
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+/**
+ * An IP address prefix, such as {@code 10.0.0.0/8} or {@code 2001:db8::/32},
+ * held as a 128-bit address and the number of leading bits which identify it.
+ * IPv4 prefixes are held as IPv4-mapped IPv6 prefixes beneath
+ * {@code ::ffff:0:0/96}, so both families can share one tree, and an IPv6
+ * prefix containing that range, such as {@code ::/0}, contains every IPv4
+ * prefix. The bits beyond the prefix length are always zero.
+ *
+ * @author Doug Valenta
+ */
+public final class IpPrefix {
+	
+	/**
+	 * The number of bits in an address.
+	 */
+	public static final int MAX_LENGTH = 128;
+	
+	static final int IPV4_OFFSET = 96;
+	static final long IPV4_MAPPED = 0x0000ffff00000000L;
+	
+	private final long high;
+	private final long low;
+	private final int length;
+	
+	IpPrefix(final long high, final long low, final int length) {
+		this.high = high;
+		this.low = low;
+		this.length = length;
+	}
+	
+	/**
+	 * Returns the IPv4 prefix of the given length containing the given
+	 * address, whose most significant byte is the first octet.
+	 */
+	public static IpPrefix ipv4(final int address, final int length) {
+		if (length < 0 || length > 32) throw new IllegalArgumentException("Invalid prefix length");
+		return new IpPrefix(0, maskLow(mapIpv4(address), IPV4_OFFSET + length), IPV4_OFFSET + length);
+	}
+	
+	/**
+	 * Returns the IPv6 prefix of the given length containing the address
+	 * whose most and least significant 64 bits are given.
+	 */
+	public static IpPrefix ipv6(final long high, final long low, final int length) {
+		if (length < 0 || length > MAX_LENGTH) throw new IllegalArgumentException("Invalid prefix length");
+		return new IpPrefix(maskHigh(high, length), maskLow(low, length), length);
+	}
+	
+	static long mapIpv4(final int address) {
+		return IPV4_MAPPED | (address & 0xffffffffL);
+	}
+	
+	/**
+	 * Clears the bits of the most significant half of an address beyond the
+	 * given prefix length.
+	 */
+	static long maskHigh(final long high, final int length) {
+		if (length >= 64) return high;
+		return (length == 0) ? 0 : high & (-1L << (64 - length));
+	}
+	
+	/**
+	 * Clears the bits of the least significant half of an address beyond the
+	 * given prefix length.
+	 */
+	static long maskLow(final long low, final int length) {
+		if (length <= 64) return 0;
+		return (length == MAX_LENGTH) ? low : low & (-1L << (MAX_LENGTH - length));
+	}
+	
+	/**
+	 * Returns the bit of an address at the given index, counting from the
+	 * most significant.
+	 */
+	static int bit(final long high, final long low, final int index) {
+		return (int) ((index < 64) ? (high >>> (63 - index)) : (low >>> (127 - index))) & 1;
+	}
+	
+	/**
+	 * Returns the number of leading bits two addresses have in common.
+	 */
+	static int commonLength(final long high1, final long low1, final long high2, final long low2) {
+		final long high = high1 ^ high2;
+		return (high != 0) ? Long.numberOfLeadingZeros(high) : 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+	}
+	
+	/**
+	 * Returns true if the first given number of bits of two addresses are
+	 * equal.
+	 */
+	static boolean matches(final long high1, final long low1, final long high2, final long low2, final int length) {
+		return maskHigh(high1 ^ high2, length) == 0 && maskLow(low1 ^ low2, length) == 0;
+	}
+	
+	public long getHigh() {
+		return high;
+	}
+	
+	public long getLow() {
+		return low;
+	}
+	
+	/**
+	 * Returns the prefix length in bits of the 128-bit address, which for an
+	 * IPv4 prefix is 96 more than its IPv4 prefix length.
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	public boolean isIpv4() {
+		return high == 0 && length >= IPV4_OFFSET && (low >>> 32) == 0xffffL;
+	}
+	
+	/**
+	 * Returns true if this prefix is shorter than the given prefix and
+	 * contains it.
+	 */
+	public boolean isAncestorOf(final IpPrefix other) {
+		return length < other.length && matches(high, low, other.high, other.low, length);
+	}
+	
+	@Override
+	public boolean equals(final Object other) {
+		if (!(other instanceof IpPrefix)) return false;
+		final IpPrefix prefix = (IpPrefix) other;
+		return high == prefix.high && low == prefix.low && length == prefix.length;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Long.hashCode(high) * 31 * 31 + Long.hashCode(low) * 31 + length;
+	}
+	
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		if (isIpv4()) {
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				builder.append((low >>> shift) & 0xff);
+				builder.append((shift == 0) ? '/' : '.');
+			}
+			return builder.append(length - IPV4_OFFSET).toString();
+		}
+		for (int group = 0; group < 8; group++) {
+			final long half = (group < 4) ? high : low;
+			builder.append(Long.toHexString((half >>> (48 - 16 * (group % 4))) & 0xffff));
+			builder.append((group == 7) ? '/' : ':');
+		}
+		return builder.append(length).toString();
+	}
+
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * A hierarchical tree of IP prefixes for longest-prefix matching, backed by a
+ * compressed binary trie. Each node holds a prefix and branches on the bit
+ * which follows it, and a node without a value is kept only where two
+ * branches diverge, so the trie has fewer than twice as many nodes as
+ * entries. Ancestry is decided with bitwise operations on the addresses.
+ * <p>
+ * Besides the {@link IpPrefix} operations of a hierarchical tree, the tree
+ * has operations taking addresses as primitives. These never box the address
+ * or allocate, other than a node for each new entry, and their lookups cost
+ * O(prefix length).
+ *
+ * @author Doug Valenta
+ */
+public class IpPrefixHierarchicalTree<V> implements HierarchicalTree<IpPrefix, V> {
+	
+	private class Node implements HierarchicalTree.Node<IpPrefix, V> {
+		
+		private final long high;
+		private final long low;
+		private final int length;
+		
+		private V value;
+		
+		private Node zero;
+		private Node one;
+		
+		Node(final long high, final long low, final int length, final V value) {
+			this.high = high;
+			this.low = low;
+			this.length = length;
+			this.value = value;
+		}
+		
+		Node child(final int bit) {
+			return (bit == 0) ? zero : one;
+		}
+		
+		void setChild(final int bit, final Node node) {
+			if (bit == 0) {
+				zero = node;
+			} else {
+				one = node;
+			}
+		}
+		
+		/**
+		 * Returns true if the first bits of the given address, up to this
+		 * node's prefix length, equal this node's prefix.
+		 */
+		boolean contains(final long high, final long low) {
+			return IpPrefix.matches(this.high, this.low, high, low, length);
+		}
+		
+		/**
+		 * Returns a new prefix equal to this node's, for use as a key.
+		 */
+		@Override
+		public IpPrefix getKey() {
+			return new IpPrefix(high, low, length);
+		}
+		
+		@Override
+		public V getValue() {
+			return value;
+		}
+		
+		@Override
+		public V setValue(final V value) {
+			if (value == null) throw new IllegalArgumentException("Null value");
+			final V replaced = this.value;
+			this.value = value;
+			return replaced;
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			if (other == null) return false;
+			if (!(other instanceof Map.Entry)) {
+				return false;
+			}
+			final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return (getKey().equals(entry.getKey()) && value.equals(entry.getValue()));
+		}
+		
+		@Override
+		public int hashCode() {
+			return getKey().hashCode() ^ value.hashCode();
+		}
+	
+	}
+	
+	/**
+	 * Iterates over the entries in preorder, zero branches first. Each level
+	 * of the trie leaves at most one branch pending, so the stack never grows
+	 * beyond the longest prefix.
+	 */
+	private class NodeIterator implements Iterator<HierarchicalTree.Node<IpPrefix, V>> {
+		
+		private final Node[] stack = newNodeArray(IpPrefix.MAX_LENGTH + 2);
+		private int depth;
+		private Node current;
+		private Node next;
+		
+		NodeIterator() {
+			if (root != null) {
+				stack[depth++] = root;
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (next == null && depth > 0) {
+				final Node node = stack[--depth];
+				stack[depth] = null;
+				if (node.one != null) {
+					stack[depth++] = node.one;
+				}
+				if (node.zero != null) {
+					stack[depth++] = node.zero;
+				}
+				if (node.value != null) {
+					next = node;
+				}
+			}
+			return next != null;
+		}
+		
+		@Override
+		public Node next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException("Iterator exhausted");
+			}
+			current = next;
+			next = null;
+			return current;
+		}
+		
+		/**
+		 * Removes the current entry. Its branches are already on the stack,
+		 * and removal only ever replaces a node by one of its branches, so
+		 * the pending nodes all remain in the trie.
+		 */
+		@Override
+		public void remove() {
+			if (current == null) {
+				throw new IllegalStateException("No iteration");
+			}
+			removeNode(current.high, current.low, current.length);
+			current = null;
+		}
+	
+	}
+	
+	private Node root;
+	private int size;
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	@Override
+	public void clear() {
+		root = null;
+		size = 0;
+	}
+	
+	@Override
+	public Optional<V> put(final IpPrefix key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		return Optional.ofNullable(insert(key.getHigh(), key.getLow(), key.getLength(), value, true));
+	}
+	
+	@Override
+	public boolean putIfNotPresent(final IpPrefix key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		return insert(key.getHigh(), key.getLow(), key.getLength(), value, false) == null;
+	}
+	
+	/**
+	 * Puts a value for an IPv4 prefix without allocating a key.
+	 *
+	 * @return the value replaced, or null if there was none
+	 */
+	public V putIpv4(final int address, final int length, final V value) {
+		if (length < 0 || length > 32) throw new IllegalArgumentException("Invalid prefix length");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		final int mappedLength = IpPrefix.IPV4_OFFSET + length;
+		return insert(0, IpPrefix.maskLow(IpPrefix.mapIpv4(address), mappedLength), mappedLength, value, true);
+	}
+	
+	/**
+	 * Puts a value for an IPv6 prefix without allocating a key.
+	 *
+	 * @return the value replaced, or null if there was none
+	 */
+	public V putIpv6(final long high, final long low, final int length, final V value) {
+		if (length < 0 || length > IpPrefix.MAX_LENGTH) throw new IllegalArgumentException("Invalid prefix length");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		return insert(IpPrefix.maskHigh(high, length), IpPrefix.maskLow(low, length), length, value, true);
+	}
+	
+	/**
+	 * Inserts a masked prefix, splitting the compressed branch it falls in
+	 * if necessary, and returns the value already present, if any.
+	 */
+	private V insert(final long high, final long low, final int length, final V value, final boolean replace) {
+		Node parent = null;
+		Node node = root;
+		while (node != null && node.length <= length && node.contains(high, low)) {
+			if (node.length == length) {
+				final V replaced = node.value;
+				if (replaced == null) {
+					size++;
+				}
+				if (replaced == null || replace) {
+					node.value = value;
+				}
+				return replaced;
+			}
+			parent = node;
+			node = node.child(IpPrefix.bit(high, low, node.length));
+		}
+		final Node inserted = new Node(high, low, length, value);
+		size++;
+		if (node == null) {
+			replace(parent, null, high, low, inserted);
+			return null;
+		}
+		final int common = Math.min(IpPrefix.commonLength(high, low, node.high, node.low), length);
+		if (common == length) {
+			inserted.setChild(IpPrefix.bit(node.high, node.low, length), node);
+			replace(parent, node, high, low, inserted);
+		} else {
+			final Node branch = new Node(IpPrefix.maskHigh(high, common), IpPrefix.maskLow(low, common), common, null);
+			branch.setChild(IpPrefix.bit(high, low, common), inserted);
+			branch.setChild(IpPrefix.bit(node.high, node.low, common), node);
+			replace(parent, node, high, low, branch);
+		}
+		return null;
+	}
+	
+	/**
+	 * Links a node in place of the given child of the given parent, or in
+	 * place of the root if there is no parent. A null child is found by the
+	 * address beneath the parent.
+	 */
+	private void replace(final Node parent, final Node child, final long high, final long low, final Node node) {
+		if (parent == null) {
+			root = node;
+		} else if (child == null) {
+			parent.setChild(IpPrefix.bit(high, low, parent.length), node);
+		} else if (parent.zero == child) {
+			parent.zero = node;
+		} else {
+			parent.one = node;
+		}
+	}
+	
+	/**
+	 * Unlinks a node with no more than one branch, replacing it with that
+	 * branch, and then merges its parent into its remaining branch if the
+	 * parent is left as a valueless node with a single branch.
+	 */
+	private void unlink(final Node grandparent, final Node parent, final Node node) {
+		final Node branch = (node.zero != null) ? node.zero : node.one;
+		replace(parent, node, 0, 0, branch);
+		if (branch == null && parent != null && parent.value == null) {
+			replace(grandparent, parent, 0, 0, (parent.zero != null) ? parent.zero : parent.one);
+		}
+	}
+	
+	@Override
+	public Optional<V> remove(final IpPrefix key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		return Optional.ofNullable(removeNode(key.getHigh(), key.getLow(), key.getLength()));
+	}
+	
+	/**
+	 * Removes an IPv4 prefix without allocating a key.
+	 *
+	 * @return the value removed, or null if there was none
+	 */
+	public V removeIpv4(final int address, final int length) {
+		if (length < 0 || length > 32) throw new IllegalArgumentException("Invalid prefix length");
+		final int mappedLength = IpPrefix.IPV4_OFFSET + length;
+		return removeNode(0, IpPrefix.maskLow(IpPrefix.mapIpv4(address), mappedLength), mappedLength);
+	}
+	
+	/**
+	 * Removes an IPv6 prefix without allocating a key.
+	 *
+	 * @return the value removed, or null if there was none
+	 */
+	public V removeIpv6(final long high, final long low, final int length) {
+		if (length < 0 || length > IpPrefix.MAX_LENGTH) throw new IllegalArgumentException("Invalid prefix length");
+		return removeNode(IpPrefix.maskHigh(high, length), IpPrefix.maskLow(low, length), length);
+	}
+	
+	private V removeNode(final long high, final long low, final int length) {
+		Node grandparent = null;
+		Node parent = null;
+		Node node = root;
+		while (node != null && node.length < length && node.contains(high, low)) {
+			grandparent = parent;
+			parent = node;
+			node = node.child(IpPrefix.bit(high, low, node.length));
+		}
+		if (node == null || node.length != length || node.value == null || !node.contains(high, low)) return null;
+		final V removed = node.value;
+		node.value = null;
+		if (node.zero == null || node.one == null) {
+			unlink(grandparent, parent, node);
+		}
+		size--;
+		return removed;
+	}
+	
+	/**
+	 * Removes the given prefix and every longer prefix within it with a
+	 * single unlink, and returns them as a tree of their own. If the prefix
+	 * is not present, nothing is removed, even if it covers other prefixes.
+	 */
+	@Override
+	public IpPrefixHierarchicalTree<V> removeSubtree(final IpPrefix key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final long high = key.getHigh();
+		final long low = key.getLow();
+		final IpPrefixHierarchicalTree<V> detached = new IpPrefixHierarchicalTree<>();
+		Node grandparent = null;
+		Node parent = null;
+		Node node = root;
+		while (node != null && node.length < key.getLength()) {
+			if (!node.contains(high, low)) return detached;
+			grandparent = parent;
+			parent = node;
+			node = node.child(IpPrefix.bit(high, low, node.length));
+		}
+		if (node == null || node.length != key.getLength() || node.value == null || !node.contains(high, low)) return detached;
+		replace(parent, node, 0, 0, null);
+		if (parent != null && parent.value == null) {
+			replace(grandparent, parent, 0, 0, (parent.zero != null) ? parent.zero : parent.one);
+		}
+		detached.root = node;
+		detached.size = count(node);
+		size -= detached.size;
+		return detached;
+	}
+	
+	private int count(final Node node) {
+		if (node == null) return 0;
+		return ((node.value == null) ? 0 : 1) + count(node.zero) + count(node.one);
+	}
+	
+	/**
+	 * Moves every entry of the given tree into this one, replacing the values
+	 * of prefixes already present, and leaves the given tree empty.
+	 */
+	@Override
+	public void graft(final HierarchicalTree<IpPrefix, V> subtree) {
+		if (subtree == null) throw new IllegalArgumentException("Null tree");
+		if (subtree == this) throw new IllegalArgumentException("Graft onto itself");
+		for (final HierarchicalTree.Node<IpPrefix, V> node : subtree) {
+			put(node.getKey(), node.getValue());
+		}
+		subtree.clear();
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<IpPrefix, V>> get(final IpPrefix key) {
+		return Optional.ofNullable(getNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<IpPrefix, V> getNode(final IpPrefix key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Node node = findNearestNode(key.getHigh(), key.getLow(), key.getLength());
+		return (node != null && node.length == key.getLength()) ? node : null;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<IpPrefix, V>> getNearest(final IpPrefix key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<IpPrefix, V> getNearestNode(final IpPrefix key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		return findNearestNode(key.getHigh(), key.getLow(), key.getLength());
+	}
+	
+	/**
+	 * Returns the value of the longest prefix containing the given IPv4
+	 * address, or the given default value if there is none, without
+	 * allocating.
+	 */
+	public V getNearestIpv4(final int address, final V defaultValue) {
+		final Node node = findNearestNode(0, IpPrefix.mapIpv4(address), IpPrefix.MAX_LENGTH);
+		return (node == null) ? defaultValue : node.value;
+	}
+	
+	/**
+	 * Returns the value of the longest prefix containing the given IPv6
+	 * address, or the given default value if there is none, without
+	 * allocating.
+	 */
+	public V getNearestIpv6(final long high, final long low, final V defaultValue) {
+		final Node node = findNearestNode(high, low, IpPrefix.MAX_LENGTH);
+		return (node == null) ? defaultValue : node.value;
+	}
+	
+	/**
+	 * Returns the entry with the longest prefix no longer than the given
+	 * length which contains the given address. Each step down the trie
+	 * lengthens the prefix, so the descent costs O(length).
+	 */
+	private Node findNearestNode(final long high, final long low, final int length) {
+		Node candidate = null;
+		Node node = root;
+		while (node != null && node.length <= length && node.contains(high, low)) {
+			if (node.value != null) {
+				candidate = node;
+			}
+			if (node.length == length) break;
+			node = node.child(IpPrefix.bit(high, low, node.length));
+		}
+		return candidate;
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<IpPrefix, V>> ancestors(final IpPrefix key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Deque<HierarchicalTree.Node<IpPrefix, V>> ancestors = new ArrayDeque<>();
+		Node node = root;
+		while (node != null && node.length <= key.getLength() && node.contains(key.getHigh(), key.getLow())) {
+			if (node.value != null) {
+				ancestors.addLast(node);
+			}
+			if (node.length == key.getLength()) break;
+			node = node.child(IpPrefix.bit(key.getHigh(), key.getLow(), node.length));
+		}
+		return ancestors;
+	}
+	
+	/**
+	 * Calls the given action for each enclosing entry. Nodes do not hold
+	 * their keys, so each key passed to the action other than the given key
+	 * itself is a new prefix allocated for the call.
+	 */
+	@Override
+	public void forEachAncestor(final IpPrefix key, final BiConsumer<? super IpPrefix, ? super V> action) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (action == null) throw new IllegalArgumentException("Null action");
+		Node node = root;
+		while (node != null && node.length <= key.getLength() && node.contains(key.getHigh(), key.getLow())) {
+			if (node.value != null) {
+				action.accept((node.length == key.getLength()) ? key : node.getKey(), node.value);
+			}
+			if (node.length == key.getLength()) return;
+			node = node.child(IpPrefix.bit(key.getHigh(), key.getLow(), node.length));
+		}
+	}
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Node[] newNodeArray(final int length) {
+		return (Node[]) new IpPrefixHierarchicalTree.Node[length];
+	}
+	
+	/**
+	 * Returns an iterator over the entries in address order, shorter
+	 * prefixes before the longer prefixes they contain.
+	 */
+	@Override
+	public Iterator<HierarchicalTree.Node<IpPrefix, V>> iterator() {
+		return new NodeIterator();
+	}
+
+}
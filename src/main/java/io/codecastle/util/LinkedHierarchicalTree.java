@@ -4,11 +4,26 @@
  */
 package io.codecastle.util;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  *
@@ -16,55 +31,74 @@ import java.util.Optional;
  */
 public class LinkedHierarchicalTree<K, V> implements HierarchicalTree<K, V> {
 	
+	/**
+	 * Identifies the tree holding a node. When every node of a tree is
+	 * spliced into another, the first tree's owner forwards to the other's,
+	 * so that the moved nodes resolve the tree now holding them without being
+	 * visited.
+	 */
+	private static final class Owner<K, V> {
+		
+		private LinkedHierarchicalTree<K, V> tree;
+		private Owner<K, V> forward;
+		
+		Owner(final LinkedHierarchicalTree<K, V> tree) {
+			this.tree = tree;
+		}
+		
+		LinkedHierarchicalTree<K, V> resolve() {
+			Owner<K, V> owner = this;
+			while (owner.forward != null) {
+				owner = owner.forward;
+			}
+			if (owner != this) {
+				forward = owner;
+			}
+			return owner.tree;
+		}
+		
+		void forwardTo(final Owner<K, V> owner) {
+			tree = null;
+			forward = owner;
+		}
+	
+	}
+	
 	private class Node implements HierarchicalTree.Node<K, V> {
 		
 		private K key;
 		private V value;
+		private Owner<K, V> owner = LinkedHierarchicalTree.this.owner;
 		
 		private Node next;
 		private Node child;
+		private Node lastChild;
 		
 		Node(final K key, final V value) {
 			this.key = key;
 			this.value = value;
 		}
 		
-		void next(Node next) {
-			if (this.next == null) {
-				this.next = next;
-			} else {
-				this.next.next(next);
-			}
-		}
-		
-		void reparent(Node parent) {
-			if (isAncestorFunction.apply(parent.key, key)) {
-				if (next != null) {
-					next.reparent(parent);
-				}
-				next = parent.child;
-				parent.child = this;
-			} else {
-				next(parent.next);
-				parent.next = this;
-			}
-		}
-
 		@Override
 		public K getKey() {
 			return key;
 		}
-
+		
 		@Override
 		public V getValue() {
 			return value;
 		}
-
+		
 		@Override
 		public V setValue(final V value) {
 			if (value == null) throw new IllegalArgumentException("Null value");
 			final V replaced = this.value;
 			this.value = value;
+			final LinkedHierarchicalTree<K, V> tree = owner.resolve();
+			if (tree.changes != null && tree.findNode(key) == this) {
+				tree.change(TreeChange.Type.REPLACED, this, replaced, null, false);
+				tree.dispatch();
+			}
 			return replaced;
 		}
 		
@@ -82,417 +116,1520 @@ public class LinkedHierarchicalTree<K, V> implements HierarchicalTree<K, V> {
 		public int hashCode() {
 			return key.hashCode() ^ value.hashCode();
 		}
+	
+	}
+	
+	/**
+	 * Decorates the ancestor function to measure each operation of a tree with
+	 * metrics enabled. Calls which compare a node's key against the key of the
+	 * current operation count as visits to that node, and calls which find that
+	 * the operation's key does not descend from a node count as passing it.
+	 * Each thread measures its own operations, so that threads reading the
+	 * tree at once do not mix their counts.
+	 */
+	private final class Probe implements ToBooleanBiFunction<K, K> {
+		
+		/**
+		 * The counts of the operation in progress on one thread.
+		 */
+		private final class Measurement {
+			
+			private K key;
+			private int calls;
+			private int visited;
+			private int chain;
+			private int longestChain;
+		
+		}
+		
+		private final ToBooleanBiFunction<K, K> function;
+		private final TreeMetrics metrics;
+		private final ThreadLocal<Measurement> measurements = ThreadLocal.withInitial(Measurement::new);
+		
+		Probe(final ToBooleanBiFunction<K, K> function, final TreeMetrics metrics) {
+			this.function = function;
+			this.metrics = metrics;
+		}
+		
+		long start(final K key) {
+			final Measurement measurement = measurements.get();
+			measurement.key = key;
+			measurement.calls = 0;
+			measurement.visited = 0;
+			measurement.chain = 0;
+			measurement.longestChain = 0;
+			return System.nanoTime();
+		}
+		
+		void finish(final TreeMetrics.Operation operation, final boolean found, final long start) {
+			final Measurement measurement = measurements.get();
+			metrics.record(operation, measurement.calls, found ? measurement.visited + 1 : measurement.visited, measurement.longestChain, System.nanoTime() - start);
+			measurement.key = null;
+		}
+		
+		/**
+		 * Returns the number of calls made so far by the current thread's
+		 * operation.
+		 */
+		int calls() {
+			return measurements.get().calls;
+		}
 		
+		@Override
+		public boolean apply(final K first, final K second) {
+			final Measurement measurement = measurements.get();
+			measurement.calls++;
+			final boolean result = function.apply(first, second);
+			if (second == measurement.key) {
+				measurement.visited++;
+				if (result) {
+					measurement.chain = 0;
+				}
+			} else if (first == measurement.key && !result) {
+				measurement.chain++;
+				if (measurement.chain > measurement.longestChain) {
+					measurement.longestChain = measurement.chain;
+				}
+			}
+			return result;
+		}
+	
 	}
 	
-	private class NodeIterator implements Iterator<HierarchicalTree.Node<K, V>> {
-
-		private Node current;
-		private Node parent;
-		private Node previous;
-		private Deque<Node> stack = new LinkedList<>();
+	/**
+	 * Counts the nodes returned by an iteration and records them when it
+	 * ends, if metrics are enabled. Every order keeps the parent and previous
+	 * sibling of the current node so that removing it splices its children
+	 * into its place.
+	 */
+	private abstract class NodeIterator implements TreeIterator<K, V> {
+		
+		private final long start = (probe == null) ? 0 : System.nanoTime();
+		private int visited;
+		private boolean recorded;
+		
+		Node current;
+		Node previous;
+		
+		abstract boolean hasMore();
+		
+		abstract Node advance();
+		
+		abstract Node parent();
+		
+		abstract int currentDepth();
+		
+		/**
+		 * Called after the current node has been unlinked.
+		 */
+		void removed() {}
 		
 		@Override
 		public boolean hasNext() {
-			if (!stack.isEmpty()) return true;
-			if (current == null) {
-				return (parent != null || previous != null || root != null);
-			} else {
-				return (current.child != null || current.next != null);
+			final boolean hasNext = hasMore();
+			if (!hasNext && probe != null && !recorded) {
+				probe.metrics.record(TreeMetrics.Operation.ITERATE, 0, visited, 0, System.nanoTime() - start);
+				recorded = true;
 			}
+			return hasNext;
 		}
-
+		
 		@Override
 		public Node next() {
+			final Node node = advance();
+			visited++;
+			return node;
+		}
+		
+		@Override
+		public int depth() {
 			if (current == null) {
-				if (parent != null) {
-					if (parent.child != null) {
-						current = parent.child;
-						return current;
-					}
-				} else if (previous != null) {
-					if (previous.next != null) {
-						current = previous.next;
-						return current;
-					}
-				} else if (root != null) {
-					current = root;
+				throw new IllegalStateException("No iteration");
+			}
+			return currentDepth();
+		}
+		
+		@Override
+		public void remove() {
+			if (current == null) {
+				throw new IllegalStateException("No iteration");
+			}
+			unlink(parent(), previous, current);
+			removed();
+			current = null;
+			dispatch();
+		}
+	
+	}
+	
+	/**
+	 * Iterates in pre-order, keeping the ancestors of the current node in a
+	 * growable array.
+	 */
+	private class PreOrderIterator extends NodeIterator {
+		
+		private Node[] path = newNodeArray(INITIAL_PATH_CAPACITY);
+		private int depth;
+		
+		@Override
+		Node parent() {
+			return (depth == 0) ? null : path[depth - 1];
+		}
+		
+		@Override
+		int currentDepth() {
+			return depth;
+		}
+		
+		@Override
+		boolean hasMore() {
+			if (current == null) {
+				if (slot(parent(), previous) != null) return true;
+			} else if (current.child != null || current.next != null) {
+				return true;
+			}
+			for (int i = depth - 1; i >= 0; i--) {
+				if (path[i].next != null) return true;
+			}
+			return false;
+		}
+		
+		@Override
+		Node advance() {
+			if (current == null) {
+				final Node node = slot(parent(), previous);
+				if (node != null) {
+					current = node;
 					return current;
 				}
 			} else if (current.child != null) {
-				parent = current;
+				if (depth == path.length) {
+					path = Arrays.copyOf(path, depth * 2);
+				}
+				path[depth++] = current;
 				previous = null;
 				current = current.child;
-				if (current.next != null) {
-					stack.add(current);
-				}
 				return current;
 			} else if (current.next != null) {
-				parent = null;
 				previous = current;
 				current = current.next;
 				return current;
 			}
-			if (!stack.isEmpty()) {
-				parent = null;
-				previous = stack.element();
-				current = previous.next;
-				return current;
+			while (depth > 0) {
+				final Node ancestor = path[--depth];
+				path[depth] = null;
+				if (ancestor.next != null) {
+					previous = ancestor;
+					current = ancestor.next;
+					return current;
+				}
 			}
-			throw new IllegalStateException("Iterator exhausted");
+			throw new NoSuchElementException("Iterator exhausted");
 		}
+	
+	}
+	
+	/**
+	 * Iterates in post-order, keeping the ancestors of the current node and
+	 * their previous siblings in growable arrays.
+	 */
+	private class PostOrderIterator extends NodeIterator {
+		
+		private Node[] path = newNodeArray(INITIAL_PATH_CAPACITY);
+		private Node[] previousPath = newNodeArray(INITIAL_PATH_CAPACITY);
+		private int depth;
+		private boolean started;
+		private Node resume;
+		private Node resumePrevious;
 		
 		@Override
-		public void remove() {
+		Node parent() {
+			return (depth == 0) ? null : path[depth - 1];
+		}
+		
+		@Override
+		int currentDepth() {
+			return depth;
+		}
+		
+		@Override
+		void removed() {
+			resume = current.next;
+			resumePrevious = (current.child != null) ? current.lastChild : previous;
+		}
+		
+		@Override
+		boolean hasMore() {
+			if (!started) return root != null;
+			final Node following = (current == null) ? resume : current.next;
+			return following != null || depth > 0;
+		}
+		
+		@Override
+		Node advance() {
+			if (!started) {
+				started = true;
+				if (root != null) {
+					return descend(root);
+				}
+			} else {
+				final Node following = (current == null) ? resume : current.next;
+				if (following != null) {
+					previous = (current == null) ? resumePrevious : current;
+					return descend(following);
+				}
+				if (depth > 0) {
+					current = path[--depth];
+					previous = previousPath[depth];
+					path[depth] = null;
+					previousPath[depth] = null;
+					return current;
+				}
+			}
+			throw new NoSuchElementException("Iterator exhausted");
+		}
+		
+		/**
+		 * Moves to the first node of the given node's subtree in post-order.
+		 */
+		private Node descend(final Node node) {
+			current = node;
+			while (current.child != null) {
+				if (depth == path.length) {
+					path = Arrays.copyOf(path, depth * 2);
+					previousPath = Arrays.copyOf(previousPath, depth * 2);
+				}
+				path[depth] = current;
+				previousPath[depth++] = previous;
+				previous = null;
+				current = current.child;
+			}
+			return current;
+		}
+	
+	}
+	
+	/**
+	 * Iterates level by level. Each level is walked one sibling list at a
+	 * time, and a node is queued as the parent of a list on the next level
+	 * when the iteration moves past it, so that removing it leaves its
+	 * children to be returned in its place.
+	 */
+	private class BreadthFirstIterator extends NodeIterator {
+		
+		private Node[] queue = newNodeArray(INITIAL_PATH_CAPACITY);
+		private int[] depths = new int[INITIAL_PATH_CAPACITY];
+		private int head;
+		private int queued;
+		private Node parent;
+		private int depth;
+		
+		@Override
+		Node parent() {
+			return parent;
+		}
+		
+		@Override
+		int currentDepth() {
+			return depth;
+		}
+		
+		@Override
+		boolean hasMore() {
 			if (current == null) {
-				throw new IllegalStateException("No iteration");
+				if (slot(parent, previous) != null) return true;
+			} else if (current.child != null || current.next != null) {
+				return true;
 			}
-			if (current == root) {
-				if (root.next != null) {
-				if (root.child != null) {
-					root.next.next(root.child);
+			return queued > 0;
+		}
+		
+		@Override
+		Node advance() {
+			Node node;
+			if (current == null) {
+				node = slot(parent, previous);
+			} else {
+				if (current.child != null) {
+					enqueue(current, depth + 1);
 				}
-				root = root.next;
-				} else {
-					root = root.child;
+				previous = current;
+				node = current.next;
+			}
+			while (node == null) {
+				if (queued == 0) {
+					throw new NoSuchElementException("Iterator exhausted");
 				}
-				current = null;
-			} else if (parent != null) {
-				if (current.next != null) {
-					if (current.child != null) {
-						current.next(current.child);
-					}
-					parent.child = current.next;
-				} else {
-					parent.child = current.child;
+				parent = queue[head];
+				depth = depths[head];
+				queue[head] = null;
+				head = (head + 1) % queue.length;
+				queued--;
+				previous = null;
+				node = parent.child;
+			}
+			current = node;
+			return current;
+		}
+		
+		private void enqueue(final Node node, final int nodeDepth) {
+			if (queued == queue.length) {
+				final Node[] grown = newNodeArray(queued * 2);
+				final int[] grownDepths = new int[queued * 2];
+				for (int i = 0; i < queued; i++) {
+					grown[i] = queue[(head + i) % queue.length];
+					grownDepths[i] = depths[(head + i) % queue.length];
 				}
-				current = null;
-			} else if (previous != null) {
-				if (current.next != null) {
-					if (current.child != null) {
-						current.next(current.child);
-					}
-					previous.next = current.next;
-				} else {
-					previous.next = current.child;
+				queue = grown;
+				depths = grownDepths;
+				head = 0;
+			}
+			final int tail = (head + queued) % queue.length;
+			queue[tail] = node;
+			depths[tail] = nodeDepth;
+			queued++;
+		}
+	
+	}
+	
+	/**
+	 * Traverses, in preorder, an optional head node followed by a range of
+	 * siblings and their subtrees. Splitting divides the range of siblings
+	 * in half, or, when it holds a single subtree, descends into it so that
+	 * its root becomes the head and its children the range. Size estimates
+	 * are halved with each split and are exact only before the first.
+	 */
+	private class NodeSpliterator implements Spliterator<HierarchicalTree.Node<K, V>> {
+		
+		private Node head;
+		private Node from;
+		private Node to;
+		private long estimate;
+		private boolean exact;
+		private Deque<Node> stack;
+		
+		NodeSpliterator(final Node head, final Node from, final Node to, final long estimate, final boolean exact) {
+			this.head = head;
+			this.from = from;
+			this.to = to;
+			this.estimate = estimate;
+			this.exact = exact;
+		}
+		
+		@Override
+		public boolean tryAdvance(final Consumer<? super HierarchicalTree.Node<K, V>> action) {
+			if (action == null) throw new NullPointerException("Null action");
+			if (head != null) {
+				final Node node = head;
+				head = null;
+				return accept(node, action);
+			}
+			final Node node;
+			if (stack != null && !stack.isEmpty()) {
+				node = stack.pop();
+				if (node.next != null) {
+					stack.push(node.next);
+				}
+			} else if (from != null && from != to) {
+				node = from;
+				from = from.next;
+			} else {
+				estimate = 0;
+				return false;
+			}
+			if (node.child != null) {
+				if (stack == null) {
+					stack = new ArrayDeque<>();
+				}
+				stack.push(node.child);
+			}
+			return accept(node, action);
+		}
+		
+		private boolean accept(final Node node, final Consumer<? super HierarchicalTree.Node<K, V>> action) {
+			if (estimate > 0) {
+				estimate--;
+			}
+			action.accept(node);
+			return true;
+		}
+		
+		@Override
+		public Spliterator<HierarchicalTree.Node<K, V>> trySplit() {
+			if (stack != null && !stack.isEmpty()) return null;
+			if (from == null || from == to) return null;
+			if (head == null && from.next == to) {
+				if (from.child == null) return null;
+				head = from;
+				from = from.child;
+				to = null;
+			}
+			Node middle = from;
+			if (from.next != to) {
+				Node fast = from.next;
+				while (fast != to && fast.next != to) {
+					middle = middle.next;
+					fast = fast.next.next;
 				}
-				current = null;
+				middle = middle.next;
 			}
-			size--;
+			final long half = estimate >>> 1;
+			final NodeSpliterator prefix = new NodeSpliterator(head, from, middle, half, false);
+			head = null;
+			from = middle;
+			estimate -= half;
+			exact = false;
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return estimate;
+		}
+		
+		@Override
+		public int characteristics() {
+			final int characteristics = ORDERED | DISTINCT | NONNULL;
+			return exact ? characteristics | SIZED : characteristics;
 		}
+	
+	}
+	
+	/**
+	 * Resolves a range of a batch of keys, dividing it in half until each
+	 * part is small enough to resolve in one shared descent of its own.
+	 */
+	private class BatchTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final K[] keys;
+		private final int from;
+		private final int to;
+		private final Node[] nodes;
+		private final int partition;
 		
+		BatchTask(final K[] keys, final int from, final int to, final Node[] nodes, final int partition) {
+			this.keys = keys;
+			this.from = from;
+			this.to = to;
+			this.nodes = nodes;
+			this.partition = partition;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= partition) {
+				findNearestNodes(keys, from, to, nodes);
+			} else {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new BatchTask(keys, from, middle, nodes, partition), new BatchTask(keys, middle, to, nodes, partition));
+			}
+		}
+	
 	}
-
+	
+	private static final int INITIAL_PATH_CAPACITY = 16;
+	private static final int MINIMUM_BATCH_PARTITION = 8192;
+	
 	private final ToBooleanBiFunction<K, K> isAncestorFunction;
+	private final Map<K, Node> index;
+	private final Probe probe;
 	
 	private Node root;
 	private int size;
+	private Owner<K, V> owner = new Owner<>(this);
+	
+	private List<TreeChangeListener<K, V>> listeners = Collections.emptyList();
+	private List<TreeChange<K, V>> changes;
 	
 	public LinkedHierarchicalTree(final ToBooleanBiFunction<K, K> isAncestorFunction) {
-		this.isAncestorFunction = isAncestorFunction;
+		this(isAncestorFunction, false);
+	}
+	
+	/**
+	 * Creates a tree which optionally maintains a hash index of its keys,
+	 * trading memory for exact lookups that never call the ancestor function.
+	 * 
+	 * @param isAncestorFunction returns true if the first key is an ancestor of the second
+	 * @param indexed whether to maintain a key to node hash index
+	 */
+	public LinkedHierarchicalTree(final ToBooleanBiFunction<K, K> isAncestorFunction, final boolean indexed) {
+		this(isAncestorFunction, indexed, null);
+	}
+	
+	/**
+	 * Creates a tree which optionally reports the cost of each operation.
+	 * Without metrics, the ancestor function is called directly and no
+	 * measurement takes place. With metrics, threads reading the tree at once
+	 * are measured separately, and the metrics are called from each of them.
+	 * 
+	 * @param isAncestorFunction returns true if the first key is an ancestor of the second
+	 * @param indexed whether to maintain a key to node hash index
+	 * @param metrics receives a measurement of each operation, or null
+	 */
+	public LinkedHierarchicalTree(final ToBooleanBiFunction<K, K> isAncestorFunction, final boolean indexed, final TreeMetrics metrics) {
+		this.probe = (metrics == null) ? null : new Probe(isAncestorFunction, metrics);
+		this.isAncestorFunction = (probe == null) ? isAncestorFunction : probe;
+		this.index = indexed ? new HashMap<>() : null;
 	}
 	
 	@Override
 	public int size() {
 		return size;
 	}
-
+	
 	@Override
 	public boolean isEmpty() {
 		return size == 0;
 	}
-
+	
+	/**
+	 * Registers a listener to receive the changes made by each subsequent
+	 * mutation. While any listener is registered, mutations record what they
+	 * change, and setting the value of a node looks it up to check that it
+	 * is still in this tree.
+	 */
+	public void addChangeListener(final TreeChangeListener<K, V> listener) {
+		if (listener == null) throw new IllegalArgumentException("Null listener");
+		final List<TreeChangeListener<K, V>> added = new ArrayList<>(listeners);
+		added.add(listener);
+		listeners = added;
+		if (changes == null) {
+			changes = new ArrayList<>();
+		}
+	}
+	
+	/**
+	 * Unregisters a listener, which may be done from within the listener.
+	 * 
+	 * @return true if the listener was registered
+	 */
+	public boolean removeChangeListener(final TreeChangeListener<K, V> listener) {
+		final List<TreeChangeListener<K, V>> remaining = new ArrayList<>(listeners);
+		if (!remaining.remove(listener)) return false;
+		if (remaining.isEmpty()) {
+			listeners = Collections.emptyList();
+			changes = null;
+		} else {
+			listeners = remaining;
+		}
+		return true;
+	}
+	
+	private void change(final TreeChange.Type type, final Node node, final V previousValue, final Node parent, final boolean subtree) {
+		changes.add(new TreeChange<>(type, node.key, node.value, previousValue, (parent == null) ? null : parent.key, subtree));
+	}
+	
+	/**
+	 * Passes the changes recorded by the current mutation to the listeners
+	 * as a single batch.
+	 */
+	private void dispatch() {
+		if (changes == null || changes.isEmpty()) return;
+		final List<TreeChange<K, V>> batch = Collections.unmodifiableList(new ArrayList<>(changes));
+		changes.clear();
+		for (final TreeChangeListener<K, V> listener : listeners) {
+			listener.changed(batch);
+		}
+	}
+	
 	@Override
 	public void clear() {
+		if (changes != null) {
+			for (Node node = root; node != null; node = node.next) {
+				change(TreeChange.Type.REMOVED, node, null, null, true);
+			}
+		}
 		root = null;
 		size = 0;
+		if (index != null) {
+			index.clear();
+		}
+		dispatch();
+	}
+	
+	private Node createNode(final K key, final V value) {
+		final Node node = new Node(key, value);
+		if (index != null) {
+			index.put(key, node);
+		}
+		return node;
 	}
 	
 	@Override
 	public Optional<V> put(K key, V value) {
 		if (key == null) throw new IllegalArgumentException("Null key");
 		if (value == null) throw new IllegalArgumentException("Null value");
-		if (root == null) {
-			root = new Node(key, value);
-			size++;
+		final int previousSize = size;
+		final Node node = insert(null, key, value);
+		if (size != previousSize) {
+			dispatch();
 			return Optional.empty();
 		}
-		if (root.key.equals(key)) {
-			V replaced = root.value;
-			root.value = value;
-			return Optional.of(replaced);
+		final V replaced = node.value;
+		node.value = value;
+		if (changes != null) {
+			change(TreeChange.Type.REPLACED, node, replaced, null, false);
+			dispatch();
 		}
-		if (isAncestorFunction.apply(root.key, key)) {
-			return putChild(key, value, root);
+		return Optional.of(replaced);
+	}
+	
+	@Override
+	public boolean putIfNotPresent(K key, V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		final int previousSize = size;
+		insert(null, key, value);
+		dispatch();
+		return size != previousSize;
+	}
+	
+	/**
+	 * Puts every entry of the given map. Each key is inserted beneath the
+	 * deepest of the previously put keys which is its ancestor, so entries
+	 * in hierarchical order are not walked down from the root. Each insert
+	 * still checks the existing children of that ancestor for keys which
+	 * descend from the new one, so wide input costs as much as putting the
+	 * entries one by one; {@link #build} links wide input without scanning.
+	 */
+	@Override
+	public void putAll(final Map<? extends K, ? extends V> map) {
+		try {
+			putEntries(map.entrySet());
+		} finally {
+			dispatch();
 		}
-		if (isAncestorFunction.apply(key, root.key)) {
-			final Node newRoot = new Node(key, value);
-			newRoot.child = root;
-			newRoot.next = root.next;
-			root.next = null;
-			root = newRoot;
-			if (root.next != null) {
-				root.next.reparent(root);
+	}
+	
+	private void putEntries(final Iterable<? extends Map.Entry<? extends K, ? extends V>> entries) {
+		final Deque<Node> path = new ArrayDeque<>();
+		for (final Map.Entry<? extends K, ? extends V> entry : entries) {
+			final K key = entry.getKey();
+			final V value = entry.getValue();
+			if (key == null) throw new IllegalArgumentException("Null key");
+			if (value == null) throw new IllegalArgumentException("Null value");
+			while (!path.isEmpty() && !isAncestorFunction.apply(path.peek().key, key)) {
+				path.pop();
 			}
-			size++;
-			return Optional.empty();
+			final int previousSize = size;
+			final Node node = insert(path.peek(), key, value);
+			if (size == previousSize) {
+				final V replaced = node.value;
+				node.value = value;
+				if (changes != null) {
+					change(TreeChange.Type.REPLACED, node, replaced, null, false);
+				}
+			}
+			path.push(node);
 		}
-		return putNext(key, value, root);
 	}
 	
-	private Optional<V> putChild(final K key, final V value, final Node node) {
-		if (node.child == null) {
-			node.child = new Node(key, value);
+	/**
+	 * Builds a tree from entries in hierarchical order, linking each one
+	 * without scanning its siblings. Each key must follow its ancestors, the
+	 * keys of each subtree must be contiguous, and no key may be repeated, as
+	 * when iterating another hierarchical tree.
+	 * <p>
+	 * Since siblings are not scanned, each key is checked only against the
+	 * path to the previous entry, which ends with the sibling it follows. A
+	 * key which repeats or descends from a subtree closed before that one, as
+	 * in {@code a, b, a/c}, is not detected, and builds a tree in which the
+	 * key cannot be found.
+	 * 
+	 * @param entries the entries in hierarchical order
+	 * @param isAncestorFunction returns true if the first key is an ancestor of the second
+	 * @throws IllegalArgumentException if an entry repeats or is an ancestor of an entry on the path to the previous one
+	 */
+	public static <K, V> LinkedHierarchicalTree<K, V> build(final Iterable<? extends Map.Entry<? extends K, ? extends V>> entries, final ToBooleanBiFunction<K, K> isAncestorFunction) {
+		final LinkedHierarchicalTree<K, V> tree = new LinkedHierarchicalTree<>(isAncestorFunction);
+		tree.append(entries);
+		return tree;
+	}
+	
+	/**
+	 * Appends entries in hierarchical order to this empty tree, keeping the
+	 * path to the last appended node so that each new node is linked after
+	 * the last child of its parent.
+	 */
+	private void append(final Iterable<? extends Map.Entry<? extends K, ? extends V>> entries) {
+		final Deque<Node> path = new ArrayDeque<>();
+		Node lastRoot = null;
+		for (final Map.Entry<? extends K, ? extends V> entry : entries) {
+			final K key = entry.getKey();
+			final V value = entry.getValue();
+			if (key == null) throw new IllegalArgumentException("Null key");
+			if (value == null) throw new IllegalArgumentException("Null value");
+			while (!path.isEmpty() && !isAncestorFunction.apply(path.peek().key, key)) {
+				final Node closed = path.pop();
+				if (closed.key.equals(key) || isAncestorFunction.apply(key, closed.key)) {
+					throw new IllegalArgumentException("Entries out of order");
+				}
+			}
+			final Node parent = path.peek();
+			final Node node = createNode(key, value);
+			if (parent == null) {
+				link(null, lastRoot, node);
+				lastRoot = node;
+			} else {
+				link(parent, parent.lastChild, node);
+				parent.lastChild = node;
+			}
 			size++;
-			return Optional.empty();
-		}
-		if (node.child.key.equals(key)) {
-			final V replaced = node.child.value;
-			node.child.value = value;
-			return Optional.of(replaced);
-		}
-		if (isAncestorFunction.apply(node.child.key, key)) {
-			return putChild(key, value, node.child);
+			path.push(node);
 		}
-		if (isAncestorFunction.apply(key, node.child.key)) {
-			final Node newChild = new Node(key, value);
-			newChild.child = node.child;
-			newChild.next = node.child.next;
-			node.child.next = null;
-			node.child = newChild;
-			if (newChild.next != null) {
-				newChild.next.reparent(newChild);
+	}
+	
+	/**
+	 * Builds a tree from nodes laid out in preorder, given the index which
+	 * follows the subtree of each one, as in a frozen tree. Each node is
+	 * linked after the last child of the innermost open subtree containing
+	 * it, so the ancestor function is never called.
+	 *
+	 * @throws IllegalArgumentException if a subtree extends beyond its parent's
+	 */
+	static <K, V> LinkedHierarchicalTree<K, V> fromPreorder(final ToBooleanBiFunction<K, K> isAncestorFunction, final int size, final IntFunction<K> keys, final IntFunction<V> values, final IntUnaryOperator ends) {
+		final LinkedHierarchicalTree<K, V> tree = new LinkedHierarchicalTree<>(isAncestorFunction);
+		tree.linkPreorder(size, keys, values, ends);
+		return tree;
+	}
+	
+	private void linkPreorder(final int count, final IntFunction<K> keys, final IntFunction<V> values, final IntUnaryOperator ends) {
+		Node[] open = newNodeArray(INITIAL_PATH_CAPACITY);
+		int[] openEnds = new int[INITIAL_PATH_CAPACITY];
+		int depth = 0;
+		Node lastRoot = null;
+		for (int index = 0; index < count; index++) {
+			while (depth > 0 && openEnds[depth - 1] <= index) {
+				depth--;
+			}
+			final int end = ends.applyAsInt(index);
+			if (end <= index || end > ((depth == 0) ? count : openEnds[depth - 1])) {
+				throw new IllegalArgumentException("Entries out of order");
+			}
+			final K key = keys.apply(index);
+			final V value = values.apply(index);
+			if (key == null) throw new IllegalArgumentException("Null key");
+			if (value == null) throw new IllegalArgumentException("Null value");
+			final Node node = createNode(key, value);
+			if (depth == 0) {
+				link(null, lastRoot, node);
+				lastRoot = node;
+			} else {
+				final Node parent = open[depth - 1];
+				link(parent, parent.lastChild, node);
+				parent.lastChild = node;
+			}
+			if (end > index + 1) {
+				if (depth == open.length) {
+					open = Arrays.copyOf(open, depth * 2);
+					openEnds = Arrays.copyOf(openEnds, depth * 2);
+				}
+				open[depth] = node;
+				openEnds[depth++] = end;
 			}
-			size++;
-			return Optional.empty();
 		}
-		return putNext(key, value, node.child);
+		size = count;
 	}
 	
-	private Optional<V> putNext(final K key, final V value, final Node node) {
-		if (node.next == null) {
-			node.next = new Node(key, value);
-			size++;
-			return Optional.empty();
+	/**
+	 * Inserts a new node beneath the given ancestor, or anywhere in the tree
+	 * if it is null, unless one is already present for the key.
+	 * 
+	 * @return the node for the key, which is new if the size has grown
+	 */
+	private Node insert(final Node ancestor, final K key, final V value) {
+		if (probe == null) return insertNode(ancestor, key, value);
+		final long start = probe.start(key);
+		final int previousSize = size;
+		final Node node = insertNode(ancestor, key, value);
+		probe.finish(TreeMetrics.Operation.PUT, size == previousSize, start);
+		return node;
+	}
+	
+	private Node insertNode(final Node ancestor, final K key, final V value) {
+		if (index != null) {
+			final Node existing = index.get(key);
+			if (existing != null) {
+				return existing;
+			}
 		}
-		if (node.next.key.equals(key)) {
-			final V replaced = node.next.value;
-			node.next.value = value;
-			return Optional.of(replaced);
+		Node parent = ancestor;
+		Node previous = null;
+		Node node = slot(parent, null);
+		while (node != null) {
+			if (node.key.equals(key)) {
+				return node;
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				parent = node;
+				previous = null;
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				final Node inserted = createNode(key, value);
+				link(parent, previous, inserted);
+				inserted.child = node;
+				inserted.lastChild = node;
+				if (changes != null) {
+					change(TreeChange.Type.INSERTED, inserted, null, parent, false);
+					change(TreeChange.Type.REPARENTED, node, null, inserted, false);
+				}
+				inserted.next = node.next;
+				node.next = null;
+				if (inserted.next != null) {
+					last(parent, adopt(inserted));
+				} else {
+					last(parent, inserted);
+				}
+				size++;
+				return inserted;
+			} else {
+				previous = node;
+				node = node.next;
+			}
 		}
-		if (isAncestorFunction.apply(node.next.key, key)) {
-			return putChild(key, value, node.next);
+		final Node inserted = createNode(key, value);
+		link(parent, previous, inserted);
+		last(parent, inserted);
+		size++;
+		if (changes != null) {
+			change(TreeChange.Type.INSERTED, inserted, null, parent, false);
 		}
-		if (isAncestorFunction.apply(key, node.next.key)) {
-			final Node newNext = new Node(key, value);
-			newNext.child = node.next;
-			newNext.next = node.next.next;
-			node.next.next = null;
-			node.next = newNext;
-			if (newNext.next != null) {
-				newNext.next.reparent(newNext);
+		return inserted;
+	}
+	
+	/**
+	 * Moves the siblings following a newly inserted node beneath it if they
+	 * descend from it.
+	 * 
+	 * @return the last of the node's following siblings, or the node itself
+	 */
+	private Node adopt(final Node inserted) {
+		if (probe == null) return reparent(inserted.next, inserted);
+		final long start = System.nanoTime();
+		final int calls = probe.calls();
+		final Node last = reparent(inserted.next, inserted);
+		final int scanned = probe.calls() - calls;
+		probe.metrics.record(TreeMetrics.Operation.REPARENT, scanned, scanned, scanned, System.nanoTime() - start);
+		return last;
+	}
+	
+	/**
+	 * Moves the given node and its following siblings under the given parent
+	 * if they descend from it, keeping the others as its following siblings.
+	 * 
+	 * @return the last of the parent's following siblings, or the parent itself
+	 */
+	private Node reparent(final Node first, final Node parent) {
+		Node lastNext = parent;
+		Node node = first;
+		while (node != null) {
+			final Node following = node.next;
+			node.next = null;
+			if (isAncestorFunction.apply(parent.key, node.key)) {
+				parent.lastChild.next = node;
+				parent.lastChild = node;
+				if (changes != null) {
+					change(TreeChange.Type.REPARENTED, node, null, parent, false);
+				}
+			} else {
+				lastNext.next = node;
+				lastNext = node;
 			}
-			size++;
-			return Optional.empty();
+			node = following;
 		}
-		return putNext(key, value, node.next);
+		lastNext.next = null;
+		return lastNext;
 	}
 	
 	@Override
-	public boolean putIfNotPresent(K key, V value) {
+	public Optional<V> remove(final K key) {
+		final Optional<V> removed;
+		if (probe == null) {
+			removed = removeNode(key);
+		} else {
+			final long start = probe.start(key);
+			removed = removeNode(key);
+			probe.finish(TreeMetrics.Operation.REMOVE, removed.isPresent(), start);
+		}
+		dispatch();
+		return removed;
+	}
+	
+	private Optional<V> removeNode(final K key) {
 		if (key == null) throw new IllegalArgumentException("Null key");
-		if (value == null) throw new IllegalArgumentException("Null value");
-		if (root == null) {
-			root = new Node(key, value);
-			size++;
-			return true;
+		if (index != null && !index.containsKey(key)) {
+			return Optional.empty();
 		}
-		if (root.key.equals(key)) {
-			return false;
+		Node parent = null;
+		Node previous = null;
+		Node node = root;
+		while (node != null) {
+			if (node.key.equals(key)) {
+				unlink(parent, previous, node);
+				return Optional.of(node.value);
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				parent = node;
+				previous = null;
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				return Optional.empty();
+			} else {
+				previous = node;
+				node = node.next;
+			}
 		}
-		if (isAncestorFunction.apply(root.key, key)) {
-			return putChildIfNotPresent(key, value, root);
+		return Optional.empty();
+	}
+	
+	/**
+	 * Removes the node for the given key together with its descendants in a
+	 * single splice. The removed nodes are moved into the returned tree
+	 * rather than copied, and counted once to adjust the sizes of both trees.
+	 */
+	@Override
+	public LinkedHierarchicalTree<K, V> removeSubtree(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final LinkedHierarchicalTree<K, V> detached = new LinkedHierarchicalTree<>(function(), index != null);
+		if (index != null && !index.containsKey(key)) {
+			return detached;
 		}
-		if (isAncestorFunction.apply(key, root.key)) {
-			final Node newRoot = new Node(key, value);
-			newRoot.child = root;
-			newRoot.next = root.next;
-			root.next = null;
-			root = newRoot;
-			if (root.next != null) {
-				root.next.reparent(root);
+		Node parent = null;
+		Node previous = null;
+		Node node = root;
+		while (node != null) {
+			if (node.key.equals(key)) {
+				link(parent, previous, node.next);
+				if (node.next == null) {
+					last(parent, previous);
+				}
+				node.next = null;
+				detached.root = node;
+				detached.size = detached.reindex(node, index);
+				size -= detached.size;
+				if (changes != null) {
+					change(TreeChange.Type.REMOVED, node, null, parent, true);
+					dispatch();
+				}
+				return detached;
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				parent = node;
+				previous = null;
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				return detached;
+			} else {
+				previous = node;
+				node = node.next;
 			}
-			size++;
-			return true;
 		}
-		return putNextIfNotPresent(key, value, root);
+		return detached;
 	}
 	
-	private boolean putChildIfNotPresent(final K key, final V value, final Node node) {
-		if (node.child == null) {
-			node.child = new Node(key, value);
-			size++;
-			return true;
+	/**
+	 * Moves every entry of the given tree into this one. A linked tree with
+	 * a single root, none of whose keys are present here, is spliced in
+	 * beneath the nearest ancestor of its root without visiting its other
+	 * nodes, unless this tree is indexed. Any other tree is put entry by
+	 * entry. A linked tree must have been arranged by the same ancestor
+	 * function as this one.
+	 */
+	@Override
+	public void graft(final HierarchicalTree<K, V> subtree) {
+		if (subtree == null) throw new IllegalArgumentException("Null tree");
+		if (subtree == this) throw new IllegalArgumentException("Graft onto itself");
+		if (subtree instanceof LinkedHierarchicalTree) {
+			final LinkedHierarchicalTree<K, V> linked = (LinkedHierarchicalTree<K, V>) subtree;
+			if (linked.root != null && linked.root.next == null && splice(linked.root, linked.size)) {
+				if (index != null) {
+					reindex(linked.root, linked.index);
+				} else {
+					linked.owner.forwardTo(owner);
+					linked.owner = new Owner<>(linked);
+				}
+				linked.clear();
+				dispatch();
+				return;
+			}
 		}
-		if (node.child.key.equals(key)) {
-			return false;
+		try {
+			putEntries(subtree);
+		} finally {
+			dispatch();
+		}
+		subtree.clear();
+	}
+	
+	/**
+	 * Links the given detached node into the empty slot where its key
+	 * belongs, unless its key is present or has descendants in this tree.
+	 * 
+	 * @return true if the node was linked
+	 */
+	private boolean splice(final Node top, final int count) {
+		final K key = top.key;
+		Node parent = null;
+		Node previous = null;
+		Node node = root;
+		while (node != null) {
+			if (node.key.equals(key)) {
+				return false;
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				parent = node;
+				previous = null;
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				return false;
+			} else {
+				previous = node;
+				node = node.next;
+			}
 		}
-		if (isAncestorFunction.apply(node.child.key, key)) {
-			return putChildIfNotPresent(key, value, node.child);
+		link(parent, previous, top);
+		last(parent, top);
+		size += count;
+		if (changes != null) {
+			change(TreeChange.Type.INSERTED, top, null, parent, true);
 		}
-		if (isAncestorFunction.apply(key, node.child.key)) {
-			final Node newChild = new Node(key, value);
-			newChild.child = node.child;
-			newChild.next = node.child.next;
-			node.child.next = null;
-			node.child = newChild;
-			if (newChild.next != null) {
-				newChild.next.reparent(newChild);
+		return true;
+	}
+	
+	/**
+	 * Moves the index entries of the given subtree from another index into
+	 * this tree's index, where either may be absent, and makes this tree the
+	 * owner of its nodes.
+	 * 
+	 * @return the number of nodes in the subtree
+	 */
+	private int reindex(final Node top, final Map<K, Node> from) {
+		int count = 0;
+		final Deque<Node> pending = new ArrayDeque<>();
+		pending.push(top);
+		while (!pending.isEmpty()) {
+			final Node node = pending.pop();
+			count++;
+			node.owner = owner;
+			if (from != null) {
+				from.remove(node.key);
+			}
+			if (index != null) {
+				index.put(node.key, node);
+			}
+			for (Node child = node.child; child != null; child = child.next) {
+				pending.push(child);
 			}
-			size++;
-			return true;
 		}
-		return putNextIfNotPresent(key, value, node.child);
+		return count;
 	}
 	
-	private boolean putNextIfNotPresent(final K key, final V value, final Node node) {
-		if (node.next == null) {
-			node.next = new Node(key, value);
-			size++;
-			return true;
+	/**
+	 * Returns the ancestor function this tree was created with.
+	 */
+	private ToBooleanBiFunction<K, K> function() {
+		return (probe == null) ? isAncestorFunction : probe.function;
+	}
+	
+	/**
+	 * Returns the node in the slot identified by a parent and previous sibling,
+	 * either of which may be null.
+	 */
+	private Node slot(final Node parent, final Node previous) {
+		if (previous != null) return previous.next;
+		if (parent != null) return parent.child;
+		return root;
+	}
+	
+	private void link(final Node parent, final Node previous, final Node node) {
+		if (previous != null) {
+			previous.next = node;
+		} else if (parent != null) {
+			parent.child = node;
+		} else {
+			root = node;
 		}
-		if (node.next.key.equals(key)) {
-			return false;
+	}
+	
+	private void last(final Node parent, final Node node) {
+		if (parent != null) {
+			parent.lastChild = node;
 		}
-		if (isAncestorFunction.apply(node.next.key, key)) {
-			return putChildIfNotPresent(key, value, node.next);
+	}
+	
+	/**
+	 * Removes a node, splicing its children into its place among its siblings.
+	 */
+	private void unlink(final Node parent, final Node previous, final Node node) {
+		if (changes != null) {
+			change(TreeChange.Type.REMOVED, node, null, parent, false);
+			for (Node child = node.child; child != null; child = (child == node.lastChild) ? null : child.next) {
+				change(TreeChange.Type.REPARENTED, child, null, parent, false);
+			}
 		}
-		if (isAncestorFunction.apply(key, node.next.key)) {
-			final Node newNext = new Node(key, value);
-			newNext.child = node.next;
-			newNext.next = node.next.next;
-			node.next.next = null;
-			node.next = newNext;
-			if (newNext.next != null) {
-				newNext.next.reparent(newNext);
+		if (node.child != null) {
+			link(parent, previous, node.child);
+			node.lastChild.next = node.next;
+			if (node.next == null) {
+				last(parent, node.lastChild);
 			}
-			size++;
-			return true;
+		} else {
+			link(parent, previous, node.next);
+			if (node.next == null) {
+				last(parent, previous);
+			}
+		}
+		if (index != null) {
+			index.remove(node.key);
 		}
-		return putNextIfNotPresent(key, value, node.next);
+		size--;
 	}
 	
 	@Override
-	public Optional<V> remove(final K key) {
+	public Optional<HierarchicalTree.Node<K, V>> get(final K key) {
+		return Optional.ofNullable(getNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNode(final K key) {
+		if (probe == null) return findNode(key);
+		final long start = probe.start(key);
+		final Node node = findNode(key);
+		probe.finish(TreeMetrics.Operation.GET, node != null, start);
+		return node;
+	}
+	
+	private Node findNode(final K key) {
 		if (key == null) throw new IllegalArgumentException("Null key");
-		if (root == null) {
-			return Optional.empty();
-		}
-		if (root.key.equals(key)) {
-			final V removed = root.value;
-			if (root.next != null) {
-				if (root.child != null) {
-					root.next.next(root.child);
-				}
-				root = root.next;
+		if (index != null) return index.get(key);
+		Node node = root;
+		while (node != null) {
+			if (node.key.equals(key)) return node;
+			if (isAncestorFunction.apply(node.key, key)) {
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				return null;
 			} else {
-				root = root.child;
+				node = node.next;
 			}
-			size--;
-			return Optional.of(removed);
-		}
-		if (isAncestorFunction.apply(root.key, key)) {
-			return removeChild(key, root);
-		}
-		if (isAncestorFunction.apply(key, root.key)) {
-			return Optional.empty();
 		}
-		return removeNext(key, root);
+		return null;
 	}
 	
-	private Optional<V> removeChild(final K key, final Node node) {
-		if (node.child == null) {
-			return Optional.empty();
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> getNearest(final K key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNearestNode(final K key) {
+		if (probe == null) return findNearestNode(key);
+		final long start = probe.start(key);
+		final Node node = findNearestNode(key);
+		probe.finish(TreeMetrics.Operation.GET_NEAREST, node != null && node.key.equals(key), start);
+		return node;
+	}
+	
+	private Node findNearestNode(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (index != null) {
+			final Node node = index.get(key);
+			if (node != null) return node;
 		}
-		if (node.child.key.equals(key)) {
-			final V removed = node.child.value;
-			if (node.child.next != null) {
-				if (node.child.child != null) {
-					node.child.next(node.child.child);
-				}
-				node.child = node.child.next;
+		Node candidate = null;
+		Node node = root;
+		while (node != null) {
+			if (node.key.equals(key)) return node;
+			if (isAncestorFunction.apply(node.key, key)) {
+				candidate = node;
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				break;
 			} else {
-				node.child = node.child.child;
+				node = node.next;
 			}
-			size--;
-			return Optional.of(removed);
 		}
-		if (isAncestorFunction.apply(node.child.key, key)) {
-			return removeChild(key, node.child);
-		}
-		if (isAncestorFunction.apply(key, node.child.key)) {
-			return Optional.empty();
+		return candidate;
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<K, V>> ancestors(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Deque<HierarchicalTree.Node<K, V>> ancestors = new ArrayDeque<>();
+		Node node = root;
+		while (node != null) {
+			if (node.key.equals(key)) {
+				ancestors.addLast(node);
+				break;
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				ancestors.addLast(node);
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				break;
+			} else {
+				node = node.next;
+			}
 		}
-		return removeNext(key, node.child);
+		return ancestors;
 	}
 	
-	private Optional<V> removeNext(final K key, final Node node) {
-		if (node.next == null) {
-			return Optional.empty();
+	/**
+	 * Calls the given action for each enclosing node during a descent like
+	 * that of {@code getNearest}, without allocating.
+	 */
+	@Override
+	public void forEachAncestor(final K key, final BiConsumer<? super K, ? super V> action) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (action == null) throw new IllegalArgumentException("Null action");
+		Node node = root;
+		while (node != null) {
+			if (node.key.equals(key)) {
+				action.accept(node.key, node.value);
+				return;
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				action.accept(node.key, node.value);
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				return;
+			} else {
+				node = node.next;
+			}
 		}
-		if (node.next.key.equals(key)) {
-			final V removed = node.next.value;
-			if (node.next.next != null) {
-				if (node.next.child != null) {
-					node.next.next(node.next.child);
-				}
-				node.next = node.next.next;
+	}
+	
+	/**
+	 * Resolves the keys in one shared descent, so that each node is visited
+	 * once per batch rather than once per key.
+	 */
+	@Override
+	public List<HierarchicalTree.Node<K, V>> getNearestAll(final Collection<? extends K> keys) {
+		if (keys == null) throw new IllegalArgumentException("Null keys");
+		if (probe != null) return HierarchicalTree.super.getNearestAll(keys);
+		@SuppressWarnings("unchecked")
+		final K[] array = (K[]) keys.toArray();
+		final Node[] nodes = newNodeArray(array.length);
+		findNearestNodes(array, 0, array.length, nodes);
+		return new ArrayList<>(Arrays.asList(nodes));
+	}
+	
+	/**
+	 * Resolves the keys in one shared descent, so that each node is visited
+	 * once per batch rather than once per key.
+	 */
+	@Override
+	public int resolveBatch(final K[] keys, final V[] out) {
+		if (keys == null) throw new IllegalArgumentException("Null keys");
+		if (out == null || out.length < keys.length) throw new IllegalArgumentException("Output shorter than keys");
+		if (probe != null) return HierarchicalTree.super.resolveBatch(keys, out);
+		final Node[] nodes = newNodeArray(keys.length);
+		findNearestNodes(keys, 0, keys.length, nodes);
+		return values(nodes, out);
+	}
+	
+	/**
+	 * Resolves the keys like {@link #resolveBatch(Object[], Object[])}, but
+	 * divides large batches between the threads of the given pool. Each part
+	 * descends separately, so the batch is divided no further than the pool's
+	 * parallelism. The tree must not be modified during the call, and the
+	 * ancestor function must be safe to call from several threads at once.
+	 * With metrics, the batch is resolved on the calling thread.
+	 */
+	public int resolveBatch(final K[] keys, final V[] out, final ForkJoinPool pool) {
+		if (keys == null) throw new IllegalArgumentException("Null keys");
+		if (out == null || out.length < keys.length) throw new IllegalArgumentException("Output shorter than keys");
+		if (pool == null) throw new IllegalArgumentException("Null pool");
+		final int partition = Math.max(MINIMUM_BATCH_PARTITION, (keys.length + pool.getParallelism() - 1) / pool.getParallelism());
+		if (probe != null || keys.length <= partition) return resolveBatch(keys, out);
+		final Node[] nodes = newNodeArray(keys.length);
+		pool.invoke(new BatchTask(keys, 0, keys.length, nodes, partition));
+		return values(nodes, out);
+	}
+	
+	private int values(final Node[] nodes, final V[] out) {
+		int resolved = 0;
+		for (int i = 0; i < nodes.length; i++) {
+			if (nodes[i] == null) {
+				out[i] = null;
 			} else {
-				node.next = node.next.child;
+				out[i] = nodes[i].value;
+				resolved++;
 			}
-			size--;
-			return Optional.of(removed);
 		}
-		if (isAncestorFunction.apply(node.next.key, key)) {
-			return removeChild(key, node.next);
+		return resolved;
+	}
+	
+	/**
+	 * Stores the nearest node for each key in the given range. The positions
+	 * of the unresolved keys are partitioned level by level: scanning a child
+	 * moves the keys beneath it to the front of the range, where they descend
+	 * together while the rest go on to its next sibling. Each key makes the
+	 * same ancestor calls as {@code getNearest}, but the nodes are visited in
+	 * a single pass.
+	 */
+	private void findNearestNodes(final K[] keys, final int from, final int to, final Node[] nodes) {
+		final int[] order = new int[to - from];
+		int remaining = 0;
+		for (int i = from; i < to; i++) {
+			final K key = keys[i];
+			if (key == null) throw new IllegalArgumentException("Null key");
+			nodes[i] = (index == null) ? null : index.get(key);
+			if (nodes[i] == null) {
+				order[remaining++] = i;
+			}
 		}
-		if (isAncestorFunction.apply(key, node.next.key)) {
-			return Optional.empty();
+		if (remaining == 0) return;
+		Node[] parents = newNodeArray(INITIAL_PATH_CAPACITY);
+		Node[] cursors = newNodeArray(INITIAL_PATH_CAPACITY);
+		int[] lows = new int[INITIAL_PATH_CAPACITY];
+		int[] highs = new int[INITIAL_PATH_CAPACITY];
+		int depth = 0;
+		cursors[0] = root;
+		highs[0] = remaining;
+		while (depth >= 0) {
+			final Node parent = parents[depth];
+			final Node child = cursors[depth];
+			final int low = lows[depth];
+			int high = highs[depth];
+			if (child == null || low == high) {
+				for (int i = low; i < high; i++) {
+					nodes[order[i]] = parent;
+				}
+				parents[depth] = null;
+				depth--;
+				continue;
+			}
+			int beneath = low;
+			int i = low;
+			while (i < high) {
+				final int position = order[i];
+				final K key = keys[position];
+				if (child.key.equals(key)) {
+					nodes[position] = child;
+					order[i] = order[--high];
+				} else if (isAncestorFunction.apply(child.key, key)) {
+					order[i++] = order[beneath];
+					order[beneath++] = position;
+				} else if (isAncestorFunction.apply(key, child.key)) {
+					nodes[position] = parent;
+					order[i] = order[--high];
+				} else {
+					i++;
+				}
+			}
+			cursors[depth] = child.next;
+			lows[depth] = beneath;
+			highs[depth] = high;
+			if (beneath > low) {
+				if (++depth == parents.length) {
+					parents = Arrays.copyOf(parents, depth * 2);
+					cursors = Arrays.copyOf(cursors, depth * 2);
+					lows = Arrays.copyOf(lows, depth * 2);
+					highs = Arrays.copyOf(highs, depth * 2);
+				}
+				parents[depth] = child;
+				cursors[depth] = child.child;
+				lows[depth] = low;
+				highs[depth] = beneath;
+			}
 		}
-		return removeNext(key, node.next);
 	}
 	
-	@Override
-	public Optional<HierarchicalTree.Node<K, V>> get(final K key) {
-		if (key == null) throw new IllegalArgumentException("Null key");
-		return get(key, root);
+	/**
+	 * Returns an immutable copy of this tree laid out in preorder arrays.
+	 * Later changes to this tree do not affect the copy.
+	 */
+	@SuppressWarnings("unchecked")
+	public ImmutableHierarchicalTree<K, V> freeze() {
+		final int length = size;
+		final K[] keys = (K[]) new Object[length];
+		final V[] values = (V[]) new Object[length];
+		final int[] next = new int[length];
+		final int[] end = new int[length];
+		final int[] open = new int[length];
+		final Deque<Node> parents = new ArrayDeque<>();
+		int depth = 0;
+		int count = 0;
+		Node node = root;
+		while (node != null) {
+			final int index = count++;
+			keys[index] = node.key;
+			values[index] = node.value;
+			if (node.child != null) {
+				parents.push(node);
+				open[depth++] = index;
+				node = node.child;
+				continue;
+			}
+			end[index] = count;
+			next[index] = (node.next == null) ? -1 : count;
+			while (node.next == null && !parents.isEmpty()) {
+				node = parents.pop();
+				final int parentIndex = open[--depth];
+				end[parentIndex] = count;
+				next[parentIndex] = (node.next == null) ? -1 : count;
+			}
+			node = node.next;
+		}
+		return new ImmutableHierarchicalTree<>(function(), keys, values, next, end);
 	}
 	
-	private Optional<HierarchicalTree.Node<K, V>> get(final K key, final Node node) {
-		if (node == null) return Optional.empty();
-		if (node.key.equals(key)) return Optional.of(node);
-		if (isAncestorFunction.apply(node.key, key)) return get(key, node.child);
-		if (isAncestorFunction.apply(key, node.key)) return Optional.empty();
-		return get(key, node.next);
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Node[] newNodeArray(final int length) {
+		return (Node[]) new LinkedHierarchicalTree.Node[length];
 	}
 	
+	/**
+	 * Returns an iterator over the nodes in pre-order.
+	 */
 	@Override
-	public Optional<HierarchicalTree.Node<K, V>> getNearest(final K key) {
-		if (key == null) throw new IllegalArgumentException("Null key");
-		return getNearest(key, root, null);
+	public TreeIterator<K, V> iterator() {
+		return new PreOrderIterator();
 	}
 	
-	private Optional<HierarchicalTree.Node<K, V>> getNearest(final K key, final Node node, final Node candidate) {
-		if (node == null) return Optional.ofNullable(candidate);
-		if (node.key.equals(key)) return Optional.of(node);
-		if (isAncestorFunction.apply(node.key, key)) return getNearest(key, node.child, node);
-		if (isAncestorFunction.apply(key, node.key)) return Optional.ofNullable(candidate);
-		return getNearest(key, node.next, candidate);
+	/**
+	 * Returns an iterator over the nodes in the given order, which allocates
+	 * in proportion to the depth of the tree in either depth-first order and
+	 * to its width in breadth-first order. Removing a node through the
+	 * iterator splices its children into its place; in post-order they have
+	 * already been returned, and in the other orders they are returned next,
+	 * at the depth of the removed node.
+	 */
+	public TreeIterator<K, V> iterator(final TraversalOrder order) {
+		if (order == null) throw new IllegalArgumentException("Null order");
+		switch (order) {
+			case POST_ORDER:
+				return new PostOrderIterator();
+			case BREADTH_FIRST:
+				return new BreadthFirstIterator();
+			default:
+				return new PreOrderIterator();
+		}
 	}
 	
+	/**
+	 * Returns a spliterator over the nodes in the same order as the iterator,
+	 * which splits along sibling and child links so that parallel streams
+	 * divide the tree between threads. The tree must not be modified while
+	 * the spliterator is in use.
+	 */
 	@Override
-	public Iterator<HierarchicalTree.Node<K, V>> iterator() {
-		return new NodeIterator();
+	public Spliterator<HierarchicalTree.Node<K, V>> spliterator() {
+		return new NodeSpliterator(null, root, null, size, true);
 	}
 	
+	/**
+	 * Returns a stream of the descendants of the node for the given key, in
+	 * the same order as the iterator, or an empty stream if there is no such
+	 * key.
+	 */
+	public Stream<HierarchicalTree.Node<K, V>> descendants(final K key) {
+		final Node node = findNode(key);
+		final Node first = (node == null) ? null : node.child;
+		return StreamSupport.stream(new NodeSpliterator(null, first, null, (first == null) ? 0 : size, false), false);
+	}
+
 }
@@ -0,0 +1,611 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * A linked hierarchical tree made durable by a write-ahead log in a
+ * directory. Every mutation which changes the tree appends a fixed-width
+ * record to the log, holding the operation, the key and value encoded by
+ * the given codecs, and a checksum. Records are buffered and written with a
+ * single {@code fsync} per group: once a group of records has accumulated or
+ * a group interval has passed since the last sync, the next mutation syncs
+ * the log, and {@link #sync()} syncs it on demand. Threads which call
+ * {@code sync} together share one {@code fsync}.
+ * <p>
+ * A checkpoint starts a new log and writes a snapshot of the tree as it was
+ * at the end of the old one, after which the old log and snapshot are
+ * deleted. Opening a directory loads the newest complete snapshot and
+ * replays the logs which follow it, ignoring a torn record at the end of the
+ * last log, so the recovered tree holds every mutation made before the last
+ * sync, and possibly some made after it.
+ * <p>
+ * Like the trees it wraps, this tree is not thread-safe, except that
+ * {@code sync} may be called from any thread.
+ *
+ * @author Doug Valenta
+ */
+public class LoggedHierarchicalTree<K, V> implements HierarchicalTree<K, V>, Closeable {
+	
+	private final class Node implements HierarchicalTree.Node<K, V> {
+		
+		private final HierarchicalTree.Node<K, V> node;
+		
+		Node(final HierarchicalTree.Node<K, V> node) {
+			this.node = node;
+		}
+		
+		@Override
+		public K getKey() {
+			return node.getKey();
+		}
+		
+		@Override
+		public V getValue() {
+			return node.getValue();
+		}
+		
+		/**
+		 * Replaces the value, logging it only while the node is still in the
+		 * tree, so that setting the value of a removed node is not replayed.
+		 */
+		@Override
+		public V setValue(final V value) {
+			if (value == null) throw new IllegalArgumentException("Null value");
+			if (tree.getNode(node.getKey()) != node) {
+				return node.setValue(value);
+			}
+			encode(PUT, node.getKey(), value);
+			final V replaced = node.setValue(value);
+			publish();
+			return replaced;
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			return node.equals(other);
+		}
+		
+		@Override
+		public int hashCode() {
+			return node.hashCode();
+		}
+	
+	}
+	
+	private class NodeIterator implements Iterator<HierarchicalTree.Node<K, V>> {
+		
+		private final Iterator<HierarchicalTree.Node<K, V>> iterator = tree.iterator();
+		private HierarchicalTree.Node<K, V> current;
+		
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+		
+		@Override
+		public HierarchicalTree.Node<K, V> next() {
+			current = iterator.next();
+			return new Node(current);
+		}
+		
+		@Override
+		public void remove() {
+			if (current == null) {
+				throw new IllegalStateException("No iteration");
+			}
+			encode(REMOVE, current.getKey(), null);
+			iterator.remove();
+			publish();
+			current = null;
+		}
+	
+	}
+	
+	/**
+	 * The number of records in a group when none is given.
+	 */
+	public static final int DEFAULT_GROUP_RECORDS = 1024;
+	
+	/**
+	 * The longest time in milliseconds between syncs when no group interval
+	 * is given.
+	 */
+	public static final long DEFAULT_GROUP_MILLIS = 10;
+	
+	private static final String LOG_PREFIX = "log.";
+	private static final String CHECKPOINT_PREFIX = "checkpoint.";
+	private static final int MAGIC = 0x48544c31;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int INITIAL_BUFFER_RECORDS = 256;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte CLEAR = 3;
+	private static final byte REMOVE_SUBTREE = 4;
+	
+	private final Path directory;
+	private final ToBooleanBiFunction<K, K> isAncestorFunction;
+	private final FixedWidthCodec<K> keyCodec;
+	private final FixedWidthCodec<V> valueCodec;
+	private final int groupRecords;
+	private final long groupNanos;
+	private final long checkpointRecords;
+	private final int valueOffset;
+	private final int checksumOffset;
+	private final int recordBytes;
+	private final ByteBuffer record;
+	private final CRC32 checksum = new CRC32();
+	private final ReentrantLock bufferLock = new ReentrantLock();
+	private final ReentrantLock syncLock = new ReentrantLock();
+	
+	private LinkedHierarchicalTree<K, V> tree;
+	private FileChannel channel;
+	private long generation;
+	private ByteBuffer pending;
+	private ByteBuffer spare;
+	private long appended;
+	private volatile long durable;
+	private long lastSyncNanos = System.nanoTime();
+	private long sinceCheckpoint;
+	private long syncs;
+	private boolean closed;
+	
+	private LoggedHierarchicalTree(final Path directory, final ToBooleanBiFunction<K, K> isAncestorFunction, final FixedWidthCodec<K> keyCodec, final FixedWidthCodec<V> valueCodec, final int groupRecords, final long groupNanos, final long checkpointRecords) {
+		this.directory = directory;
+		this.isAncestorFunction = isAncestorFunction;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.groupRecords = groupRecords;
+		this.groupNanos = groupNanos;
+		this.checkpointRecords = checkpointRecords;
+		this.valueOffset = 1 + keyCodec.width();
+		this.checksumOffset = valueOffset + valueCodec.width();
+		this.recordBytes = checksumOffset + Integer.BYTES;
+		this.record = ByteBuffer.allocate(recordBytes);
+		this.pending = ByteBuffer.allocate(INITIAL_BUFFER_RECORDS * recordBytes);
+		this.spare = ByteBuffer.allocate(INITIAL_BUFFER_RECORDS * recordBytes);
+	}
+	
+	/**
+	 * Opens the tree logged in the given directory, creating it if needed,
+	 * with the default group size and interval and no automatic checkpoints.
+	 */
+	public static <K, V> LoggedHierarchicalTree<K, V> open(final Path directory, final ToBooleanBiFunction<K, K> isAncestorFunction, final FixedWidthCodec<K> keyCodec, final FixedWidthCodec<V> valueCodec) throws IOException {
+		return open(directory, isAncestorFunction, keyCodec, valueCodec, DEFAULT_GROUP_RECORDS, DEFAULT_GROUP_MILLIS, 0);
+	}
+	
+	/**
+	 * Opens the tree logged in the given directory, creating it if needed,
+	 * and recovers it from the newest snapshot and the logs which follow.
+	 *
+	 * @param groupRecords the number of records after which a mutation syncs the log
+	 * @param groupMillis the time after the last sync after which a mutation syncs the log
+	 * @param checkpointRecords the number of records after which a mutation takes a checkpoint, or zero for none
+	 * @throws IOException if the directory cannot be read, or holds files written with other codecs
+	 */
+	public static <K, V> LoggedHierarchicalTree<K, V> open(final Path directory, final ToBooleanBiFunction<K, K> isAncestorFunction, final FixedWidthCodec<K> keyCodec, final FixedWidthCodec<V> valueCodec, final int groupRecords, final long groupMillis, final long checkpointRecords) throws IOException {
+		if (directory == null) throw new IllegalArgumentException("Null directory");
+		if (isAncestorFunction == null) throw new IllegalArgumentException("Null function");
+		if (keyCodec == null || valueCodec == null) throw new IllegalArgumentException("Null codec");
+		if (groupRecords < 1 || groupMillis < 0 || checkpointRecords < 0) throw new IllegalArgumentException("Invalid policy");
+		final LoggedHierarchicalTree<K, V> logged = new LoggedHierarchicalTree<>(directory, isAncestorFunction, keyCodec, valueCodec, groupRecords, TimeUnit.MILLISECONDS.toNanos(groupMillis), checkpointRecords);
+		logged.recover();
+		return logged;
+	}
+	
+	/**
+	 * Loads the newest snapshot, replays each following log in turn, and
+	 * reopens the last for appending after its last whole record. Only files
+	 * older than the loaded snapshot are deleted, since a crash between
+	 * starting a log and writing its snapshot leaves the older logs still
+	 * needed.
+	 */
+	private void recover() throws IOException {
+		Files.createDirectories(directory);
+		final long checkpoint = newest(CHECKPOINT_PREFIX);
+		tree = (checkpoint < 0) ? new LinkedHierarchicalTree<>(isAncestorFunction) : MappedHierarchicalTree.open(path(CHECKPOINT_PREFIX, checkpoint), isAncestorFunction, keyCodec, valueCodec).toLinkedTree();
+		final List<Long> logs = generations(LOG_PREFIX);
+		long valid = -1;
+		generation = Math.max(checkpoint, 0);
+		for (final long log : logs) {
+			if (log < checkpoint) continue;
+			valid = replay(path(LOG_PREFIX, log));
+			generation = log;
+		}
+		channel = FileChannel.open(path(LOG_PREFIX, generation), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (valid < 0) {
+			writeHeader(channel);
+		} else {
+			channel.truncate(valid);
+			channel.position(valid);
+		}
+		deleteBefore(checkpoint);
+	}
+	
+	/**
+	 * Applies the whole records of a log to the tree.
+	 *
+	 * @return the length of the log up to the end of its last whole record
+	 */
+	private long replay(final Path log) throws IOException {
+		try (FileChannel input = FileChannel.open(log, StandardOpenOption.READ)) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining() && input.read(header) >= 0) {}
+			if (header.hasRemaining()) return -1;
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) throw new IOException("Not a log");
+			if (header.getInt(8) != keyCodec.width() || header.getInt(12) != valueCodec.width()) throw new IOException("Codec width mismatch");
+			final ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_RECORDS * recordBytes);
+			long valid = HEADER_BYTES;
+			while (input.read(buffer) >= 0 || buffer.position() >= recordBytes) {
+				buffer.flip();
+				while (buffer.remaining() >= recordBytes) {
+					final int offset = buffer.position();
+					checksum.reset();
+					checksum.update(buffer.array(), offset, checksumOffset);
+					if ((int) checksum.getValue() != buffer.getInt(offset + checksumOffset)) return valid;
+					apply(buffer, offset);
+					buffer.position(offset + recordBytes);
+					valid += recordBytes;
+				}
+				buffer.compact();
+			}
+			return valid;
+		}
+	}
+	
+	private void apply(final ByteBuffer buffer, final int offset) throws IOException {
+		switch (buffer.get(offset)) {
+			case PUT:
+				tree.put(keyCodec.read(buffer, offset + 1), valueCodec.read(buffer, offset + valueOffset));
+				break;
+			case REMOVE:
+				tree.remove(keyCodec.read(buffer, offset + 1));
+				break;
+			case CLEAR:
+				tree.clear();
+				break;
+			case REMOVE_SUBTREE:
+				tree.removeSubtree(keyCodec.read(buffer, offset + 1));
+				break;
+			default:
+				throw new IOException("Unknown operation");
+		}
+	}
+	
+	private void writeHeader(final FileChannel log) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC).putInt(VERSION).putInt(keyCodec.width()).putInt(valueCodec.width());
+		header.flip();
+		while (header.hasRemaining()) {
+			log.write(header);
+		}
+		log.force(true);
+	}
+	
+	private Path path(final String prefix, final long number) {
+		return directory.resolve(prefix + number);
+	}
+	
+	/**
+	 * Returns the numbers of the files in the directory with the given
+	 * prefix, in ascending order.
+	 */
+	private List<Long> generations(final String prefix) throws IOException {
+		final List<Long> numbers = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+			for (final Path file : files) {
+				final String suffix = file.getFileName().toString().substring(prefix.length());
+				if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+					numbers.add(Long.parseLong(suffix));
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+	
+	private long newest(final String prefix) throws IOException {
+		final List<Long> numbers = generations(prefix);
+		return numbers.isEmpty() ? -1 : numbers.get(numbers.size() - 1);
+	}
+	
+	private void deleteBefore(final long number) throws IOException {
+		for (final String prefix : Arrays.asList(LOG_PREFIX, CHECKPOINT_PREFIX)) {
+			for (final long older : generations(prefix)) {
+				if (older < number) {
+					Files.deleteIfExists(path(prefix, older));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Encodes a record into the record buffer without publishing it, so
+	 * that a key or value the codecs reject fails before the tree changes.
+	 */
+	private void encode(final byte operation, final K key, final V value) {
+		if (closed) throw new IllegalStateException("Closed");
+		final byte[] bytes = record.array();
+		Arrays.fill(bytes, (byte) 0);
+		bytes[0] = operation;
+		if (key != null) {
+			keyCodec.write(record, 1, key);
+		}
+		if (value != null) {
+			valueCodec.write(record, valueOffset, value);
+		}
+		checksum.reset();
+		checksum.update(bytes, 0, checksumOffset);
+		record.putInt(checksumOffset, (int) checksum.getValue());
+	}
+	
+	/**
+	 * Appends the encoded record to the pending group, then syncs or takes a
+	 * checkpoint if one is due.
+	 */
+	private void publish() {
+		final long unsynced;
+		bufferLock.lock();
+		try {
+			if (pending.remaining() < recordBytes) {
+				final ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+				pending.flip();
+				grown.put(pending);
+				pending = grown;
+			}
+			pending.put(record.array(), 0, recordBytes);
+			appended++;
+			unsynced = appended - durable;
+		} finally {
+			bufferLock.unlock();
+		}
+		sinceCheckpoint++;
+		try {
+			if (checkpointRecords > 0 && sinceCheckpoint >= checkpointRecords) {
+				checkpoint();
+			} else if (unsynced >= groupRecords || System.nanoTime() - lastSyncNanos >= groupNanos) {
+				sync();
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Writes every record appended so far to the log and forces it to
+	 * storage. A thread which finds its records already synced by another,
+	 * while it waited, returns without syncing again.
+	 */
+	public void sync() throws IOException {
+		final long target;
+		bufferLock.lock();
+		try {
+			target = appended;
+		} finally {
+			bufferLock.unlock();
+		}
+		if (durable >= target) return;
+		syncLock.lock();
+		try {
+			if (durable >= target) return;
+			final ByteBuffer group;
+			final long sequence;
+			bufferLock.lock();
+			try {
+				group = pending;
+				pending = spare;
+				spare = group;
+				sequence = appended;
+			} finally {
+				bufferLock.unlock();
+			}
+			group.flip();
+			while (group.hasRemaining()) {
+				channel.write(group);
+			}
+			group.clear();
+			channel.force(false);
+			syncs++;
+			lastSyncNanos = System.nanoTime();
+			durable = sequence;
+		} finally {
+			syncLock.unlock();
+		}
+	}
+	
+	/**
+	 * Syncs the log, starts a new one, and writes a snapshot of the tree
+	 * which the new log follows, then deletes the old log and snapshot.
+	 */
+	public void checkpoint() throws IOException {
+		if (closed) throw new IllegalStateException("Closed");
+		sync();
+		final long next = generation + 1;
+		final FileChannel log = FileChannel.open(path(LOG_PREFIX, next), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		writeHeader(log);
+		syncLock.lock();
+		try {
+			channel.close();
+			channel = log;
+			generation = next;
+		} finally {
+			syncLock.unlock();
+		}
+		MappedHierarchicalTree.write(tree.freeze(), path(CHECKPOINT_PREFIX, next), keyCodec, valueCodec);
+		deleteBefore(next);
+		sinceCheckpoint = 0;
+	}
+	
+	/**
+	 * Syncs the log and closes it. The tree can no longer be changed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		sync();
+		closed = true;
+		channel.close();
+	}
+	
+	/**
+	 * Returns the number of times the log has been forced to storage.
+	 */
+	public long syncCount() {
+		return syncs;
+	}
+	
+	@Override
+	public int size() {
+		return tree.size();
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return tree.isEmpty();
+	}
+	
+	@Override
+	public void clear() {
+		encode(CLEAR, null, null);
+		tree.clear();
+		publish();
+	}
+	
+	@Override
+	public Optional<V> put(final K key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		encode(PUT, key, value);
+		final Optional<V> replaced = tree.put(key, value);
+		publish();
+		return replaced;
+	}
+	
+	@Override
+	public boolean putIfNotPresent(final K key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		encode(PUT, key, value);
+		if (!tree.putIfNotPresent(key, value)) return false;
+		publish();
+		return true;
+	}
+	
+	@Override
+	public Optional<V> remove(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		encode(REMOVE, key, null);
+		final Optional<V> removed = tree.remove(key);
+		if (removed.isPresent()) {
+			publish();
+		}
+		return removed;
+	}
+	
+	/**
+	 * Removes the node for the given key together with its descendants.
+	 * The returned tree is not logged.
+	 */
+	@Override
+	public HierarchicalTree<K, V> removeSubtree(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		encode(REMOVE_SUBTREE, key, null);
+		final HierarchicalTree<K, V> detached = tree.removeSubtree(key);
+		if (!detached.isEmpty()) {
+			publish();
+		}
+		return detached;
+	}
+	
+	/**
+	 * Moves every entry of the given tree into this one, logging each as a
+	 * put.
+	 */
+	@Override
+	public void graft(final HierarchicalTree<K, V> subtree) {
+		if (subtree == null) throw new IllegalArgumentException("Null tree");
+		if (subtree == this) throw new IllegalArgumentException("Graft onto itself");
+		for (final HierarchicalTree.Node<K, V> node : subtree) {
+			put(node.getKey(), node.getValue());
+		}
+		subtree.clear();
+	}
+	
+	private HierarchicalTree.Node<K, V> wrap(final HierarchicalTree.Node<K, V> node) {
+		return (node == null) ? null : new Node(node);
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> get(final K key) {
+		return Optional.ofNullable(getNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNode(final K key) {
+		return wrap(tree.getNode(key));
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> getNearest(final K key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNearestNode(final K key) {
+		return wrap(tree.getNearestNode(key));
+	}
+	
+	@Override
+	public V getValue(final K key) {
+		return tree.getValue(key);
+	}
+	
+	@Override
+	public V getNearestValue(final K key, final V defaultValue) {
+		return tree.getNearestValue(key, defaultValue);
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<K, V>> ancestors(final K key) {
+		final Deque<HierarchicalTree.Node<K, V>> ancestors = new ArrayDeque<>();
+		for (final HierarchicalTree.Node<K, V> node : tree.ancestors(key)) {
+			ancestors.addLast(new Node(node));
+		}
+		return ancestors;
+	}
+	
+	@Override
+	public void forEachAncestor(final K key, final BiConsumer<? super K, ? super V> action) {
+		tree.forEachAncestor(key, action);
+	}
+	
+	@Override
+	public Iterator<HierarchicalTree.Node<K, V>> iterator() {
+		return new NodeIterator();
+	}
+
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * A read-only hierarchical tree served from a snapshot file mapped into
+ * memory. A snapshot holds the preorder layout of a frozen tree: a header
+ * followed by one fixed-width record per node, holding the index of its next
+ * sibling or -1, the index following its subtree, and its key and value
+ * encoded by the given codecs. Opening a snapshot reads only its header, so
+ * queries can be served at once, with pages of the file read as lookups
+ * reach them, and keys and values decoded as they are compared and returned.
+ * <p>
+ * A snapshot can also be turned back into a linked tree, which links its
+ * nodes from the recorded layout without calling the ancestor function.
+ * Nodes returned by this tree do not support {@code setValue}.
+ *
+ * @author Doug Valenta
+ */
+public final class MappedHierarchicalTree<K, V> implements ReadableHierarchicalTree<K, V> {
+	
+	private final class Node implements HierarchicalTree.Node<K, V> {
+		
+		private final int index;
+		
+		Node(final int index) {
+			this.index = index;
+		}
+		
+		@Override
+		public K getKey() {
+			return key(index);
+		}
+		
+		@Override
+		public V getValue() {
+			return value(index);
+		}
+		
+		@Override
+		public V setValue(final V value) {
+			throw new UnsupportedOperationException("Immutable node");
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof Map.Entry)) {
+				return false;
+			}
+			final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return (getKey().equals(entry.getKey()) && getValue().equals(entry.getValue()));
+		}
+		
+		@Override
+		public int hashCode() {
+			return getKey().hashCode() ^ getValue().hashCode();
+		}
+	
+	}
+	
+	private class NodeIterator implements Iterator<HierarchicalTree.Node<K, V>> {
+		
+		private int index;
+		
+		@Override
+		public boolean hasNext() {
+			return index < size;
+		}
+		
+		@Override
+		public HierarchicalTree.Node<K, V> next() {
+			if (index >= size) {
+				throw new NoSuchElementException("Iterator exhausted");
+			}
+			return new Node(index++);
+		}
+	
+	}
+	
+	private static final int MAGIC = 0x48545331;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 20;
+	private static final int NEXT = 0;
+	private static final int END = 4;
+	private static final int KEY = 8;
+	private static final int MAXIMUM_REGION_BYTES = 1 << 30;
+	private static final int WRITE_BUFFER_BYTES = 1 << 16;
+	
+	private final ToBooleanBiFunction<K, K> isAncestorFunction;
+	private final FixedWidthCodec<K> keyCodec;
+	private final FixedWidthCodec<V> valueCodec;
+	private final int valueOffset;
+	private final int recordBytes;
+	private final int recordsPerRegion;
+	private final ByteBuffer[] regions;
+	private final int size;
+	
+	private MappedHierarchicalTree(final ToBooleanBiFunction<K, K> isAncestorFunction, final FixedWidthCodec<K> keyCodec, final FixedWidthCodec<V> valueCodec, final int size, final ByteBuffer[] regions) {
+		this.isAncestorFunction = isAncestorFunction;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.valueOffset = KEY + keyCodec.width();
+		this.recordBytes = valueOffset + valueCodec.width();
+		this.recordsPerRegion = recordsPerRegion(recordBytes);
+		this.regions = regions;
+		this.size = size;
+	}
+	
+	private static int recordsPerRegion(final int recordBytes) {
+		return Math.max(1, MAXIMUM_REGION_BYTES / recordBytes);
+	}
+	
+	/**
+	 * Writes a snapshot of the given tree to a file, replacing it. The
+	 * snapshot is written to a temporary file beside it, forced to storage,
+	 * and then moved into place, so that the file always holds a complete
+	 * snapshot. The directory is then forced too, so that the replacement
+	 * itself survives a crash where the platform allows it.
+	 */
+	public static <K, V> void write(final ImmutableHierarchicalTree<K, V> tree, final Path file, final FixedWidthCodec<K> keyCodec, final FixedWidthCodec<V> valueCodec) throws IOException {
+		if (tree == null) throw new IllegalArgumentException("Null tree");
+		if (file == null) throw new IllegalArgumentException("Null file");
+		if (keyCodec == null || valueCodec == null) throw new IllegalArgumentException("Null codec");
+		final int valueOffset = KEY + keyCodec.width();
+		final int recordBytes = valueOffset + valueCodec.width();
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER_BYTES / recordBytes, 1) * recordBytes + HEADER_BYTES);
+		final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(keyCodec.width()).putInt(valueCodec.width()).putInt(tree.size());
+			for (int index = 0; index < tree.size(); index++) {
+				if (buffer.remaining() < recordBytes) {
+					drain(buffer, channel);
+				}
+				final int offset = buffer.position();
+				buffer.putInt(offset + NEXT, tree.nextAt(index));
+				buffer.putInt(offset + END, tree.endAt(index));
+				keyCodec.write(buffer, offset + KEY, tree.keyAt(index));
+				valueCodec.write(buffer, offset + valueOffset, tree.valueAt(index));
+				buffer.position(offset + recordBytes);
+			}
+			drain(buffer, channel);
+			channel.force(true);
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		forceDirectory(file.toAbsolutePath().getParent());
+	}
+	
+	/**
+	 * Forces the given directory to storage, so that a file just moved into it
+	 * survives a crash. Some platforms, Windows among them, cannot open a
+	 * directory, and there the move is durable only once the file system
+	 * flushes it.
+	 */
+	private static void forceDirectory(final Path directory) throws IOException {
+		final FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (final IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Writes a snapshot of the given linked tree, as a frozen copy of it.
+	 *
+	 * @see #write(ImmutableHierarchicalTree, Path, FixedWidthCodec, FixedWidthCodec)
+	 */
+	public static <K, V> void write(final LinkedHierarchicalTree<K, V> tree, final Path file, final FixedWidthCodec<K> keyCodec, final FixedWidthCodec<V> valueCodec) throws IOException {
+		if (tree == null) throw new IllegalArgumentException("Null tree");
+		write(tree.freeze(), file, keyCodec, valueCodec);
+	}
+	
+	private static void drain(final ByteBuffer buffer, final FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	/**
+	 * Maps a snapshot file written with the same codecs. The mapping
+	 * outlives the file's channel, which is closed before returning.
+	 *
+	 * @param isAncestorFunction returns true if the first key is an ancestor of the second
+	 * @throws IOException if the file cannot be read or is not such a snapshot
+	 */
+	public static <K, V> MappedHierarchicalTree<K, V> open(final Path file, final ToBooleanBiFunction<K, K> isAncestorFunction, final FixedWidthCodec<K> keyCodec, final FixedWidthCodec<V> valueCodec) throws IOException {
+		if (file == null) throw new IllegalArgumentException("Null file");
+		if (isAncestorFunction == null) throw new IllegalArgumentException("Null function");
+		if (keyCodec == null || valueCodec == null) throw new IllegalArgumentException("Null codec");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining() && channel.read(header) >= 0) {}
+			if (header.hasRemaining() || header.getInt(0) != MAGIC) throw new IOException("Not a snapshot");
+			if (header.getInt(4) != VERSION) throw new IOException("Unsupported snapshot version");
+			if (header.getInt(8) != keyCodec.width() || header.getInt(12) != valueCodec.width()) throw new IOException("Codec width mismatch");
+			final int size = header.getInt(16);
+			final int recordBytes = KEY + keyCodec.width() + valueCodec.width();
+			if (size < 0 || channel.size() != HEADER_BYTES + (long) size * recordBytes) throw new IOException("Truncated snapshot");
+			final int recordsPerRegion = recordsPerRegion(recordBytes);
+			final ByteBuffer[] regions = new ByteBuffer[(size + recordsPerRegion - 1) / recordsPerRegion];
+			for (int region = 0; region < regions.length; region++) {
+				final long records = Math.min(recordsPerRegion, size - (long) region * recordsPerRegion);
+				regions[region] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + (long) region * recordsPerRegion * recordBytes, records * recordBytes);
+			}
+			return new MappedHierarchicalTree<>(isAncestorFunction, keyCodec, valueCodec, size, regions);
+		}
+	}
+	
+	private ByteBuffer region(final int index) {
+		return regions[index / recordsPerRegion];
+	}
+	
+	private int offset(final int index) {
+		return (index % recordsPerRegion) * recordBytes;
+	}
+	
+	private int next(final int index) {
+		return region(index).getInt(offset(index) + NEXT);
+	}
+	
+	private int end(final int index) {
+		return region(index).getInt(offset(index) + END);
+	}
+	
+	private K key(final int index) {
+		return keyCodec.read(region(index), offset(index) + KEY);
+	}
+	
+	private V value(final int index) {
+		return valueCodec.read(region(index), offset(index) + valueOffset);
+	}
+	
+	/**
+	 * Returns the index of a node's first child, or -1 if it has none.
+	 */
+	private int child(final int index) {
+		return (end(index) > index + 1) ? index + 1 : -1;
+	}
+	
+	/**
+	 * Returns a linked tree holding the entries of this snapshot, linked in
+	 * their recorded layout without calling the ancestor function.
+	 *
+	 * @throws IllegalArgumentException if the recorded layout is not a tree
+	 */
+	public LinkedHierarchicalTree<K, V> toLinkedTree() {
+		return LinkedHierarchicalTree.fromPreorder(isAncestorFunction, size, this::key, this::value, this::end);
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	private int find(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		int index = (size == 0) ? -1 : 0;
+		while (index >= 0) {
+			final K nodeKey = key(index);
+			if (nodeKey.equals(key)) return index;
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				index = child(index);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				return -1;
+			} else {
+				index = next(index);
+			}
+		}
+		return -1;
+	}
+	
+	private int findNearest(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		int candidate = -1;
+		int index = (size == 0) ? -1 : 0;
+		while (index >= 0) {
+			final K nodeKey = key(index);
+			if (nodeKey.equals(key)) return index;
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				candidate = index;
+				index = child(index);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				break;
+			} else {
+				index = next(index);
+			}
+		}
+		return candidate;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> get(final K key) {
+		return Optional.ofNullable(getNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNode(final K key) {
+		final int index = find(key);
+		return (index < 0) ? null : new Node(index);
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> getNearest(final K key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNearestNode(final K key) {
+		final int index = findNearest(key);
+		return (index < 0) ? null : new Node(index);
+	}
+	
+	@Override
+	public V getValue(final K key) {
+		final int index = find(key);
+		return (index < 0) ? null : value(index);
+	}
+	
+	@Override
+	public V getNearestValue(final K key, final V defaultValue) {
+		final int index = findNearest(key);
+		return (index < 0) ? defaultValue : value(index);
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<K, V>> ancestors(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Deque<HierarchicalTree.Node<K, V>> ancestors = new ArrayDeque<>();
+		int index = (size == 0) ? -1 : 0;
+		while (index >= 0) {
+			final K nodeKey = key(index);
+			if (nodeKey.equals(key)) {
+				ancestors.addLast(new Node(index));
+				break;
+			}
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				ancestors.addLast(new Node(index));
+				index = child(index);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				break;
+			} else {
+				index = next(index);
+			}
+		}
+		return ancestors;
+	}
+	
+	@Override
+	public void forEachAncestor(final K key, final BiConsumer<? super K, ? super V> action) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (action == null) throw new IllegalArgumentException("Null action");
+		int index = (size == 0) ? -1 : 0;
+		while (index >= 0) {
+			final K nodeKey = key(index);
+			if (nodeKey.equals(key)) {
+				action.accept(nodeKey, value(index));
+				return;
+			}
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				action.accept(nodeKey, value(index));
+				index = child(index);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				return;
+			} else {
+				index = next(index);
+			}
+		}
+	}
+	
+	/**
+	 * Returns an iterator over the nodes in preorder.
+	 */
+	@Override
+	public Iterator<HierarchicalTree.Node<K, V>> iterator() {
+		return new NodeIterator();
+	}
+
+}
@@ -0,0 +1,740 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * A hierarchical tree arranged like {@link LinkedHierarchicalTree}, whose
+ * nodes are held outside the Java heap. Each node is a fixed-width slot in a
+ * page of a buffer, holding the slot numbers of its next sibling, first child
+ * and last child followed by its key and value encoded by the given codecs.
+ * Pages are direct buffers by default, or any buffers supplied by a page
+ * allocator, such as the regions of a memory-mapped file.
+ * <p>
+ * The heap holds only the table of pages, so its use does not grow with the
+ * number of entries beyond one reference per page. Keys are decoded as they
+ * are compared, so lookups allocate short-lived keys but retain nothing, and
+ * nodes returned by lookups and iterators are handles onto their slots,
+ * which remain valid until the node is removed. Removed slots are reused,
+ * and clearing the tree keeps its pages for reuse.
+ *
+ * @author Doug Valenta
+ */
+public class OffHeapHierarchicalTree<K, V> implements HierarchicalTree<K, V> {
+	
+	private final class Node implements HierarchicalTree.Node<K, V> {
+		
+		private final int slot;
+		
+		Node(final int slot) {
+			this.slot = slot;
+		}
+		
+		@Override
+		public K getKey() {
+			return key(slot);
+		}
+		
+		@Override
+		public V getValue() {
+			return value(slot);
+		}
+		
+		@Override
+		public V setValue(final V value) {
+			if (value == null) throw new IllegalArgumentException("Null value");
+			final V replaced = value(slot);
+			writeValue(slot, value);
+			return replaced;
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof Map.Entry)) {
+				return false;
+			}
+			final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return (getKey().equals(entry.getKey()) && getValue().equals(entry.getValue()));
+		}
+		
+		@Override
+		public int hashCode() {
+			return getKey().hashCode() ^ getValue().hashCode();
+		}
+	
+	}
+	
+	/**
+	 * Iterates in pre-order, keeping the slots of the ancestors of the
+	 * current node in a growable array.
+	 */
+	private final class NodeIterator implements TreeIterator<K, V> {
+		
+		private int[] path = new int[INITIAL_PATH_CAPACITY];
+		private int depth;
+		private int current = NONE;
+		private int previous = NONE;
+		
+		private int parent() {
+			return (depth == 0) ? NONE : path[depth - 1];
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (current == NONE) {
+				if (slot(parent(), previous) != NONE) return true;
+			} else if (child(current) != NONE || sibling(current) != NONE) {
+				return true;
+			}
+			for (int i = depth - 1; i >= 0; i--) {
+				if (sibling(path[i]) != NONE) return true;
+			}
+			return false;
+		}
+		
+		@Override
+		public HierarchicalTree.Node<K, V> next() {
+			return new Node(advance());
+		}
+		
+		private int advance() {
+			if (current == NONE) {
+				final int node = slot(parent(), previous);
+				if (node != NONE) {
+					current = node;
+					return current;
+				}
+			} else if (child(current) != NONE) {
+				if (depth == path.length) {
+					path = Arrays.copyOf(path, depth * 2);
+				}
+				path[depth++] = current;
+				previous = NONE;
+				current = child(current);
+				return current;
+			} else if (sibling(current) != NONE) {
+				previous = current;
+				current = sibling(current);
+				return current;
+			}
+			while (depth > 0) {
+				final int ancestor = path[--depth];
+				if (sibling(ancestor) != NONE) {
+					previous = ancestor;
+					current = sibling(ancestor);
+					return current;
+				}
+			}
+			throw new NoSuchElementException("Iterator exhausted");
+		}
+		
+		@Override
+		public int depth() {
+			if (current == NONE) {
+				throw new IllegalStateException("No iteration");
+			}
+			return depth;
+		}
+		
+		@Override
+		public void remove() {
+			if (current == NONE) {
+				throw new IllegalStateException("No iteration");
+			}
+			unlink(parent(), previous, current);
+			current = NONE;
+		}
+	
+	}
+	
+	/**
+	 * The number of bytes in each page of a tree created without a page size.
+	 */
+	public static final int DEFAULT_PAGE_BYTES = 1 << 20;
+	
+	private static final int NONE = 0;
+	private static final int NEXT = 0;
+	private static final int CHILD = 4;
+	private static final int LAST_CHILD = 8;
+	private static final int KEY = 12;
+	private static final int INITIAL_PAGE_CAPACITY = 16;
+	private static final int INITIAL_PATH_CAPACITY = 16;
+	
+	private final ToBooleanBiFunction<K, K> isAncestorFunction;
+	private final FixedWidthCodec<K> keyCodec;
+	private final FixedWidthCodec<V> valueCodec;
+	private final int pageBytes;
+	private final IntFunction<ByteBuffer> pageAllocator;
+	private final int slotBytes;
+	private final int valueOffset;
+	private final int slotsPerPage;
+	
+	private ByteBuffer[] pages = new ByteBuffer[INITIAL_PAGE_CAPACITY];
+	private int pageCount;
+	private int allocated = 1;
+	private int free = NONE;
+	private int root = NONE;
+	private int size;
+	
+	/**
+	 * Creates a tree whose pages are direct buffers of the default size.
+	 */
+	public OffHeapHierarchicalTree(final ToBooleanBiFunction<K, K> isAncestorFunction, final FixedWidthCodec<K> keyCodec, final FixedWidthCodec<V> valueCodec) {
+		this(isAncestorFunction, keyCodec, valueCodec, DEFAULT_PAGE_BYTES, page -> ByteBuffer.allocateDirect(DEFAULT_PAGE_BYTES));
+	}
+	
+	/**
+	 * Creates a tree whose pages are supplied by the given allocator, which
+	 * is called with the number of each page in turn, starting from zero, and
+	 * must return a buffer of at least the given number of bytes.
+	 *
+	 * @throws IllegalArgumentException if a page cannot hold a node
+	 */
+	public OffHeapHierarchicalTree(final ToBooleanBiFunction<K, K> isAncestorFunction, final FixedWidthCodec<K> keyCodec, final FixedWidthCodec<V> valueCodec, final int pageBytes, final IntFunction<ByteBuffer> pageAllocator) {
+		if (isAncestorFunction == null) throw new IllegalArgumentException("Null function");
+		if (keyCodec == null || valueCodec == null) throw new IllegalArgumentException("Null codec");
+		if (pageAllocator == null) throw new IllegalArgumentException("Null allocator");
+		this.isAncestorFunction = isAncestorFunction;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.pageBytes = pageBytes;
+		this.pageAllocator = pageAllocator;
+		this.valueOffset = KEY + keyCodec.width();
+		this.slotBytes = valueOffset + valueCodec.width();
+		this.slotsPerPage = pageBytes / slotBytes;
+		if (slotsPerPage == 0) throw new IllegalArgumentException("Page too small");
+	}
+	
+	/**
+	 * Creates a tree whose pages are consecutive regions of the default size
+	 * mapped from the given channel, which must be open for reading and
+	 * writing. The file grows as pages are mapped; its contents are not read,
+	 * and the tree is empty when created.
+	 */
+	public static <K, V> OffHeapHierarchicalTree<K, V> mapped(final FileChannel channel, final ToBooleanBiFunction<K, K> isAncestorFunction, final FixedWidthCodec<K> keyCodec, final FixedWidthCodec<V> valueCodec) {
+		if (channel == null) throw new IllegalArgumentException("Null channel");
+		return new OffHeapHierarchicalTree<>(isAncestorFunction, keyCodec, valueCodec, DEFAULT_PAGE_BYTES, page -> {
+			try {
+				return channel.map(FileChannel.MapMode.READ_WRITE, (long) page * DEFAULT_PAGE_BYTES, DEFAULT_PAGE_BYTES);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Removes every entry, keeping the pages to hold later entries.
+	 */
+	@Override
+	public void clear() {
+		root = NONE;
+		size = 0;
+		allocated = 1;
+		free = NONE;
+	}
+	
+	private ByteBuffer page(final int slot) {
+		return pages[slot / slotsPerPage];
+	}
+	
+	private int offset(final int slot) {
+		return (slot % slotsPerPage) * slotBytes;
+	}
+	
+	private int sibling(final int slot) {
+		return page(slot).getInt(offset(slot) + NEXT);
+	}
+	
+	private int child(final int slot) {
+		return page(slot).getInt(offset(slot) + CHILD);
+	}
+	
+	private int lastChild(final int slot) {
+		return page(slot).getInt(offset(slot) + LAST_CHILD);
+	}
+	
+	private void setSibling(final int slot, final int sibling) {
+		page(slot).putInt(offset(slot) + NEXT, sibling);
+	}
+	
+	private void setChild(final int slot, final int child) {
+		page(slot).putInt(offset(slot) + CHILD, child);
+	}
+	
+	private void setLastChild(final int slot, final int lastChild) {
+		page(slot).putInt(offset(slot) + LAST_CHILD, lastChild);
+	}
+	
+	private K key(final int slot) {
+		return keyCodec.read(page(slot), offset(slot) + KEY);
+	}
+	
+	private V value(final int slot) {
+		return valueCodec.read(page(slot), offset(slot) + valueOffset);
+	}
+	
+	private void writeValue(final int slot, final V value) {
+		valueCodec.write(page(slot), offset(slot) + valueOffset, value);
+	}
+	
+	/**
+	 * Takes a free slot, or the next unused one, mapping a new page if it
+	 * lies beyond the last.
+	 */
+	private int allocate() {
+		if (free != NONE) {
+			final int slot = free;
+			free = sibling(slot);
+			return slot;
+		}
+		if (allocated == Integer.MAX_VALUE) throw new IllegalStateException("Tree full");
+		final int slot = allocated;
+		final int page = slot / slotsPerPage;
+		if (page == pageCount) {
+			final ByteBuffer buffer = pageAllocator.apply(page);
+			if (buffer == null || buffer.capacity() < slotsPerPage * slotBytes) throw new IllegalStateException("Page too small");
+			if (pageCount == pages.length) {
+				pages = Arrays.copyOf(pages, pageCount * 2);
+			}
+			pages[pageCount++] = buffer;
+		}
+		allocated++;
+		return slot;
+	}
+	
+	private void release(final int slot) {
+		setSibling(slot, free);
+		free = slot;
+	}
+	
+	/**
+	 * Stores a new node, encoding its key and value before any links are
+	 * changed so that a value the codec rejects leaves the tree unchanged.
+	 */
+	private int createNode(final K key, final V value) {
+		final int slot = allocate();
+		try {
+			keyCodec.write(page(slot), offset(slot) + KEY, key);
+			writeValue(slot, value);
+		} catch (final RuntimeException e) {
+			release(slot);
+			throw e;
+		}
+		setSibling(slot, NONE);
+		setChild(slot, NONE);
+		setLastChild(slot, NONE);
+		return slot;
+	}
+	
+	@Override
+	public Optional<V> put(final K key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		final int previousSize = size;
+		final int node = insert(key, value);
+		if (size != previousSize) {
+			return Optional.empty();
+		}
+		final V replaced = value(node);
+		writeValue(node, value);
+		return Optional.of(replaced);
+	}
+	
+	@Override
+	public boolean putIfNotPresent(final K key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		final int previousSize = size;
+		insert(key, value);
+		return size != previousSize;
+	}
+	
+	/**
+	 * Inserts a new node unless one is already present for the key.
+	 *
+	 * @return the slot of the node for the key, which is new if the size has grown
+	 */
+	private int insert(final K key, final V value) {
+		int parent = NONE;
+		int previous = NONE;
+		int node = root;
+		while (node != NONE) {
+			final K nodeKey = key(node);
+			if (nodeKey.equals(key)) {
+				return node;
+			}
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				parent = node;
+				previous = NONE;
+				node = child(node);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				final int inserted = createNode(key, value);
+				link(parent, previous, inserted);
+				setChild(inserted, node);
+				setLastChild(inserted, node);
+				setSibling(inserted, sibling(node));
+				setSibling(node, NONE);
+				last(parent, reparent(key, inserted));
+				size++;
+				return inserted;
+			} else {
+				previous = node;
+				node = sibling(node);
+			}
+		}
+		final int inserted = createNode(key, value);
+		link(parent, previous, inserted);
+		last(parent, inserted);
+		size++;
+		return inserted;
+	}
+	
+	/**
+	 * Moves the siblings following a newly inserted node beneath it if they
+	 * descend from its key.
+	 *
+	 * @return the last of the node's following siblings, or the node itself
+	 */
+	private int reparent(final K key, final int parent) {
+		int lastNext = parent;
+		int node = sibling(parent);
+		while (node != NONE) {
+			final int following = sibling(node);
+			setSibling(node, NONE);
+			if (isAncestorFunction.apply(key, key(node))) {
+				setSibling(lastChild(parent), node);
+				setLastChild(parent, node);
+			} else {
+				setSibling(lastNext, node);
+				lastNext = node;
+			}
+			node = following;
+		}
+		setSibling(lastNext, NONE);
+		return lastNext;
+	}
+	
+	@Override
+	public Optional<V> remove(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		int parent = NONE;
+		int previous = NONE;
+		int node = root;
+		while (node != NONE) {
+			final K nodeKey = key(node);
+			if (nodeKey.equals(key)) {
+				final V removed = value(node);
+				unlink(parent, previous, node);
+				return Optional.of(removed);
+			}
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				parent = node;
+				previous = NONE;
+				node = child(node);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				return Optional.empty();
+			} else {
+				previous = node;
+				node = sibling(node);
+			}
+		}
+		return Optional.empty();
+	}
+	
+	/**
+	 * Removes the node for the given key together with its descendants. The
+	 * removed nodes are copied into a tree with pages of the same size held
+	 * in direct buffers, without decoding their keys or values, and their
+	 * slots here are freed.
+	 */
+	@Override
+	public OffHeapHierarchicalTree<K, V> removeSubtree(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final OffHeapHierarchicalTree<K, V> detached = new OffHeapHierarchicalTree<>(isAncestorFunction, keyCodec, valueCodec, pageBytes, page -> ByteBuffer.allocateDirect(pageBytes));
+		int parent = NONE;
+		int previous = NONE;
+		int node = root;
+		while (node != NONE) {
+			final K nodeKey = key(node);
+			if (nodeKey.equals(key)) {
+				link(parent, previous, sibling(node));
+				if (sibling(node) == NONE) {
+					last(parent, previous);
+				}
+				setSibling(node, NONE);
+				final int count = moveTo(detached, node);
+				detached.size = count;
+				size -= count;
+				return detached;
+			}
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				parent = node;
+				previous = NONE;
+				node = child(node);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				return detached;
+			} else {
+				previous = node;
+				node = sibling(node);
+			}
+		}
+		return detached;
+	}
+	
+	/**
+	 * Copies the given unlinked node and its descendants into the root of an
+	 * empty tree in pre-order, appending each node after the last child of
+	 * its copied parent, and frees their slots here.
+	 *
+	 * @return the number of nodes moved
+	 */
+	private int moveTo(final OffHeapHierarchicalTree<K, V> target, final int top) {
+		int[] sources = new int[INITIAL_PATH_CAPACITY];
+		int[] parents = new int[INITIAL_PATH_CAPACITY];
+		int pending = 0;
+		sources[pending] = top;
+		parents[pending++] = NONE;
+		int count = 0;
+		while (pending > 0) {
+			final int source = sources[--pending];
+			final int parent = parents[pending];
+			final int copy = target.allocate();
+			final ByteBuffer from = page(source);
+			final ByteBuffer to = target.page(copy);
+			final int fromOffset = offset(source);
+			final int toOffset = target.offset(copy);
+			for (int i = KEY; i < slotBytes; i++) {
+				to.put(toOffset + i, from.get(fromOffset + i));
+			}
+			target.setSibling(copy, NONE);
+			target.setChild(copy, NONE);
+			target.setLastChild(copy, NONE);
+			if (parent == NONE) {
+				target.root = copy;
+			} else {
+				target.link(parent, target.lastChild(parent), copy);
+				target.setLastChild(parent, copy);
+			}
+			final int first = pending;
+			for (int child = child(source); child != NONE; child = sibling(child)) {
+				if (pending == sources.length) {
+					sources = Arrays.copyOf(sources, pending * 2);
+					parents = Arrays.copyOf(parents, pending * 2);
+				}
+				sources[pending] = child;
+				parents[pending++] = copy;
+			}
+			for (int i = first, j = pending - 1; i < j; i++, j--) {
+				final int swapped = sources[i];
+				sources[i] = sources[j];
+				sources[j] = swapped;
+			}
+			release(source);
+			count++;
+		}
+		return count;
+	}
+	
+	@Override
+	public void graft(final HierarchicalTree<K, V> subtree) {
+		if (subtree == null) throw new IllegalArgumentException("Null tree");
+		if (subtree == this) throw new IllegalArgumentException("Graft onto itself");
+		for (final HierarchicalTree.Node<K, V> node : subtree) {
+			put(node.getKey(), node.getValue());
+		}
+		subtree.clear();
+	}
+	
+	/**
+	 * Returns the slot identified by a parent and previous sibling, either
+	 * of which may be absent.
+	 */
+	private int slot(final int parent, final int previous) {
+		if (previous != NONE) return sibling(previous);
+		if (parent != NONE) return child(parent);
+		return root;
+	}
+	
+	private void link(final int parent, final int previous, final int node) {
+		if (previous != NONE) {
+			setSibling(previous, node);
+		} else if (parent != NONE) {
+			setChild(parent, node);
+		} else {
+			root = node;
+		}
+	}
+	
+	private void last(final int parent, final int node) {
+		if (parent != NONE) {
+			setLastChild(parent, node);
+		}
+	}
+	
+	/**
+	 * Removes a node, splicing its children into its place among its
+	 * siblings, and frees its slot.
+	 */
+	private void unlink(final int parent, final int previous, final int node) {
+		final int next = sibling(node);
+		if (child(node) != NONE) {
+			link(parent, previous, child(node));
+			setSibling(lastChild(node), next);
+			if (next == NONE) {
+				last(parent, lastChild(node));
+			}
+		} else {
+			link(parent, previous, next);
+			if (next == NONE) {
+				last(parent, previous);
+			}
+		}
+		release(node);
+		size--;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> get(final K key) {
+		return Optional.ofNullable(getNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNode(final K key) {
+		final int node = findNode(key);
+		return (node == NONE) ? null : new Node(node);
+	}
+	
+	@Override
+	public V getValue(final K key) {
+		final int node = findNode(key);
+		return (node == NONE) ? null : value(node);
+	}
+	
+	private int findNode(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		int node = root;
+		while (node != NONE) {
+			final K nodeKey = key(node);
+			if (nodeKey.equals(key)) return node;
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				node = child(node);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				return NONE;
+			} else {
+				node = sibling(node);
+			}
+		}
+		return NONE;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> getNearest(final K key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNearestNode(final K key) {
+		final int node = findNearestNode(key);
+		return (node == NONE) ? null : new Node(node);
+	}
+	
+	@Override
+	public V getNearestValue(final K key, final V defaultValue) {
+		final int node = findNearestNode(key);
+		return (node == NONE) ? defaultValue : value(node);
+	}
+	
+	private int findNearestNode(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		int candidate = NONE;
+		int node = root;
+		while (node != NONE) {
+			final K nodeKey = key(node);
+			if (nodeKey.equals(key)) return node;
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				candidate = node;
+				node = child(node);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				break;
+			} else {
+				node = sibling(node);
+			}
+		}
+		return candidate;
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<K, V>> ancestors(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Deque<HierarchicalTree.Node<K, V>> ancestors = new ArrayDeque<>();
+		int node = root;
+		while (node != NONE) {
+			final K nodeKey = key(node);
+			if (nodeKey.equals(key)) {
+				ancestors.addLast(new Node(node));
+				break;
+			}
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				ancestors.addLast(new Node(node));
+				node = child(node);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				break;
+			} else {
+				node = sibling(node);
+			}
+		}
+		return ancestors;
+	}
+	
+	@Override
+	public void forEachAncestor(final K key, final BiConsumer<? super K, ? super V> action) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (action == null) throw new IllegalArgumentException("Null action");
+		int node = root;
+		while (node != NONE) {
+			final K nodeKey = key(node);
+			if (nodeKey.equals(key)) {
+				action.accept(nodeKey, value(node));
+				return;
+			}
+			if (isAncestorFunction.apply(nodeKey, key)) {
+				action.accept(nodeKey, value(node));
+				node = child(node);
+			} else if (isAncestorFunction.apply(key, nodeKey)) {
+				return;
+			} else {
+				node = sibling(node);
+			}
+		}
+	}
+	
+	@Override
+	public TreeIterator<K, V> iterator() {
+		return new NodeIterator();
+	}
+
+}
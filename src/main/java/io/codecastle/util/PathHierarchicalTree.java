@@ -0,0 +1,606 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * A hierarchical tree of '/' separated paths such as {@code /org/team/project},
+ * in which a path is an ancestor of the paths beneath it. Paths are split into
+ * segments once, when they are put, and each distinct segment is held as a
+ * single shared string rather than within every path that contains it. A
+ * segment is forgotten once no path in the tree contains it.
+ * <p>
+ * Each node keeps its children in an open-addressed hash table keyed by
+ * segment. Lookups read the segments of the query in place, one at a time as
+ * they descend, so they neither split the query nor allocate, and they cost
+ * O(length of the query).
+ * <p>
+ * Empty segments are ignored, so {@code a/b}, {@code /a/b/} and
+ * {@code /a//b} are the same path. Keys are not retained; a node's key is
+ * rebuilt in the form {@code /a/b} whenever it is requested, and the root path
+ * is {@code /}.
+ *
+ * @author Doug Valenta
+ */
+public class PathHierarchicalTree<V> implements HierarchicalTree<String, V> {
+	
+	private static final char SEPARATOR = '/';
+	private static final int INITIAL_TABLE_SIZE = 4;
+	
+	private class Node implements HierarchicalTree.Node<String, V> {
+		
+		private final String segment;
+		private Node parent;
+		
+		private V value;
+		
+		private Node[] children;
+		private int childCount;
+		
+		Node(final Node parent, final String segment) {
+			this.parent = parent;
+			this.segment = segment;
+		}
+		
+		/**
+		 * Returns the child whose segment equals the given region of a path,
+		 * or null if there is none.
+		 */
+		Node child(final String path, final int start, final int end, final int hash) {
+			if (children == null) return null;
+			final int mask = children.length - 1;
+			for (int slot = spread(hash) & mask; children[slot] != null; slot = (slot + 1) & mask) {
+				final Node child = children[slot];
+				if (child.segment.hashCode() == hash && matches(child.segment, path, start, end)) {
+					return child;
+				}
+			}
+			return null;
+		}
+		
+		void addChild(final Node child) {
+			if (children == null) {
+				children = newNodeArray(INITIAL_TABLE_SIZE);
+			} else if ((childCount + 1) * 4 > children.length * 3) {
+				final Node[] table = children;
+				children = newNodeArray(table.length * 2);
+				for (final Node node : table) {
+					if (node != null) {
+						place(node);
+					}
+				}
+			}
+			place(child);
+			childCount++;
+		}
+		
+		private void place(final Node child) {
+			final int mask = children.length - 1;
+			int slot = spread(child.segment.hashCode()) & mask;
+			while (children[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			children[slot] = child;
+		}
+		
+		/**
+		 * Removes a child, moving back any children after it in the same run
+		 * of occupied slots so that no lookup stops short of them.
+		 */
+		void removeChild(final Node child) {
+			final int mask = children.length - 1;
+			int slot = spread(child.segment.hashCode()) & mask;
+			while (children[slot] != child) {
+				slot = (slot + 1) & mask;
+			}
+			children[slot] = null;
+			for (int next = (slot + 1) & mask; children[next] != null; next = (next + 1) & mask) {
+				final Node moved = children[next];
+				children[next] = null;
+				place(moved);
+			}
+			if (--childCount == 0) {
+				children = null;
+			}
+		}
+		
+		boolean isPrunable() {
+			return value == null && childCount == 0 && parent != null;
+		}
+		
+		/**
+		 * Returns the path of this node, rebuilt from its segments.
+		 */
+		@Override
+		public String getKey() {
+			if (parent == null) return String.valueOf(SEPARATOR);
+			int length = 0;
+			for (Node node = this; node.parent != null; node = node.parent) {
+				length += node.segment.length() + 1;
+			}
+			final char[] path = new char[length];
+			for (Node node = this; node.parent != null; node = node.parent) {
+				length -= node.segment.length();
+				node.segment.getChars(0, node.segment.length(), path, length);
+				path[--length] = SEPARATOR;
+			}
+			return new String(path);
+		}
+		
+		@Override
+		public V getValue() {
+			return value;
+		}
+		
+		@Override
+		public V setValue(final V value) {
+			if (value == null) throw new IllegalArgumentException("Null value");
+			final V replaced = this.value;
+			this.value = value;
+			return replaced;
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			if (other == null) return false;
+			if (!(other instanceof Map.Entry)) {
+				return false;
+			}
+			final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return (getKey().equals(entry.getKey()) && value.equals(entry.getValue()));
+		}
+		
+		@Override
+		public int hashCode() {
+			return getKey().hashCode() ^ value.hashCode();
+		}
+	
+	}
+	
+	/**
+	 * Iterates over the entries with each node before its descendants.
+	 * Removing a node prunes it only once its children have been queued, and
+	 * the ancestors it prunes have already been returned.
+	 */
+	private class NodeIterator implements Iterator<HierarchicalTree.Node<String, V>> {
+		
+		private final Deque<Node> pending = new ArrayDeque<>();
+		private Node current;
+		private Node next;
+		
+		NodeIterator() {
+			pending.push(root);
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (next == null && !pending.isEmpty()) {
+				final Node node = pending.pop();
+				if (node.children != null) {
+					for (final Node child : node.children) {
+						if (child != null) {
+							pending.push(child);
+						}
+					}
+				}
+				if (node.value != null) {
+					next = node;
+				}
+			}
+			return next != null;
+		}
+		
+		@Override
+		public Node next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException("Iterator exhausted");
+			}
+			current = next;
+			next = null;
+			return current;
+		}
+		
+		@Override
+		public void remove() {
+			if (current == null) {
+				throw new IllegalStateException("No iteration");
+			}
+			current.value = null;
+			prune(current);
+			current = null;
+			size--;
+		}
+	
+	}
+	
+	private Node root = new Node(null, null);
+	private int size;
+	private String[] segments = new String[INITIAL_TABLE_SIZE];
+	/**
+	 * The number of nodes holding the segment in the same slot of
+	 * {@link #segments}.
+	 */
+	private int[] references = new int[INITIAL_TABLE_SIZE];
+	private int segmentCount;
+	
+	/**
+	 * Returns the hash of a region of a path, equal to the hash of the same
+	 * characters as a string.
+	 */
+	private static int hash(final String path, final int start, final int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + path.charAt(i);
+		}
+		return hash;
+	}
+	
+	private static int spread(final int hash) {
+		return hash ^ (hash >>> 16);
+	}
+	
+	private static boolean matches(final String segment, final String path, final int start, final int end) {
+		return segment.length() == end - start && path.regionMatches(start, segment, 0, end - start);
+	}
+	
+	/**
+	 * Returns the index at which the next segment of a path starts, skipping
+	 * separators, or the length of the path if there are no more segments.
+	 */
+	private static int segmentStart(final String path, int index) {
+		while (index < path.length() && path.charAt(index) == SEPARATOR) {
+			index++;
+		}
+		return index;
+	}
+	
+	private static int segmentEnd(final String path, final int start) {
+		final int end = path.indexOf(SEPARATOR, start);
+		return (end < 0) ? path.length() : end;
+	}
+	
+	/**
+	 * Returns the shared string for a region of a path, creating it only the
+	 * first time the segment is seen, and counts a reference to it for the
+	 * node that will hold it. Each reference is dropped by {@link #release}.
+	 */
+	private String intern(final String path, final int start, final int end, final int hash) {
+		final int mask = segments.length - 1;
+		for (int slot = spread(hash) & mask; segments[slot] != null; slot = (slot + 1) & mask) {
+			if (segments[slot].hashCode() == hash && matches(segments[slot], path, start, end)) {
+				references[slot]++;
+				return segments[slot];
+			}
+		}
+		final String segment = path.substring(start, end);
+		if ((segmentCount + 1) * 4 > segments.length * 3) {
+			final String[] table = segments;
+			final int[] counts = references;
+			segments = new String[table.length * 2];
+			references = new int[table.length * 2];
+			for (int i = 0; i < table.length; i++) {
+				if (table[i] != null) {
+					placeSegment(table[i], counts[i]);
+				}
+			}
+		}
+		placeSegment(segment, 1);
+		segmentCount++;
+		return segment;
+	}
+	
+	private void placeSegment(final String segment, final int count) {
+		final int mask = segments.length - 1;
+		int slot = spread(segment.hashCode()) & mask;
+		while (segments[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		segments[slot] = segment;
+		references[slot] = count;
+	}
+	
+	/**
+	 * Drops a reference counted by {@link #intern} for a node that has been
+	 * unlinked, and forgets the segment when it was the last, moving back any
+	 * segments after it in the same run of occupied slots.
+	 */
+	private void release(final String segment) {
+		final int mask = segments.length - 1;
+		int slot = spread(segment.hashCode()) & mask;
+		while (!segments[slot].equals(segment)) {
+			slot = (slot + 1) & mask;
+		}
+		if (--references[slot] > 0) {
+			return;
+		}
+		segments[slot] = null;
+		segmentCount--;
+		for (int next = (slot + 1) & mask; segments[next] != null; next = (next + 1) & mask) {
+			final String moved = segments[next];
+			segments[next] = null;
+			placeSegment(moved, references[next]);
+		}
+	}
+	
+	/**
+	 * Returns the number of distinct segments held in the intern table.
+	 */
+	int segmentCount() {
+		return segmentCount;
+	}
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Node[] newNodeArray(final int length) {
+		return (Node[]) new PathHierarchicalTree.Node[length];
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	@Override
+	public void clear() {
+		root = new Node(null, null);
+		size = 0;
+		segments = new String[INITIAL_TABLE_SIZE];
+		references = new int[INITIAL_TABLE_SIZE];
+		segmentCount = 0;
+	}
+	
+	@Override
+	public Optional<V> put(final String key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		final Node node = putNode(key);
+		final V replaced = node.value;
+		node.value = value;
+		if (replaced == null) {
+			size++;
+		}
+		return Optional.ofNullable(replaced);
+	}
+	
+	@Override
+	public boolean putIfNotPresent(final String key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		final Node node = putNode(key);
+		if (node.value != null) {
+			return false;
+		}
+		node.value = value;
+		size++;
+		return true;
+	}
+	
+	private Node putNode(final String key) {
+		Node node = root;
+		int start = segmentStart(key, 0);
+		while (start < key.length()) {
+			final int end = segmentEnd(key, start);
+			final int hash = hash(key, start, end);
+			Node child = node.child(key, start, end, hash);
+			if (child == null) {
+				child = new Node(node, intern(key, start, end, hash));
+				node.addChild(child);
+			}
+			node = child;
+			start = segmentStart(key, end);
+		}
+		return node;
+	}
+	
+	/**
+	 * Returns the node for the given path, whether or not it has a value, or
+	 * null if there is none.
+	 */
+	private Node findNode(final String key) {
+		Node node = root;
+		int start = segmentStart(key, 0);
+		while (start < key.length()) {
+			final int end = segmentEnd(key, start);
+			node = node.child(key, start, end, hash(key, start, end));
+			if (node == null) return null;
+			start = segmentStart(key, end);
+		}
+		return node;
+	}
+	
+	/**
+	 * Unlinks the given node if it has neither a value nor children, and
+	 * then each of its ancestors left in the same state.
+	 */
+	private void prune(Node node) {
+		while (node.isPrunable()) {
+			node.parent.removeChild(node);
+			release(node.segment);
+			node = node.parent;
+		}
+	}
+	
+	@Override
+	public Optional<V> remove(final String key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Node node = findNode(key);
+		if (node == null || node.value == null) {
+			return Optional.empty();
+		}
+		final V removed = node.value;
+		node.value = null;
+		size--;
+		prune(node);
+		return Optional.of(removed);
+	}
+	
+	/**
+	 * Removes the node for the given path together with its descendants by
+	 * unlinking it from its parent's table, and moves them into the returned
+	 * tree. The segments they hold are counted in the returned tree's table
+	 * instead of this one's.
+	 */
+	@Override
+	public PathHierarchicalTree<V> removeSubtree(final String key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final PathHierarchicalTree<V> detached = new PathHierarchicalTree<>();
+		final Node node = findNode(key);
+		if (node == null || node.value == null) {
+			return detached;
+		}
+		final int count = move(node, detached);
+		if (node.parent == null) {
+			detached.root = node;
+			root = new Node(null, null);
+		} else {
+			final Node parent = node.parent;
+			parent.removeChild(node);
+			release(node.segment);
+			prune(parent);
+			final Node placeholder = detached.putNode(key);
+			placeholder.parent.removeChild(placeholder);
+			placeholder.parent.addChild(node);
+			node.parent = placeholder.parent;
+		}
+		detached.size = count;
+		size -= count;
+		return detached;
+	}
+	
+	/**
+	 * Moves every entry of the given tree into this one, putting them entry
+	 * by entry.
+	 */
+	@Override
+	public void graft(final HierarchicalTree<String, V> subtree) {
+		if (subtree == null) throw new IllegalArgumentException("Null tree");
+		if (subtree == this) throw new IllegalArgumentException("Graft onto itself");
+		for (final HierarchicalTree.Node<String, V> node : subtree) {
+			put(node.getKey(), node.getValue());
+		}
+		subtree.clear();
+	}
+	
+	/**
+	 * Moves the segment references held by the descendants of the given node
+	 * into the table of the given tree, and returns the number of entries in
+	 * the subtree of the node.
+	 */
+	private int move(final Node top, final PathHierarchicalTree<V> target) {
+		int count = 0;
+		final Deque<Node> pending = new ArrayDeque<>();
+		pending.push(top);
+		while (!pending.isEmpty()) {
+			final Node node = pending.pop();
+			if (node.value != null) {
+				count++;
+			}
+			if (node.children != null) {
+				for (final Node child : node.children) {
+					if (child != null) {
+						release(child.segment);
+						target.intern(child.segment, 0, child.segment.length(), child.segment.hashCode());
+						pending.push(child);
+					}
+				}
+			}
+		}
+		return count;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<String, V>> get(final String key) {
+		return Optional.ofNullable(getNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<String, V> getNode(final String key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Node node = findNode(key);
+		if (node == null || node.value == null) return null;
+		return node;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<String, V>> getNearest(final String key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<String, V> getNearestNode(final String key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		Node node = root;
+		Node candidate = (root.value == null) ? null : root;
+		int start = segmentStart(key, 0);
+		while (start < key.length()) {
+			final int end = segmentEnd(key, start);
+			node = node.child(key, start, end, hash(key, start, end));
+			if (node == null) break;
+			if (node.value != null) candidate = node;
+			start = segmentStart(key, end);
+		}
+		return candidate;
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<String, V>> ancestors(final String key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Deque<HierarchicalTree.Node<String, V>> ancestors = new ArrayDeque<>();
+		Node node = root;
+		if (root.value != null) ancestors.addLast(root);
+		int start = segmentStart(key, 0);
+		while (start < key.length()) {
+			final int end = segmentEnd(key, start);
+			node = node.child(key, start, end, hash(key, start, end));
+			if (node == null) break;
+			if (node.value != null) ancestors.addLast(node);
+			start = segmentStart(key, end);
+		}
+		return ancestors;
+	}
+	
+	/**
+	 * Calls the given action for each enclosing entry. Keys are not retained,
+	 * so each key passed to the action is a new string rebuilt from its
+	 * segments for the call, except that the given key itself is passed for
+	 * its own entry when it is already in the form {@code /a/b}.
+	 */
+	@Override
+	public void forEachAncestor(final String key, final BiConsumer<? super String, ? super V> action) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (action == null) throw new IllegalArgumentException("Null action");
+		Node node = root;
+		if (root.value != null) action.accept(root.getKey(), root.value);
+		boolean canonical = true;
+		int previous = 0;
+		int start = segmentStart(key, 0);
+		while (start < key.length()) {
+			final int end = segmentEnd(key, start);
+			canonical &= (start == previous + 1);
+			node = node.child(key, start, end, hash(key, start, end));
+			if (node == null) break;
+			if (node.value != null) action.accept((canonical && end == key.length()) ? key : node.getKey(), node.value);
+			previous = end;
+			start = segmentStart(key, end);
+		}
+	}
+	
+	@Override
+	public Iterator<HierarchicalTree.Node<String, V>> iterator() {
+		return new NodeIterator();
+	}
+
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable hierarchical tree. Mutations return a new version of the tree
+ * which shares every untouched subtree with this one; only the path from the
+ * root to the changed node, including the siblings walked along the way, is
+ * copied. Operations which change nothing return this tree itself.
+ *
+ * @author Doug Valenta
+ */
+public final class PersistentHierarchicalTree<K, V> implements ReadableHierarchicalTree<K, V> {
+	
+	private static final class Node<K, V> implements HierarchicalTree.Node<K, V> {
+		
+		private final K key;
+		private final V value;
+		
+		private final Node<K, V> next;
+		private final Node<K, V> child;
+		
+		Node(final K key, final V value, final Node<K, V> child, final Node<K, V> next) {
+			this.key = key;
+			this.value = value;
+			this.child = child;
+			this.next = next;
+		}
+		
+		@Override
+		public K getKey() {
+			return key;
+		}
+		
+		@Override
+		public V getValue() {
+			return value;
+		}
+		
+		@Override
+		public V setValue(final V value) {
+			throw new UnsupportedOperationException("Immutable node");
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			if (other == null) return false;
+			if (!(other instanceof Map.Entry)) {
+				return false;
+			}
+			final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return (key.equals(entry.getKey()) && value.equals(entry.getValue()));
+		}
+		
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ value.hashCode();
+		}
+	
+	}
+	
+	/**
+	 * The nodes from the root to a slot, and whether each step was taken
+	 * through a child link or a next link.
+	 */
+	private static final class Path<K, V> {
+		
+		private final List<Node<K, V>> nodes = new ArrayList<>();
+		private final List<Boolean> children = new ArrayList<>();
+		
+		void child(final Node<K, V> node) {
+			nodes.add(node);
+			children.add(Boolean.TRUE);
+		}
+		
+		void next(final Node<K, V> node) {
+			nodes.add(node);
+			children.add(Boolean.FALSE);
+		}
+		
+		/**
+		 * Copies the nodes along the path so that the slot at its end holds
+		 * the given node, and returns the new root.
+		 */
+		Node<K, V> replace(Node<K, V> node) {
+			for (int i = nodes.size() - 1; i >= 0; i--) {
+				final Node<K, V> copied = nodes.get(i);
+				if (children.get(i)) {
+					node = new Node<>(copied.key, copied.value, node, copied.next);
+				} else {
+					node = new Node<>(copied.key, copied.value, copied.child, node);
+				}
+			}
+			return node;
+		}
+	
+	}
+	
+	private static final class NodeIterator<K, V> implements Iterator<HierarchicalTree.Node<K, V>> {
+		
+		private final Deque<Node<K, V>> stack = new ArrayDeque<>();
+		
+		NodeIterator(final Node<K, V> root) {
+			if (root != null) {
+				stack.push(root);
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return !stack.isEmpty();
+		}
+		
+		@Override
+		public Node<K, V> next() {
+			if (stack.isEmpty()) {
+				throw new NoSuchElementException("Iterator exhausted");
+			}
+			final Node<K, V> current = stack.pop();
+			if (current.next != null) {
+				stack.push(current.next);
+			}
+			if (current.child != null) {
+				stack.push(current.child);
+			}
+			return current;
+		}
+	
+	}
+	
+	private final ToBooleanBiFunction<K, K> isAncestorFunction;
+	private final Node<K, V> root;
+	private final int size;
+	
+	private PersistentHierarchicalTree(final ToBooleanBiFunction<K, K> isAncestorFunction, final Node<K, V> root, final int size) {
+		this.isAncestorFunction = isAncestorFunction;
+		this.root = root;
+		this.size = size;
+	}
+	
+	public static <K, V> PersistentHierarchicalTree<K, V> empty(final ToBooleanBiFunction<K, K> isAncestorFunction) {
+		return new PersistentHierarchicalTree<>(isAncestorFunction, null, 0);
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public PersistentHierarchicalTree<K, V> clear() {
+		return (root == null) ? this : new PersistentHierarchicalTree<>(isAncestorFunction, null, 0);
+	}
+	
+	public PersistentHierarchicalTree<K, V> put(final K key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		return insert(key, value, true);
+	}
+	
+	public PersistentHierarchicalTree<K, V> putIfNotPresent(final K key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		return insert(key, value, false);
+	}
+	
+	private PersistentHierarchicalTree<K, V> insert(final K key, final V value, final boolean replace) {
+		final Path<K, V> path = new Path<>();
+		Node<K, V> node = root;
+		while (node != null) {
+			if (node.key.equals(key)) {
+				if (!replace) return this;
+				return new PersistentHierarchicalTree<>(isAncestorFunction, path.replace(new Node<>(node.key, value, node.child, node.next)), size);
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				path.child(node);
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				return new PersistentHierarchicalTree<>(isAncestorFunction, path.replace(adopt(key, value, node)), size + 1);
+			} else {
+				path.next(node);
+				node = node.next;
+			}
+		}
+		return new PersistentHierarchicalTree<>(isAncestorFunction, path.replace(new Node<>(key, value, null, null)), size + 1);
+	}
+	
+	/**
+	 * Creates a node which takes the place of the given node, adopting it and
+	 * any of its following siblings which descend from the new key.
+	 */
+	private Node<K, V> adopt(final K key, final V value, final Node<K, V> first) {
+		final List<Node<K, V>> siblings = new ArrayList<>();
+		final List<Boolean> descendants = new ArrayList<>();
+		int lastDescendant = 0;
+		for (Node<K, V> node = first; node != null; node = node.next) {
+			final boolean descendant = (node == first) || isAncestorFunction.apply(key, node.key);
+			if (descendant) {
+				lastDescendant = siblings.size();
+			}
+			siblings.add(node);
+			descendants.add(descendant);
+		}
+		Node<K, V> children = null;
+		Node<K, V> next = siblings.get(lastDescendant).next;
+		for (int i = lastDescendant; i >= 0; i--) {
+			final Node<K, V> node = siblings.get(i);
+			if (descendants.get(i)) {
+				children = new Node<>(node.key, node.value, node.child, children);
+			} else {
+				next = new Node<>(node.key, node.value, node.child, next);
+			}
+		}
+		return new Node<>(key, value, children, next);
+	}
+	
+	public PersistentHierarchicalTree<K, V> remove(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Path<K, V> path = new Path<>();
+		Node<K, V> node = root;
+		while (node != null) {
+			if (node.key.equals(key)) {
+				return new PersistentHierarchicalTree<>(isAncestorFunction, path.replace(splice(node.child, node.next)), size - 1);
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				path.child(node);
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				return this;
+			} else {
+				path.next(node);
+				node = node.next;
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * Returns a version of this tree without the node for the given key and
+	 * its descendants.
+	 */
+	public PersistentHierarchicalTree<K, V> removeSubtree(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Path<K, V> path = new Path<>();
+		Node<K, V> node = root;
+		while (node != null) {
+			if (node.key.equals(key)) {
+				return new PersistentHierarchicalTree<>(isAncestorFunction, path.replace(node.next), size - count(node));
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				path.child(node);
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				return this;
+			} else {
+				path.next(node);
+				node = node.next;
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * Returns the node for the given key and its descendants as a tree of
+	 * their own, sharing their nodes with this tree, or an empty tree if there
+	 * is no such key.
+	 */
+	public PersistentHierarchicalTree<K, V> subtree(final K key) {
+		final Node<K, V> node = (Node<K, V>) getNode(key);
+		if (node == null) return clear();
+		final Node<K, V> top = (node.next == null) ? node : new Node<>(node.key, node.value, node.child, null);
+		return new PersistentHierarchicalTree<>(isAncestorFunction, top, count(node));
+	}
+	
+	/**
+	 * Returns a version of this tree with every entry of the given tree put
+	 * into it. A tree with a single root, none of whose keys are present
+	 * here, is shared whole beneath the nearest ancestor of its root, copying
+	 * only the path to it. The given tree must have been arranged by the same
+	 * ancestor function as this one.
+	 */
+	public PersistentHierarchicalTree<K, V> graft(final PersistentHierarchicalTree<K, V> subtree) {
+		if (subtree == null) throw new IllegalArgumentException("Null tree");
+		if (subtree.root == null) return this;
+		if (subtree.root.next == null) {
+			final K key = subtree.root.key;
+			final Path<K, V> path = new Path<>();
+			Node<K, V> node = root;
+			while (node != null) {
+				if (node.key.equals(key) || isAncestorFunction.apply(key, node.key)) {
+					break;
+				}
+				if (isAncestorFunction.apply(node.key, key)) {
+					path.child(node);
+					node = node.child;
+				} else {
+					path.next(node);
+					node = node.next;
+				}
+			}
+			if (node == null) {
+				return new PersistentHierarchicalTree<>(isAncestorFunction, path.replace(subtree.root), size + subtree.size);
+			}
+		}
+		PersistentHierarchicalTree<K, V> grafted = this;
+		for (final HierarchicalTree.Node<K, V> node : subtree) {
+			grafted = grafted.put(node.getKey(), node.getValue());
+		}
+		return grafted;
+	}
+	
+	/**
+	 * Returns the number of nodes in the subtree of the given node.
+	 */
+	private static <K, V> int count(final Node<K, V> top) {
+		int count = 0;
+		final Deque<Node<K, V>> pending = new ArrayDeque<>();
+		pending.push(top);
+		while (!pending.isEmpty()) {
+			final Node<K, V> node = pending.pop();
+			count++;
+			for (Node<K, V> child = node.child; child != null; child = child.next) {
+				pending.push(child);
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns a copy of the given sibling list followed by the given next node.
+	 */
+	private static <K, V> Node<K, V> splice(final Node<K, V> first, final Node<K, V> next) {
+		if (first == null) return next;
+		if (next == null) return first;
+		final List<Node<K, V>> siblings = new ArrayList<>();
+		for (Node<K, V> node = first; node != null; node = node.next) {
+			siblings.add(node);
+		}
+		Node<K, V> spliced = next;
+		for (int i = siblings.size() - 1; i >= 0; i--) {
+			final Node<K, V> node = siblings.get(i);
+			spliced = new Node<>(node.key, node.value, node.child, spliced);
+		}
+		return spliced;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> get(final K key) {
+		return Optional.ofNullable(getNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNode(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		Node<K, V> node = root;
+		while (node != null) {
+			if (node.key.equals(key)) return node;
+			if (isAncestorFunction.apply(node.key, key)) {
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				return null;
+			} else {
+				node = node.next;
+			}
+		}
+		return null;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> getNearest(final K key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNearestNode(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		Node<K, V> candidate = null;
+		Node<K, V> node = root;
+		while (node != null) {
+			if (node.key.equals(key)) return node;
+			if (isAncestorFunction.apply(node.key, key)) {
+				candidate = node;
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				break;
+			} else {
+				node = node.next;
+			}
+		}
+		return candidate;
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<K, V>> ancestors(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Deque<HierarchicalTree.Node<K, V>> ancestors = new ArrayDeque<>();
+		Node<K, V> node = root;
+		while (node != null) {
+			if (node.key.equals(key)) {
+				ancestors.addLast(node);
+				break;
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				ancestors.addLast(node);
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				break;
+			} else {
+				node = node.next;
+			}
+		}
+		return ancestors;
+	}
+	
+	@Override
+	public void forEachAncestor(final K key, final BiConsumer<? super K, ? super V> action) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (action == null) throw new IllegalArgumentException("Null action");
+		Node<K, V> node = root;
+		while (node != null) {
+			if (node.key.equals(key)) {
+				action.accept(node.key, node.value);
+				return;
+			}
+			if (isAncestorFunction.apply(node.key, key)) {
+				action.accept(node.key, node.value);
+				node = node.child;
+			} else if (isAncestorFunction.apply(key, node.key)) {
+				return;
+			} else {
+				node = node.next;
+			}
+		}
+	}
+	
+	@Override
+	public Iterator<HierarchicalTree.Node<K, V>> iterator() {
+		return new NodeIterator<>(root);
+	}
+
+}
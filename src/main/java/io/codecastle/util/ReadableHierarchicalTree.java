@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The read-only operations of a hierarchical tree.
+ *
+ * @author Doug Valenta
+ */
+public interface ReadableHierarchicalTree<K, V> extends Iterable<HierarchicalTree.Node<K, V>> {
+	
+	int size();
+	
+	boolean isEmpty();
+	
+	Optional<HierarchicalTree.Node<K, V>> getNearest(K key);
+	
+	Optional<HierarchicalTree.Node<K, V>> get(K key);
+	
+	/**
+	 * Returns the node for the given key without allocating, or null if
+	 * there is no such node.
+	 */
+	HierarchicalTree.Node<K, V> getNode(K key);
+	
+	/**
+	 * Returns the node for the given key or its nearest ancestor without
+	 * allocating, or null if there is no such node.
+	 */
+	HierarchicalTree.Node<K, V> getNearestNode(K key);
+	
+	/**
+	 * Returns the nodes enclosing the given key, from the root down to the
+	 * node for the key or its nearest ancestor, gathered in one descent. The
+	 * deque iterates root-first, and its descending iterator deepest-first.
+	 */
+	Deque<HierarchicalTree.Node<K, V>> ancestors(K key);
+	
+	/**
+	 * Calls the given action with the key and value of each node enclosing
+	 * the given key, from the root down to the node for the key or its
+	 * nearest ancestor, as they are found in one descent.
+	 */
+	void forEachAncestor(K key, BiConsumer<? super K, ? super V> action);
+	
+	/**
+	 * Returns the value for the given key, or null if there is no such key.
+	 */
+	default V getValue(final K key) {
+		final HierarchicalTree.Node<K, V> node = getNode(key);
+		return (node == null) ? null : node.getValue();
+	}
+	
+	/**
+	 * Returns the value for the given key or its nearest ancestor, or the
+	 * given default value if there is no such key.
+	 */
+	default V getNearestValue(final K key, final V defaultValue) {
+		final HierarchicalTree.Node<K, V> node = getNearestNode(key);
+		return (node == null) ? defaultValue : node.getValue();
+	}
+	
+	/**
+	 * Returns the nodes for the given keys or their nearest ancestors, in the
+	 * order of the keys, with null in place of keys which have no such node.
+	 * The list is a new one which the caller may modify.
+	 */
+	default List<HierarchicalTree.Node<K, V>> getNearestAll(final Collection<? extends K> keys) {
+		if (keys == null) throw new IllegalArgumentException("Null keys");
+		final List<HierarchicalTree.Node<K, V>> nodes = new ArrayList<>(keys.size());
+		for (final K key : keys) {
+			nodes.add(getNearestNode(key));
+		}
+		return nodes;
+	}
+	
+	/**
+	 * Stores the value for each of the given keys or its nearest ancestor in
+	 * the same position of the output array, or null if there is no such
+	 * key, and returns the number of keys resolved.
+	 */
+	default int resolveBatch(final K[] keys, final V[] out) {
+		if (keys == null) throw new IllegalArgumentException("Null keys");
+		if (out == null || out.length < keys.length) throw new IllegalArgumentException("Output shorter than keys");
+		int resolved = 0;
+		for (int i = 0; i < keys.length; i++) {
+			final HierarchicalTree.Node<K, V> node = getNearestNode(keys[i]);
+			if (node == null) {
+				out[i] = null;
+			} else {
+				out[i] = node.getValue();
+				resolved++;
+			}
+		}
+		return resolved;
+	}
+	
+	/**
+	 * Returns a sequential stream of the nodes in iteration order.
+	 */
+	default Stream<HierarchicalTree.Node<K, V>> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+	
+	/**
+	 * Returns a possibly parallel stream of the nodes, which divides the
+	 * tree as far as its spliterator allows.
+	 */
+	default Stream<HierarchicalTree.Node<K, V>> parallelStream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+}
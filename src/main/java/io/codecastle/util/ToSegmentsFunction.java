@@ -0,0 +1,19 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+/**
+ * Decomposes a key into the sequence of segments which identify it, from the
+ * outermost to the innermost. A key is an ancestor of another key when its
+ * segments are a proper prefix of the other key's segments.
+ *
+ * @author Doug Valenta
+ */
+@FunctionalInterface
+public interface ToSegmentsFunction<K, S> {
+	
+	public Iterable<S> apply(K key);
+
+}
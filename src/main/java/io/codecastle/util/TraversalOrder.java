@@ -0,0 +1,31 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+/**
+ * The orders in which a tree's nodes can be iterated.
+ *
+ * @author Doug Valenta
+ */
+public enum TraversalOrder {
+	
+	/**
+	 * Depth first, returning each node before its descendants.
+	 */
+	PRE_ORDER,
+	
+	/**
+	 * Depth first, returning each node after its descendants, so that nodes
+	 * can be removed from the bottom up.
+	 */
+	POST_ORDER,
+	
+	/**
+	 * Level by level, returning every node at one depth before any node at
+	 * the next.
+	 */
+	BREADTH_FIRST
+
+}
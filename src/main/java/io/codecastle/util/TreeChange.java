@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.Objects;
+
+/**
+ * A single structural change to a tree, reported to a
+ * {@link TreeChangeListener}. Each change names the root of the subtree it
+ * affects. The nearest ancestor of a key can only have changed if the key
+ * is, or descends from, the root of an inserted, removed or reparented
+ * subtree.
+ *
+ * @author Doug Valenta
+ */
+public final class TreeChange<K, V> {
+	
+	public enum Type {
+		/**
+		 * A node was inserted. Its following siblings which descend from it
+		 * are reported as reparented beneath it.
+		 */
+		INSERTED,
+		/**
+		 * The value of a node was replaced.
+		 */
+		REPLACED,
+		/**
+		 * A node was removed. Its children are reported as reparented beneath
+		 * its parent, unless its descendants were removed with it.
+		 */
+		REMOVED,
+		/**
+		 * A node and its descendants were moved beneath a new parent.
+		 */
+		REPARENTED
+	}
+	
+	private final Type type;
+	private final K key;
+	private final V value;
+	private final V previousValue;
+	private final K parent;
+	private final boolean subtree;
+	
+	TreeChange(final Type type, final K key, final V value, final V previousValue, final K parent, final boolean subtree) {
+		this.type = type;
+		this.key = key;
+		this.value = value;
+		this.previousValue = previousValue;
+		this.parent = parent;
+		this.subtree = subtree;
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	/**
+	 * Returns the key of the node at the root of the affected subtree.
+	 */
+	public K getKey() {
+		return key;
+	}
+	
+	/**
+	 * Returns the value of the node after the change, or the removed value
+	 * of a removed node.
+	 */
+	public V getValue() {
+		return value;
+	}
+	
+	/**
+	 * Returns the replaced value of a replaced node, or null.
+	 */
+	public V getPreviousValue() {
+		return previousValue;
+	}
+	
+	/**
+	 * Returns the key of the node's parent after an insertion or
+	 * reparenting, or before a removal, or null if it is, or was, a root or
+	 * its value was replaced.
+	 */
+	public K getParent() {
+		return parent;
+	}
+	
+	/**
+	 * Returns true if the node's descendants were inserted or removed along
+	 * with it, as when grafting or removing a subtree.
+	 */
+	public boolean isSubtree() {
+		return subtree;
+	}
+	
+	@Override
+	public boolean equals(final Object other) {
+		if (!(other instanceof TreeChange)) return false;
+		final TreeChange<?, ?> change = (TreeChange<?, ?>) other;
+		return type == change.type && subtree == change.subtree && key.equals(change.key)
+				&& Objects.equals(value, change.value) && Objects.equals(previousValue, change.previousValue)
+				&& Objects.equals(parent, change.parent);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(type, key, value, previousValue, parent, subtree);
+	}
+	
+	@Override
+	public String toString() {
+		return type + " " + key + (subtree ? " (subtree)" : "") + ((parent == null) ? "" : " under " + parent);
+	}
+
+}
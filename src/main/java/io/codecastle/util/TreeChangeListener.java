@@ -0,0 +1,30 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.List;
+
+/**
+ * Receives the structural changes made by each mutation of a tree it is
+ * registered with. It is called once per mutation which changes the tree,
+ * synchronously on the thread performing it and after the tree is
+ * consistent again, so implementations may read the tree but should be
+ * cheap.
+ *
+ * @author Doug Valenta
+ * @see LinkedHierarchicalTree#addChangeListener(TreeChangeListener)
+ */
+@FunctionalInterface
+public interface TreeChangeListener<K, V> {
+	
+	/**
+	 * Receives the changes made by a single mutation, in the order they
+	 * were made.
+	 * 
+	 * @param changes an unmodifiable list of at least one change
+	 */
+	void changed(List<TreeChange<K, V>> changes);
+
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.Iterator;
+
+/**
+ * An iterator over the nodes of a hierarchical tree which also reports how
+ * deep each node lies.
+ *
+ * @author Doug Valenta
+ */
+public interface TreeIterator<K, V> extends Iterator<HierarchicalTree.Node<K, V>> {
+	
+	/**
+	 * Returns the depth of the node last returned by {@code next}, counting
+	 * the roots of the tree as depth zero.
+	 * 
+	 * @throws IllegalStateException if there is no such node, or it has been removed
+	 */
+	int depth();
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+/**
+ * Receives a measurement of each operation performed by a tree which was
+ * created with metrics enabled. It is called synchronously on the thread
+ * performing the operation, so implementations should be cheap.
+ *
+ * @author Doug Valenta
+ * @see TreeMetricsRecorder
+ */
+@FunctionalInterface
+public interface TreeMetrics {
+	
+	enum Operation {
+		PUT,
+		GET,
+		GET_NEAREST,
+		REMOVE,
+		ITERATE,
+		/**
+		 * Moving the siblings which follow a newly inserted ancestor beneath
+		 * it. It is recorded on its own and as part of the enclosing put.
+		 */
+		REPARENT
+	}
+	
+	/**
+	 * Records a single operation.
+	 * 
+	 * @param operation the kind of operation
+	 * @param ancestorCalls the number of times the ancestor function was called
+	 * @param nodesVisited the number of nodes examined
+	 * @param siblingChain the most siblings passed over in a row at one level
+	 * @param nanos the elapsed time in nanoseconds
+	 */
+	void record(Operation operation, int ancestorCalls, int nodesVisited, int siblingChain, long nanos);
+	
+}
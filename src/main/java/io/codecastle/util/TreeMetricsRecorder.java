@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregates tree metrics into a histogram per operation and measure. Values
+ * below sixteen are counted exactly, and larger values in buckets no wider
+ * than an eighth of their lower bound, so percentiles are accurate to within
+ * about twelve percent. Recording is thread-safe and allocation-free.
+ *
+ * @author Doug Valenta
+ */
+public class TreeMetricsRecorder implements TreeMetrics {
+	
+	/**
+	 * A histogram of non-negative values.
+	 */
+	public static final class Histogram {
+		
+		private static final int EXACT = 16;
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int BUCKETS = EXACT + (63 - 4) * SUB_BUCKETS;
+		
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+		
+		void record(final long value) {
+			counts.incrementAndGet(bucket(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long current = max.get();
+			while (value > current && !max.compareAndSet(current, value)) {
+				current = max.get();
+			}
+		}
+		
+		private static int bucket(final long value) {
+			if (value < EXACT) return (int) Math.max(value, 0);
+			final int exponent = 63 - Long.numberOfLeadingZeros(value);
+			final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return EXACT + (exponent - 4) * SUB_BUCKETS + subBucket;
+		}
+		
+		private static long highestValue(final int bucket) {
+			if (bucket < EXACT) return bucket;
+			final int exponent = (bucket - EXACT) / SUB_BUCKETS + 4;
+			final int subBucket = (bucket - EXACT) % SUB_BUCKETS;
+			return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+		}
+		
+		public long count() {
+			return count.get();
+		}
+		
+		public long sum() {
+			return sum.get();
+		}
+		
+		public long max() {
+			return max.get();
+		}
+		
+		public double mean() {
+			final long count = count();
+			return (count == 0) ? 0 : (double) sum() / count;
+		}
+		
+		/**
+		 * Returns a value which the given percentage of recorded values do not
+		 * exceed, or zero if nothing has been recorded.
+		 * 
+		 * @param percentile a percentage from 0 to 100
+		 */
+		public long percentile(final double percentile) {
+			if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Percentile out of range");
+			final long total = count();
+			if (total == 0) return 0;
+			final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+			long seen = 0;
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				seen += counts.get(bucket);
+				if (seen >= rank) {
+					return Math.min(highestValue(bucket), max());
+				}
+			}
+			return max();
+		}
+		
+		void reset() {
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				counts.set(bucket, 0);
+			}
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", count(), mean(), percentile(50), percentile(90), percentile(99), max());
+		}
+	
+	}
+	
+	private final Map<Operation, Histogram> ancestorCalls = histograms();
+	private final Map<Operation, Histogram> nodesVisited = histograms();
+	private final Map<Operation, Histogram> siblingChains = histograms();
+	private final Map<Operation, Histogram> latencies = histograms();
+	
+	private static Map<Operation, Histogram> histograms() {
+		final Map<Operation, Histogram> histograms = new EnumMap<>(Operation.class);
+		for (final Operation operation : Operation.values()) {
+			histograms.put(operation, new Histogram());
+		}
+		return histograms;
+	}
+	
+	@Override
+	public void record(final Operation operation, final int ancestorCalls, final int nodesVisited, final int siblingChain, final long nanos) {
+		this.ancestorCalls.get(operation).record(ancestorCalls);
+		this.nodesVisited.get(operation).record(nodesVisited);
+		this.siblingChains.get(operation).record(siblingChain);
+		this.latencies.get(operation).record(nanos);
+	}
+	
+	public Histogram ancestorCalls(final Operation operation) {
+		return ancestorCalls.get(operation);
+	}
+	
+	public Histogram nodesVisited(final Operation operation) {
+		return nodesVisited.get(operation);
+	}
+	
+	public Histogram siblingChains(final Operation operation) {
+		return siblingChains.get(operation);
+	}
+	
+	/**
+	 * Returns the histogram of the elapsed nanoseconds of the given operation.
+	 */
+	public Histogram latencies(final Operation operation) {
+		return latencies.get(operation);
+	}
+	
+	/**
+	 * Discards everything recorded so far. Operations recorded concurrently
+	 * may be partially discarded.
+	 */
+	public void reset() {
+		for (final Operation operation : Operation.values()) {
+			ancestorCalls.get(operation).reset();
+			nodesVisited.get(operation).reset();
+			siblingChains.get(operation).reset();
+			latencies.get(operation).reset();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		for (final Operation operation : Operation.values()) {
+			if (latencies.get(operation).count() == 0) continue;
+			builder.append(operation).append('\n')
+					.append("  ancestor calls: ").append(ancestorCalls.get(operation)).append('\n')
+					.append("  nodes visited:  ").append(nodesVisited.get(operation)).append('\n')
+					.append("  sibling chain:  ").append(siblingChains.get(operation)).append('\n')
+					.append("  latency (ns):   ").append(latencies.get(operation)).append('\n');
+		}
+		return builder.toString();
+	}
+	
+}
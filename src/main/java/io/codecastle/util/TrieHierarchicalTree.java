@@ -0,0 +1,411 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * A hierarchical tree backed by a trie of key segments, with each level kept
+ * in a hash map. Lookups and mutations cost O(depth) regardless of fan-out.
+ * Keys which decompose into equal segment sequences are treated as equal.
+ *
+ * @author Doug Valenta
+ */
+public class TrieHierarchicalTree<K, V, S> implements HierarchicalTree<K, V> {
+	
+	private class Node implements HierarchicalTree.Node<K, V> {
+		
+		private Node parent;
+		private final S segment;
+		private Map<S, Node> children;
+		
+		private K key;
+		private V value;
+		
+		Node(final Node parent, final S segment) {
+			this.parent = parent;
+			this.segment = segment;
+		}
+		
+		Node child(final S segment) {
+			return (children == null) ? null : children.get(segment);
+		}
+		
+		Node putChild(final S segment) {
+			if (children == null) {
+				children = new HashMap<>();
+			}
+			Node node = children.get(segment);
+			if (node == null) {
+				node = new Node(this, segment);
+				children.put(segment, node);
+			}
+			return node;
+		}
+		
+		boolean isPrunable() {
+			return key == null && parent != null && (children == null || children.isEmpty());
+		}
+		
+		@Override
+		public K getKey() {
+			return key;
+		}
+		
+		@Override
+		public V getValue() {
+			return value;
+		}
+		
+		@Override
+		public V setValue(final V value) {
+			if (value == null) throw new IllegalArgumentException("Null value");
+			final V replaced = this.value;
+			this.value = value;
+			return replaced;
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			if (other == null) return false;
+			if (!(other instanceof Map.Entry)) {
+				return false;
+			}
+			final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return (key.equals(entry.getKey()) && value.equals(entry.getValue()));
+		}
+		
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ value.hashCode();
+		}
+	
+	}
+	
+	/**
+	 * Iterates over a copy of each node's children, so that removing a node
+	 * can prune it and its emptied ancestors from their parents' maps at once.
+	 */
+	private class NodeIterator implements Iterator<HierarchicalTree.Node<K, V>> {
+		
+		private final Deque<Iterator<Node>> iterators = new ArrayDeque<>();
+		private Node current;
+		private Node next;
+		
+		NodeIterator() {
+			iterators.push(children(root));
+			if (root.key != null) {
+				next = root;
+			}
+		}
+		
+		private Iterator<Node> children(final Node node) {
+			return (node.children == null || node.children.isEmpty()) ? Collections.<Node>emptyIterator() : new ArrayList<>(node.children.values()).iterator();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				next = advance();
+			}
+			return next != null;
+		}
+		
+		@Override
+		public Node next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException("Iterator exhausted");
+			}
+			current = next;
+			next = null;
+			return current;
+		}
+		
+		private Node advance() {
+			while (!iterators.isEmpty()) {
+				final Iterator<Node> iterator = iterators.peek();
+				if (iterator.hasNext()) {
+					final Node node = iterator.next();
+					iterators.push(children(node));
+					if (node.key != null) {
+						return node;
+					}
+				} else {
+					iterators.pop();
+				}
+			}
+			return null;
+		}
+		
+		@Override
+		public void remove() {
+			if (current == null) {
+				throw new IllegalStateException("No iteration");
+			}
+			current.key = null;
+			current.value = null;
+			prune(current);
+			current = null;
+			size--;
+		}
+	
+	}
+	
+	private final ToSegmentsFunction<K, S> toSegmentsFunction;
+	
+	private Node root = new Node(null, null);
+	private int size;
+	
+	public TrieHierarchicalTree(final ToSegmentsFunction<K, S> toSegmentsFunction) {
+		this.toSegmentsFunction = toSegmentsFunction;
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	@Override
+	public void clear() {
+		root = new Node(null, null);
+		size = 0;
+	}
+	
+	@Override
+	public Optional<V> put(final K key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		final Node node = putNode(key);
+		if (node.key == null) {
+			node.key = key;
+			node.value = value;
+			size++;
+			return Optional.empty();
+		}
+		final V replaced = node.value;
+		node.value = value;
+		return Optional.of(replaced);
+	}
+	
+	@Override
+	public boolean putIfNotPresent(final K key, final V value) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (value == null) throw new IllegalArgumentException("Null value");
+		final Node node = putNode(key);
+		if (node.key != null) {
+			return false;
+		}
+		node.key = key;
+		node.value = value;
+		size++;
+		return true;
+	}
+	
+	private Node putNode(final K key) {
+		Node node = root;
+		for (final S segment : toSegmentsFunction.apply(key)) {
+			node = node.putChild(segment);
+		}
+		return node;
+	}
+	
+	@Override
+	public Optional<V> remove(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		Node node = findNode(key);
+		if (node == null || node.key == null) {
+			return Optional.empty();
+		}
+		final V removed = node.value;
+		node.key = null;
+		node.value = null;
+		size--;
+		prune(node);
+		return Optional.of(removed);
+	}
+	
+	/**
+	 * Unlinks the given node if it has neither a key nor children, and then
+	 * each of its ancestors left in the same state.
+	 */
+	private void prune(Node node) {
+		while (node.isPrunable()) {
+			node.parent.children.remove(node.segment);
+			node = node.parent;
+		}
+	}
+	
+	/**
+	 * Removes the node for the given key together with its descendants by
+	 * unlinking it from its parent's map, and moves them into the returned
+	 * tree.
+	 */
+	@Override
+	public TrieHierarchicalTree<K, V, S> removeSubtree(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final TrieHierarchicalTree<K, V, S> detached = new TrieHierarchicalTree<>(toSegmentsFunction);
+		final Node node = findNode(key);
+		if (node == null || node.key == null) {
+			return detached;
+		}
+		final int count = count(node);
+		if (node.parent == null) {
+			detached.root = node;
+			root = new Node(null, null);
+		} else {
+			final Node parent = node.parent;
+			parent.children.remove(node.segment);
+			prune(parent);
+			final Node placeholder = detached.putNode(key);
+			placeholder.parent.children.put(node.segment, node);
+			node.parent = placeholder.parent;
+		}
+		detached.size = count;
+		size -= count;
+		return detached;
+	}
+	
+	/**
+	 * Moves every entry of the given tree into this one, putting them entry
+	 * by entry.
+	 */
+	@Override
+	public void graft(final HierarchicalTree<K, V> subtree) {
+		if (subtree == null) throw new IllegalArgumentException("Null tree");
+		if (subtree == this) throw new IllegalArgumentException("Graft onto itself");
+		for (final HierarchicalTree.Node<K, V> node : subtree) {
+			put(node.getKey(), node.getValue());
+		}
+		subtree.clear();
+	}
+	
+	/**
+	 * Returns the number of keys in the subtree of the given node.
+	 */
+	private int count(final Node top) {
+		int count = 0;
+		final Deque<Node> pending = new ArrayDeque<>();
+		pending.push(top);
+		while (!pending.isEmpty()) {
+			final Node node = pending.pop();
+			if (node.key != null) {
+				count++;
+			}
+			if (node.children != null) {
+				for (final Node child : node.children.values()) {
+					pending.push(child);
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the number of nodes in the trie, including the root and the
+	 * nodes without a key.
+	 */
+	int nodeCount() {
+		int count = 0;
+		final Deque<Node> pending = new ArrayDeque<>();
+		pending.push(root);
+		while (!pending.isEmpty()) {
+			final Node node = pending.pop();
+			count++;
+			if (node.children != null) {
+				for (final Node child : node.children.values()) {
+					pending.push(child);
+				}
+			}
+		}
+		return count;
+	}
+	
+	private Node findNode(final K key) {
+		Node node = root;
+		for (final S segment : toSegmentsFunction.apply(key)) {
+			node = node.child(segment);
+			if (node == null) return null;
+		}
+		return node;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> get(final K key) {
+		return Optional.ofNullable(getNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNode(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Node node = findNode(key);
+		if (node == null || node.key == null) return null;
+		return node;
+	}
+	
+	@Override
+	public Optional<HierarchicalTree.Node<K, V>> getNearest(final K key) {
+		return Optional.ofNullable(getNearestNode(key));
+	}
+	
+	@Override
+	public HierarchicalTree.Node<K, V> getNearestNode(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		Node node = root;
+		Node candidate = (root.key == null) ? null : root;
+		for (final S segment : toSegmentsFunction.apply(key)) {
+			node = node.child(segment);
+			if (node == null) break;
+			if (node.key != null) candidate = node;
+		}
+		return candidate;
+	}
+	
+	@Override
+	public Deque<HierarchicalTree.Node<K, V>> ancestors(final K key) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		final Deque<HierarchicalTree.Node<K, V>> ancestors = new ArrayDeque<>();
+		Node node = root;
+		if (root.key != null) ancestors.addLast(root);
+		for (final S segment : toSegmentsFunction.apply(key)) {
+			node = node.child(segment);
+			if (node == null) break;
+			if (node.key != null) ancestors.addLast(node);
+		}
+		return ancestors;
+	}
+	
+	@Override
+	public void forEachAncestor(final K key, final BiConsumer<? super K, ? super V> action) {
+		if (key == null) throw new IllegalArgumentException("Null key");
+		if (action == null) throw new IllegalArgumentException("Null action");
+		Node node = root;
+		if (root.key != null) action.accept(root.key, root.value);
+		for (final S segment : toSegmentsFunction.apply(key)) {
+			node = node.child(segment);
+			if (node == null) break;
+			if (node.key != null) action.accept(node.key, node.value);
+		}
+	}
+	
+	@Override
+	public Iterator<HierarchicalTree.Node<K, V>> iterator() {
+		return new NodeIterator();
+	}
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class ByteRadixHierarchicalTreeTest {
+	
+	private static ByteBuffer key(final String key) {
+		return ByteBuffer.wrap(key.getBytes(StandardCharsets.US_ASCII));
+	}
+	
+	@Test
+	public void testEmptyTree() {
+		ByteRadixHierarchicalTree<Object> tree = new ByteRadixHierarchicalTree<>();
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+		verifyEmpty(tree.get(key("a")));
+		verifyEmpty(tree.getNearest(key("ab")));
+		verifyEmpty(tree.getNearest(key("")));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullKey() {
+		new ByteRadixHierarchicalTree<Object>().put(null, new Object());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullValue() {
+		new ByteRadixHierarchicalTree<Object>().put(key("a"), null);
+	}
+	
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testGetNearestOutOfBounds() {
+		new ByteRadixHierarchicalTree<Object>().getNearestNode(ByteBuffer.allocate(4), 2, 3);
+	}
+	
+	@Test
+	public void testPutSplitsEdges() {
+		ByteRadixHierarchicalTree<Object> tree = new ByteRadixHierarchicalTree<>();
+		final Object valueTeam = new Object();
+		final Object valueTea = new Object();
+		final Object valueTo = new Object();
+		final Object valueRoot = new Object();
+		verifyEmpty(tree.put(key("/team/"), valueTeam));
+		verifyEmpty(tree.put(key("/tea"), valueTea));
+		verifyEmpty(tree.put(key("/to"), valueTo));
+		Assert.assertTrue(tree.putIfNotPresent(key(""), valueRoot));
+		Assert.assertFalse(tree.putIfNotPresent(key("/tea"), new Object()));
+		Assert.assertEquals(4, tree.size());
+		verifyOptionalNode(tree.getNearest(key("/team/project")), key("/team/"), valueTeam);
+		verifyOptionalNode(tree.getNearest(key("/team")), key("/tea"), valueTea);
+		verifyOptionalNode(tree.getNearest(key("/tow")), key("/to"), valueTo);
+		verifyOptionalNode(tree.getNearest(key("/t")), key(""), valueRoot);
+		verifyEmpty(tree.get(key("/te")));
+		final Object replacement = new Object();
+		verifyPresent(tree.put(key("/tea"), replacement), valueTea);
+		Assert.assertEquals(4, tree.size());
+		final List<ByteBuffer> keys = new ArrayList<>();
+		for (final HierarchicalTree.Node<ByteBuffer, Object> node : tree) {
+			keys.add(node.getKey());
+		}
+		Assert.assertEquals(Arrays.asList(key(""), key("/tea"), key("/team/"), key("/to")), keys);
+	}
+	
+	@Test
+	public void testRegionLookups() {
+		ByteRadixHierarchicalTree<Object> tree = new ByteRadixHierarchicalTree<>();
+		final Object value = new Object();
+		tree.put(key("/org/"), value);
+		final byte[] packet = "GET /org/team HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+		Assert.assertSame(value, tree.getNearestValue(packet, 4, 9, null));
+		Assert.assertNull(tree.getNearestValue(packet, 4, 4, null));
+		final ByteBuffer heap = ByteBuffer.wrap(packet);
+		heap.position(10);
+		final ByteBuffer slice = heap.slice();
+		Assert.assertNull(tree.getNearestNode(slice, 0, 3));
+		Assert.assertSame(value, tree.getNearestValue(heap, 4, 9, null));
+		final ByteBuffer direct = ByteBuffer.allocateDirect(packet.length);
+		direct.put(packet);
+		direct.flip();
+		verifyOptionalNode(tree.getNearest(direct, 4, 9), key("/org/"), value);
+		Assert.assertEquals(0, direct.position());
+		Assert.assertEquals(packet.length, direct.limit());
+		Assert.assertEquals(10, heap.position());
+	}
+	
+	@Test
+	public void testMatchesLinearScan() {
+		final Random random = new Random(42);
+		final List<byte[]> keys = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			final byte[] key = new byte[random.nextInt(8)];
+			for (int j = 0; j < key.length; j++) {
+				key[j] = (byte) (random.nextInt(4) * 85);
+			}
+			keys.add(key);
+		}
+		ByteRadixHierarchicalTree<Object> tree = new ByteRadixHierarchicalTree<>();
+		final Map<ByteBuffer, Object> entries = new HashMap<>();
+		for (int i = 0; i < 5000; i++) {
+			final ByteBuffer key = ByteBuffer.wrap(keys.get(random.nextInt(keys.size())));
+			if (random.nextInt(3) == 0) {
+				Assert.assertEquals(Optional.ofNullable(entries.remove(key)), tree.remove(key));
+			} else {
+				final Object value = new Object();
+				Assert.assertEquals(Optional.ofNullable(entries.put(key, value)), tree.put(key, value));
+			}
+			Assert.assertEquals(entries.size(), tree.size());
+			final byte[] query = keys.get(random.nextInt(keys.size()));
+			Object expected = null;
+			for (int length = query.length; length >= 0 && expected == null; length--) {
+				expected = entries.get(ByteBuffer.wrap(query, 0, length));
+			}
+			Assert.assertSame(expected, tree.getNearestValue(query, 0, query.length, null));
+		}
+		int count = 0;
+		for (final HierarchicalTree.Node<ByteBuffer, Object> node : tree) {
+			Assert.assertSame(entries.get(node.getKey()), node.getValue());
+			count++;
+		}
+		Assert.assertEquals(entries.size(), count);
+	}
+	
+	@Test
+	public void testRemoveSubtreeAndGraft() {
+		ByteRadixHierarchicalTree<Object> tree = new ByteRadixHierarchicalTree<>();
+		final Object valueOrg = new Object();
+		final Object valueTeam = new Object();
+		tree.put(key("/org/"), valueOrg);
+		tree.put(key("/org/team/"), valueTeam);
+		tree.put(key("/org/team/a"), new Object());
+		tree.put(key("/org/teams"), new Object());
+		tree.put(key("/org/other"), new Object());
+		Assert.assertTrue(tree.removeSubtree(key("/org/x")).isEmpty());
+		Assert.assertTrue(tree.removeSubtree(key("/org/te")).isEmpty());
+		Assert.assertTrue(tree.removeSubtree(key("/org/team")).isEmpty());
+		Assert.assertTrue(tree.removeSubtree(key("/org/team/a/b")).isEmpty());
+		Assert.assertEquals(5, tree.size());
+		final ByteRadixHierarchicalTree<Object> detached = tree.removeSubtree(key("/org/team/"));
+		Assert.assertEquals(2, detached.size());
+		Assert.assertEquals(2, count(detached.iterator()));
+		verifyOptionalNode(detached.getNearest(key("/org/team/b")), key("/org/team/"), valueTeam);
+		Assert.assertEquals(3, tree.size());
+		verifyOptionalNode(tree.getNearest(key("/org/team/a")), key("/org/"), valueOrg);
+		Assert.assertNotNull(tree.getNode(key("/org/teams")));
+		tree.graft(detached);
+		Assert.assertTrue(detached.isEmpty());
+		Assert.assertEquals(5, tree.size());
+		verifyOptionalNode(tree.getNearest(key("/org/team/x")), key("/org/team/"), valueTeam);
+		Assert.assertTrue(tree.removeSubtree(key("")).isEmpty());
+		Assert.assertEquals(5, tree.size());
+		tree.put(key(""), new Object());
+		final ByteRadixHierarchicalTree<Object> all = tree.removeSubtree(key(""));
+		Assert.assertEquals(6, all.size());
+		Assert.assertTrue(tree.isEmpty());
+	}
+	
+	@Test
+	public void testAncestors() {
+		ByteRadixHierarchicalTree<Object> tree = new ByteRadixHierarchicalTree<>();
+		tree.put(key(""), new Object());
+		tree.put(key("/org/"), new Object());
+		tree.put(key("/org/team/"), new Object());
+		tree.put(key("/org/teams"), new Object());
+		final Deque<HierarchicalTree.Node<ByteBuffer, Object>> ancestors = tree.ancestors(key("/org/team/x"));
+		Assert.assertEquals(3, ancestors.size());
+		Assert.assertEquals(key(""), ancestors.getFirst().getKey());
+		Assert.assertEquals(key("/org/team/"), ancestors.getLast().getKey());
+		final List<ByteBuffer> keys = new ArrayList<>();
+		tree.forEachAncestor(key("/org/tea"), (key, value) -> keys.add(key));
+		Assert.assertEquals(2, keys.size());
+	}
+	
+	@Test
+	public void testIteratorRemove() {
+		ByteRadixHierarchicalTree<Object> tree = new ByteRadixHierarchicalTree<>();
+		for (int i = 0; i < 50; i++) {
+			tree.put(key("/a/" + i), new Object());
+			tree.put(key("/a/" + i + "/b"), new Object());
+		}
+		final Iterator<HierarchicalTree.Node<ByteBuffer, Object>> iterator = tree.iterator();
+		int returned = 0;
+		while (iterator.hasNext()) {
+			final ByteBuffer key = iterator.next().getKey();
+			if (key.get(key.limit() - 1) != 'b') {
+				iterator.remove();
+			}
+			returned++;
+		}
+		Assert.assertEquals(100, returned);
+		Assert.assertEquals(50, tree.size());
+		Assert.assertEquals(50, count(tree.iterator()));
+		verifyEmpty(tree.getNearest(key("/a/7")));
+		verifyOptionalNode(tree.getNearest(key("/a/7/b/c")), key("/a/7/b"), tree.getValue(key("/a/7/b")));
+	}
+	
+	@Test
+	public void testLookupsDoNotAllocate() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		ByteRadixHierarchicalTree<Object> tree = new ByteRadixHierarchicalTree<>();
+		final ByteBuffer direct = ByteBuffer.allocateDirect(4096);
+		final int[] offsets = new int[64];
+		for (int i = 0; i < offsets.length; i++) {
+			final byte[] path = ("/org/team" + (i % 8) + "/project" + i + "/").getBytes(StandardCharsets.US_ASCII);
+			tree.put(ByteBuffer.wrap(path), new Object());
+			offsets[i] = direct.position();
+			direct.put(path).put("resource".getBytes(StandardCharsets.US_ASCII));
+		}
+		final ByteBuffer heap = ByteBuffer.allocate(direct.position());
+		direct.flip();
+		heap.put(direct.duplicate());
+		final int length = "/org/team0/project0/resource".length();
+		final long threadId = Thread.currentThread().getId();
+		threadBean.getThreadAllocatedBytes(threadId);
+		final long before = threadBean.getThreadAllocatedBytes(threadId);
+		int found = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (tree.getNearestNode(direct, offsets[i % 10], length) != null) found++;
+			if (tree.getNearestValue(heap, offsets[i % 10], length, null) != null) found++;
+		}
+		final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		Assert.assertEquals(20000, found);
+		Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+	}
+	
+	private static int count(final Iterator<?> iterator) {
+		int count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+	
+	private static <V> void verifyPresent(Optional<V> optional, final V expectedValue) {
+		Assert.assertNotNull(optional);
+		Assert.assertTrue(optional.isPresent());
+		Assert.assertEquals(expectedValue, optional.get());
+	}
+
+}
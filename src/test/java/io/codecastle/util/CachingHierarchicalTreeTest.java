@@ -0,0 +1,252 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class CachingHierarchicalTreeTest {
+	
+	@Test
+	public void testEmptyTree() {
+		CachingHierarchicalTree<MockKey, Object> tree = new CachingHierarchicalTree<>(new LinkedHierarchicalTree<>(MockKey::isParentOf), 8);
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+		verifyEmpty(tree.get(new MockKey()));
+		verifyEmpty(tree.getNearest(new MockKey()));
+		Assert.assertEquals(0, tree.hitRate(), 0);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testGetNearestWithNullKey() {
+		new CachingHierarchicalTree<>(new LinkedHierarchicalTree<MockKey, Object>(MockKey::isParentOf), 8).getNearest(null);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testNonPositiveCapacity() {
+		new CachingHierarchicalTree<>(new LinkedHierarchicalTree<MockKey, Object>(MockKey::isParentOf), 0);
+	}
+	
+	@Test
+	public void testHits() {
+		final CountingFunction function = new CountingFunction();
+		CachingHierarchicalTree<MockKey, Object> tree = new CachingHierarchicalTree<>(new LinkedHierarchicalTree<>(function), 8);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey query = new MockKey(new MockKey(key1));
+		tree.put(key1, value1);
+		verifyOptionalNode(tree.getNearest(query), key1, value1);
+		final int calls = function.calls;
+		for (int i = 0; i < 10; i++) {
+			verifyOptionalNode(tree.getNearest(query), key1, value1);
+		}
+		Assert.assertEquals(calls, function.calls);
+		Assert.assertEquals(10, tree.hitCount());
+		Assert.assertEquals(1, tree.missCount());
+		Assert.assertEquals(10.0 / 11, tree.hitRate(), 0.0001);
+	}
+	
+	@Test
+	public void testPutInvalidatesDescendants() {
+		CachingHierarchicalTree<MockKey, Object> tree = new CachingHierarchicalTree<>(new LinkedHierarchicalTree<>(MockKey::isParentOf), 8);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key1);
+		final MockKey query = new MockKey(key2);
+		final MockKey unrelated = new MockKey();
+		verifyEmpty(tree.getNearest(query));
+		verifyEmpty(tree.getNearest(unrelated));
+		tree.put(key1, value1);
+		verifyOptionalNode(tree.getNearest(query), key1, value1);
+		verifyEmpty(tree.getNearest(unrelated));
+		Assert.assertEquals(2, tree.invalidationCount());
+		verifyOptionalNode(tree.getNearest(key3), key1, value1);
+		Assert.assertTrue(tree.putIfNotPresent(key2, value2));
+		verifyOptionalNode(tree.getNearest(query), key2, value2);
+		verifyOptionalNode(tree.getNearest(key3), key1, value1);
+		Assert.assertEquals(4, tree.invalidationCount());
+		Assert.assertEquals(0, tree.hitCount());
+	}
+	
+	@Test
+	public void testPutUnrelatedKeepsResults() {
+		CachingHierarchicalTree<MockKey, Object> tree = new CachingHierarchicalTree<>(new LinkedHierarchicalTree<>(MockKey::isParentOf), 8);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey query = new MockKey(key1);
+		tree.put(key1, value1);
+		tree.getNearest(query);
+		tree.put(new MockKey(), new Object());
+		verifyOptionalNode(tree.getNearest(query), key1, value1);
+		Assert.assertEquals(1, tree.hitCount());
+		Assert.assertEquals(0, tree.invalidationCount());
+	}
+	
+	@Test
+	public void testReplaceInvalidatesPersistentNodes() {
+		CachingHierarchicalTree<MockKey, Object> tree = new CachingHierarchicalTree<>(new ConcurrentHierarchicalTree<>(MockKey::isParentOf), 8);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey query = new MockKey(key1);
+		final Object value0 = new Object();
+		tree.put(key1, value0);
+		tree.getNearest(query);
+		verifyPresent(tree.put(key1, value1), value0);
+		verifyOptionalNode(tree.getNearest(query), key1, value1);
+		Assert.assertEquals(1, tree.invalidationCount());
+	}
+	
+	@Test
+	public void testRemoveInvalidatesResolvedKey() {
+		CachingHierarchicalTree<MockKey, Object> tree = new CachingHierarchicalTree<>(new LinkedHierarchicalTree<>(MockKey::isParentOf), 8);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey query = new MockKey(key2);
+		tree.put(key1, value1);
+		tree.put(key2, new Object());
+		tree.getNearest(query);
+		verifyEmpty(tree.remove(new MockKey()));
+		Assert.assertTrue(tree.remove(key2).isPresent());
+		verifyOptionalNode(tree.getNearest(query), key1, value1);
+		Assert.assertTrue(tree.remove(key1).isPresent());
+		verifyEmpty(tree.getNearest(query));
+		Assert.assertEquals(2, tree.invalidationCount());
+	}
+	
+	@Test
+	public void testIteratorRemoveInvalidates() {
+		CachingHierarchicalTree<MockKey, Object> tree = new CachingHierarchicalTree<>(new LinkedHierarchicalTree<>(MockKey::isParentOf), 8);
+		final MockKey key1 = new MockKey();
+		final MockKey query = new MockKey(key1);
+		tree.put(key1, new Object());
+		tree.getNearest(query);
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> iterator = tree.iterator();
+		iterator.next();
+		iterator.remove();
+		Assert.assertFalse(iterator.hasNext());
+		verifyEmpty(tree.getNearest(query));
+		Assert.assertEquals(1, tree.invalidationCount());
+	}
+	
+	@Test
+	public void testIteratorRemoveInvalidatesTrieNodes() {
+		CachingHierarchicalTree<String, Object> tree = new CachingHierarchicalTree<>(new TrieHierarchicalTree<>(key -> Arrays.asList(key.split("/"))), 8);
+		final Object valueA = new Object();
+		tree.put("a", valueA);
+		tree.put("a/b", new Object());
+		Assert.assertEquals("a/b", tree.getNearestNode("a/b/c").getKey());
+		final Iterator<HierarchicalTree.Node<String, Object>> iterator = tree.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getKey().equals("a/b")) {
+				iterator.remove();
+			}
+		}
+		verifyOptionalNode(tree.getNearest("a/b/c"), "a", valueA);
+		Assert.assertEquals(1, tree.invalidationCount());
+	}
+	
+	@Test
+	public void testClear() {
+		CachingHierarchicalTree<MockKey, Object> tree = new CachingHierarchicalTree<>(new LinkedHierarchicalTree<>(MockKey::isParentOf), 8);
+		final MockKey key1 = new MockKey();
+		final MockKey query = new MockKey(key1);
+		tree.put(key1, new Object());
+		tree.getNearest(query);
+		tree.clear();
+		Assert.assertEquals(0, tree.cachedCount());
+		Assert.assertTrue(tree.isEmpty());
+		verifyEmpty(tree.getNearest(query));
+	}
+	
+	@Test
+	public void testEviction() {
+		CachingHierarchicalTree<MockKey, Object> tree = new CachingHierarchicalTree<>(new LinkedHierarchicalTree<>(MockKey::isParentOf), 2);
+		final MockKey key1 = new MockKey();
+		tree.put(key1, new Object());
+		final MockKey query1 = new MockKey(key1);
+		final MockKey query2 = new MockKey(key1);
+		final MockKey query3 = new MockKey(key1);
+		tree.getNearest(query1);
+		tree.getNearest(query2);
+		tree.getNearest(query1);
+		tree.getNearest(query3);
+		Assert.assertEquals(2, tree.cachedCount());
+		Assert.assertEquals(1, tree.evictionCount());
+		tree.getNearest(query1);
+		Assert.assertEquals(2, tree.hitCount());
+		tree.getNearest(query2);
+		Assert.assertEquals(4, tree.missCount());
+		tree.remove(key1);
+		verifyEmpty(tree.getNearest(query1));
+		verifyEmpty(tree.getNearest(query2));
+		Assert.assertEquals(2, tree.invalidationCount());
+	}
+	
+	@Test
+	public void testRemoveSubtreeAndGraftInvalidate() {
+		CachingHierarchicalTree<MockKey, Object> tree = new CachingHierarchicalTree<>(new LinkedHierarchicalTree<>(MockKey::isParentOf), 8);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final MockKey query = new MockKey(key3);
+		tree.put(key1, value1);
+		tree.put(key2, value2);
+		tree.put(key3, value3);
+		verifyOptionalNode(tree.getNearest(query), key3, value3);
+		final HierarchicalTree<MockKey, Object> detached = tree.removeSubtree(key2);
+		verifyOptionalNode(tree.getNearest(query), key1, value1);
+		tree.graft(detached);
+		verifyOptionalNode(tree.getNearest(query), key3, value3);
+		Assert.assertEquals(2, tree.invalidationCount());
+		Assert.assertEquals(3, tree.missCount());
+	}
+	
+	private static class CountingFunction implements ToBooleanBiFunction<MockKey, MockKey> {
+		
+		private int calls;
+		
+		@Override
+		public boolean apply(final MockKey first, final MockKey second) {
+			calls++;
+			return first.isParentOf(second);
+		}
+	
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+	
+	private static <V> void verifyPresent(Optional<V> optional, final V expectedValue) {
+		Assert.assertNotNull(optional);
+		Assert.assertTrue(optional.isPresent());
+		Assert.assertEquals(expectedValue, optional.get());
+	}
+
+}
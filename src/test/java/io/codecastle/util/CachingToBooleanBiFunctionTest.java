@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class CachingToBooleanBiFunctionTest {
+	
+	@Test
+	public void testCachesResults() {
+		final AtomicInteger calls = new AtomicInteger();
+		final CachingToBooleanBiFunction<String, String> function = new CachingToBooleanBiFunction<>((a, b) -> {
+			calls.incrementAndGet();
+			return b.startsWith(a + "/");
+		}, 64);
+		Assert.assertTrue(function.apply("a", "a/b"));
+		Assert.assertFalse(function.apply("a/b", "a"));
+		Assert.assertTrue(function.apply("a", new String("a/b")));
+		Assert.assertFalse(function.apply("a/b", "a"));
+		Assert.assertEquals(2, calls.get());
+		Assert.assertEquals(2, function.hitCount());
+		Assert.assertEquals(2, function.missCount());
+		Assert.assertEquals(0.5, function.hitRate(), 0);
+	}
+	
+	@Test
+	public void testCapacityIsBounded() {
+		final AtomicInteger calls = new AtomicInteger();
+		final CachingToBooleanBiFunction<Integer, Integer> function = new CachingToBooleanBiFunction<>((a, b) -> {
+			calls.incrementAndGet();
+			return a < b;
+		}, 100);
+		Assert.assertEquals(64, function.capacity());
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals(i < 500, function.apply(i, 500));
+		}
+		Assert.assertEquals(1000, calls.get());
+		for (int i = 0; i < 1000; i++) {
+			function.apply(i, 500);
+		}
+		Assert.assertTrue(function.hitCount() <= 64);
+		Assert.assertEquals(2000, function.hitCount() + function.missCount());
+	}
+	
+	@Test
+	public void testWithMaximumBytes() {
+		final ToBooleanBiFunction<Integer, Integer> lessThan = (a, b) -> a < b;
+		Assert.assertEquals((1 << 20) / CachingToBooleanBiFunction.BYTES_PER_ENTRY, CachingToBooleanBiFunction.withMaximumBytes(lessThan, 1 << 20).capacity());
+		Assert.assertEquals(1, CachingToBooleanBiFunction.withMaximumBytes(lessThan, 40).capacity());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testZeroCapacity() {
+		new CachingToBooleanBiFunction<Integer, Integer>((a, b) -> a < b, 0);
+	}
+	
+	@Test
+	public void testClear() {
+		final AtomicInteger calls = new AtomicInteger();
+		final CachingToBooleanBiFunction<Integer, Integer> function = new CachingToBooleanBiFunction<>((a, b) -> {
+			calls.incrementAndGet();
+			return a < b;
+		}, 16);
+		function.apply(1, 2);
+		function.clear();
+		function.apply(1, 2);
+		Assert.assertEquals(2, calls.get());
+		Assert.assertEquals(2, function.missCount());
+	}
+	
+	@Test
+	public void testInTree() {
+		final AtomicInteger calls = new AtomicInteger();
+		final CachingToBooleanBiFunction<MockKey, MockKey> function = new CachingToBooleanBiFunction<>((a, b) -> {
+			calls.incrementAndGet();
+			return a.isParentOf(b);
+		}, 1024);
+		final HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(function);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey();
+		tree.put(key1, value1);
+		tree.put(key2, new Object());
+		tree.put(key3, new Object());
+		final MockKey query = new MockKey(key1);
+		Assert.assertEquals(value1, tree.getNearestValue(query, null));
+		final int uncached = calls.get();
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(value1, tree.getNearestValue(query, null));
+		}
+		Assert.assertEquals(uncached, calls.get());
+	}
+	
+	@Test
+	public void testConcurrentReaders() throws Throwable {
+		final CachingToBooleanBiFunction<Integer, Integer> function = new CachingToBooleanBiFunction<>((a, b) -> a < b, 256);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int seed = t;
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 100000; i++) {
+						final int a = (i * 31 + seed) % 1000;
+						final int b = (i * 17) % 1000;
+						Assert.assertEquals(a < b, function.apply(a, b));
+					}
+				} catch (final Throwable throwable) {
+					failure.set(throwable);
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		Assert.assertEquals(400000, function.hitCount() + function.missCount());
+	}
+	
+}
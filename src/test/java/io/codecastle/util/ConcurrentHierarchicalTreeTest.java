@@ -0,0 +1,341 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class ConcurrentHierarchicalTreeTest {
+	
+	@Test
+	public void testEmptyTree() {
+		HierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+		verifyEmpty(tree.get(new MockKey()));
+		verifyEmpty(tree.getNearest(new MockKey()));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullKey() {
+		new ConcurrentHierarchicalTree<MockKey, Object>(MockKey::isParentOf).put(null, new Object());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullValue() {
+		new ConcurrentHierarchicalTree<MockKey, Object>(MockKey::isParentOf).put(new MockKey(), null);
+	}
+	
+	@Test
+	public void testPutAndReplace() {
+		HierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final Object value3 = new Object();
+		verifyEmpty(tree.put(key1, value1));
+		verifyEmpty(tree.put(key2, value2));
+		verifyPresent(tree.put(key2, value3), value2);
+		Assert.assertFalse(tree.putIfNotPresent(key1, value3));
+		Assert.assertEquals(2, tree.size());
+		verifyOptionalNode(tree.get(key1), key1, value1);
+		verifyOptionalNode(tree.get(key2), key2, value3);
+	}
+	
+	@Test
+	public void testPutParentOfMixedSiblings() {
+		HierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey();
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey(key1);
+		final Object value4 = new Object();
+		final MockKey key5 = new MockKey();
+		final Object value5 = new Object();
+		tree.put(key2, value2);
+		tree.put(key3, value3);
+		tree.put(key4, value4);
+		tree.put(key5, value5);
+		Assert.assertTrue(tree.putIfNotPresent(key1, value1));
+		Assert.assertEquals(5, tree.size());
+		verifyOptionalNode(tree.get(key3), key3, value3);
+		verifyOptionalNode(tree.get(key5), key5, value5);
+		verifyOptionalNode(tree.getNearest(new MockKey(key1)), key1, value1);
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key2, value2);
+		verifyOptionalNode(tree.getNearest(new MockKey(key4)), key4, value4);
+		Assert.assertEquals(5, count(tree.iterator()));
+	}
+	
+	@Test
+	public void testRemoveWithChildrenAndNext() {
+		HierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey(key2);
+		final MockKey key5 = new MockKey(key1);
+		final Object value5 = new Object();
+		for (final MockKey key : Arrays.asList(key1, key2, key3, key4, key5)) {
+			tree.put(key, new Object());
+		}
+		tree.put(key2, value2);
+		tree.put(key3, value3);
+		tree.put(key5, value5);
+		verifyPresent(tree.remove(key2), value2);
+		verifyEmpty(tree.remove(key2));
+		verifyEmpty(tree.remove(new MockKey(key3)));
+		Assert.assertEquals(4, tree.size());
+		verifyEmpty(tree.get(key2));
+		verifyOptionalNode(tree.getNearest(new MockKey(key3)), key3, value3);
+		verifyOptionalNode(tree.getNearest(new MockKey(key5)), key5, value5);
+		Assert.assertTrue(tree.get(key4).isPresent());
+		Assert.assertEquals(4, count(tree.iterator()));
+	}
+	
+	@Test(expected=UnsupportedOperationException.class)
+	public void testSetNodeValue() {
+		HierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key = new MockKey();
+		tree.put(key, new Object());
+		tree.getNode(key).setValue(new Object());
+	}
+	
+	@Test
+	public void testIteratorIsSnapshot() {
+		HierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey();
+		tree.put(key1, new Object());
+		tree.put(key2, new Object());
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> iterator = tree.iterator();
+		tree.put(key3, new Object());
+		final Set<MockKey> iterated = new HashSet<>();
+		while (iterator.hasNext()) {
+			final MockKey key = iterator.next().getKey();
+			iterated.add(key);
+			if (key == key1) {
+				iterator.remove();
+			}
+		}
+		Assert.assertEquals(new HashSet<>(Arrays.asList(key1, key2)), iterated);
+		Assert.assertEquals(2, tree.size());
+		verifyEmpty(tree.get(key1));
+		Assert.assertTrue(tree.get(key2).isPresent());
+		Assert.assertTrue(tree.get(key3).isPresent());
+	}
+	
+	@Test
+	public void testSnapshotAndUpdate() {
+		ConcurrentHierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		tree.put(key1, new Object());
+		final PersistentHierarchicalTree<MockKey, Object> snapshot = tree.snapshot();
+		final PersistentHierarchicalTree<MockKey, Object> updated = tree.update(current -> current.remove(key1).put(key2, new Object()));
+		Assert.assertSame(updated, tree.snapshot());
+		Assert.assertEquals(1, snapshot.size());
+		Assert.assertTrue(snapshot.get(key1).isPresent());
+		verifyEmpty(tree.get(key1));
+		Assert.assertTrue(tree.get(key2).isPresent());
+	}
+	
+	@Test
+	public void testPutAll() {
+		HierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		tree.put(key2, new Object());
+		final Map<MockKey, Object> map = new LinkedHashMap<>();
+		map.put(key2, value2);
+		map.put(key1, value1);
+		tree.putAll(map);
+		Assert.assertEquals(2, tree.size());
+		verifyOptionalNode(tree.get(key2), key2, value2);
+		verifyOptionalNode(tree.getNearest(new MockKey(key1)), key1, value1);
+	}
+	
+	@Test
+	public void testRemoveSubtreeAndGraft() {
+		ConcurrentHierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey(key1);
+		tree.put(key1, value1);
+		tree.put(key2, value2);
+		tree.put(key3, value3);
+		tree.put(key4, new Object());
+		final PersistentHierarchicalTree<MockKey, Object> snapshot = tree.snapshot();
+		final HierarchicalTree<MockKey, Object> detached = tree.removeSubtree(key2);
+		Assert.assertEquals(2, detached.size());
+		Assert.assertEquals(2, tree.size());
+		Assert.assertEquals(4, snapshot.size());
+		verifyOptionalNode(tree.getNearest(new MockKey(key3)), key1, value1);
+		verifyOptionalNode(detached.getNearest(new MockKey(key3)), key3, value3);
+		Assert.assertTrue(tree.removeSubtree(key2).isEmpty());
+		tree.graft(detached);
+		Assert.assertTrue(detached.isEmpty());
+		Assert.assertEquals(4, tree.size());
+		Assert.assertEquals(4, count(tree.iterator()));
+		verifyOptionalNode(tree.getNearest(new MockKey(key3)), key3, value3);
+		final HierarchicalTree<MockKey, Object> linked = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key5 = new MockKey(key4);
+		final Object value5 = new Object();
+		linked.put(key5, value5);
+		tree.graft(linked);
+		Assert.assertEquals(5, tree.size());
+		verifyOptionalNode(tree.getNearest(new MockKey(key5)), key5, value5);
+	}
+	
+	@Test
+	public void testClear() {
+		HierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		tree.put(key1, new Object());
+		tree.clear();
+		Assert.assertTrue(tree.isEmpty());
+		verifyEmpty(tree.get(key1));
+	}
+	
+	@Test
+	public void testReadersDuringWrites() throws Throwable {
+		final HierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey parent = new MockKey();
+		final Object parentValue = new Object();
+		tree.put(parent, parentValue);
+		final List<MockKey> children = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			children.add(new MockKey(parent));
+		}
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		final List<Thread> readers = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			readers.add(new Thread(() -> {
+				try {
+					while (done.getCount() > 0) {
+						for (final MockKey child : children) {
+							final HierarchicalTree.Node<MockKey, Object> nearest = tree.getNearestNode(new MockKey(child));
+							Assert.assertTrue(nearest.getKey() == child || nearest.getKey() == parent);
+						}
+					}
+				} catch (final Throwable throwable) {
+					failure.set(throwable);
+				}
+			}));
+		}
+		readers.forEach(Thread::start);
+		for (int round = 0; round < 20; round++) {
+			for (final MockKey child : children) {
+				tree.put(child, new Object());
+			}
+			tree.remove(parent);
+			tree.put(parent, parentValue);
+			for (final MockKey child : children) {
+				tree.remove(child);
+			}
+		}
+		done.countDown();
+		for (final Thread reader : readers) {
+			reader.join();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		Assert.assertEquals(1, tree.size());
+	}
+	
+	@Test
+	public void testGraftDuringWritesToSource() throws Throwable {
+		final ConcurrentHierarchicalTree<MockKey, Object> tree = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final ConcurrentHierarchicalTree<MockKey, Object> source = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final List<MockKey> keys = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			keys.add(new MockKey());
+		}
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread writer = new Thread(() -> {
+			try {
+				for (final MockKey key : keys) {
+					source.put(key, new Object());
+				}
+			} catch (final Throwable throwable) {
+				failure.set(throwable);
+			}
+		});
+		writer.start();
+		while (writer.isAlive()) {
+			tree.graft(source);
+		}
+		writer.join();
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		tree.graft(source);
+		Assert.assertTrue(source.isEmpty());
+		Assert.assertEquals(keys.size(), tree.size());
+		for (final MockKey key : keys) {
+			Assert.assertTrue(tree.get(key).isPresent());
+		}
+	}
+	
+	private static int count(final Iterator<?> iterator) {
+		int count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+	
+	private static <V> void verifyPresent(Optional<V> optional, final V expectedValue) {
+		Assert.assertNotNull(optional);
+		Assert.assertTrue(optional.isPresent());
+		Assert.assertEquals(expectedValue, optional.get());
+	}
+
+}
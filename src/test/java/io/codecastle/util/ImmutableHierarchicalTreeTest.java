@@ -0,0 +1,278 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class ImmutableHierarchicalTreeTest {
+	
+	@Test
+	public void testEmptyTree() {
+		ReadableHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<MockKey, Object>(MockKey::isParentOf).freeze();
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+		verifyEmpty(tree.get(new MockKey()));
+		verifyEmpty(tree.getNearest(new MockKey()));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testGetWithNullKey() {
+		new LinkedHierarchicalTree<MockKey, Object>(MockKey::isParentOf).freeze().get(null);
+	}
+	
+	@Test
+	public void testFreeze() {
+		LinkedHierarchicalTree<MockKey, Object> linked = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey(key1);
+		final Object value4 = new Object();
+		final MockKey key5 = new MockKey();
+		final Object value5 = new Object();
+		linked.put(key3, value3);
+		linked.put(key5, value5);
+		linked.put(key4, value4);
+		linked.put(key2, value2);
+		linked.put(key1, value1);
+		final ImmutableHierarchicalTree<MockKey, Object> tree = linked.freeze();
+		linked.remove(key1);
+		Assert.assertEquals(5, tree.size());
+		verifyOptionalNode(tree.get(key1), key1, value1);
+		verifyOptionalNode(tree.get(key3), key3, value3);
+		verifyOptionalNode(tree.get(key5), key5, value5);
+		verifyEmpty(tree.get(new MockKey(key2)));
+		verifyOptionalNode(tree.getNearest(new MockKey(key1)), key1, value1);
+		verifyOptionalNode(tree.getNearest(new MockKey(key3)), key3, value3);
+		verifyOptionalNode(tree.getNearest(new MockKey(key4)), key4, value4);
+		verifyOptionalNode(tree.getNearest(new MockKey(key5)), key5, value5);
+		verifyEmpty(tree.getNearest(new MockKey()));
+	}
+	
+	@Test
+	public void testCopyOf() {
+		HierarchicalTree<MockKey, Object> source = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		source.put(key2, value2);
+		source.put(key1, value1);
+		final ImmutableHierarchicalTree<MockKey, Object> tree = ImmutableHierarchicalTree.copyOf(source, MockKey::isParentOf);
+		source.clear();
+		Assert.assertEquals(2, tree.size());
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key2, value2);
+		verifyOptionalNode(tree.getNearest(new MockKey(key1)), key1, value1);
+	}
+	
+	@Test
+	public void testCopyOfWideTree() {
+		final LinkedHierarchicalTree<MockKey, Object> linked = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		linked.put(key1, new Object());
+		final List<MockKey> children = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			final MockKey child = new MockKey(key1);
+			children.add(child);
+			linked.put(child, new Object());
+		}
+		final HierarchicalTree<MockKey, Object> source = new ConcurrentHierarchicalTree<>(MockKey::isParentOf);
+		for (final HierarchicalTree.Node<MockKey, Object> node : linked) {
+			source.put(node.getKey(), node.getValue());
+		}
+		final int[] calls = new int[1];
+		final ToBooleanBiFunction<MockKey, MockKey> counting = (a, b) -> {
+			calls[0]++;
+			return a.isParentOf(b);
+		};
+		final ImmutableHierarchicalTree<MockKey, Object> copy = ImmutableHierarchicalTree.copyOf(source, counting);
+		Assert.assertTrue(calls[0] <= 3 * source.size());
+		final ImmutableHierarchicalTree<MockKey, Object> frozen = ImmutableHierarchicalTree.copyOf(linked, counting);
+		linked.clear();
+		for (final ImmutableHierarchicalTree<MockKey, Object> tree : Arrays.asList(copy, frozen)) {
+			Assert.assertEquals(1001, tree.size());
+			for (final MockKey child : children) {
+				Assert.assertEquals(child, tree.getNearestNode(new MockKey(child)).getKey());
+			}
+		}
+	}
+	
+	@Test
+	public void testGetValue() {
+		LinkedHierarchicalTree<MockKey, Object> linked = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final Object defaultValue = new Object();
+		linked.put(key1, value1);
+		final ReadableHierarchicalTree<MockKey, Object> tree = linked.freeze();
+		Assert.assertEquals(value1, tree.getValue(key1));
+		Assert.assertNull(tree.getValue(new MockKey(key1)));
+		Assert.assertEquals(value1, tree.getNearestValue(new MockKey(key1), defaultValue));
+		Assert.assertEquals(defaultValue, tree.getNearestValue(new MockKey(), defaultValue));
+		Assert.assertSame(tree.getNode(key1), tree.getNearestNode(new MockKey(key1)));
+	}
+	
+	@Test
+	public void testIteratorIsPreorder() {
+		LinkedHierarchicalTree<MockKey, Object> linked = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key1);
+		final MockKey key5 = new MockKey();
+		for (final MockKey key : Arrays.asList(key5, key3, key4, key2, key1)) {
+			linked.put(key, new Object());
+		}
+		final List<MockKey> iterated = new ArrayList<>();
+		for (final HierarchicalTree.Node<MockKey, Object> node : linked.freeze()) {
+			iterated.add(node.getKey());
+		}
+		Assert.assertEquals(5, iterated.size());
+		Assert.assertEquals(new HashSet<>(Arrays.asList(key1, key2, key3, key4, key5)), new HashSet<>(iterated));
+		for (int i = 0; i < iterated.size(); i++) {
+			for (int j = 0; j < i; j++) {
+				Assert.assertFalse(iterated.get(i).isParentOf(iterated.get(j)));
+			}
+		}
+	}
+	
+	@Test
+	public void testSubtree() {
+		LinkedHierarchicalTree<MockKey, Object> linked = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key1);
+		final MockKey key5 = new MockKey();
+		for (final MockKey key : Arrays.asList(key1, key2, key3, key4, key5)) {
+			linked.put(key, new Object());
+		}
+		final ImmutableHierarchicalTree<MockKey, Object> tree = linked.freeze();
+		Assert.assertEquals(new HashSet<>(Arrays.asList(key1, key2, key3, key4)), keys(tree.subtree(key1)));
+		Assert.assertEquals(new HashSet<>(Arrays.asList(key2, key3)), keys(tree.subtree(key2)));
+		Assert.assertEquals(new HashSet<>(Arrays.asList(key5)), keys(tree.subtree(key5)));
+		Assert.assertTrue(keys(tree.subtree(new MockKey(key1))).isEmpty());
+	}
+	
+	@Test
+	public void testAncestors() {
+		LinkedHierarchicalTree<MockKey, Object> linked = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key1);
+		for (final MockKey key : Arrays.asList(key4, key3, key1, new MockKey())) {
+			linked.put(key, new Object());
+		}
+		final ImmutableHierarchicalTree<MockKey, Object> tree = linked.freeze();
+		final List<MockKey> ancestors = new ArrayList<>();
+		for (final HierarchicalTree.Node<MockKey, Object> node : tree.ancestors(new MockKey(key3))) {
+			ancestors.add(node.getKey());
+		}
+		Assert.assertEquals(Arrays.asList(key1, key3), ancestors);
+		final List<MockKey> keys = new ArrayList<>();
+		tree.forEachAncestor(key4, (key, value) -> keys.add(key));
+		Assert.assertEquals(Arrays.asList(key1, key4), keys);
+		Assert.assertTrue(tree.ancestors(new MockKey()).isEmpty());
+	}
+	
+	@Test(expected=NoSuchElementException.class)
+	public void testIteratorExhausted() {
+		LinkedHierarchicalTree<MockKey, Object> linked = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		linked.put(new MockKey(), new Object());
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> iterator = linked.freeze().iterator();
+		iterator.next();
+		iterator.next();
+	}
+	
+	@Test
+	public void testThaw() {
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key1);
+		final MockKey key5 = new MockKey();
+		final int[] calls = new int[1];
+		LinkedHierarchicalTree<MockKey, Object> linked = new LinkedHierarchicalTree<>((first, second) -> {
+			calls[0]++;
+			return first.isParentOf(second);
+		});
+		for (final MockKey key : Arrays.asList(key3, key5, key4, key2, key1)) {
+			linked.put(key, new Object());
+		}
+		final ImmutableHierarchicalTree<MockKey, Object> tree = linked.freeze();
+		calls[0] = 0;
+		final LinkedHierarchicalTree<MockKey, Object> thawed = tree.thaw();
+		Assert.assertEquals(0, calls[0]);
+		Assert.assertEquals(5, thawed.size());
+		final List<MockKey> expected = new ArrayList<>();
+		for (final HierarchicalTree.Node<MockKey, Object> node : tree) {
+			expected.add(node.getKey());
+		}
+		final List<MockKey> actual = new ArrayList<>();
+		for (final HierarchicalTree.Node<MockKey, Object> node : thawed) {
+			actual.add(node.getKey());
+		}
+		Assert.assertEquals(expected, actual);
+		thawed.remove(key2);
+		verifyOptionalNode(thawed.getNearest(key3), key3, tree.getValue(key3));
+		verifyOptionalNode(thawed.getNearest(new MockKey(key2)), key1, tree.getValue(key1));
+		final MockKey key6 = new MockKey(key4);
+		thawed.put(key6, new Object());
+		final List<MockKey> ancestors = new ArrayList<>();
+		for (final HierarchicalTree.Node<MockKey, Object> node : thawed.ancestors(key6)) {
+			ancestors.add(node.getKey());
+		}
+		Assert.assertEquals(Arrays.asList(key1, key4, key6), ancestors);
+	}
+	
+	@Test(expected=UnsupportedOperationException.class)
+	public void testSetNodeValue() {
+		LinkedHierarchicalTree<MockKey, Object> linked = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key = new MockKey();
+		linked.put(key, new Object());
+		linked.freeze().getNode(key).setValue(new Object());
+	}
+	
+	private static Set<MockKey> keys(final Iterable<HierarchicalTree.Node<MockKey, Object>> nodes) {
+		final Set<MockKey> keys = new HashSet<>();
+		for (final HierarchicalTree.Node<MockKey, Object> node : nodes) {
+			Assert.assertTrue(keys.add(node.getKey()));
+		}
+		return keys;
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+
+}
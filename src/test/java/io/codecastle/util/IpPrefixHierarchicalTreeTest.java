@@ -0,0 +1,315 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class IpPrefixHierarchicalTreeTest {
+	
+	private static int ipv4(final int a, final int b, final int c, final int d) {
+		return (a << 24) | (b << 16) | (c << 8) | d;
+	}
+	
+	@Test
+	public void testEmptyTree() {
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+		verifyEmpty(tree.get(IpPrefix.ipv4(0, 0)));
+		verifyEmpty(tree.getNearest(IpPrefix.ipv6(1, 2, 128)));
+		Assert.assertNull(tree.getNearestIpv4(ipv4(10, 0, 0, 1), null));
+	}
+	
+	@Test
+	public void testPrefix() {
+		final IpPrefix network = IpPrefix.ipv4(ipv4(10, 1, 2, 3), 16);
+		Assert.assertEquals(IpPrefix.ipv4(ipv4(10, 1, 0, 0), 16), network);
+		Assert.assertEquals(IpPrefix.ipv4(ipv4(10, 1, 0, 0), 16).hashCode(), network.hashCode());
+		Assert.assertEquals("10.1.0.0/16", network.toString());
+		Assert.assertTrue(network.isIpv4());
+		Assert.assertEquals(112, network.getLength());
+		Assert.assertTrue(IpPrefix.ipv4(0, 0).isAncestorOf(network));
+		Assert.assertTrue(network.isAncestorOf(IpPrefix.ipv4(ipv4(10, 1, 255, 255), 32)));
+		Assert.assertFalse(network.isAncestorOf(network));
+		Assert.assertFalse(network.isAncestorOf(IpPrefix.ipv4(ipv4(10, 2, 0, 0), 24)));
+		Assert.assertTrue(IpPrefix.ipv6(0, 0, 0).isAncestorOf(network));
+		final IpPrefix documentation = IpPrefix.ipv6(0x20010db8ffffffffL, -1L, 32);
+		Assert.assertFalse(documentation.isIpv4());
+		Assert.assertEquals("2001:db8:0:0:0:0:0:0/32", documentation.toString());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidPrefixLength() {
+		IpPrefix.ipv4(0, 33);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullKey() {
+		new IpPrefixHierarchicalTree<Object>().put(null, new Object());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullValue() {
+		new IpPrefixHierarchicalTree<Object>().putIpv4(0, 0, null);
+	}
+	
+	@Test
+	public void testLongestPrefixMatch() {
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		final Object defaultRoute = new Object();
+		final Object value8 = new Object();
+		final Object value16 = new Object();
+		final Object value24 = new Object();
+		final Object value6 = new Object();
+		Assert.assertNull(tree.putIpv4(0, 0, defaultRoute));
+		Assert.assertNull(tree.putIpv4(ipv4(10, 1, 2, 0), 24, value24));
+		Assert.assertNull(tree.putIpv4(ipv4(10, 0, 0, 0), 8, value8));
+		Assert.assertTrue(tree.putIfNotPresent(IpPrefix.ipv4(ipv4(10, 1, 0, 0), 16), value16));
+		Assert.assertFalse(tree.putIfNotPresent(IpPrefix.ipv4(ipv4(10, 1, 0, 0), 16), new Object()));
+		Assert.assertNull(tree.putIpv6(0x20010db800000000L, 0, 32, value6));
+		Assert.assertEquals(5, tree.size());
+		Assert.assertSame(value24, tree.getNearestIpv4(ipv4(10, 1, 2, 3), null));
+		Assert.assertSame(value16, tree.getNearestIpv4(ipv4(10, 1, 3, 3), null));
+		Assert.assertSame(value8, tree.getNearestIpv4(ipv4(10, 2, 2, 3), null));
+		Assert.assertSame(defaultRoute, tree.getNearestIpv4(ipv4(192, 168, 0, 1), null));
+		Assert.assertSame(value6, tree.getNearestIpv6(0x20010db812345678L, 1, null));
+		Assert.assertNull(tree.getNearestIpv6(0x20010db900000000L, 1, null));
+		verifyOptionalNode(tree.getNearest(IpPrefix.ipv4(ipv4(10, 1, 2, 0), 23)), IpPrefix.ipv4(ipv4(10, 1, 0, 0), 16), value16);
+		verifyOptionalNode(tree.get(IpPrefix.ipv4(ipv4(10, 0, 0, 0), 8)), IpPrefix.ipv4(ipv4(10, 0, 0, 0), 8), value8);
+		verifyEmpty(tree.get(IpPrefix.ipv4(ipv4(10, 0, 0, 0), 9)));
+		Assert.assertSame(value8, tree.putIpv4(ipv4(10, 9, 9, 9), 8, value16));
+		Assert.assertEquals(5, tree.size());
+	}
+	
+	@Test
+	public void testRemove() {
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		final Object value8 = new Object();
+		final Object value24 = new Object();
+		tree.putIpv4(ipv4(10, 0, 0, 0), 8, value8);
+		tree.putIpv4(ipv4(10, 1, 2, 0), 24, value24);
+		tree.putIpv4(ipv4(10, 1, 3, 0), 24, new Object());
+		Assert.assertNull(tree.removeIpv4(ipv4(10, 1, 0, 0), 16));
+		Assert.assertNull(tree.removeIpv4(ipv4(11, 0, 0, 0), 8));
+		Assert.assertTrue(tree.remove(IpPrefix.ipv4(ipv4(10, 1, 3, 0), 24)).isPresent());
+		Assert.assertSame(value8, tree.getNearestIpv4(ipv4(10, 1, 3, 1), null));
+		Assert.assertSame(value8, tree.removeIpv4(ipv4(10, 0, 0, 0), 8));
+		Assert.assertNull(tree.getNearestIpv4(ipv4(10, 1, 3, 1), null));
+		Assert.assertSame(value24, tree.getNearestIpv4(ipv4(10, 1, 2, 1), null));
+		Assert.assertEquals(1, tree.size());
+		Assert.assertEquals(1, count(tree.iterator()));
+	}
+	
+	@Test
+	public void testMatchesLinearScan() {
+		final Random random = new Random(42);
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		final Map<IpPrefix, Object> entries = new HashMap<>();
+		final List<IpPrefix> prefixes = new ArrayList<>();
+		for (int i = 0; i < 400; i++) {
+			prefixes.add(IpPrefix.ipv4(random.nextInt() & 0xff00ff00, random.nextInt(33)));
+			prefixes.add(IpPrefix.ipv6(random.nextLong() & 0xf0f0000000000000L, random.nextLong(), random.nextInt(129)));
+		}
+		for (int i = 0; i < 5000; i++) {
+			final IpPrefix prefix = prefixes.get(random.nextInt(prefixes.size()));
+			if (random.nextInt(3) == 0) {
+				Assert.assertEquals(Optional.ofNullable(entries.remove(prefix)), tree.remove(prefix));
+			} else {
+				final Object value = new Object();
+				Assert.assertEquals(Optional.ofNullable(entries.put(prefix, value)), tree.put(prefix, value));
+			}
+			Assert.assertEquals(entries.size(), tree.size());
+			final IpPrefix query = prefixes.get(random.nextInt(prefixes.size()));
+			IpPrefix nearest = null;
+			for (final IpPrefix candidate : entries.keySet()) {
+				if ((candidate.equals(query) || candidate.isAncestorOf(query)) && (nearest == null || candidate.getLength() > nearest.getLength())) {
+					nearest = candidate;
+				}
+			}
+			final HierarchicalTree.Node<IpPrefix, Object> node = tree.getNearestNode(query);
+			Assert.assertEquals(nearest, (node == null) ? null : node.getKey());
+		}
+		Assert.assertEquals(entries.size(), count(tree.iterator()));
+		IpPrefix previous = null;
+		for (final HierarchicalTree.Node<IpPrefix, Object> node : tree) {
+			Assert.assertSame(entries.get(node.getKey()), node.getValue());
+			if (previous != null) {
+				Assert.assertFalse(node.getKey().isAncestorOf(previous));
+			}
+			previous = node.getKey();
+		}
+	}
+	
+	@Test
+	public void testRemoveSubtreeAndGraft() {
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		final Object value8 = new Object();
+		tree.putIpv4(ipv4(10, 0, 0, 0), 8, value8);
+		tree.putIpv4(ipv4(10, 1, 0, 0), 16, new Object());
+		tree.putIpv4(ipv4(10, 1, 2, 0), 24, new Object());
+		tree.putIpv4(ipv4(10, 1, 3, 0), 24, new Object());
+		tree.putIpv4(ipv4(10, 1, 3, 128), 25, new Object());
+		tree.putIpv4(ipv4(10, 2, 0, 0), 16, new Object());
+		final IpPrefixHierarchicalTree<Object> detached = tree.removeSubtree(IpPrefix.ipv4(ipv4(10, 1, 0, 0), 16));
+		Assert.assertEquals(4, detached.size());
+		Assert.assertEquals(4, count(detached.iterator()));
+		Assert.assertEquals(2, tree.size());
+		Assert.assertEquals(2, count(tree.iterator()));
+		Assert.assertSame(value8, tree.getNearestIpv4(ipv4(10, 1, 3, 129), null));
+		Assert.assertTrue(tree.removeSubtree(IpPrefix.ipv4(ipv4(10, 1, 0, 0), 16)).isEmpty());
+		tree.graft(detached);
+		Assert.assertTrue(detached.isEmpty());
+		Assert.assertEquals(6, tree.size());
+		Assert.assertNotSame(value8, tree.getNearestIpv4(ipv4(10, 1, 3, 129), null));
+	}
+	
+	@Test
+	public void testRemoveSubtreeOfAbsentPrefix() {
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		final Object value = new Object();
+		tree.putIpv4(ipv4(10, 1, 0, 0), 16, value);
+		Assert.assertTrue(tree.removeSubtree(IpPrefix.ipv4(ipv4(10, 0, 0, 0), 8)).isEmpty());
+		Assert.assertEquals(1, tree.size());
+		Assert.assertSame(value, tree.getNearestIpv4(ipv4(10, 1, 2, 3), null));
+		tree.putIpv4(ipv4(10, 128, 0, 0), 16, new Object());
+		Assert.assertTrue(tree.removeSubtree(IpPrefix.ipv4(ipv4(10, 0, 0, 0), 8)).isEmpty());
+		Assert.assertTrue(tree.removeSubtree(IpPrefix.ipv4(ipv4(10, 1, 2, 0), 24)).isEmpty());
+		Assert.assertEquals(2, tree.size());
+		Assert.assertEquals(2, count(tree.iterator()));
+		Assert.assertSame(value, tree.getNearestIpv4(ipv4(10, 1, 2, 3), null));
+	}
+	
+	@Test
+	public void testAncestors() {
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		tree.putIpv4(0, 0, new Object());
+		tree.putIpv4(ipv4(10, 0, 0, 0), 8, new Object());
+		tree.putIpv4(ipv4(10, 1, 2, 0), 24, new Object());
+		tree.putIpv4(ipv4(10, 1, 3, 0), 24, new Object());
+		final Deque<HierarchicalTree.Node<IpPrefix, Object>> ancestors = tree.ancestors(IpPrefix.ipv4(ipv4(10, 1, 2, 7), 32));
+		Assert.assertEquals(3, ancestors.size());
+		Assert.assertEquals(IpPrefix.ipv4(0, 0), ancestors.getFirst().getKey());
+		Assert.assertEquals(IpPrefix.ipv4(ipv4(10, 1, 2, 0), 24), ancestors.getLast().getKey());
+		final List<IpPrefix> keys = new ArrayList<>();
+		tree.forEachAncestor(IpPrefix.ipv4(ipv4(10, 1, 0, 0), 16), (key, value) -> keys.add(key));
+		Assert.assertEquals(2, keys.size());
+	}
+	
+	@Test
+	public void testForEachAncestorPassesQueryKey() {
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		tree.putIpv4(ipv4(10, 0, 0, 0), 8, new Object());
+		tree.putIpv4(ipv4(10, 1, 2, 0), 24, new Object());
+		final IpPrefix query = IpPrefix.ipv4(ipv4(10, 1, 2, 0), 24);
+		final List<IpPrefix> keys = new ArrayList<>();
+		tree.forEachAncestor(query, (key, value) -> keys.add(key));
+		Assert.assertEquals(2, keys.size());
+		Assert.assertEquals(IpPrefix.ipv4(ipv4(10, 0, 0, 0), 8), keys.get(0));
+		Assert.assertSame(query, keys.get(1));
+	}
+	
+	@Test
+	public void testIteratorRemove() {
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		final Random random = new Random(42);
+		for (int i = 0; i < 200; i++) {
+			tree.putIpv4(random.nextInt(), random.nextInt(33), new Object());
+		}
+		final int size = tree.size();
+		final Iterator<HierarchicalTree.Node<IpPrefix, Object>> iterator = tree.iterator();
+		int removed = 0;
+		int returned = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			if (returned++ % 2 == 0) {
+				iterator.remove();
+				removed++;
+			}
+		}
+		Assert.assertEquals(size, returned);
+		Assert.assertEquals(size - removed, tree.size());
+		Assert.assertEquals(size - removed, count(tree.iterator()));
+		final Iterator<HierarchicalTree.Node<IpPrefix, Object>> remaining = tree.iterator();
+		while (remaining.hasNext()) {
+			remaining.next();
+			remaining.remove();
+		}
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testIteratorRemoveWithoutNext() {
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		tree.putIpv4(0, 0, new Object());
+		tree.iterator().remove();
+	}
+	
+	@Test
+	public void testLookupsDoNotAllocate() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		IpPrefixHierarchicalTree<Object> tree = new IpPrefixHierarchicalTree<>();
+		final Random random = new Random(42);
+		final Object value = new Object();
+		for (int i = 0; i < 1000; i++) {
+			tree.putIpv4(random.nextInt(), 8 + random.nextInt(25), value);
+			tree.putIpv6(random.nextLong(), random.nextLong(), random.nextInt(129), value);
+		}
+		final long threadId = Thread.currentThread().getId();
+		threadBean.getThreadAllocatedBytes(threadId);
+		final long before = threadBean.getThreadAllocatedBytes(threadId);
+		int found = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (tree.getNearestIpv4(i * 0x9e3779b9, null) != null) found++;
+			if (tree.getNearestIpv6(i * 0x9e3779b97f4a7c15L, i, null) != null) found++;
+		}
+		final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		Assert.assertTrue(found > 0);
+		Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+	}
+	
+	private static int count(final Iterator<?> iterator) {
+		int count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+
+}
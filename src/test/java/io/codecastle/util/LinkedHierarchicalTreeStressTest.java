@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Exercises wide and deep trees on a thread with a deliberately small stack,
+ * so that any traversal which grows the stack per node fails.
+ *
+ * @author Doug Valenta
+ */
+public class LinkedHierarchicalTreeStressTest {
+	
+	private static final long STACK_SIZE = 128 * 1024;
+	private static final int DEEP = 1000000;
+	private static final int WIDE = 20000;
+	private static final int BUILT = 1000000;
+	
+	@Test
+	public void testDeepTree() throws Throwable {
+		runWithSmallStack(() -> {
+			final HierarchicalTree<RangeKey, Integer> tree = new LinkedHierarchicalTree<>(RangeKey::isParentOf);
+			for (int i = DEEP - 1; i >= 0; i--) {
+				tree.put(new RangeKey(i, 2 * DEEP - i), i);
+			}
+			Assert.assertEquals(DEEP, tree.size());
+			final RangeKey deepest = new RangeKey(DEEP - 1, DEEP + 1);
+			Assert.assertEquals(Integer.valueOf(DEEP - 1), tree.get(deepest).get().getValue());
+			Assert.assertEquals(Integer.valueOf(DEEP - 1), tree.getNearest(new RangeKey(DEEP, DEEP)).get().getValue());
+			Assert.assertEquals(Integer.valueOf(DEEP / 2), tree.remove(new RangeKey(DEEP / 2, DEEP + DEEP / 2)).get());
+			Assert.assertEquals(Integer.valueOf(DEEP / 2 - 1), tree.getNearest(new RangeKey(DEEP / 2, DEEP + DEEP / 2)).get().getValue());
+			Assert.assertTrue(tree.putIfNotPresent(new RangeKey(DEEP / 2, DEEP + DEEP / 2), DEEP / 2));
+			Assert.assertEquals(DEEP, drain(tree));
+			Assert.assertTrue(tree.isEmpty());
+		});
+	}
+	
+	@Test
+	public void testWideTree() throws Throwable {
+		runWithSmallStack(() -> {
+			final HierarchicalTree<RangeKey, Integer> tree = new LinkedHierarchicalTree<>(RangeKey::isParentOf);
+			for (int i = 0; i < WIDE; i++) {
+				tree.put(new RangeKey(2 * i + 1, 2 * i + 2), i);
+			}
+			Assert.assertEquals(WIDE, tree.size());
+			final RangeKey last = new RangeKey(2 * WIDE - 1, 2 * WIDE);
+			Assert.assertEquals(Integer.valueOf(WIDE - 1), tree.get(last).get().getValue());
+			Assert.assertEquals(Integer.valueOf(WIDE - 1), tree.remove(last).get());
+			Assert.assertTrue(tree.putIfNotPresent(last, WIDE - 1));
+			tree.put(new RangeKey(0, 2 * WIDE + 1), -1);
+			Assert.assertEquals(WIDE + 1, tree.size());
+			Assert.assertEquals(Integer.valueOf(WIDE - 1), tree.getNearest(last).get().getValue());
+			Assert.assertEquals(Integer.valueOf(-1), tree.remove(new RangeKey(0, 2 * WIDE + 1)).get());
+			Assert.assertEquals(Integer.valueOf(WIDE - 1), tree.get(last).get().getValue());
+			Assert.assertEquals(WIDE, drain(tree));
+			Assert.assertTrue(tree.isEmpty());
+		});
+	}
+	
+	@Test
+	public void testBuildWideTree() throws Throwable {
+		runWithSmallStack(() -> {
+			final List<Map.Entry<RangeKey, Integer>> entries = new ArrayList<>();
+			entries.add(new AbstractMap.SimpleEntry<>(new RangeKey(0, 2 * BUILT + 1), -1));
+			for (int i = 0; i < BUILT; i++) {
+				entries.add(new AbstractMap.SimpleEntry<>(new RangeKey(2 * i + 1, 2 * i + 2), i));
+			}
+			final long[] calls = new long[1];
+			final HierarchicalTree<RangeKey, Integer> tree = LinkedHierarchicalTree.build(entries, (a, b) -> {
+				calls[0]++;
+				return a.isParentOf(b);
+			});
+			Assert.assertEquals(BUILT + 1, tree.size());
+			Assert.assertTrue(calls[0] <= 3L * BUILT);
+			final RangeKey last = new RangeKey(2 * BUILT - 1, 2 * BUILT);
+			Assert.assertEquals(Integer.valueOf(BUILT - 1), tree.getNearest(last).get().getValue());
+			Assert.assertEquals(Integer.valueOf(-1), tree.remove(new RangeKey(0, 2 * BUILT + 1)).get());
+			Assert.assertEquals(BUILT, drain(tree));
+		});
+	}
+	
+	private static int drain(final HierarchicalTree<?, ?> tree) {
+		int count = 0;
+		final Iterator<?> iterator = tree.iterator();
+		while (iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			count++;
+		}
+		return count;
+	}
+	
+	private static void runWithSmallStack(final Runnable runnable) throws Throwable {
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread thread = new Thread(null, () -> {
+			try {
+				runnable.run();
+			} catch (final Throwable throwable) {
+				failure.set(throwable);
+			}
+		}, "stress", STACK_SIZE);
+		thread.start();
+		thread.join();
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+	
+}
@@ -4,10 +4,29 @@
  */
 package io.codecastle.util;
 
+import java.lang.management.ManagementFactory;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 /**
@@ -1198,6 +1217,1284 @@ public class LinkedHierarchicalTreeTest {
 		verifyEmpty(tree.get(key1));
 	}
 	
+	@Test
+	public void testPutParentOfMixedSiblings() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey();
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey(key1);
+		final Object value4 = new Object();
+		final MockKey key5 = new MockKey();
+		final Object value5 = new Object();
+		tree.put(key2, value2);
+		tree.put(key3, value3);
+		tree.put(key4, value4);
+		tree.put(key5, value5);
+		verifyEmpty(tree.put(key1, value1));
+		Assert.assertEquals(5, tree.size());
+		verifyOptionalNode(tree.get(key3), key3, value3);
+		verifyOptionalNode(tree.get(key5), key5, value5);
+		verifyOptionalNode(tree.getNearest(new MockKey(key1)), key1, value1);
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key2, value2);
+		verifyOptionalNode(tree.getNearest(new MockKey(key4)), key4, value4);
+		verifyOptionalNode(tree.getNearest(new MockKey(key5)), key5, value5);
+		Assert.assertEquals(5, count(tree.iterator()));
+	}
+	
+	@Test
+	public void testRemoveAndPutParentOfChildren() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key2);
+		final MockKey key5 = new MockKey(key1);
+		final MockKey key6 = new MockKey(key1);
+		for (final MockKey key : Arrays.asList(key1, key2, key3, key4, key5)) {
+			tree.put(key, new Object());
+		}
+		final Object value2 = new Object();
+		Assert.assertTrue(tree.remove(key2).isPresent());
+		verifyEmpty(tree.put(key2, value2));
+		Assert.assertTrue(tree.remove(key5).isPresent());
+		final Object value6 = new Object();
+		verifyEmpty(tree.put(key6, value6));
+		verifyOptionalNode(tree.getNearest(new MockKey(key6)), key6, value6);
+		Assert.assertTrue(tree.remove(key2).isPresent());
+		verifyEmpty(tree.put(key5, new Object()));
+		Assert.assertEquals(5, tree.size());
+		verifyOptionalNode(tree.getNearest(new MockKey(key6)), key6, value6);
+		verifyEmpty(tree.put(key2, value2));
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key2, value2);
+		Assert.assertEquals(key3, tree.getNearest(new MockKey(key3)).get().getKey());
+		Assert.assertEquals(key4, tree.getNearest(new MockKey(key4)).get().getKey());
+		Assert.assertEquals(6, count(tree.iterator()));
+	}
+	
+	@Test
+	public void testIterator() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key2);
+		final MockKey key5 = new MockKey(key1);
+		final MockKey key6 = new MockKey();
+		final Set<MockKey> keys = new HashSet<>(Arrays.asList(key1, key2, key3, key4, key5, key6));
+		for (final MockKey key : keys) {
+			tree.put(key, new Object());
+		}
+		final Set<MockKey> iterated = new HashSet<>();
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> iterator = tree.iterator();
+		while (iterator.hasNext()) {
+			Assert.assertTrue(iterated.add(iterator.next().getKey()));
+		}
+		Assert.assertEquals(keys, iterated);
+	}
+	
+	@Test(expected=NoSuchElementException.class)
+	public void testIteratorExhausted() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		tree.put(new MockKey(), new Object());
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> iterator = tree.iterator();
+		iterator.next();
+		iterator.next();
+	}
+	
+	@Test
+	public void testIteratorRemove() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key1);
+		final MockKey key5 = new MockKey();
+		final MockKey key6 = new MockKey(key5);
+		for (final MockKey key : Arrays.asList(key1, key2, key3, key4, key5, key6)) {
+			tree.put(key, new Object());
+		}
+		final Set<MockKey> removed = new HashSet<>(Arrays.asList(key1, key2, key6));
+		final Set<MockKey> iterated = new HashSet<>();
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> iterator = tree.iterator();
+		while (iterator.hasNext()) {
+			final MockKey key = iterator.next().getKey();
+			Assert.assertTrue(iterated.add(key));
+			if (removed.contains(key)) {
+				iterator.remove();
+			}
+		}
+		Assert.assertEquals(6, iterated.size());
+		Assert.assertEquals(3, tree.size());
+		verifyEmpty(tree.get(key1));
+		verifyEmpty(tree.get(key2));
+		verifyEmpty(tree.get(key6));
+		Assert.assertTrue(tree.get(key3).isPresent());
+		Assert.assertTrue(tree.get(key4).isPresent());
+		Assert.assertTrue(tree.get(key5).isPresent());
+		Assert.assertEquals(3, count(tree.iterator()));
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testIteratorRemoveTwice() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		tree.put(new MockKey(), new Object());
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> iterator = tree.iterator();
+		iterator.next();
+		iterator.remove();
+		Assert.assertFalse(iterator.hasNext());
+		iterator.remove();
+	}
+	
+	@Test
+	public void testGetValue() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		tree.put(key1, value1);
+		Assert.assertEquals(value1, tree.getValue(key1));
+		Assert.assertNull(tree.getValue(key2));
+		Assert.assertEquals(key1, tree.getNode(key1).getKey());
+		Assert.assertNull(tree.getNode(key2));
+	}
+	
+	@Test
+	public void testGetNearestValue() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object defaultValue = new Object();
+		tree.put(key1, value1);
+		Assert.assertEquals(value1, tree.getNearestValue(key2, defaultValue));
+		Assert.assertEquals(defaultValue, tree.getNearestValue(new MockKey(), defaultValue));
+		Assert.assertEquals(key1, tree.getNearestNode(key2).getKey());
+		Assert.assertNull(tree.getNearestNode(new MockKey()));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testGetNearestValueWithNullKey() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		tree.getNearestValue(null, new Object());
+	}
+	
+	@Test
+	public void testLookupsDoNotAllocate() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		final HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey();
+		final Object defaultValue = new Object();
+		tree.put(key1, new Object());
+		tree.put(key4, new Object());
+		tree.put(key2, new Object());
+		final long threadId = Thread.currentThread().getId();
+		threadBean.getThreadAllocatedBytes(threadId);
+		final long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 10000; i++) {
+			tree.getValue(key2);
+			tree.getNearestValue(key3, defaultValue);
+			tree.getNearestNode(key3);
+			tree.getNode(key4);
+		}
+		final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+	}
+	
+	@Test
+	public void testAncestors() {
+		final int[] calls = new int[1];
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>((a, b) -> {
+			calls[0]++;
+			return a.isParentOf(b);
+		});
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey(key3);
+		final Object value4 = new Object();
+		final MockKey key5 = new MockKey(key1);
+		tree.put(key5, new Object());
+		tree.put(key4, value4);
+		tree.put(key1, value1);
+		tree.put(key3, value3);
+		tree.put(new MockKey(), new Object());
+		final MockKey query = new MockKey(key4);
+		calls[0] = 0;
+		tree.getNearestNode(query);
+		final int nearestCalls = calls[0];
+		calls[0] = 0;
+		final Deque<HierarchicalTree.Node<MockKey, Object>> ancestors = tree.ancestors(query);
+		Assert.assertEquals(nearestCalls, calls[0]);
+		Assert.assertEquals(3, ancestors.size());
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> rootFirst = ancestors.iterator();
+		Assert.assertSame(key1, rootFirst.next().getKey());
+		Assert.assertSame(key3, rootFirst.next().getKey());
+		Assert.assertSame(key4, rootFirst.next().getKey());
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> deepestFirst = ancestors.descendingIterator();
+		Assert.assertEquals(value4, deepestFirst.next().getValue());
+		Assert.assertEquals(value3, deepestFirst.next().getValue());
+		Assert.assertEquals(value1, deepestFirst.next().getValue());
+		final List<Object> values = new ArrayList<>();
+		tree.forEachAncestor(key3, (key, value) -> values.add(value));
+		Assert.assertEquals(Arrays.asList(value1, value3), values);
+		Assert.assertTrue(tree.ancestors(new MockKey()).isEmpty());
+		Assert.assertTrue(tree.ancestors(new MockKey(key2)).size() == 1);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testForEachAncestorWithNullAction() {
+		new LinkedHierarchicalTree<MockKey, Object>(MockKey::isParentOf).forEachAncestor(new MockKey(), null);
+	}
+	
+	@Test
+	public void testForEachAncestorDoesNotAllocate() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		final HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		tree.put(key1, new Object());
+		tree.put(key2, new Object());
+		tree.put(new MockKey(), new Object());
+		final int[] count = new int[1];
+		final BiConsumer<MockKey, Object> action = (key, value) -> count[0]++;
+		final long threadId = Thread.currentThread().getId();
+		threadBean.getThreadAllocatedBytes(threadId);
+		final long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 10000; i++) {
+			tree.forEachAncestor(key3, action);
+		}
+		final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+		Assert.assertEquals(20000, count[0]);
+	}
+	
+	@Test
+	public void testIndexedGetMakesNoAncestorCalls() {
+		final int[] calls = new int[1];
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>((a, b) -> {
+			calls[0]++;
+			return a.isParentOf(b);
+		}, true);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey();
+		final Object value3 = new Object();
+		tree.put(key1, value1);
+		tree.put(key2, value2);
+		tree.put(key3, value3);
+		calls[0] = 0;
+		verifyOptionalNode(tree.get(key1), key1, value1);
+		verifyOptionalNode(tree.get(key2), key2, value2);
+		verifyOptionalNode(tree.get(key3), key3, value3);
+		verifyEmpty(tree.get(new MockKey(key2)));
+		verifyOptionalNode(tree.getNearest(key2), key2, value2);
+		Assert.assertEquals(0, calls[0]);
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key2, value2);
+	}
+	
+	@Test
+	public void testIndexedPutDirectReplace() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf, true);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final Object value3 = new Object();
+		tree.put(key1, value1);
+		tree.put(key2, value2);
+		verifyPresent(tree.put(key2, value3), value2);
+		Assert.assertFalse(tree.putIfNotPresent(key2, value2));
+		Assert.assertEquals(2, tree.size());
+		verifyOptionalNode(tree.get(key2), key2, value3);
+	}
+	
+	@Test
+	public void testIndexedRemove() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf, true);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		tree.put(key1, value1);
+		tree.put(key2, value2);
+		tree.put(key3, value3);
+		verifyPresent(tree.remove(key2), value2);
+		verifyEmpty(tree.remove(key2));
+		Assert.assertEquals(2, tree.size());
+		verifyEmpty(tree.get(key2));
+		verifyOptionalNode(tree.get(key3), key3, value3);
+		verifyOptionalNode(tree.getNearest(key2), key1, value1);
+		Assert.assertTrue(tree.putIfNotPresent(key2, value2));
+		verifyOptionalNode(tree.get(key2), key2, value2);
+		verifyOptionalNode(tree.getNearest(new MockKey(key3)), key3, value3);
+	}
+	
+	@Test
+	public void testIndexedIteratorRemove() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf, true);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		tree.put(key1, value1);
+		tree.put(key2, value2);
+		Iterator<HierarchicalTree.Node<MockKey, Object>> iterator = tree.iterator();
+		Assert.assertEquals(key1, iterator.next().getKey());
+		iterator.remove();
+		Assert.assertEquals(1, tree.size());
+		verifyEmpty(tree.get(key1));
+		verifyOptionalNode(tree.get(key2), key2, value2);
+	}
+	
+	@Test
+	public void testIndexedClear() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf, true);
+		final MockKey key1 = new MockKey();
+		tree.put(key1, new Object());
+		tree.clear();
+		Assert.assertEquals(0, tree.size());
+		verifyEmpty(tree.get(key1));
+		verifyEmpty(tree.getNearest(key1));
+		Assert.assertTrue(tree.putIfNotPresent(key1, new Object()));
+	}
+	
+	@Test
+	public void testBuild() {
+		HierarchicalTree<MockKey, Object> source = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey(key1);
+		final Object value4 = new Object();
+		final MockKey key5 = new MockKey();
+		final Object value5 = new Object();
+		source.put(key3, value3);
+		source.put(key5, value5);
+		source.put(key4, value4);
+		source.put(key2, value2);
+		source.put(key1, value1);
+		HierarchicalTree<MockKey, Object> tree = LinkedHierarchicalTree.build(source, MockKey::isParentOf);
+		Assert.assertEquals(5, tree.size());
+		verifyOptionalNode(tree.get(key3), key3, value3);
+		verifyOptionalNode(tree.getNearest(new MockKey(key1)), key1, value1);
+		verifyOptionalNode(tree.getNearest(new MockKey(key3)), key3, value3);
+		verifyOptionalNode(tree.getNearest(new MockKey(key4)), key4, value4);
+		verifyOptionalNode(tree.getNearest(new MockKey(key5)), key5, value5);
+		verifyPresent(tree.remove(key1), value1);
+		tree.put(key1, value1);
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key2, value2);
+		Assert.assertEquals(5, count(tree.iterator()));
+	}
+	
+	@Test
+	public void testBuildMakesOneAncestorCallPerNestedEntry() {
+		final int[] calls = new int[1];
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key3);
+		final List<Map.Entry<MockKey, Object>> entries = new ArrayList<>();
+		for (final MockKey key : Arrays.asList(key1, key2, key3, key4)) {
+			entries.add(new AbstractMap.SimpleEntry<>(key, new Object()));
+		}
+		HierarchicalTree<MockKey, Object> tree = LinkedHierarchicalTree.build(entries, (a, b) -> {
+			calls[0]++;
+			return a.isParentOf(b);
+		});
+		Assert.assertEquals(3, calls[0]);
+		Assert.assertEquals(4, tree.size());
+		verifyOptionalNode(tree.getNearest(new MockKey(key4)), key4, entries.get(3).getValue());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testBuildWithDescendantBeforeAncestor() {
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final List<Map.Entry<MockKey, Object>> entries = new ArrayList<>();
+		for (final MockKey key : Arrays.asList(key2, key1)) {
+			entries.add(new AbstractMap.SimpleEntry<>(key, new Object()));
+		}
+		LinkedHierarchicalTree.build(entries, MockKey::isParentOf);
+	}
+	
+	@Test
+	public void testBuildWithRepeatedKey() {
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		for (final List<MockKey> keys : Arrays.asList(Arrays.asList(key1, key1), Arrays.asList(key1, key2, key1), Arrays.asList(key1, key2, key2))) {
+			final List<Map.Entry<MockKey, Object>> entries = new ArrayList<>();
+			for (final MockKey key : keys) {
+				entries.add(new AbstractMap.SimpleEntry<>(key, new Object()));
+			}
+			try {
+				LinkedHierarchicalTree.build(entries, MockKey::isParentOf);
+				Assert.fail();
+			} catch (final IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testBuildWithNullValue() {
+		LinkedHierarchicalTree.build(Arrays.asList(new AbstractMap.SimpleEntry<>(new MockKey(), null)), MockKey::isParentOf);
+	}
+	
+	@Test
+	public void testPutAll() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey();
+		final Object value4 = new Object();
+		tree.put(key3, new Object());
+		final Map<MockKey, Object> map = new LinkedHashMap<>();
+		map.put(key2, value2);
+		map.put(key3, value3);
+		map.put(key4, value4);
+		map.put(key1, value1);
+		tree.putAll(map);
+		Assert.assertEquals(4, tree.size());
+		verifyOptionalNode(tree.get(key3), key3, value3);
+		verifyOptionalNode(tree.getNearest(new MockKey(key1)), key1, value1);
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key2, value2);
+		verifyOptionalNode(tree.getNearest(new MockKey(key3)), key3, value3);
+		verifyOptionalNode(tree.getNearest(new MockKey(key4)), key4, value4);
+		verifyPresent(tree.remove(key1), value1);
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key2, value2);
+	}
+	
+	@Test
+	public void testIndexedPutAll() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf, true);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		tree.put(key2, new Object());
+		final Map<MockKey, Object> map = new LinkedHashMap<>();
+		map.put(key1, value1);
+		map.put(key2, value2);
+		tree.putAll(map);
+		Assert.assertEquals(2, tree.size());
+		verifyOptionalNode(tree.get(key2), key2, value2);
+		verifyOptionalNode(tree.getNearest(new MockKey(key1)), key1, value1);
+	}
+	
+	@Test
+	public void testRemoveSubtree() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey(key1);
+		final Object value4 = new Object();
+		final MockKey key5 = new MockKey(key1);
+		final Object value5 = new Object();
+		for (final MockKey key : Arrays.asList(key1, key4, key2, key3, key5)) {
+			tree.put(key, new Object());
+		}
+		tree.put(key1, value1);
+		tree.put(key2, value2);
+		tree.put(key3, value3);
+		tree.put(key4, value4);
+		tree.put(key5, value5);
+		final HierarchicalTree<MockKey, Object> detached = tree.removeSubtree(key2);
+		Assert.assertEquals(2, detached.size());
+		verifyOptionalNode(detached.get(key2), key2, value2);
+		verifyOptionalNode(detached.getNearest(new MockKey(key3)), key3, value3);
+		Assert.assertEquals(3, tree.size());
+		Assert.assertEquals(3, count(tree.iterator()));
+		verifyEmpty(tree.get(key2));
+		verifyOptionalNode(tree.getNearest(new MockKey(key3)), key1, value1);
+		final MockKey key6 = new MockKey(key1);
+		final Object value6 = new Object();
+		tree.put(key6, value6);
+		verifyOptionalNode(tree.getNearest(new MockKey(key6)), key6, value6);
+		verifyOptionalNode(tree.getNearest(new MockKey(key5)), key5, value5);
+		Assert.assertTrue(tree.removeSubtree(new MockKey(key1)).isEmpty());
+		Assert.assertEquals(4, tree.removeSubtree(key1).size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+	}
+	
+	@Test
+	public void testRemoveSubtreeAdjustsSizes() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = randomTree(500);
+		MockKey top = null;
+		long descendants = 0;
+		for (final HierarchicalTree.Node<MockKey, Object> node : tree) {
+			final long count = tree.descendants(node.getKey()).count();
+			if (count > descendants && count < 100) {
+				top = node.getKey();
+				descendants = count;
+			}
+		}
+		Assert.assertTrue(descendants > 2);
+		final MockKey child = tree.descendants(top).findFirst().get().getKey();
+		final LinkedHierarchicalTree<MockKey, Object> detached = tree.removeSubtree(top);
+		Assert.assertFalse(detached.isEmpty());
+		tree.put(new MockKey(), new Object());
+		Assert.assertTrue(detached.remove(child).isPresent());
+		Assert.assertEquals(500 - (descendants + 1) + 1, tree.size());
+		Assert.assertEquals(tree.size(), count(tree.iterator()));
+		Assert.assertEquals(descendants, detached.size());
+		Assert.assertEquals(detached.size(), count(detached.iterator()));
+		final LinkedHierarchicalTree<MockKey, Object> again = tree.removeSubtree(tree.iterator().next().getKey());
+		detached.graft(again);
+		Assert.assertTrue(again.isEmpty());
+		Assert.assertEquals(0, again.size());
+		Assert.assertEquals(count(detached.iterator()), detached.size());
+		Assert.assertEquals(count(tree.iterator()), tree.size());
+		Assert.assertEquals(tree.size(), tree.freeze().size());
+		Assert.assertEquals(tree.size(), tree.stream().count());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testRemoveSubtreeWithNullKey() {
+		new LinkedHierarchicalTree<MockKey, Object>(MockKey::isParentOf).removeSubtree(null);
+	}
+	
+	@Test
+	public void testGraftSplicesWithoutVisitingDescendants() {
+		final int[] calls = new int[1];
+		final ToBooleanBiFunction<MockKey, MockKey> function = (a, b) -> {
+			calls[0]++;
+			return a.isParentOf(b);
+		};
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(function);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key1);
+		tree.put(key1, value1);
+		tree.put(key3, new Object());
+		final HierarchicalTree<MockKey, Object> subtree = new LinkedHierarchicalTree<>(function);
+		subtree.put(key2, value2);
+		final List<MockKey> children = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			final MockKey child = new MockKey(key2);
+			children.add(child);
+			subtree.put(child, new Object());
+		}
+		calls[0] = 0;
+		tree.graft(subtree);
+		Assert.assertEquals(3, calls[0]);
+		Assert.assertTrue(subtree.isEmpty());
+		Assert.assertEquals(103, tree.size());
+		Assert.assertEquals(103, count(tree.iterator()));
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key2, value2);
+		Assert.assertTrue(tree.get(children.get(50)).isPresent());
+		Assert.assertEquals(101, tree.removeSubtree(key2).size());
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key1, value1);
+	}
+	
+	@Test
+	public void testGraftMerges() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey();
+		final Object value4 = new Object();
+		tree.put(key3, value3);
+		tree.put(key2, new Object());
+		final HierarchicalTree<MockKey, Object> subtree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		subtree.put(key1, value1);
+		subtree.put(key2, value2);
+		subtree.put(key4, value4);
+		tree.graft(subtree);
+		Assert.assertTrue(subtree.isEmpty());
+		Assert.assertEquals(4, tree.size());
+		verifyOptionalNode(tree.get(key2), key2, value2);
+		verifyOptionalNode(tree.getNearest(new MockKey(key3)), key3, value3);
+		verifyOptionalNode(tree.getNearest(new MockKey(key4)), key4, value4);
+		verifyPresent(tree.remove(key2), value2);
+		verifyOptionalNode(tree.getNearest(new MockKey(key2)), key1, value1);
+	}
+	
+	@Test
+	public void testIndexedRemoveSubtreeAndGraft() {
+		final int[] calls = new int[1];
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>((a, b) -> {
+			calls[0]++;
+			return a.isParentOf(b);
+		}, true);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		tree.put(key1, value1);
+		tree.put(key2, value2);
+		tree.put(key3, value3);
+		final HierarchicalTree<MockKey, Object> detached = tree.removeSubtree(key2);
+		verifyEmpty(tree.get(key3));
+		calls[0] = 0;
+		verifyOptionalNode(detached.get(key3), key3, value3);
+		Assert.assertEquals(0, calls[0]);
+		tree.graft(detached);
+		calls[0] = 0;
+		verifyOptionalNode(tree.get(key3), key3, value3);
+		verifyOptionalNode(tree.getNearest(key2), key2, value2);
+		Assert.assertEquals(0, calls[0]);
+		verifyEmpty(detached.get(key3));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testGraftOntoItself() {
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		tree.graft(tree);
+	}
+	
+	@Test
+	public void testStream() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = randomTree(1000);
+		final List<HierarchicalTree.Node<MockKey, Object>> iterated = new ArrayList<>();
+		tree.forEach(iterated::add);
+		Assert.assertEquals(iterated, tree.stream().collect(Collectors.toList()));
+		Assert.assertEquals(iterated, tree.parallelStream().collect(Collectors.toList()));
+		Assert.assertEquals(1000, tree.parallelStream().map(HierarchicalTree.Node::getKey).distinct().count());
+		Assert.assertEquals(1000, tree.spliterator().getExactSizeIfKnown());
+	}
+	
+	@Test(expected=NullPointerException.class)
+	public void testSpliteratorWithNullAction() {
+		randomTree(10).spliterator().tryAdvance(null);
+	}
+	
+	@Test
+	public void testSpliteratorSplitsToSingleNodes() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = randomTree(500);
+		final List<HierarchicalTree.Node<MockKey, Object>> iterated = new ArrayList<>();
+		tree.forEach(iterated::add);
+		final List<HierarchicalTree.Node<MockKey, Object>> split = new ArrayList<>();
+		splitFully(tree.spliterator(), split);
+		Assert.assertEquals(iterated, split);
+	}
+	
+	private static void splitFully(final Spliterator<HierarchicalTree.Node<MockKey, Object>> spliterator, final List<HierarchicalTree.Node<MockKey, Object>> nodes) {
+		final Spliterator<HierarchicalTree.Node<MockKey, Object>> prefix = spliterator.trySplit();
+		if (prefix == null) {
+			final int before = nodes.size();
+			spliterator.forEachRemaining(nodes::add);
+			Assert.assertEquals(1, nodes.size() - before);
+			return;
+		}
+		splitFully(prefix, nodes);
+		splitFully(spliterator, nodes);
+	}
+	
+	@Test
+	public void testSpliteratorAfterAdvance() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = randomTree(100);
+		final Spliterator<HierarchicalTree.Node<MockKey, Object>> spliterator = tree.spliterator();
+		final List<HierarchicalTree.Node<MockKey, Object>> nodes = new ArrayList<>();
+		while (spliterator.tryAdvance(nodes::add)) {
+			final Spliterator<HierarchicalTree.Node<MockKey, Object>> prefix = spliterator.trySplit();
+			if (prefix != null) {
+				prefix.forEachRemaining(nodes::add);
+			}
+		}
+		final List<HierarchicalTree.Node<MockKey, Object>> iterated = new ArrayList<>();
+		tree.forEach(iterated::add);
+		Assert.assertEquals(iterated, nodes);
+		Assert.assertEquals(0, spliterator.estimateSize());
+	}
+	
+	@Test
+	public void testDescendants() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key1);
+		final MockKey key5 = new MockKey();
+		for (final MockKey key : Arrays.asList(key1, key2, key3, key4, key5)) {
+			tree.put(key, new Object());
+		}
+		Assert.assertEquals(new HashSet<>(Arrays.asList(key2, key3, key4)), tree.descendants(key1).map(HierarchicalTree.Node::getKey).collect(Collectors.toSet()));
+		Assert.assertEquals(Arrays.asList(key3), tree.descendants(key2).map(HierarchicalTree.Node::getKey).collect(Collectors.toList()));
+		Assert.assertEquals(0, tree.descendants(key5).count());
+		Assert.assertEquals(0, tree.descendants(new MockKey(key1)).count());
+		Assert.assertEquals(3, tree.descendants(key1).parallel().count());
+	}
+	
+	private static LinkedHierarchicalTree<MockKey, Object> randomTree(final int size) {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final Random random = new Random(42);
+		final List<MockKey> keys = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			final MockKey parent = (keys.isEmpty() || random.nextInt(8) == 0) ? null : keys.get(random.nextInt(keys.size()));
+			keys.add(new MockKey(parent));
+		}
+		Collections.shuffle(keys, random);
+		for (final MockKey key : keys) {
+			tree.put(key, new Object());
+		}
+		return tree;
+	}
+	
+	@Test
+	public void testTraversalOrders() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = randomTree(500);
+		final Set<MockKey> all = new HashSet<>();
+		tree.forEach(node -> all.add(node.getKey()));
+		for (final TraversalOrder order : TraversalOrder.values()) {
+			final List<MockKey> keys = new ArrayList<>();
+			final TreeIterator<MockKey, Object> iterator = tree.iterator(order);
+			int lastDepth = 0;
+			while (iterator.hasNext()) {
+				final MockKey key = iterator.next().getKey();
+				keys.add(key);
+				Assert.assertEquals(tree.ancestors(key).size() - 1, iterator.depth());
+				if (order == TraversalOrder.BREADTH_FIRST) {
+					Assert.assertTrue(iterator.depth() >= lastDepth);
+					lastDepth = iterator.depth();
+				}
+			}
+			Assert.assertEquals(all.size(), keys.size());
+			Assert.assertEquals(all, new HashSet<>(keys));
+			for (int i = 0; i < keys.size(); i++) {
+				for (int j = 0; j < i; j++) {
+					if (order == TraversalOrder.POST_ORDER) {
+						Assert.assertFalse(keys.get(j).isParentOf(keys.get(i)));
+					} else {
+						Assert.assertFalse(keys.get(i).isParentOf(keys.get(j)));
+					}
+				}
+			}
+		}
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testDepthBeforeNext() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		tree.put(new MockKey(), new Object());
+		tree.iterator().depth();
+	}
+	
+	@Test
+	public void testRemoveDuringTraversal() {
+		for (final TraversalOrder order : TraversalOrder.values()) {
+			final LinkedHierarchicalTree<MockKey, Object> tree = randomTree(300);
+			final Set<MockKey> remaining = new HashSet<>();
+			final Set<MockKey> returned = new HashSet<>();
+			final TreeIterator<MockKey, Object> iterator = tree.iterator(order);
+			int index = 0;
+			while (iterator.hasNext()) {
+				final MockKey key = iterator.next().getKey();
+				Assert.assertTrue(returned.add(key));
+				if (index++ % 3 == 0) {
+					iterator.remove();
+				} else {
+					remaining.add(key);
+				}
+			}
+			Assert.assertEquals(300, returned.size());
+			Assert.assertEquals(remaining.size(), tree.size());
+			final Set<MockKey> iterated = new HashSet<>();
+			tree.forEach(node -> iterated.add(node.getKey()));
+			Assert.assertEquals(remaining, iterated);
+			for (final MockKey key : remaining) {
+				Assert.assertTrue(tree.remove(key).isPresent());
+			}
+			Assert.assertTrue(tree.isEmpty());
+		}
+	}
+	
+	@Test
+	public void testPostOrderRemovesLeaves() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = randomTree(300);
+		final TreeIterator<MockKey, Object> iterator = tree.iterator(TraversalOrder.POST_ORDER);
+		while (iterator.hasNext()) {
+			final HierarchicalTree.Node<MockKey, Object> node = iterator.next();
+			Assert.assertEquals(0, tree.descendants(node.getKey()).count());
+			iterator.remove();
+		}
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+	}
+	
+	@Test
+	public void testIteratorRemoveLastChildAfterAscending() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key1);
+		final MockKey key4 = new MockKey(key2);
+		final MockKey key5 = new MockKey();
+		final Object value5 = new Object();
+		for (final MockKey key : Arrays.asList(key1, key5, key2, key3, key4)) {
+			tree.put(key, new Object());
+		}
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> iterator = tree.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getKey() == key3) {
+				iterator.remove();
+			}
+		}
+		tree.put(key5, value5);
+		Assert.assertTrue(tree.remove(key1).isPresent());
+		Assert.assertEquals(3, tree.size());
+		Assert.assertEquals(3, count(tree.iterator()));
+		verifyOptionalNode(tree.get(key5), key5, value5);
+	}
+	
+	@Test
+	public void testTraversalAllocatesByDepth() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		final LinkedHierarchicalTree<MockKey, Object> tree = randomTree(20000);
+		for (final TraversalOrder order : Arrays.asList(TraversalOrder.PRE_ORDER, TraversalOrder.POST_ORDER)) {
+			final long threadId = Thread.currentThread().getId();
+			threadBean.getThreadAllocatedBytes(threadId);
+			final long before = threadBean.getThreadAllocatedBytes(threadId);
+			final int count = count(tree.iterator(order));
+			final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+			Assert.assertEquals(20000, count);
+			Assert.assertTrue(order + " allocated " + allocated + " bytes", allocated < 4096);
+		}
+	}
+	
+	@Test
+	public void testGetNearestAll() {
+		for (final boolean indexed : new boolean[] {false, true}) {
+			final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf, indexed);
+			final List<MockKey> queries = batchQueries(tree, 2000);
+			final List<HierarchicalTree.Node<MockKey, Object>> nodes = tree.getNearestAll(queries);
+			Assert.assertEquals(queries.size(), nodes.size());
+			for (int i = 0; i < queries.size(); i++) {
+				Assert.assertSame(tree.getNearestNode(queries.get(i)), nodes.get(i));
+			}
+			nodes.add(null);
+			Assert.assertEquals(queries.size() + 1, nodes.size());
+		}
+		Assert.assertTrue(new LinkedHierarchicalTree<MockKey, Object>(MockKey::isParentOf).getNearestAll(Collections.singletonList(new MockKey())).contains(null));
+	}
+	
+	@Test
+	public void testResolveBatch() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey[] keys = batchQueries(tree, 20000).toArray(new MockKey[0]);
+		final Object[] expected = new Object[keys.length];
+		int resolved = 0;
+		for (int i = 0; i < keys.length; i++) {
+			expected[i] = tree.getNearestValue(keys[i], null);
+			if (expected[i] != null) resolved++;
+		}
+		final Object[] out = new Object[keys.length];
+		Assert.assertEquals(resolved, tree.resolveBatch(keys, out));
+		Assert.assertArrayEquals(expected, out);
+		final Object[] parallelOut = new Object[keys.length + 1];
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			Assert.assertEquals(resolved, tree.resolveBatch(keys, parallelOut, pool));
+		} finally {
+			pool.shutdown();
+		}
+		Assert.assertArrayEquals(expected, Arrays.copyOf(parallelOut, keys.length));
+	}
+	
+	@Test
+	public void testResolveBatchCallsLikeGetNearest() {
+		final int[] calls = new int[1];
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>((first, second) -> {
+			calls[0]++;
+			return first.isParentOf(second);
+		});
+		final List<MockKey> queries = batchQueries(tree, 500);
+		calls[0] = 0;
+		tree.getNearestAll(queries);
+		final int batchCalls = calls[0];
+		calls[0] = 0;
+		for (final MockKey query : queries) {
+			tree.getNearestNode(query);
+		}
+		Assert.assertEquals(calls[0], batchCalls);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testResolveBatchWithNullKey() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		tree.put(new MockKey(), new Object());
+		tree.resolveBatch(new MockKey[] {new MockKey(), null}, new Object[2]);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testResolveBatchWithShortOutput() {
+		new LinkedHierarchicalTree<MockKey, Object>(MockKey::isParentOf).resolveBatch(new MockKey[2], new Object[1]);
+	}
+	
+	/**
+	 * Fills the tree with two thirds of a random forest and returns queries
+	 * for every key in the forest, for children of the keys, and for
+	 * unrelated keys, in random order.
+	 */
+	private static List<MockKey> batchQueries(final LinkedHierarchicalTree<MockKey, Object> tree, final int size) {
+		final Random random = new Random(42);
+		final List<MockKey> keys = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			final MockKey parent = (keys.isEmpty() || random.nextInt(8) == 0) ? null : keys.get(random.nextInt(keys.size()));
+			keys.add(new MockKey(parent));
+		}
+		final List<MockKey> queries = new ArrayList<>(keys);
+		for (final MockKey key : keys) {
+			if (random.nextInt(3) != 0) {
+				tree.put(key, new Object());
+			}
+			queries.add(new MockKey(key));
+		}
+		for (int i = 0; i < size / 8; i++) {
+			queries.add(new MockKey());
+		}
+		Collections.shuffle(queries, random);
+		return queries;
+	}
+	
+	@Test
+	public void testMetrics() {
+		final List<String> records = new ArrayList<>();
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf, false, (operation, ancestorCalls, nodesVisited, siblingChain, nanos) -> {
+			Assert.assertTrue(nanos >= 0);
+			records.add(operation + " " + ancestorCalls + " " + nodesVisited + " " + siblingChain);
+		});
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey();
+		final MockKey key3 = new MockKey(key1);
+		tree.put(key1, new Object());
+		tree.put(key2, new Object());
+		tree.put(key3, new Object());
+		tree.put(key3, new Object());
+		tree.getNearest(new MockKey(key3));
+		tree.getNearestValue(new MockKey(key2), null);
+		tree.get(key2);
+		tree.remove(new MockKey());
+		Assert.assertEquals(3, count(tree.iterator()));
+		Assert.assertEquals(Arrays.asList(
+				"PUT 0 0 0",
+				"PUT 2 1 1",
+				"PUT 1 1 0",
+				"PUT 1 2 0",
+				"GET_NEAREST 2 2 0",
+				"GET_NEAREST 3 2 1",
+				"GET 2 2 1",
+				"REMOVE 4 2 2",
+				"ITERATE 0 3 0"), records);
+	}
+	
+	@Test
+	public void testMetricsForReparent() {
+		final List<String> records = new ArrayList<>();
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf, false, (operation, ancestorCalls, nodesVisited, siblingChain, nanos) -> {
+			records.add(operation + " " + ancestorCalls + " " + nodesVisited + " " + siblingChain);
+		});
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key1);
+		final MockKey key4 = new MockKey();
+		tree.put(key2, new Object());
+		tree.put(key3, new Object());
+		tree.put(key4, new Object());
+		records.clear();
+		tree.put(key1, new Object());
+		Assert.assertEquals(Arrays.asList("REPARENT 2 2 2", "PUT 4 1 1"), records);
+		verifyOptionalNode(tree.getNearest(new MockKey(key3)), key3, tree.getValue(key3));
+	}
+	
+	@Test
+	public void testMetricsRecorder() {
+		final TreeMetricsRecorder recorder = new TreeMetricsRecorder();
+		HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf, true, recorder);
+		final MockKey key1 = new MockKey();
+		tree.put(key1, new Object());
+		tree.put(new MockKey(key1), new Object());
+		tree.getNearest(new MockKey(key1));
+		Assert.assertEquals(2, recorder.latencies(TreeMetrics.Operation.PUT).count());
+		Assert.assertEquals(1, recorder.latencies(TreeMetrics.Operation.GET_NEAREST).count());
+		Assert.assertEquals(0, recorder.latencies(TreeMetrics.Operation.REMOVE).count());
+		Assert.assertEquals(3, recorder.ancestorCalls(TreeMetrics.Operation.GET_NEAREST).max());
+		Assert.assertEquals(2, recorder.nodesVisited(TreeMetrics.Operation.GET_NEAREST).percentile(50));
+	}
+	
+	@Test
+	public void testMetricsFromConcurrentReaders() throws Throwable {
+		final TreeMetricsRecorder recorder = new TreeMetricsRecorder();
+		final HierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf, false, recorder);
+		MockKey last = null;
+		for (int i = 0; i < 10; i++) {
+			last = new MockKey();
+			tree.put(last, new Object());
+		}
+		final MockKey query = new MockKey(last);
+		tree.getNearest(query);
+		final long calls = recorder.ancestorCalls(TreeMetrics.Operation.GET_NEAREST).max();
+		recorder.reset();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final List<Thread> readers = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			readers.add(new Thread(() -> {
+				try {
+					for (int j = 0; j < 2000; j++) {
+						Assert.assertTrue(tree.getNearest(query).isPresent());
+					}
+				} catch (final Throwable throwable) {
+					failure.set(throwable);
+				}
+			}));
+		}
+		readers.forEach(Thread::start);
+		for (final Thread reader : readers) {
+			reader.join();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		final TreeMetricsRecorder.Histogram histogram = recorder.ancestorCalls(TreeMetrics.Operation.GET_NEAREST);
+		Assert.assertEquals(8000, histogram.count());
+		Assert.assertEquals(calls, histogram.percentile(0));
+		Assert.assertEquals(calls, histogram.max());
+	}
+	
+	@Test
+	public void testChangeListenerInsertAndReparent() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final List<List<TreeChange<MockKey, Object>>> batches = new ArrayList<>();
+		tree.addChangeListener(batches::add);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key1);
+		final MockKey key5 = new MockKey();
+		for (final MockKey key : Arrays.asList(key3, key5, key4)) {
+			tree.put(key, new Object());
+		}
+		Assert.assertEquals(3, batches.size());
+		Assert.assertEquals(TreeChange.Type.INSERTED, batches.get(0).get(0).getType());
+		Assert.assertNull(batches.get(0).get(0).getParent());
+		batches.clear();
+		tree.put(key1, value1);
+		Assert.assertEquals(1, batches.size());
+		final List<TreeChange<MockKey, Object>> changes = batches.get(0);
+		Assert.assertEquals(3, changes.size());
+		Assert.assertEquals(new TreeChange<>(TreeChange.Type.INSERTED, key1, value1, null, null, false), changes.get(0));
+		final Set<MockKey> reparented = new HashSet<>();
+		for (final TreeChange<MockKey, Object> change : changes.subList(1, 3)) {
+			Assert.assertEquals(TreeChange.Type.REPARENTED, change.getType());
+			Assert.assertEquals(key1, change.getParent());
+			Assert.assertEquals(tree.getValue(change.getKey()), change.getValue());
+			reparented.add(change.getKey());
+		}
+		Assert.assertEquals(new HashSet<>(Arrays.asList(key3, key4)), reparented);
+		batches.clear();
+		tree.put(key2, new Object());
+		Assert.assertEquals(1, batches.size());
+		Assert.assertEquals(2, batches.get(0).size());
+		Assert.assertEquals(key1, batches.get(0).get(0).getParent());
+		Assert.assertEquals(key3, batches.get(0).get(1).getKey());
+		Assert.assertEquals(key2, batches.get(0).get(1).getParent());
+	}
+	
+	@Test
+	public void testChangeListenerReplaceAndRemove() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key2);
+		final MockKey key5 = new MockKey();
+		for (final MockKey key : Arrays.asList(key2, key3, key4, key5)) {
+			tree.put(key, new Object());
+		}
+		tree.put(key1, value1);
+		final List<List<TreeChange<MockKey, Object>>> batches = new ArrayList<>();
+		tree.addChangeListener(batches::add);
+		final Object value2 = new Object();
+		tree.put(key1, value2);
+		Assert.assertEquals(Collections.singletonList(new TreeChange<>(TreeChange.Type.REPLACED, key1, value2, value1, null, false)), batches.get(0));
+		Assert.assertFalse(tree.putIfNotPresent(key1, new Object()));
+		Assert.assertFalse(tree.remove(new MockKey()).isPresent());
+		Assert.assertEquals(1, batches.size());
+		batches.clear();
+		final Object value3 = tree.getValue(key2);
+		tree.remove(key2);
+		Assert.assertEquals(1, batches.size());
+		final List<TreeChange<MockKey, Object>> changes = batches.get(0);
+		Assert.assertEquals(3, changes.size());
+		Assert.assertEquals(new TreeChange<>(TreeChange.Type.REMOVED, key2, value3, null, key1, false), changes.get(0));
+		Assert.assertEquals(TreeChange.Type.REPARENTED, changes.get(1).getType());
+		Assert.assertEquals(key1, changes.get(1).getParent());
+		Assert.assertEquals(new HashSet<>(Arrays.asList(key3, key4)), new HashSet<>(Arrays.asList(changes.get(1).getKey(), changes.get(2).getKey())));
+		batches.clear();
+		final HierarchicalTree.Node<MockKey, Object> node3 = tree.getNode(key3);
+		node3.setValue(value1);
+		Assert.assertEquals(TreeChange.Type.REPLACED, batches.get(0).get(0).getType());
+		tree.removeSubtree(key1);
+		Assert.assertEquals(Collections.singletonList(new TreeChange<>(TreeChange.Type.REMOVED, key1, value2, null, null, true)), batches.get(1));
+		node3.setValue(value2);
+		Assert.assertEquals(2, batches.size());
+		tree.clear();
+		Assert.assertEquals(1, batches.get(2).size());
+		Assert.assertEquals(key5, batches.get(2).get(0).getKey());
+		Assert.assertTrue(batches.get(2).get(0).isSubtree());
+		tree.clear();
+		Assert.assertEquals(3, batches.size());
+	}
+	
+	@Test
+	public void testChangeListenerFollowsMovedNodes() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final Object original = new Object();
+		tree.put(key1, new Object());
+		tree.put(key2, original);
+		final HierarchicalTree.Node<MockKey, Object> node2 = tree.getNode(key2);
+		final List<List<TreeChange<MockKey, Object>>> batches = new ArrayList<>();
+		tree.addChangeListener(batches::add);
+		final LinkedHierarchicalTree<MockKey, Object> detached = tree.removeSubtree(key1);
+		final List<List<TreeChange<MockKey, Object>>> detachedBatches = new ArrayList<>();
+		detached.addChangeListener(detachedBatches::add);
+		final Object value1 = new Object();
+		node2.setValue(value1);
+		Assert.assertEquals(1, batches.size());
+		Assert.assertEquals(Collections.singletonList(new TreeChange<>(TreeChange.Type.REPLACED, key2, value1, original, null, false)), detachedBatches.get(0));
+		final LinkedHierarchicalTree<MockKey, Object> grafted = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final List<List<TreeChange<MockKey, Object>>> graftedBatches = new ArrayList<>();
+		grafted.addChangeListener(graftedBatches::add);
+		grafted.graft(detached);
+		Assert.assertEquals(1, graftedBatches.size());
+		Assert.assertEquals(2, detachedBatches.size());
+		final Object value2 = new Object();
+		node2.setValue(value2);
+		Assert.assertEquals(2, detachedBatches.size());
+		Assert.assertEquals(Collections.singletonList(new TreeChange<>(TreeChange.Type.REPLACED, key2, value2, value1, null, false)), graftedBatches.get(1));
+		final LinkedHierarchicalTree<MockKey, Object> again = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final List<List<TreeChange<MockKey, Object>>> againBatches = new ArrayList<>();
+		again.addChangeListener(againBatches::add);
+		again.graft(grafted);
+		node2.setValue(value1);
+		Assert.assertEquals(3, graftedBatches.size());
+		Assert.assertEquals(Collections.singletonList(new TreeChange<>(TreeChange.Type.REPLACED, key2, value1, value2, null, false)), againBatches.get(1));
+	}
+	
+	@Test
+	public void testChangeListenerBatchesPerMutation() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final List<List<TreeChange<MockKey, Object>>> batches = new ArrayList<>();
+		final TreeChangeListener<MockKey, Object> listener = batches::add;
+		tree.addChangeListener(listener);
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final Map<MockKey, Object> map = new LinkedHashMap<>();
+		map.put(key1, new Object());
+		map.put(key2, new Object());
+		map.put(key3, new Object());
+		tree.putAll(map);
+		Assert.assertEquals(1, batches.size());
+		Assert.assertEquals(3, batches.get(0).size());
+		final LinkedHierarchicalTree<MockKey, Object> subtree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final MockKey key4 = new MockKey(key2);
+		subtree.put(key4, new Object());
+		subtree.put(new MockKey(key4), new Object());
+		tree.graft(subtree);
+		Assert.assertEquals(2, batches.size());
+		Assert.assertEquals(new TreeChange<>(TreeChange.Type.INSERTED, key4, tree.getValue(key4), null, key2, true), batches.get(1).get(0));
+		final TreeIterator<MockKey, Object> iterator = tree.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getKey() == key2) {
+				iterator.remove();
+			}
+		}
+		Assert.assertEquals(3, batches.size());
+		Assert.assertEquals(3, batches.get(2).size());
+		Assert.assertTrue(tree.removeChangeListener(listener));
+		Assert.assertFalse(tree.removeChangeListener(listener));
+		tree.clear();
+		Assert.assertEquals(3, batches.size());
+	}
+	
+	@Test
+	public void testChangeListenerInvalidatesExactly() {
+		final LinkedHierarchicalTree<MockKey, Object> tree = new LinkedHierarchicalTree<>(MockKey::isParentOf);
+		final Random random = new Random(42);
+		final List<MockKey> keys = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			final MockKey parent = (keys.isEmpty() || random.nextInt(6) == 0) ? null : keys.get(random.nextInt(keys.size()));
+			keys.add(new MockKey(parent));
+		}
+		final Map<MockKey, Object> cache = new HashMap<>();
+		final Object missing = new Object();
+		tree.addChangeListener(changes -> {
+			for (final TreeChange<MockKey, Object> change : changes) {
+				cache.keySet().removeIf(key -> key == change.getKey() || change.getKey().isParentOf(key));
+			}
+		});
+		for (int i = 0; i < 3000; i++) {
+			final MockKey key = keys.get(random.nextInt(keys.size()));
+			final int operation = random.nextInt(10);
+			if (operation < 5) {
+				tree.put(key, new Object());
+			} else if (operation < 8) {
+				tree.remove(key);
+			} else if (operation < 9) {
+				tree.removeSubtree(key);
+			} else {
+				final HierarchicalTree.Node<MockKey, Object> node = tree.getNode(key);
+				if (node != null) {
+					node.setValue(new Object());
+				}
+			}
+			for (final Map.Entry<MockKey, Object> cached : cache.entrySet()) {
+				Assert.assertSame(tree.getNearestValue(cached.getKey(), missing), cached.getValue());
+			}
+			for (int j = 0; j < 5; j++) {
+				final MockKey query = keys.get(random.nextInt(keys.size()));
+				cache.put(query, tree.getNearestValue(query, missing));
+			}
+		}
+	}
+	
 	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
 		Assert.assertNotNull(optionalNode);
 		Assert.assertTrue(optionalNode.isPresent());
@@ -1207,6 +2504,15 @@ public class LinkedHierarchicalTreeTest {
 		return node;
 	}
 	
+	private static int count(final Iterator<?> iterator) {
+		int count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+	
 	private static void verifyEmpty(Optional<?> optional) {
 		Assert.assertNotNull(optional);
 		Assert.assertFalse(optional.isPresent());
@@ -1217,5 +2523,5 @@ public class LinkedHierarchicalTreeTest {
 		Assert.assertTrue(optional.isPresent());
 		Assert.assertEquals(expectedValue, optional.get());
 	}
-	
+
 }
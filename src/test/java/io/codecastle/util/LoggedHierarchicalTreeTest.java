@@ -0,0 +1,349 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class LoggedHierarchicalTreeTest {
+	
+	private Path directory;
+	
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("tree");
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (final Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+	
+	private static boolean isParentOf(final String parent, final String child) {
+		return child.length() > parent.length() && child.startsWith(parent) && child.charAt(parent.length()) == '/';
+	}
+	
+	private static String randomKey(final Random random) {
+		final StringBuilder key = new StringBuilder();
+		final int depth = 1 + random.nextInt(5);
+		for (int j = 0; j < depth; j++) {
+			key.append('/').append(random.nextInt(4));
+		}
+		return key.toString();
+	}
+	
+	private LoggedHierarchicalTree<String, Long> open() throws IOException {
+		return LoggedHierarchicalTree.open(directory, LoggedHierarchicalTreeTest::isParentOf, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+	}
+	
+	private LoggedHierarchicalTree<String, Long> open(final int groupRecords, final long checkpointRecords) throws IOException {
+		return LoggedHierarchicalTree.open(directory, LoggedHierarchicalTreeTest::isParentOf, FixedWidthCodec.utf8(16), FixedWidthCodec.longs(), groupRecords, Long.MAX_VALUE / 1000000, checkpointRecords);
+	}
+	
+	private static void verifySame(final HierarchicalTree<String, Long> expected, final HierarchicalTree<String, Long> actual) {
+		Assert.assertEquals(expected.size(), actual.size());
+		final Iterator<HierarchicalTree.Node<String, Long>> iterator = actual.iterator();
+		for (final HierarchicalTree.Node<String, Long> node : expected) {
+			final HierarchicalTree.Node<String, Long> other = iterator.next();
+			Assert.assertEquals(node.getKey(), other.getKey());
+			Assert.assertEquals(node.getValue(), other.getValue());
+		}
+		Assert.assertFalse(iterator.hasNext());
+	}
+	
+	private static void mutate(final Random random, final HierarchicalTree<String, Long> tree, final int count) {
+		for (long i = 0; i < count; i++) {
+			final int operation = random.nextInt(20);
+			final String key = randomKey(random);
+			if (operation < 12) {
+				tree.put(key, i);
+			} else if (operation < 15) {
+				tree.putIfNotPresent(key, i);
+			} else if (operation < 19) {
+				tree.remove(key);
+			} else {
+				tree.removeSubtree(key);
+			}
+		}
+	}
+	
+	@Test
+	public void testEmptyTree() throws IOException {
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			Assert.assertEquals(0, tree.size());
+			Assert.assertTrue(tree.isEmpty());
+			Assert.assertFalse(tree.iterator().hasNext());
+			verifyEmpty(tree.get("/a"));
+			verifyEmpty(tree.getNearest("/a"));
+		}
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			Assert.assertTrue(tree.isEmpty());
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullKey() throws IOException {
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			tree.put(null, 1L);
+		}
+	}
+	
+	@Test
+	public void testRejectedKeyLeavesTreeUnchanged() throws IOException {
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			tree.put("/a", 1L);
+			try {
+				tree.put("/a/this-key-is-far-too-long", 2L);
+				Assert.fail();
+			} catch (final IllegalArgumentException e) {
+				// expected
+			}
+			Assert.assertEquals(1, tree.size());
+		}
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			Assert.assertEquals(1, tree.size());
+		}
+	}
+	
+	@Test
+	public void testRecoverReplaysLog() throws IOException {
+		final Random random = new Random(42);
+		final LinkedHierarchicalTree<String, Long> expected = new LinkedHierarchicalTree<>(LoggedHierarchicalTreeTest::isParentOf);
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			mutate(new Random(42), tree, 5000);
+			mutate(random, expected, 5000);
+			verifySame(expected, tree);
+		}
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			verifySame(expected, tree);
+			tree.clear();
+			tree.put("/a", 1L);
+		}
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			Assert.assertEquals(1, tree.size());
+			Assert.assertEquals(Long.valueOf(1), tree.getValue("/a"));
+		}
+	}
+	
+	@Test
+	public void testNodeAndIteratorMutationsAreLogged() throws IOException {
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			tree.put("/a", 1L);
+			tree.put("/a/b", 2L);
+			tree.put("/c", 3L);
+			tree.getNode("/a/b").setValue(4L);
+			final Iterator<HierarchicalTree.Node<String, Long>> iterator = tree.iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().getKey().equals("/c")) {
+					iterator.remove();
+				}
+			}
+			final LinkedHierarchicalTree<String, Long> grafted = new LinkedHierarchicalTree<>(LoggedHierarchicalTreeTest::isParentOf);
+			grafted.put("/d", 5L);
+			grafted.put("/d/e", 6L);
+			tree.graft(grafted);
+			Assert.assertTrue(grafted.isEmpty());
+		}
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			Assert.assertEquals(4, tree.size());
+			Assert.assertEquals(Long.valueOf(4), tree.getValue("/a/b"));
+			Assert.assertNull(tree.getValue("/c"));
+			verifyOptionalNode(tree.getNearest("/d/e/f"), "/d/e", 6L);
+		}
+	}
+	
+	@Test
+	public void testSetValueOfRemovedNodeIsNotLogged() throws IOException {
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			tree.put("/a", 1L);
+			tree.put("/b", 2L);
+			final HierarchicalTree.Node<String, Long> removed = tree.getNode("/a");
+			final HierarchicalTree.Node<String, Long> replaced = tree.getNode("/b");
+			tree.remove("/a");
+			tree.remove("/b");
+			tree.put("/b", 3L);
+			Assert.assertEquals(Long.valueOf(1), removed.setValue(5L));
+			Assert.assertEquals(Long.valueOf(2), replaced.setValue(6L));
+			Assert.assertEquals(1, tree.size());
+			Assert.assertEquals(Long.valueOf(3), tree.getValue("/b"));
+		}
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			Assert.assertEquals(1, tree.size());
+			Assert.assertNull(tree.getValue("/a"));
+			Assert.assertEquals(Long.valueOf(3), tree.getValue("/b"));
+		}
+	}
+	
+	@Test
+	public void testGroupCommit() throws IOException {
+		try (LoggedHierarchicalTree<String, Long> tree = open(100, 0)) {
+			for (long i = 0; i < 1000; i++) {
+				tree.put("/" + i, i);
+			}
+			Assert.assertEquals(10, tree.syncCount());
+			tree.sync();
+			Assert.assertEquals(10, tree.syncCount());
+			tree.putIfNotPresent("/0", 1L);
+			tree.remove("/missing");
+			tree.sync();
+			Assert.assertEquals(10, tree.syncCount());
+			tree.put("/0", 1L);
+			tree.sync();
+			Assert.assertEquals(11, tree.syncCount());
+		}
+	}
+	
+	@Test
+	public void testUnsyncedMutationsAreLost() throws IOException {
+		final LoggedHierarchicalTree<String, Long> crashed = open(1000, 0);
+		crashed.put("/a", 1L);
+		crashed.put("/a/b", 2L);
+		crashed.sync();
+		crashed.put("/c", 3L);
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			Assert.assertEquals(2, tree.size());
+			Assert.assertNull(tree.getValue("/c"));
+		}
+	}
+	
+	@Test
+	public void testTornRecordIsDiscarded() throws IOException {
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			tree.put("/a", 1L);
+			tree.put("/a/b", 2L);
+		}
+		final List<Path> logs = files("log.");
+		Assert.assertEquals(1, logs.size());
+		Files.write(logs.get(0), new byte[] {1, 2, 3, 4, 5, 6, 7}, StandardOpenOption.APPEND);
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			Assert.assertEquals(2, tree.size());
+			tree.put("/c", 3L);
+		}
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			Assert.assertEquals(3, tree.size());
+			Assert.assertEquals(Long.valueOf(3), tree.getValue("/c"));
+		}
+	}
+	
+	@Test
+	public void testCheckpoint() throws IOException {
+		final Random random = new Random(7);
+		final LinkedHierarchicalTree<String, Long> expected = new LinkedHierarchicalTree<>(LoggedHierarchicalTreeTest::isParentOf);
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			mutate(new Random(7), tree, 2000);
+			mutate(random, expected, 2000);
+			tree.checkpoint();
+			Assert.assertEquals(1, files("log.").size());
+			Assert.assertEquals(1, files("checkpoint.").size());
+			mutate(new Random(8), tree, 500);
+			mutate(new Random(8), expected, 500);
+		}
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			verifySame(expected, tree);
+		}
+	}
+	
+	@Test
+	public void testCrashDuringCheckpoint() throws IOException {
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			tree.put("/a", 1L);
+			tree.checkpoint();
+			tree.put("/a/b", 2L);
+		}
+		final Path snapshot = directory.resolve("checkpoint.1");
+		final Path log = directory.resolve("log.1");
+		final byte[] snapshotBytes = Files.readAllBytes(snapshot);
+		final byte[] logBytes = Files.readAllBytes(log);
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			tree.checkpoint();
+			tree.put("/c", 3L);
+		}
+		Files.delete(directory.resolve("checkpoint.2"));
+		Files.write(snapshot, snapshotBytes);
+		Files.write(log, logBytes);
+		for (int i = 0; i < 2; i++) {
+			try (LoggedHierarchicalTree<String, Long> tree = open()) {
+				Assert.assertEquals(3, tree.size());
+				Assert.assertEquals(Long.valueOf(2), tree.getValue("/a/b"));
+				Assert.assertEquals(Long.valueOf(3), tree.getValue("/c"));
+			}
+		}
+	}
+	
+	@Test
+	public void testAutomaticCheckpoint() throws IOException {
+		final LinkedHierarchicalTree<String, Long> expected = new LinkedHierarchicalTree<>(LoggedHierarchicalTreeTest::isParentOf);
+		try (LoggedHierarchicalTree<String, Long> tree = open(10, 100)) {
+			mutate(new Random(3), tree, 1050);
+			mutate(new Random(3), expected, 1050);
+			Assert.assertEquals(1, files("checkpoint.").size());
+			Assert.assertEquals(1, files("log.").size());
+		}
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			verifySame(expected, tree);
+		}
+	}
+	
+	@Test(expected=IOException.class)
+	public void testOpenWithOtherCodec() throws IOException {
+		try (LoggedHierarchicalTree<String, Long> tree = open()) {
+			tree.put("/a", 1L);
+		}
+		LoggedHierarchicalTree.open(directory, LoggedHierarchicalTreeTest::isParentOf, FixedWidthCodec.utf8(16), FixedWidthCodec.integers());
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testPutAfterClose() throws IOException {
+		final LoggedHierarchicalTree<String, Long> tree = open();
+		tree.close();
+		tree.put("/a", 1L);
+	}
+	
+	private List<Path> files(final String prefix) throws IOException {
+		final List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*")) {
+			for (final Path file : stream) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class MappedHierarchicalTreeTest {
+	
+	private Path file;
+	
+	@Before
+	public void setUp() throws IOException {
+		file = Files.createTempFile("tree", ".snapshot");
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+	
+	private static boolean isParentOf(final String parent, final String child) {
+		return child.length() > parent.length() && child.startsWith(parent) && child.charAt(parent.length()) == '/';
+	}
+	
+	private static LinkedHierarchicalTree<String, Long> randomTree(final Random random, final int size) {
+		final LinkedHierarchicalTree<String, Long> tree = new LinkedHierarchicalTree<>(MappedHierarchicalTreeTest::isParentOf);
+		for (long i = 0; i < size; i++) {
+			tree.put(randomKey(random), i);
+		}
+		return tree;
+	}
+	
+	private static String randomKey(final Random random) {
+		final StringBuilder key = new StringBuilder();
+		final int depth = 1 + random.nextInt(5);
+		for (int j = 0; j < depth; j++) {
+			key.append('/').append(random.nextInt(4));
+		}
+		return key.toString();
+	}
+	
+	private MappedHierarchicalTree<String, Long> open() throws IOException {
+		return MappedHierarchicalTree.open(file, MappedHierarchicalTreeTest::isParentOf, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+	}
+	
+	@Test
+	public void testEmptyTree() throws IOException {
+		MappedHierarchicalTree.write(new LinkedHierarchicalTree<>(MappedHierarchicalTreeTest::isParentOf), file, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		final MappedHierarchicalTree<String, Long> tree = open();
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+		verifyEmpty(tree.getNearest("/a"));
+		Assert.assertTrue(tree.toLinkedTree().isEmpty());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testGetWithNullKey() throws IOException {
+		MappedHierarchicalTree.write(new LinkedHierarchicalTree<>(MappedHierarchicalTreeTest::isParentOf), file, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		open().get(null);
+	}
+	
+	@Test
+	public void testMatchesLinkedTree() throws IOException {
+		final Random random = new Random(42);
+		final LinkedHierarchicalTree<String, Long> linked = randomTree(random, 1000);
+		MappedHierarchicalTree.write(linked, file, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		final MappedHierarchicalTree<String, Long> tree = open();
+		Assert.assertEquals(linked.size(), tree.size());
+		for (int i = 0; i < 2000; i++) {
+			final String query = randomKey(random);
+			Assert.assertEquals(linked.getNearest(query), tree.getNearest(query));
+			Assert.assertEquals(linked.get(query), tree.get(query));
+			Assert.assertEquals(linked.getNearestValue(query, -1L), tree.getNearestValue(query, -1L));
+			Assert.assertEquals(linked.ancestors(query).size(), tree.ancestors(query).size());
+		}
+		final Iterator<HierarchicalTree.Node<String, Long>> expected = linked.iterator();
+		for (final HierarchicalTree.Node<String, Long> node : tree) {
+			Assert.assertEquals(expected.next(), node);
+		}
+		Assert.assertFalse(expected.hasNext());
+	}
+	
+	@Test
+	public void testToLinkedTree() throws IOException {
+		final Random random = new Random(7);
+		final LinkedHierarchicalTree<String, Long> linked = randomTree(random, 500);
+		MappedHierarchicalTree.write(linked, file, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		final int[] calls = new int[1];
+		final MappedHierarchicalTree<String, Long> tree = MappedHierarchicalTree.open(file, (first, second) -> {
+			calls[0]++;
+			return isParentOf(first, second);
+		}, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		final LinkedHierarchicalTree<String, Long> loaded = tree.toLinkedTree();
+		Assert.assertEquals(0, calls[0]);
+		Assert.assertEquals(linked.size(), loaded.size());
+		final Iterator<HierarchicalTree.Node<String, Long>> expected = linked.iterator();
+		final TreeIterator<String, Long> actual = loaded.iterator();
+		while (expected.hasNext()) {
+			Assert.assertEquals(expected.next(), actual.next());
+		}
+		Assert.assertFalse(actual.hasNext());
+		for (int i = 0; i < 500; i++) {
+			final String key = randomKey(random);
+			Assert.assertEquals(linked.remove(key), loaded.remove(key));
+			final String query = randomKey(random);
+			Assert.assertEquals(linked.getNearest(query), loaded.getNearest(query));
+		}
+	}
+	
+	@Test
+	public void testWriteReplacesSnapshot() throws IOException {
+		final LinkedHierarchicalTree<String, Long> linked = new LinkedHierarchicalTree<>(MappedHierarchicalTreeTest::isParentOf);
+		linked.put("/a", 1L);
+		MappedHierarchicalTree.write(linked, file, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		linked.put("/a/b", 2L);
+		MappedHierarchicalTree.write(linked, file, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		final MappedHierarchicalTree<String, Long> tree = open();
+		Assert.assertEquals(2, tree.size());
+		verifyOptionalNode(tree.getNearest("/a/b/c"), "/a/b", 2L);
+		Assert.assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+	}
+	
+	@Test(expected=IOException.class)
+	public void testOpenNotASnapshot() throws IOException {
+		Files.write(file, new byte[] {1, 2, 3});
+		open();
+	}
+	
+	@Test(expected=IOException.class)
+	public void testOpenWithOtherCodec() throws IOException {
+		final LinkedHierarchicalTree<String, Long> linked = new LinkedHierarchicalTree<>(MappedHierarchicalTreeTest::isParentOf);
+		linked.put("/a", 1L);
+		MappedHierarchicalTree.write(linked, file, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		MappedHierarchicalTree.open(file, MappedHierarchicalTreeTest::isParentOf, FixedWidthCodec.utf8(16), FixedWidthCodec.integers());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testToLinkedTreeWithCorruptLayout() throws IOException {
+		final LinkedHierarchicalTree<String, Long> linked = new LinkedHierarchicalTree<>(MappedHierarchicalTreeTest::isParentOf);
+		linked.put("/a", 1L);
+		linked.put("/a/b", 2L);
+		linked.put("/a/b/c", 3L);
+		MappedHierarchicalTree.write(linked, file, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			final ByteBuffer end = ByteBuffer.allocate(4);
+			end.putInt(0, 4);
+			channel.write(end, 20 + 34 + 4);
+		}
+		open().toLinkedTree();
+	}
+	
+	@Test(expected=UnsupportedOperationException.class)
+	public void testSetNodeValue() throws IOException {
+		final LinkedHierarchicalTree<String, Long> linked = new LinkedHierarchicalTree<>(MappedHierarchicalTreeTest::isParentOf);
+		linked.put("/a", 1L);
+		MappedHierarchicalTree.write(linked, file, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		open().getNode("/a").setValue(2L);
+	}
+	
+	@Test
+	public void testForEachAncestor() throws IOException {
+		final LinkedHierarchicalTree<String, Long> linked = new LinkedHierarchicalTree<>(MappedHierarchicalTreeTest::isParentOf);
+		linked.put("/a", 1L);
+		linked.put("/a/b/c", 3L);
+		linked.put("/a/b", 2L);
+		linked.put("/d", 4L);
+		MappedHierarchicalTree.write(linked, file, FixedWidthCodec.utf8(16), FixedWidthCodec.longs());
+		final List<Long> values = new ArrayList<>();
+		open().forEachAncestor("/a/b/c/e", (key, value) -> values.add(value));
+		Assert.assertEquals(3, values.size());
+		Assert.assertEquals(Long.valueOf(1), values.get(0));
+		Assert.assertEquals(Long.valueOf(3), values.get(2));
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class OffHeapHierarchicalTreeTest {
+	
+	private static boolean isParentOf(final String parent, final String child) {
+		return child.length() > parent.length() && child.startsWith(parent) && child.charAt(parent.length()) == '/';
+	}
+	
+	private static OffHeapHierarchicalTree<String, Long> newTree() {
+		return new OffHeapHierarchicalTree<>(OffHeapHierarchicalTreeTest::isParentOf, FixedWidthCodec.utf8(32), FixedWidthCodec.longs());
+	}
+	
+	private static OffHeapHierarchicalTree<String, Long> newSmallPageTree() {
+		return new OffHeapHierarchicalTree<>(OffHeapHierarchicalTreeTest::isParentOf, FixedWidthCodec.utf8(32), FixedWidthCodec.longs(), 256, page -> ByteBuffer.allocateDirect(256));
+	}
+	
+	@Test
+	public void testEmptyTree() {
+		OffHeapHierarchicalTree<String, Long> tree = newTree();
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+		verifyEmpty(tree.get("/a"));
+		verifyEmpty(tree.getNearest("/a/b"));
+		Assert.assertEquals(Long.valueOf(-1), tree.getNearestValue("/a", -1L));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullKey() {
+		newTree().put(null, 1L);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullValue() {
+		newTree().put("/a", null);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPageTooSmall() {
+		new OffHeapHierarchicalTree<>(OffHeapHierarchicalTreeTest::isParentOf, FixedWidthCodec.utf8(32), FixedWidthCodec.longs(), 16, page -> ByteBuffer.allocate(16));
+	}
+	
+	@Test
+	public void testPutReparents() {
+		OffHeapHierarchicalTree<String, Long> tree = newTree();
+		verifyEmpty(tree.put("/a/b/c", 3L));
+		verifyEmpty(tree.put("/a/b/d", 4L));
+		verifyEmpty(tree.put("/a/x", 5L));
+		verifyEmpty(tree.put("/b", 6L));
+		verifyEmpty(tree.put("/a/b", 2L));
+		Assert.assertTrue(tree.putIfNotPresent("/a", 1L));
+		Assert.assertFalse(tree.putIfNotPresent("/a", 7L));
+		Assert.assertEquals(6, tree.size());
+		verifyOptionalNode(tree.getNearest("/a/b/c/e"), "/a/b/c", 3L);
+		verifyOptionalNode(tree.getNearest("/a/b/e"), "/a/b", 2L);
+		verifyOptionalNode(tree.getNearest("/a/y"), "/a", 1L);
+		verifyEmpty(tree.getNearest("/c"));
+		verifyPresent(tree.put("/a/b", 8L), 2L);
+		Assert.assertEquals(Long.valueOf(8), tree.getValue("/a/b"));
+		final Deque<HierarchicalTree.Node<String, Long>> ancestors = tree.ancestors("/a/b/d/f");
+		Assert.assertEquals(3, ancestors.size());
+		Assert.assertEquals("/a", ancestors.getFirst().getKey());
+		Assert.assertEquals("/a/b/d", ancestors.getLast().getKey());
+		final TreeIterator<String, Long> iterator = tree.iterator();
+		final Map<String, Integer> depths = new HashMap<>();
+		while (iterator.hasNext()) {
+			depths.put(iterator.next().getKey(), iterator.depth());
+		}
+		Assert.assertEquals(Integer.valueOf(0), depths.get("/a"));
+		Assert.assertEquals(Integer.valueOf(1), depths.get("/a/b"));
+		Assert.assertEquals(Integer.valueOf(2), depths.get("/a/b/c"));
+		Assert.assertEquals(Integer.valueOf(0), depths.get("/b"));
+	}
+	
+	@Test
+	public void testRejectedKeyLeavesTreeUnchanged() {
+		OffHeapHierarchicalTree<String, Long> tree = newTree();
+		tree.put("/a", 1L);
+		try {
+			tree.put("/a/0123456789012345678901234567890123456789", 2L);
+			Assert.fail();
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		Assert.assertEquals(1, tree.size());
+		Assert.assertEquals(1, count(tree.iterator()));
+		tree.put("/a/b", 3L);
+		verifyOptionalNode(tree.getNearest("/a/b/c"), "/a/b", 3L);
+	}
+	
+	@Test
+	public void testMatchesLinkedTree() {
+		final Random random = new Random(42);
+		final OffHeapHierarchicalTree<String, Long> tree = newSmallPageTree();
+		final LinkedHierarchicalTree<String, Long> expected = new LinkedHierarchicalTree<>(OffHeapHierarchicalTreeTest::isParentOf);
+		final List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			final StringBuilder key = new StringBuilder();
+			final int depth = 1 + random.nextInt(4);
+			for (int j = 0; j < depth; j++) {
+				key.append('/').append(random.nextInt(3));
+			}
+			keys.add(key.toString());
+		}
+		for (int i = 0; i < 4000; i++) {
+			final String key = keys.get(random.nextInt(keys.size()));
+			switch (random.nextInt(4)) {
+				case 0:
+					Assert.assertEquals(expected.remove(key), tree.remove(key));
+					break;
+				case 1:
+					Assert.assertEquals(expected.putIfNotPresent(key, (long) i), tree.putIfNotPresent(key, (long) i));
+					break;
+				default:
+					Assert.assertEquals(expected.put(key, (long) i), tree.put(key, (long) i));
+			}
+			Assert.assertEquals(expected.size(), tree.size());
+			final String query = keys.get(random.nextInt(keys.size())) + "/" + random.nextInt(3);
+			Assert.assertEquals(expected.getNearest(query), tree.getNearest(query));
+			Assert.assertEquals(expected.getValue(query), tree.getValue(query));
+		}
+		final Map<String, Long> entries = new HashMap<>();
+		for (final HierarchicalTree.Node<String, Long> node : expected) {
+			entries.put(node.getKey(), node.getValue());
+		}
+		for (final HierarchicalTree.Node<String, Long> node : tree) {
+			Assert.assertEquals(entries.remove(node.getKey()), node.getValue());
+		}
+		Assert.assertTrue(entries.isEmpty());
+	}
+	
+	@Test
+	public void testRemoveSubtreeAndGraft() {
+		OffHeapHierarchicalTree<String, Long> tree = newSmallPageTree();
+		tree.put("/a", 1L);
+		tree.put("/a/b", 2L);
+		tree.put("/a/b/c", 3L);
+		tree.put("/a/b/d", 4L);
+		tree.put("/a/b/d/e", 5L);
+		tree.put("/a/f", 6L);
+		Assert.assertTrue(tree.removeSubtree("/a/x").isEmpty());
+		Assert.assertTrue(tree.removeSubtree("/a/b/c/x").isEmpty());
+		final OffHeapHierarchicalTree<String, Long> detached = tree.removeSubtree("/a/b");
+		Assert.assertEquals(4, detached.size());
+		Assert.assertEquals(4, count(detached.iterator()));
+		verifyOptionalNode(detached.getNearest("/a/b/d/e/g"), "/a/b/d/e", 5L);
+		verifyOptionalNode(detached.getNearest("/a/b/c"), "/a/b/c", 3L);
+		Assert.assertEquals(2, tree.size());
+		verifyOptionalNode(tree.getNearest("/a/b/c"), "/a", 1L);
+		tree.put("/a/g", 7L);
+		tree.put("/a/h", 8L);
+		Assert.assertEquals(4, count(tree.iterator()));
+		tree.graft(detached);
+		Assert.assertTrue(detached.isEmpty());
+		Assert.assertEquals(8, tree.size());
+		verifyOptionalNode(tree.getNearest("/a/b/d/x"), "/a/b/d", 4L);
+	}
+	
+	@Test
+	public void testIteratorRemove() {
+		OffHeapHierarchicalTree<String, Long> tree = newSmallPageTree();
+		for (long i = 0; i < 50; i++) {
+			tree.put("/a/" + i, i);
+			tree.put("/a/" + i + "/b", i);
+		}
+		tree.put("/a", -1L);
+		final Iterator<HierarchicalTree.Node<String, Long>> iterator = tree.iterator();
+		int returned = 0;
+		while (iterator.hasNext()) {
+			if (!iterator.next().getKey().endsWith("/b")) {
+				iterator.remove();
+			}
+			returned++;
+		}
+		Assert.assertEquals(101, returned);
+		Assert.assertEquals(50, tree.size());
+		Assert.assertEquals(50, count(tree.iterator()));
+		verifyEmpty(tree.getNearest("/a/7"));
+		verifyOptionalNode(tree.getNearest("/a/7/b/c"), "/a/7/b", 7L);
+		for (long i = 0; i < 50; i++) {
+			tree.put("/c/" + i, i);
+		}
+		Assert.assertEquals(100, count(tree.iterator()));
+	}
+	
+	@Test
+	public void testNodeSetValue() {
+		OffHeapHierarchicalTree<String, Long> tree = newTree();
+		tree.put("/a", 1L);
+		final HierarchicalTree.Node<String, Long> node = tree.getNode("/a");
+		Assert.assertEquals(Long.valueOf(1), node.setValue(2L));
+		Assert.assertEquals(Long.valueOf(2), tree.getValue("/a"));
+		Assert.assertEquals(node, tree.getNode("/a"));
+		final List<String> visited = new ArrayList<>();
+		tree.forEachAncestor("/a/b", (key, value) -> visited.add(key + "=" + value));
+		Assert.assertEquals(1, visited.size());
+		Assert.assertEquals("/a=2", visited.get(0));
+	}
+	
+	@Test
+	public void testClearReusesPages() {
+		OffHeapHierarchicalTree<String, Long> tree = newSmallPageTree();
+		for (long i = 0; i < 100; i++) {
+			tree.put("/a/" + i, i);
+		}
+		tree.clear();
+		Assert.assertTrue(tree.isEmpty());
+		verifyEmpty(tree.getNearest("/a/1"));
+		tree.put("/b", 1L);
+		Assert.assertEquals(1, count(tree.iterator()));
+	}
+	
+	@Test
+	public void testMapped() throws IOException {
+		final Path file = Files.createTempFile("tree", ".pages");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			OffHeapHierarchicalTree<String, Long> tree = OffHeapHierarchicalTree.mapped(channel, OffHeapHierarchicalTreeTest::isParentOf, FixedWidthCodec.utf8(32), FixedWidthCodec.longs());
+			for (long i = 0; i < 1000; i++) {
+				tree.put("/" + (i % 10) + "/" + i, i);
+			}
+			tree.put("/3", -3L);
+			Assert.assertEquals(1001, tree.size());
+			verifyOptionalNode(tree.getNearest("/3/33/x"), "/3/33", 33L);
+			verifyOptionalNode(tree.getNearest("/3/34/x"), "/3", -3L);
+			Assert.assertEquals(OffHeapHierarchicalTree.DEFAULT_PAGE_BYTES, channel.size());
+		} finally {
+			Files.delete(file);
+		}
+	}
+	
+	private static int count(final Iterator<?> iterator) {
+		int count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+	
+	private static <V> void verifyPresent(Optional<V> optional, final V expectedValue) {
+		Assert.assertNotNull(optional);
+		Assert.assertTrue(optional.isPresent());
+		Assert.assertEquals(expectedValue, optional.get());
+	}
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class PathHierarchicalTreeTest {
+	
+	private static boolean isPathAncestor(final String ancestor, final String path) {
+		if (ancestor.equals("/")) return !path.equals("/");
+		return path.length() > ancestor.length() && path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+	}
+	
+	@Test
+	public void testEmptyTree() {
+		PathHierarchicalTree<Object> tree = new PathHierarchicalTree<>();
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+		verifyEmpty(tree.get("/a"));
+		verifyEmpty(tree.getNearest("/a/b"));
+		verifyEmpty(tree.getNearest("/"));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullKey() {
+		new PathHierarchicalTree<Object>().put(null, new Object());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullValue() {
+		new PathHierarchicalTree<Object>().put("/a", null);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testGetNearestWithNullKey() {
+		new PathHierarchicalTree<Object>().getNearest(null);
+	}
+	
+	@Test
+	public void testPutAndGetNearest() {
+		PathHierarchicalTree<Object> tree = new PathHierarchicalTree<>();
+		final Object valueRoot = new Object();
+		final Object valueOrg = new Object();
+		final Object valueTeam = new Object();
+		verifyEmpty(tree.put("/org/team", valueTeam));
+		verifyEmpty(tree.put("org", valueOrg));
+		Assert.assertTrue(tree.putIfNotPresent("/", valueRoot));
+		Assert.assertFalse(tree.putIfNotPresent("//org/", new Object()));
+		Assert.assertEquals(3, tree.size());
+		verifyOptionalNode(tree.getNearest("/org/team/project/resource"), "/org/team", valueTeam);
+		verifyOptionalNode(tree.getNearest("/org/teams"), "/org", valueOrg);
+		verifyOptionalNode(tree.getNearest("/other"), "/", valueRoot);
+		verifyOptionalNode(tree.get("/org//team/"), "/org/team", valueTeam);
+		verifyEmpty(tree.get("/org/team/project"));
+		Assert.assertSame(valueOrg, tree.getNearestValue("/org/x", null));
+		final Object replacement = new Object();
+		verifyPresent(tree.put("/org/team", replacement), valueTeam);
+		Assert.assertEquals(3, tree.size());
+		Assert.assertSame(replacement, tree.getValue("/org/team"));
+	}
+	
+	@Test
+	public void testRemove() {
+		PathHierarchicalTree<Object> tree = new PathHierarchicalTree<>();
+		final Object valueOrg = new Object();
+		tree.put("/org", valueOrg);
+		tree.put("/org/team/project", new Object());
+		verifyEmpty(tree.remove("/org/team"));
+		verifyEmpty(tree.remove("/missing"));
+		Assert.assertTrue(tree.remove("/org/team/project").isPresent());
+		verifyOptionalNode(tree.getNearest("/org/team/project"), "/org", valueOrg);
+		verifyPresent(tree.remove("/org"), valueOrg);
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+	}
+	
+	@Test
+	public void testMatchesLinkedTree() {
+		final Random random = new Random(42);
+		final List<String> paths = new ArrayList<>();
+		paths.add("/");
+		for (int i = 0; i < 600; i++) {
+			final String parent = paths.get(random.nextInt(paths.size()));
+			paths.add((parent.equals("/") ? "" : parent) + "/s" + random.nextInt(40));
+		}
+		PathHierarchicalTree<Object> tree = new PathHierarchicalTree<>();
+		LinkedHierarchicalTree<String, Object> expected = new LinkedHierarchicalTree<>(PathHierarchicalTreeTest::isPathAncestor);
+		final Map<String, Object> entries = new HashMap<>();
+		for (int i = 0; i < 5000; i++) {
+			final String path = paths.get(random.nextInt(paths.size()));
+			if (random.nextInt(3) == 0) {
+				Assert.assertEquals(expected.remove(path), tree.remove(path));
+				entries.remove(path);
+			} else {
+				final Object value = new Object();
+				Assert.assertEquals(expected.put(path, value), tree.put(path, value));
+				entries.put(path, value);
+			}
+			Assert.assertEquals(expected.size(), tree.size());
+			final String query = paths.get(random.nextInt(paths.size())) + "/q";
+			final HierarchicalTree.Node<String, Object> node = tree.getNearestNode(query);
+			final HierarchicalTree.Node<String, Object> expectedNode = expected.getNearestNode(query);
+			Assert.assertEquals((expectedNode == null) ? null : expectedNode.getKey(), (node == null) ? null : node.getKey());
+		}
+		int count = 0;
+		for (final HierarchicalTree.Node<String, Object> node : tree) {
+			Assert.assertSame(entries.get(node.getKey()), node.getValue());
+			count++;
+		}
+		Assert.assertEquals(entries.size(), count);
+	}
+	
+	@Test
+	public void testRemoveSubtreeAndGraft() {
+		PathHierarchicalTree<Object> tree = new PathHierarchicalTree<>();
+		final Object valueOrg = new Object();
+		final Object valueTeam = new Object();
+		tree.put("/org", valueOrg);
+		tree.put("/org/team", valueTeam);
+		tree.put("/org/team/a", new Object());
+		tree.put("/org/team/b/c", new Object());
+		tree.put("/org/other", new Object());
+		verifyEmpty(tree.get("/org/team/b"));
+		Assert.assertTrue(tree.removeSubtree("/org/team/b").isEmpty());
+		final PathHierarchicalTree<Object> detached = tree.removeSubtree("/org/team");
+		Assert.assertEquals(3, detached.size());
+		Assert.assertEquals(3, count(detached.iterator()));
+		verifyOptionalNode(detached.getNearest("/org/team/b/c/d"), "/org/team/b/c", detached.getValue("/org/team/b/c"));
+		verifyEmpty(detached.get("/org"));
+		Assert.assertEquals(2, tree.size());
+		verifyOptionalNode(tree.getNearest("/org/team/a"), "/org", valueOrg);
+		tree.graft(detached);
+		Assert.assertTrue(detached.isEmpty());
+		Assert.assertEquals(5, tree.size());
+		verifyOptionalNode(tree.getNearest("/org/team/x"), "/org/team", valueTeam);
+	}
+	
+	@Test
+	public void testSegmentsOfRemovedPathsAreForgotten() {
+		PathHierarchicalTree<Object> tree = new PathHierarchicalTree<>();
+		tree.put("/org/team", new Object());
+		Assert.assertEquals(2, tree.segmentCount());
+		for (int i = 0; i < 1000; i++) {
+			tree.put("/org/team/" + i + "/x" + i, new Object());
+			tree.remove("/org/team/" + i + "/x" + i);
+		}
+		Assert.assertEquals(2, tree.segmentCount());
+		for (int i = 0; i < 100; i++) {
+			tree.put("/org/" + i + "/team", new Object());
+		}
+		final Iterator<HierarchicalTree.Node<String, Object>> iterator = tree.iterator();
+		while (iterator.hasNext()) {
+			if (!iterator.next().getKey().equals("/org/team")) {
+				iterator.remove();
+			}
+		}
+		Assert.assertEquals(2, tree.segmentCount());
+		tree.put("/org/team/a/b", new Object());
+		tree.put("/org/c", new Object());
+		final PathHierarchicalTree<Object> detached = tree.removeSubtree("/org/team");
+		Assert.assertEquals(2, tree.segmentCount());
+		Assert.assertEquals(4, detached.segmentCount());
+		detached.remove("/org/team/a/b");
+		Assert.assertEquals(2, detached.segmentCount());
+		tree.remove("/org/c");
+		Assert.assertEquals(0, tree.segmentCount());
+		tree.graft(detached);
+		Assert.assertEquals(2, tree.segmentCount());
+		Assert.assertEquals(1, tree.size());
+		Assert.assertTrue(tree.get("/org/team").isPresent());
+	}
+	
+	@Test
+	public void testAncestors() {
+		PathHierarchicalTree<Object> tree = new PathHierarchicalTree<>();
+		tree.put("/", new Object());
+		tree.put("/org/team", new Object());
+		tree.put("/org/team/project", new Object());
+		final Deque<HierarchicalTree.Node<String, Object>> ancestors = tree.ancestors("/org/team/project/resource");
+		Assert.assertEquals(3, ancestors.size());
+		Assert.assertEquals("/", ancestors.getFirst().getKey());
+		Assert.assertEquals("/org/team/project", ancestors.getLast().getKey());
+		final List<String> keys = new ArrayList<>();
+		tree.forEachAncestor("/org/team", (key, value) -> keys.add(key));
+		Assert.assertEquals(2, keys.size());
+		Assert.assertEquals("/org/team", keys.get(1));
+	}
+	
+	@Test
+	public void testForEachAncestorPassesQueryKey() {
+		PathHierarchicalTree<Object> tree = new PathHierarchicalTree<>();
+		tree.put("/org", new Object());
+		tree.put("/org/team", new Object());
+		final String query = new String("/org/team");
+		final List<String> keys = new ArrayList<>();
+		tree.forEachAncestor(query, (key, value) -> keys.add(key));
+		Assert.assertEquals(2, keys.size());
+		Assert.assertEquals("/org", keys.get(0));
+		Assert.assertSame(query, keys.get(1));
+		keys.clear();
+		tree.forEachAncestor("org//team/", (key, value) -> keys.add(key));
+		Assert.assertEquals(2, keys.size());
+		Assert.assertEquals("/org/team", keys.get(1));
+	}
+	
+	@Test
+	public void testIteratorRemove() {
+		PathHierarchicalTree<Object> tree = new PathHierarchicalTree<>();
+		for (int i = 0; i < 20; i++) {
+			tree.put("/a/" + i, new Object());
+			tree.put("/a/" + i + "/b", new Object());
+		}
+		tree.put("/a", new Object());
+		final Iterator<HierarchicalTree.Node<String, Object>> iterator = tree.iterator();
+		int returned = 0;
+		while (iterator.hasNext()) {
+			if (!iterator.next().getKey().endsWith("/b")) {
+				iterator.remove();
+			}
+			returned++;
+		}
+		Assert.assertEquals(41, returned);
+		Assert.assertEquals(20, tree.size());
+		Assert.assertEquals(20, count(tree.iterator()));
+		verifyEmpty(tree.getNearest("/a/7"));
+		Assert.assertTrue(tree.getNearest("/a/7/b/c").isPresent());
+	}
+	
+	@Test
+	public void testLookupsDoNotAllocate() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		PathHierarchicalTree<Object> tree = new PathHierarchicalTree<>();
+		final String[] queries = new String[64];
+		for (int i = 0; i < queries.length; i++) {
+			tree.put("/org/team" + (i % 8) + "/project" + i, new Object());
+			queries[i] = "/org/team" + (i % 8) + "/project" + i + "/resource";
+		}
+		final long threadId = Thread.currentThread().getId();
+		threadBean.getThreadAllocatedBytes(threadId);
+		final long before = threadBean.getThreadAllocatedBytes(threadId);
+		int found = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (tree.getNearestNode(queries[i % queries.length]) != null) found++;
+		}
+		final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		Assert.assertEquals(10000, found);
+		Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+	}
+	
+	private static int count(final Iterator<?> iterator) {
+		int count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+	
+	private static <V> void verifyPresent(Optional<V> optional, final V expectedValue) {
+		Assert.assertNotNull(optional);
+		Assert.assertTrue(optional.isPresent());
+		Assert.assertEquals(expectedValue, optional.get());
+	}
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class PersistentHierarchicalTreeTest {
+	
+	@Test
+	public void testEmptyTree() {
+		PersistentHierarchicalTree<MockKey, Object> tree = PersistentHierarchicalTree.empty(MockKey::isParentOf);
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+		verifyEmpty(tree.get(new MockKey()));
+		Assert.assertSame(tree, tree.clear());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullKey() {
+		PersistentHierarchicalTree.<MockKey, Object>empty(MockKey::isParentOf).put(null, new Object());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullValue() {
+		PersistentHierarchicalTree.<MockKey, Object>empty(MockKey::isParentOf).put(new MockKey(), null);
+	}
+	
+	@Test
+	public void testPutLeavesPreviousVersion() {
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final Object value3 = new Object();
+		final PersistentHierarchicalTree<MockKey, Object> empty = PersistentHierarchicalTree.empty(MockKey::isParentOf);
+		final PersistentHierarchicalTree<MockKey, Object> version1 = empty.put(key1, value1);
+		final PersistentHierarchicalTree<MockKey, Object> version2 = version1.put(key2, value2);
+		final PersistentHierarchicalTree<MockKey, Object> version3 = version2.put(key2, value3);
+		Assert.assertEquals(0, empty.size());
+		Assert.assertEquals(1, version1.size());
+		Assert.assertEquals(2, version2.size());
+		Assert.assertEquals(2, version3.size());
+		verifyEmpty(version1.get(key2));
+		verifyOptionalNode(version1.getNearest(key2), key1, value1);
+		verifyOptionalNode(version2.get(key2), key2, value2);
+		verifyOptionalNode(version3.get(key2), key2, value3);
+		Assert.assertSame(version3, version3.putIfNotPresent(key2, value2));
+	}
+	
+	@Test
+	public void testPutSharesUntouchedSubtrees() {
+		final MockKey key1 = new MockKey();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey();
+		final MockKey key4 = new MockKey(key3);
+		final PersistentHierarchicalTree<MockKey, Object> version1 = PersistentHierarchicalTree.<MockKey, Object>empty(MockKey::isParentOf)
+				.put(key1, new Object())
+				.put(key2, new Object())
+				.put(key3, new Object());
+		final PersistentHierarchicalTree<MockKey, Object> version2 = version1.put(key4, new Object());
+		Assert.assertSame(version1.getNode(key2), version2.getNode(key2));
+		Assert.assertNotSame(version1.getNode(key3), version2.getNode(key3));
+	}
+	
+	@Test
+	public void testPutParentOfMixedSiblings() {
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey();
+		final MockKey key4 = new MockKey(key1);
+		final Object value4 = new Object();
+		final MockKey key5 = new MockKey();
+		final PersistentHierarchicalTree<MockKey, Object> version1 = PersistentHierarchicalTree.<MockKey, Object>empty(MockKey::isParentOf)
+				.put(key2, value2)
+				.put(key3, new Object())
+				.put(key4, value4)
+				.put(key5, new Object());
+		final PersistentHierarchicalTree<MockKey, Object> version2 = version1.putIfNotPresent(key1, value1);
+		Assert.assertEquals(5, version2.size());
+		Assert.assertSame(version1.getNode(key5), version2.getNode(key5));
+		verifyOptionalNode(version2.getNearest(new MockKey(key1)), key1, value1);
+		verifyOptionalNode(version2.getNearest(new MockKey(key2)), key2, value2);
+		verifyOptionalNode(version2.getNearest(new MockKey(key4)), key4, value4);
+		verifyEmpty(version1.getNearest(new MockKey(key1)));
+		final Set<MockKey> keys = new HashSet<>();
+		version2.forEach(node -> keys.add(node.getKey()));
+		Assert.assertEquals(new HashSet<>(Arrays.asList(key1, key2, key3, key4, key5)), keys);
+	}
+	
+	@Test
+	public void testRemove() {
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final MockKey key4 = new MockKey(key1);
+		final PersistentHierarchicalTree<MockKey, Object> version1 = PersistentHierarchicalTree.<MockKey, Object>empty(MockKey::isParentOf)
+				.put(key1, value1)
+				.put(key2, new Object())
+				.put(key3, value3)
+				.put(key4, new Object());
+		final PersistentHierarchicalTree<MockKey, Object> version2 = version1.remove(key2);
+		Assert.assertEquals(3, version2.size());
+		verifyEmpty(version2.get(key2));
+		Assert.assertTrue(version1.get(key2).isPresent());
+		verifyOptionalNode(version2.getNearest(new MockKey(key3)), key3, value3);
+		Assert.assertTrue(version2.get(key4).isPresent());
+		Assert.assertSame(version2, version2.remove(key2));
+		Assert.assertSame(version2, version2.remove(new MockKey(key3)));
+		Assert.assertEquals(value1, version2.remove(key3).getNearestValue(key3, null));
+	}
+	
+	@Test
+	public void testRemoveSubtreeAndGraft() {
+		final PersistentHierarchicalTree<MockKey, Object> empty = PersistentHierarchicalTree.empty(MockKey::isParentOf);
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey key3 = new MockKey(key2);
+		final MockKey key4 = new MockKey(key1);
+		final MockKey key5 = new MockKey();
+		final PersistentHierarchicalTree<MockKey, Object> tree = empty.put(key1, value1).put(key2, value2).put(key3, new Object()).put(key4, new Object()).put(key5, new Object());
+		final PersistentHierarchicalTree<MockKey, Object> subtree = tree.subtree(key2);
+		final PersistentHierarchicalTree<MockKey, Object> removed = tree.removeSubtree(key2);
+		Assert.assertEquals(5, tree.size());
+		Assert.assertEquals(2, subtree.size());
+		Assert.assertEquals(3, removed.size());
+		Assert.assertSame(tree.getNode(key3), subtree.getNode(key3));
+		verifyOptionalNode(removed.getNearest(new MockKey(key3)), key1, value1);
+		Assert.assertSame(removed, removed.removeSubtree(key2));
+		Assert.assertTrue(removed.subtree(key2).isEmpty());
+		final PersistentHierarchicalTree<MockKey, Object> grafted = removed.graft(subtree);
+		Assert.assertEquals(5, grafted.size());
+		Assert.assertSame(subtree.getNode(key3), grafted.getNode(key3));
+		verifyOptionalNode(grafted.getNearest(new MockKey(key2)), key2, value2);
+		final PersistentHierarchicalTree<MockKey, Object> merged = grafted.graft(tree.subtree(key1));
+		Assert.assertEquals(5, merged.size());
+		Assert.assertEquals(1, merged.removeSubtree(key1).size());
+		Assert.assertSame(grafted, grafted.graft(empty));
+	}
+	
+	@Test
+	public void testAncestors() {
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final MockKey key3 = new MockKey(key2);
+		final Object value3 = new Object();
+		final PersistentHierarchicalTree<MockKey, Object> tree = PersistentHierarchicalTree.<MockKey, Object>empty(MockKey::isParentOf).put(key3, value3).put(new MockKey(), new Object()).put(key1, value1);
+		final Iterator<HierarchicalTree.Node<MockKey, Object>> deepestFirst = tree.ancestors(new MockKey(key3)).descendingIterator();
+		verifyOptionalNode(Optional.of(deepestFirst.next()), key3, value3);
+		verifyOptionalNode(Optional.of(deepestFirst.next()), key1, value1);
+		Assert.assertFalse(deepestFirst.hasNext());
+		final int[] count = new int[1];
+		tree.forEachAncestor(key2, (key, value) -> count[0]++);
+		Assert.assertEquals(1, count[0]);
+	}
+	
+	@Test
+	public void testResolveBatch() {
+		final MockKey key1 = new MockKey();
+		final Object value1 = new Object();
+		final MockKey key2 = new MockKey(key1);
+		final Object value2 = new Object();
+		final MockKey unrelated = new MockKey();
+		final PersistentHierarchicalTree<MockKey, Object> tree = PersistentHierarchicalTree.<MockKey, Object>empty(MockKey::isParentOf).put(key1, value1).put(key2, value2);
+		final Object[] out = new Object[3];
+		Assert.assertEquals(2, tree.resolveBatch(new MockKey[] {new MockKey(key2), unrelated, new MockKey(key1)}, out));
+		Assert.assertArrayEquals(new Object[] {value2, null, value1}, out);
+		Assert.assertEquals(Arrays.asList(tree.getNode(key2), null), tree.getNearestAll(Arrays.asList(key2, unrelated)));
+	}
+	
+	@Test(expected=UnsupportedOperationException.class)
+	public void testSetNodeValue() {
+		final MockKey key = new MockKey();
+		PersistentHierarchicalTree.<MockKey, Object>empty(MockKey::isParentOf).put(key, new Object()).getNode(key).setValue(new Object());
+	}
+	
+	@Test(expected=UnsupportedOperationException.class)
+	public void testIteratorRemove() {
+		final PersistentHierarchicalTree<MockKey, Object> tree = PersistentHierarchicalTree.<MockKey, Object>empty(MockKey::isParentOf).put(new MockKey(), new Object());
+		tree.iterator().next();
+		tree.iterator().remove();
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+	
+}
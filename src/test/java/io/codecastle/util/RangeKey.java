@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+/**
+ * A key identified by a nested interval, so that ancestry can be checked in
+ * constant time regardless of depth.
+ *
+ * @author Doug Valenta
+ */
+public class RangeKey {
+	
+	private final int start;
+	private final int end;
+	
+	public RangeKey(final int start, final int end) {
+		this.start = start;
+		this.end = end;
+	}
+	
+	public boolean isParentOf(final RangeKey other) {
+		return start <= other.start && other.end <= end && (start != other.start || end != other.end);
+	}
+	
+	@Override
+	public boolean equals(final Object other) {
+		if (!(other instanceof RangeKey)) return false;
+		final RangeKey key = (RangeKey) other;
+		return start == key.start && end == key.end;
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * start + end;
+	}
+	
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class TreeMetricsRecorderTest {
+	
+	@Test
+	public void testEmpty() {
+		final TreeMetricsRecorder.Histogram histogram = new TreeMetricsRecorder().latencies(TreeMetrics.Operation.GET);
+		Assert.assertEquals(0, histogram.count());
+		Assert.assertEquals(0, histogram.percentile(99), 0);
+		Assert.assertEquals(0, histogram.mean(), 0);
+	}
+	
+	@Test
+	public void testSmallValuesAreExact() {
+		final TreeMetricsRecorder recorder = new TreeMetricsRecorder();
+		for (int i = 1; i <= 10; i++) {
+			recorder.record(TreeMetrics.Operation.GET, i, 0, 0, 0);
+		}
+		final TreeMetricsRecorder.Histogram histogram = recorder.ancestorCalls(TreeMetrics.Operation.GET);
+		Assert.assertEquals(10, histogram.count());
+		Assert.assertEquals(55, histogram.sum());
+		Assert.assertEquals(5.5, histogram.mean(), 0);
+		Assert.assertEquals(1, histogram.percentile(0));
+		Assert.assertEquals(5, histogram.percentile(50));
+		Assert.assertEquals(9, histogram.percentile(90));
+		Assert.assertEquals(10, histogram.percentile(100));
+		Assert.assertEquals(10, histogram.max());
+	}
+	
+	@Test
+	public void testLargeValuesAreWithinPrecision() {
+		final TreeMetricsRecorder recorder = new TreeMetricsRecorder();
+		for (long value = 1000; value <= 1000000; value += 1000) {
+			recorder.record(TreeMetrics.Operation.PUT, 0, 0, 0, value);
+		}
+		final TreeMetricsRecorder.Histogram histogram = recorder.latencies(TreeMetrics.Operation.PUT);
+		Assert.assertEquals(1000, histogram.count());
+		Assert.assertEquals(1000000, histogram.max());
+		for (final double percentile : new double[] {10, 50, 90, 99, 99.9}) {
+			final double expected = percentile * 10000;
+			final long actual = histogram.percentile(percentile);
+			Assert.assertTrue(percentile + ": " + actual, actual >= expected && actual <= expected * 1.125);
+		}
+		Assert.assertEquals(1000000, histogram.percentile(100));
+	}
+	
+	@Test
+	public void testOperationsAreSeparate() {
+		final TreeMetricsRecorder recorder = new TreeMetricsRecorder();
+		recorder.record(TreeMetrics.Operation.GET, 1, 2, 3, 4);
+		recorder.record(TreeMetrics.Operation.REMOVE, 5, 6, 7, 8);
+		Assert.assertEquals(1, recorder.ancestorCalls(TreeMetrics.Operation.GET).max());
+		Assert.assertEquals(2, recorder.nodesVisited(TreeMetrics.Operation.GET).max());
+		Assert.assertEquals(3, recorder.siblingChains(TreeMetrics.Operation.GET).max());
+		Assert.assertEquals(4, recorder.latencies(TreeMetrics.Operation.GET).max());
+		Assert.assertEquals(8, recorder.latencies(TreeMetrics.Operation.REMOVE).max());
+		Assert.assertEquals(0, recorder.latencies(TreeMetrics.Operation.PUT).count());
+		Assert.assertTrue(recorder.toString().contains("REMOVE"));
+		Assert.assertFalse(recorder.toString().contains("PUT"));
+	}
+	
+	@Test
+	public void testReset() {
+		final TreeMetricsRecorder recorder = new TreeMetricsRecorder();
+		recorder.record(TreeMetrics.Operation.GET, 1, 2, 3, 4);
+		recorder.reset();
+		Assert.assertEquals(0, recorder.latencies(TreeMetrics.Operation.GET).count());
+		Assert.assertEquals(0, recorder.latencies(TreeMetrics.Operation.GET).max());
+		Assert.assertEquals(0, recorder.latencies(TreeMetrics.Operation.GET).percentile(50));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPercentileOutOfRange() {
+		new TreeMetricsRecorder().latencies(TreeMetrics.Operation.GET).percentile(101);
+	}
+	
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2018 Doug Valenta.
+ * Licensed under the terms of the MIT License.
+ */
+package io.codecastle.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Doug Valenta
+ */
+public class TrieHierarchicalTreeTest {
+	
+	private static HierarchicalTree<String, Object> newTree() {
+		return new TrieHierarchicalTree<>(key -> Arrays.asList(key.split("/")));
+	}
+	
+	@Test
+	public void testEmptyTree() {
+		HierarchicalTree<String, Object> tree = newTree();
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+		verifyEmpty(tree.get("a"));
+		verifyEmpty(tree.getNearest("a"));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullKey() {
+		newTree().put(null, new Object());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testPutWithNullValue() {
+		newTree().put("a", null);
+	}
+	
+	@Test
+	public void testPutAndReplace() {
+		HierarchicalTree<String, Object> tree = newTree();
+		final Object value1 = new Object();
+		final Object value2 = new Object();
+		verifyEmpty(tree.put("a/b", value1));
+		verifyPresent(tree.put("a/b", value2), value1);
+		Assert.assertEquals(1, tree.size());
+		verifyOptionalNode(tree.get("a/b"), "a/b", value2);
+		verifyEmpty(tree.get("a"));
+	}
+	
+	@Test
+	public void testPutIfNotPresent() {
+		HierarchicalTree<String, Object> tree = newTree();
+		final Object value1 = new Object();
+		Assert.assertTrue(tree.putIfNotPresent("a", value1));
+		Assert.assertFalse(tree.putIfNotPresent("a", new Object()));
+		Assert.assertTrue(tree.putIfNotPresent("a/b", new Object()));
+		Assert.assertEquals(2, tree.size());
+		verifyOptionalNode(tree.get("a"), "a", value1);
+	}
+	
+	@Test
+	public void testGetNearest() {
+		HierarchicalTree<String, Object> tree = newTree();
+		final Object value1 = new Object();
+		final Object value2 = new Object();
+		tree.put("a", value1);
+		tree.put("a/b/c", value2);
+		verifyOptionalNode(tree.getNearest("a"), "a", value1);
+		verifyOptionalNode(tree.getNearest("a/b"), "a", value1);
+		verifyOptionalNode(tree.getNearest("a/b/c"), "a/b/c", value2);
+		verifyOptionalNode(tree.getNearest("a/b/c/d"), "a/b/c", value2);
+		verifyOptionalNode(tree.getNearest("a/x/c"), "a", value1);
+		verifyEmpty(tree.getNearest("b"));
+	}
+	
+	@Test
+	public void testGetValue() {
+		HierarchicalTree<String, Object> tree = newTree();
+		final Object value1 = new Object();
+		final Object defaultValue = new Object();
+		tree.put("a", value1);
+		Assert.assertEquals(value1, tree.getValue("a"));
+		Assert.assertNull(tree.getValue("a/b"));
+		Assert.assertEquals(value1, tree.getNearestValue("a/b", defaultValue));
+		Assert.assertEquals(defaultValue, tree.getNearestValue("b", defaultValue));
+		Assert.assertNull(tree.getNearestNode("b"));
+	}
+	
+	@Test
+	public void testAncestors() {
+		HierarchicalTree<String, Object> tree = newTree();
+		final Object value1 = new Object();
+		final Object value2 = new Object();
+		tree.put("a", value1);
+		tree.put("a/b/c", value2);
+		tree.put("a/d", new Object());
+		final Iterator<HierarchicalTree.Node<String, Object>> rootFirst = tree.ancestors("a/b/c/d").iterator();
+		verifyOptionalNode(Optional.of(rootFirst.next()), "a", value1);
+		verifyOptionalNode(Optional.of(rootFirst.next()), "a/b/c", value2);
+		Assert.assertFalse(rootFirst.hasNext());
+		final Set<Object> values = new HashSet<>();
+		tree.forEachAncestor("a/b", (key, value) -> values.add(value));
+		Assert.assertEquals(new HashSet<>(Arrays.asList(value1)), values);
+		Assert.assertTrue(tree.ancestors("b").isEmpty());
+	}
+	
+	@Test
+	public void testRemove() {
+		HierarchicalTree<String, Object> tree = newTree();
+		final Object value1 = new Object();
+		final Object value2 = new Object();
+		tree.put("a", value1);
+		tree.put("a/b/c", value2);
+		verifyEmpty(tree.remove("a/b"));
+		verifyPresent(tree.remove("a"), value1);
+		verifyEmpty(tree.remove("a"));
+		Assert.assertEquals(1, tree.size());
+		verifyEmpty(tree.get("a"));
+		verifyOptionalNode(tree.getNearest("a/b/c/d"), "a/b/c", value2);
+		verifyPresent(tree.remove("a/b/c"), value2);
+		Assert.assertTrue(tree.isEmpty());
+		verifyEmpty(tree.getNearest("a/b/c/d"));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testRemoveWithNullKey() {
+		newTree().remove(null);
+	}
+	
+	@Test
+	public void testIterator() {
+		HierarchicalTree<String, Object> tree = newTree();
+		final Set<String> keys = new HashSet<>(Arrays.asList("a", "a/b", "a/c", "a/c/d", "e/f"));
+		for (final String key : keys) {
+			tree.put(key, new Object());
+		}
+		final Set<String> iterated = new HashSet<>();
+		for (final HierarchicalTree.Node<String, Object> node : tree) {
+			Assert.assertTrue(iterated.add(node.getKey()));
+		}
+		Assert.assertEquals(keys, iterated);
+	}
+	
+	@Test
+	public void testIteratorRemove() {
+		HierarchicalTree<String, Object> tree = newTree();
+		tree.put("a", new Object());
+		tree.put("a/b", new Object());
+		tree.put("c/d", new Object());
+		final Iterator<HierarchicalTree.Node<String, Object>> iterator = tree.iterator();
+		while (iterator.hasNext()) {
+			if (!iterator.next().getKey().equals("a")) {
+				iterator.remove();
+			}
+		}
+		Assert.assertEquals(1, tree.size());
+		Assert.assertTrue(tree.get("a").isPresent());
+		verifyEmpty(tree.get("a/b"));
+		verifyEmpty(tree.getNearest("c/d"));
+		final Iterator<HierarchicalTree.Node<String, Object>> remaining = tree.iterator();
+		Assert.assertEquals("a", remaining.next().getKey());
+		Assert.assertFalse(remaining.hasNext());
+	}
+	
+	@Test
+	public void testIteratorRemovePrunes() {
+		TrieHierarchicalTree<String, Object, String> tree = new TrieHierarchicalTree<>(key -> Arrays.asList(key.split("/")));
+		tree.put("a/b/c", new Object());
+		tree.put("a/b/d", new Object());
+		tree.put("x", new Object());
+		Assert.assertEquals(6, tree.nodeCount());
+		for (final String key : Arrays.asList("a/b/c", "a/b/d")) {
+			final Iterator<HierarchicalTree.Node<String, Object>> iterator = tree.iterator();
+			while (!iterator.next().getKey().equals(key)) {}
+			iterator.remove();
+		}
+		Assert.assertEquals(2, tree.nodeCount());
+		Assert.assertEquals(1, tree.size());
+		Assert.assertEquals("x", tree.iterator().next().getKey());
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testIteratorRemoveWithoutNext() {
+		HierarchicalTree<String, Object> tree = newTree();
+		tree.put("a", new Object());
+		tree.iterator().remove();
+	}
+	
+	@Test
+	public void testRemoveSubtreeAndGraft() {
+		HierarchicalTree<String, Object> tree = newTree();
+		final Object value1 = new Object();
+		final Object value2 = new Object();
+		final Object value3 = new Object();
+		tree.put("a", value1);
+		tree.put("a/b", value2);
+		tree.put("a/b/c/d", value3);
+		tree.put("a/e", new Object());
+		final HierarchicalTree<String, Object> detached = tree.removeSubtree("a/b");
+		Assert.assertEquals(2, detached.size());
+		Assert.assertEquals(2, tree.size());
+		Assert.assertEquals(2, count(tree.iterator()));
+		verifyOptionalNode(tree.getNearest("a/b/c/d"), "a", value1);
+		verifyOptionalNode(detached.getNearest("a/b/c/d/e"), "a/b/c/d", value3);
+		verifyEmpty(detached.getNearest("a"));
+		Assert.assertTrue(tree.removeSubtree("a/b/c").isEmpty());
+		verifyPresent(detached.remove("a/b/c/d"), value3);
+		tree.graft(detached);
+		Assert.assertTrue(detached.isEmpty());
+		Assert.assertEquals(3, tree.size());
+		verifyOptionalNode(tree.getNearest("a/b/c/d"), "a/b", value2);
+		Assert.assertEquals(3, tree.removeSubtree("a").size());
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertFalse(tree.iterator().hasNext());
+	}
+	
+	@Test
+	public void testClear() {
+		HierarchicalTree<String, Object> tree = newTree();
+		tree.put("a", new Object());
+		tree.clear();
+		Assert.assertEquals(0, tree.size());
+		Assert.assertTrue(tree.isEmpty());
+		verifyEmpty(tree.get("a"));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testSetNodeValueWithNullValue() {
+		HierarchicalTree<String, Object> tree = newTree();
+		tree.put("a", new Object());
+		tree.get("a").get().setValue(null);
+	}
+	
+	private static int count(final Iterator<?> iterator) {
+		int count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+	
+	private static <K, V> HierarchicalTree.Node<K, V> verifyOptionalNode(Optional<HierarchicalTree.Node<K, V>> optionalNode, K expectedKey, V expectedValue) {
+		Assert.assertNotNull(optionalNode);
+		Assert.assertTrue(optionalNode.isPresent());
+		final HierarchicalTree.Node<K, V> node = optionalNode.get();
+		Assert.assertEquals(expectedKey, node.getKey());
+		Assert.assertEquals(expectedValue, node.getValue());
+		return node;
+	}
+	
+	private static void verifyEmpty(Optional<?> optional) {
+		Assert.assertNotNull(optional);
+		Assert.assertFalse(optional.isPresent());
+	}
+	
+	private static <V> void verifyPresent(Optional<V> optional, final V expectedValue) {
+		Assert.assertNotNull(optional);
+		Assert.assertTrue(optional.isPresent());
+		Assert.assertEquals(expectedValue, optional.get());
+	}
+
+}